@@ -0,0 +1,787 @@
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Headless command mode for scripts and bulk imports:
+ *
+ *   java ExpenseTracker --batch              read commands from stdin
+ *   java ExpenseTracker --batch cmds.txt     read commands from a file
+ *   java ExpenseTracker --batch -c "totals 2024"
+ *
+ * One command per line; blank lines and lines starting with '#' are ignored.
+ *   add <amount>[<currency>] <category> <DD/MM/YYYY> <description...>
+ *   delete <id> [<id>...]
+ *   delete-range <from> <to>
+ *   query <from> <to> [category]
+ *   search <words...> [category:<name>] [from:<date>] [to:<date>]
+ *   totals [MM/YYYY | YYYY]
+ *   trend <day|week|month|year> [<periods>] [category] [to:<date>] [avg:<n>]
+ *   stats [<words...>] [by:<category|month|year>] [category:<name>[,<name>...]]
+ *         [from:<date>] [to:<date>] [min:<amount>] [max:<amount>] [show:min,max,p90,...]
+ *   export <file> [<from> <to>] [category]     (.gz names are compressed)
+ *   import <file> [<rejects file>]
+ *   budgets [history]
+ *   budget-add <category|*> <monthly|weekly|custom> <limit> [<percent,...>] [<from> <to>]
+ *   budget-remove <id>
+ *   categories / category-add <name>
+ *   recurring / recurring-run [<date>]
+ *   recurring-add <category> <daily|weekly|monthly|yearly> <amount>[,<amount>@<date>...] <from> [to:<date>]
+ *                 <description...>
+ *   recurring-change <id> <amount> <from> / recurring-remove <id>
+ *   currencies / rate-add <currency> <from> <rate> / rate-remove <currency> <from>
+ *   currency <code>
+ *   metrics [reset]
+ *   begin / commit
+ *
+ * Output is tab-separated with no colors, one line per result, so it can be
+ * piped into other tools. Amounts are in the report currency; a row in
+ * another currency shows its own amount with the code after it (12.50EUR),
+ * and an add takes one the same way. An add that crosses a budget threshold
+ * is followed by an "alert" line per threshold. Recurring expenses that
+ * fell due since the last run are added before the first command and
+ * reported on stderr. Mutations are journaled as one batch (a single fsync,
+ * recovered all-or-nothing) that is committed at "commit" or at the end of
+ * input. The exit status is 1 if any line was rejected.
+ *
+ * ExpenseServer runs one of these per client in shared mode: there are no
+ * transactions, each change is committed on its own, and reads work on a
+ * Ledger.View so they never see another client's half-applied change.
+ */
+public class BatchMode {
+
+    private final Ledger ledger;
+    private final PrintStream out;
+    private final boolean shared;   // one of several sessions on the ledger
+    private int errors;
+
+    BatchMode(Ledger ledger, PrintStream out) {
+        this(ledger, out, false);
+    }
+
+    BatchMode(Ledger ledger, PrintStream out, boolean shared) {
+        this.ledger = ledger;
+        this.out = out;
+        this.shared = shared;
+    }
+
+    /** Runs the batch described by {@code args} and returns the process exit status. */
+    public static int run(Ledger ledger, String[] args) {
+        Ledger.LoadReport report = ledger.load();
+        ExpenseTracker.publishMetrics();
+        for (String warning : report.warnings) {
+            System.err.println(warning);
+        }
+        addDueRecurring(ledger);
+        PrintStream out = new PrintStream(new BufferedOutputStream(
+                new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        BatchMode batch = new BatchMode(ledger, out);
+        try {
+            if (args.length >= 2 && args[0].equals("-c")) {
+                batch.execute(String.join(" ", Arrays.copyOfRange(args, 1, args.length)), 1);
+            } else {
+                InputStream in = args.length == 0 || args[0].equals("-") ? System.in : new FileInputStream(args[0]);
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16)) {
+                    batch.execute(reader);
+                }
+            }
+            ledger.close();
+        } catch (IOException e) {
+            out.println("error\t0\t" + e.getMessage());
+            batch.errors++;
+        }
+        out.flush();
+        return batch.errors == 0 ? 0 : 1;
+    }
+
+    // Before any command, so the batch sees them; an error here only costs the
+    // recurring rows, which the next run adds
+    static void addDueRecurring(Ledger ledger) {
+        try {
+            Recurring.Result result = ledger.materializeRecurring(ExpenseDates.today());
+            if (result.added > 0) {
+                System.err.printf("Added %d recurring expenses from %d rules%n", result.added, result.rules);
+            }
+        } catch (IOException e) {
+            System.err.println("Error adding recurring expenses: " + e.getMessage());
+        }
+    }
+
+    void execute(BufferedReader reader) throws IOException {
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            execute(line, ++lineNumber);
+        }
+    }
+
+    void execute(String line, int lineNumber) throws IOException {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) return;
+        String[] words = line.split("\\s+", 5);
+        try {
+            switch (words[0].toLowerCase(Locale.ROOT)) {
+                case "add": add(words); break;
+                case "delete": delete(line); break;
+                case "delete-range": deleteRange(words); break;
+                case "query": query(words); break;
+                case "search": search(line); break;
+                case "totals": totals(words); break;
+                case "trend": trend(line); break;
+                case "stats": stats(line); break;
+                case "export": export(line); break;
+                case "import": importCsv(line); break;
+                case "budgets": budgets(words); break;
+                case "metrics": metrics(words); break;
+                case "budget-add": addBudget(line); break;
+                case "categories":
+                    String[] names = Categories.names();
+                    for (int c = 0; c < names.length; c++) out.println("category\t" + c + "\t" + names[c]);
+                    out.println("ok\tcategories\t" + names.length);
+                    break;
+                case "category-add":
+                    if (words.length != 2) throw new IllegalArgumentException("usage: category-add <name>");
+                    out.println("ok\tcategory-added\t" + ledger.addCategory(words[1]));
+                    break;
+                case "recurring": recurring(words); break;
+                case "recurring-add": addRecurring(line); break;
+                case "recurring-change": changeRecurring(words); break;
+                case "recurring-remove":
+                    if (words.length != 2) throw new IllegalArgumentException("usage: recurring-remove <id>");
+                    int ruleId = parseInt(words[1], "recurring id");
+                    if (!ledger.removeRecurring(ruleId)) throw new IllegalArgumentException("no recurring expense " + ruleId);
+                    out.println("ok\trecurring-removed\t" + ruleId);
+                    break;
+                case "recurring-run": runRecurring(words); break;
+                case "currencies": currencies(words); break;
+                case "rate-add": addRate(words); break;
+                case "rate-remove":
+                    if (words.length != 3) throw new IllegalArgumentException("usage: rate-remove <currency> <from>");
+                    int currency = Currencies.parse(words[1]);
+                    if (!ledger.removeRate(currency, parseDate(words[2]))) {
+                        throw new IllegalArgumentException("no " + Currencies.code(currency) + " rate from " + words[2]);
+                    }
+                    out.println("ok	rate-removed	" + Currencies.code(currency) + "	" + words[2]);
+                    break;
+                case "currency":
+                    if (words.length != 2) throw new IllegalArgumentException("usage: currency <code>");
+                    ledger.reportIn(Currencies.parse(words[1]));
+                    out.println("ok	currency	" + Currencies.code(ledger.reportCurrency()));
+                    break;
+                case "budget-remove":
+                    if (words.length != 2) throw new IllegalArgumentException("usage: budget-remove <id>");
+                    int id = parseInt(words[1], "budget id");
+                    if (!ledger.removeBudget(id)) throw new IllegalArgumentException("no budget " + id);
+                    out.println("ok\tbudget-removed\t" + id);
+                    break;
+                case "begin":
+                    if (shared) throw new IllegalArgumentException("transactions are not available in server mode");
+                    if (ledger.inTransaction()) throw new IllegalArgumentException("transaction already open");
+                    ledger.begin();
+                    break;
+                case "commit":
+                    if (shared) throw new IllegalArgumentException("transactions are not available in server mode");
+                    if (!ledger.inTransaction()) throw new IllegalArgumentException("no transaction open");
+                    ledger.commit();
+                    out.println("ok\tcommitted");
+                    break;
+                case "help": help(); break;
+                default: throw new IllegalArgumentException("unknown command: " + words[0]);
+            }
+        } catch (IllegalArgumentException e) {
+            out.println("error\t" + lineNumber + "\t" + e.getMessage());
+            errors++;
+        }
+    }
+
+    // Commands
+
+    private void add(String[] words) throws IOException {
+        if (words.length < 4) {
+            throw new IllegalArgumentException("usage: add <amount>[<currency>] <category> <date> <description>");
+        }
+        int currency = Currencies.ofAmount(words[1]);
+        long cents = parseAmount(Currencies.withoutCode(words[1]));
+        int category = parseCategory(words[2]);
+        int date = parseDate(words[3]);
+        String description = words.length > 4 ? words[4] : "";
+        openTransaction();
+        List<Budgets.Status> alerts = new ArrayList<>();
+        out.println("ok\tadded\t" + ledger.add(cents, currency, category, date, description, alerts));
+        for (Budgets.Status alert : alerts) {
+            out.println("alert\t" + alert.rule.id + "\t" + alert.percent + "\t" + alert.period + "\t"
+                        + Money.format(alert.spent) + "\t" + Money.format(alert.rule.limit));
+        }
+    }
+
+    private void delete(String line) throws IOException {
+        String[] ids = line.split("\\s+");
+        if (ids.length < 2) throw new IllegalArgumentException("usage: delete <id> [<id>...]");
+        for (int i = 1; i < ids.length; i++) {
+            int id = parseInt(ids[i], "id");
+            openTransaction();
+            if (ledger.delete(id)) {
+                out.println("ok\tdeleted\t" + id);
+            } else {
+                throw new IllegalArgumentException("no expense with id " + id);
+            }
+        }
+    }
+
+    private void deleteRange(String[] words) throws IOException {
+        if (words.length != 3) throw new IllegalArgumentException("usage: delete-range <from> <to>");
+        int from = parseDate(words[1]);
+        int to = parseDate(words[2]);
+        openTransaction();
+        out.println("ok\tdeleted\t" + ledger.deleteBetween(from, to));
+    }
+
+    private void query(String[] words) {
+        if (words.length < 3) throw new IllegalArgumentException("usage: query <from> <to> [category]");
+        int from = parseDate(words[1]);
+        int to = parseDate(words[2]);
+        int category = words.length > 3 ? parseCategory(words[3]) : -1;
+        Rates.Sum total = new Rates.Sum(ledger.conversion());
+        int count = 0;
+        try (Ledger.View view = ledger.view(from, to, category < 0 ? 0 : 1L << category)) {
+            ExpenseStore store = view.store;
+            IntList rows = view.dates.rowsBetween(from, to);
+            for (int i = 0; i < rows.size(); i++) {
+                int row = rows.get(i);
+                if (category >= 0 && store.categoryAt(row) != category) continue;
+                total.add(store.amountAt(row), store.currencyAt(row), store.categoryAt(row), store.dateAt(row));
+                count++;
+                printRow(store, row);
+            }
+        }
+        out.println("ok\tquery\t" + count + "\t" + Money.format(total.total()));
+    }
+
+    private void printRow(ExpenseStore store, int row) {
+        out.print("row\t");
+        out.print(store.idAt(row));
+        out.print('\t');
+        out.print(Currencies.amount(store.amountAt(row), store.currencyAt(row), ledger.reportCurrency()));
+        out.print('\t');
+        out.print(Categories.name(store.categoryAt(row)));
+        out.print('\t');
+        out.print(ExpenseDates.format(store.dateAt(row)));
+        out.print('\t');
+        out.println(escape(store.descriptionAt(row)));
+    }
+
+    // search <words...>, where category:, from: and to: words are filters
+    private void search(String line) {
+        String[] words = line.split("\\s+");
+        CsvExporter.Filter filter = new CsvExporter.Filter();
+        int from = Integer.MIN_VALUE, to = Integer.MAX_VALUE;
+        StringBuilder query = new StringBuilder();
+        for (int i = 1; i < words.length; i++) {
+            String word = words[i];
+            String lower = word.toLowerCase(Locale.ROOT);
+            if (lower.startsWith("category:")) {
+                filter.category(parseCategory(word.substring(9)));
+            } else if (lower.startsWith("from:")) {
+                from = parseDate(word.substring(5));
+            } else if (lower.startsWith("to:")) {
+                to = parseDate(word.substring(3));
+            } else {
+                query.append(word).append(' ');
+            }
+        }
+        if (query.length() == 0) {
+            throw new IllegalArgumentException("usage: search <words...> [category:<name>] [from:<date>] [to:<date>]");
+        }
+        if (from != Integer.MIN_VALUE || to != Integer.MAX_VALUE) filter.dates(from, to);
+        Rates.Sum total = new Rates.Sum(ledger.conversion());
+        try (Ledger.View view = ledger.searchView(query.toString(), filter)) {
+            ExpenseStore store = view.store;
+            IntList rows = view.rows;
+            for (int i = 0; i < rows.size(); i++) {
+                int row = rows.get(i);
+                total.add(store.amountAt(row), store.currencyAt(row), store.categoryAt(row), store.dateAt(row));
+                printRow(store, row);
+            }
+            out.println("ok\tsearch\t" + rows.size() + "\t" + Money.format(total.total()));
+        }
+    }
+
+    private void totals(String[] words) {
+        ExpenseAggregates aggregates = shared ? ledger.aggregatesCopy() : ledger.aggregates();
+        int categories = aggregates.categories();
+        long total = 0, count = 0;
+        if (words.length == 1) {
+            for (int c = 0; c < categories; c++) {
+                printTotal(Categories.name(c), aggregates.categoryTotal(c), aggregates.categoryCount(c));
+            }
+            total = aggregates.total();
+            count = aggregates.count();
+        } else if (words[1].contains("/")) {
+            String[] parts = words[1].split("/");
+            if (parts.length != 2) throw new IllegalArgumentException("expected MM/YYYY: " + words[1]);
+            int month = parseInt(parts[0], "month");
+            int year = parseInt(parts[1], "year");
+            if (month < 1 || month > 12) throw new IllegalArgumentException("expected MM/YYYY: " + words[1]);
+            int key = year * 12 + month - 1;
+            for (int c = 0; c < categories; c++) {
+                long t = aggregates.monthTotal(c, key), n = aggregates.monthCount(c, key);
+                printTotal(Categories.name(c), t, n);
+                total += t;
+                count += n;
+            }
+        } else {
+            int year = parseInt(words[1], "year");
+            for (int c = 0; c < categories; c++) {
+                long t = aggregates.yearTotal(c, year);
+                printTotal(Categories.name(c), t, -1);
+                total += t;
+            }
+            count = aggregates.yearCount(year);
+        }
+        printTotal("All", total, count);
+    }
+
+    // trend <level> [<periods>] [category] [to:<date>] [avg:<n>]: one line per
+    // period and category (all categories and "All" unless one is given):
+    //   trend <period> <category> <total> <count> <moving average> <change> <change %>
+    private void trend(String line) {
+        String[] words = line.split("\\s+");
+        String usage = "usage: trend <day|week|month|year> [<periods>] [category] [to:<date>] [avg:<n>]";
+        if (words.length < 2) throw new IllegalArgumentException(usage);
+        Rollups.Level level;
+        try {
+            level = Rollups.Level.valueOf(words[1].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(usage);
+        }
+        int periods = 12, window = 3, category = -2, last = ExpenseDates.today();
+        for (int i = 2; i < words.length; i++) {
+            String word = words[i];
+            if (word.startsWith("to:")) {
+                last = parseDate(word.substring(3));
+            } else if (word.startsWith("avg:")) {
+                window = parseInt(word.substring(4), "window");
+            } else if (!word.isEmpty() && Character.isDigit(word.charAt(0))) {
+                periods = parseInt(word, "number of periods");
+            } else {
+                category = word.equalsIgnoreCase("all") ? -1 : parseCategory(word);
+            }
+        }
+        if (periods < 1 || periods > 100_000 || window < 1) throw new IllegalArgumentException(usage);
+
+        Rollups.Trend trend = ledger.trend(level, last, periods);
+        int categories = trend.totals.length - 1;
+        int from = category == -2 ? 0 : category < 0 ? categories : category;
+        int to = category == -2 ? categories : from;
+        for (int slot = from; slot <= to; slot++) {
+            int c = slot == categories ? -1 : slot;
+            String name = c < 0 ? "All" : Categories.name(c);
+            long[] totals = trend.totals(c);
+            long[] counts = trend.counts(c);
+            long[] averages = Rollups.movingAverage(totals, window);
+            long[] deltas = Rollups.deltas(totals);
+            for (int i = 0; i < trend.periods(); i++) {
+                double change = Rollups.percentChange(totals, i);
+                out.println("trend\t" + trend.label(i) + "\t" + name + "\t" + Money.format(totals[i]) + "\t"
+                            + counts[i] + "\t" + Money.format(averages[i]) + "\t" + Money.format(deltas[i]) + "\t"
+                            + (Double.isNaN(change) ? "" : String.format(Locale.ROOT, "%.1f", change)));
+            }
+        }
+        out.println("ok\ttrend\t" + trend.periods());
+    }
+
+    // stats: one line per group, then the plan the query ran with:
+    //   stats <group> <total> <count> <average> [<min> <max> <pNN>... as listed in show:]
+    //   ok stats <groups> <plan>
+    private void stats(String line) {
+        String[] words = line.split("\\s+");
+        ExpenseQuery query = new ExpenseQuery();
+        int from = Integer.MIN_VALUE, to = Integer.MAX_VALUE;
+        long min = Long.MIN_VALUE, max = Long.MAX_VALUE;
+        List<String> shown = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i < words.length; i++) {
+            String word = words[i];
+            String lower = word.toLowerCase(Locale.ROOT);
+            if (lower.startsWith("by:")) {
+                try {
+                    query.groupBy(ExpenseQuery.Group.valueOf(lower.substring(3).toUpperCase(Locale.ROOT)));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("expected by:category, by:month or by:year: " + word);
+                }
+            } else if (lower.startsWith("category:")) {
+                for (String name : word.substring(9).split(",")) query.categories(parseCategory(name));
+            } else if (lower.startsWith("from:")) {
+                from = parseDate(word.substring(5));
+            } else if (lower.startsWith("to:")) {
+                to = parseDate(word.substring(3));
+            } else if (lower.startsWith("min:")) {
+                min = parseAmount(word.substring(4));
+            } else if (lower.startsWith("max:")) {
+                max = parseAmount(word.substring(4));
+            } else if (lower.startsWith("show:")) {
+                shown.addAll(Arrays.asList(lower.substring(5).split(",")));
+            } else {
+                text.append(word).append(' ');
+            }
+        }
+        query.dates(from, to).amounts(min, max);
+        if (text.length() > 0) query.matching(text.toString());
+
+        EnumSet<ExpenseQuery.Measure> measures = EnumSet.of(ExpenseQuery.Measure.SUM, ExpenseQuery.Measure.COUNT,
+                                                            ExpenseQuery.Measure.AVG);
+        double[] percentiles = new double[shown.size()];
+        int p = 0;
+        for (String column : shown) {
+            if (column.equals("min")) {
+                measures.add(ExpenseQuery.Measure.MIN);
+            } else if (column.equals("max")) {
+                measures.add(ExpenseQuery.Measure.MAX);
+            } else if (column.startsWith("p")) {
+                try {
+                    percentiles[p++] = Double.parseDouble(column.substring(1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("invalid percentile: " + column);
+                }
+            } else {
+                throw new IllegalArgumentException("show: takes min, max and pNN, not " + column);
+            }
+        }
+        query.measures(measures.toArray(new ExpenseQuery.Measure[0])).percentiles(Arrays.copyOf(percentiles, p));
+
+        ExpenseQuery.Result result = ledger.query(query);
+        for (ExpenseQuery.Bucket bucket : result.buckets) {
+            out.print("stats\t" + bucket.label + "\t" + Money.format(bucket.total) + "\t" + bucket.count + "\t"
+                      + Money.format(bucket.average()));
+            for (String column : shown) {
+                long value = column.equals("min") ? bucket.min : column.equals("max") ? bucket.max
+                        : bucket.percentile(Double.parseDouble(column.substring(1)));
+                out.print("\t" + Money.format(value));
+            }
+            out.println();
+        }
+        out.println("ok\tstats\t" + result.buckets.size() + "\t" + result.describe());
+    }
+
+    private void printTotal(String label, long cents, long count) {
+        out.println("total\t" + label + "\t" + Money.format(cents)
+                + (count >= 0 ? "\t" + count : ""));
+    }
+
+    // export <file> [<from> <to>] [category]; a .gz file name is compressed
+    private void export(String line) {
+        String[] words = line.split("\\s+");
+        if (words.length < 2 || words.length > 5) {
+            throw new IllegalArgumentException("usage: export <file> [<from> <to>] [category]");
+        }
+        CsvExporter.Filter filter = new CsvExporter.Filter();
+        int next = 2;
+        if (words.length >= 4) {
+            filter.dates(parseDate(words[2]), parseDate(words[3]));
+            next = 4;
+        }
+        if (next < words.length) filter.category(parseCategory(words[next]));
+        String file = words[1];
+        CsvExporter.Result result;
+        try (Ledger.View view = ledger.view(filter.startDay, filter.endDay,
+                                            filter.category < 0 ? 0 : 1L << filter.category)) {
+            result = CsvExporter.export(view.store, view.dates, filter, Paths.get(file), file.endsWith(".gz"));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("export failed: " + e.getMessage());
+        }
+        out.printf(Locale.ROOT, "ok\texported\t%d\t%s\t%d\t%.1f%n",
+                   result.rows, file, result.bytes, result.megabytesPerSecond());
+    }
+
+    // import <file> [<rejects file>]; persisted on its own, so an open
+    // transaction is committed first
+    private void importCsv(String line) throws IOException {
+        String[] words = line.split("\\s+");
+        if (words.length < 2 || words.length > 3) {
+            throw new IllegalArgumentException("usage: import <file> [<rejects file>]");
+        }
+        if (ledger.inTransaction()) ledger.commit();
+        Path rejects = Paths.get(words.length > 2 ? words[2] : words[1] + ".rejects.csv");
+        CsvImporter.Result result;
+        try {
+            result = CsvImporter.importFile(ledger, Paths.get(words[1]), rejects);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("import failed: " + e.getMessage());
+        }
+        out.printf(Locale.ROOT, "ok\timported\t%d\t%d\t%d\t%.1f\t%d%n",
+                   result.imported, result.rejected, result.firstId, result.megabytesPerSecond(), result.credits);
+    }
+
+    // budgets: each rule in its current period; budgets history: every past
+    // period that reached a threshold
+    private void budgets(String[] words) {
+        List<Budgets.Status> statuses;
+        if (words.length == 1) {
+            statuses = ledger.budgetStatus(ExpenseDates.today());
+        } else if (words.length == 2 && words[1].equalsIgnoreCase("history")) {
+            statuses = ledger.budgetHistory();
+        } else {
+            throw new IllegalArgumentException("usage: budgets [history]");
+        }
+        for (Budgets.Status status : statuses) {
+            Budgets.Rule rule = status.rule;
+            StringBuilder percents = new StringBuilder();
+            for (int p : rule.percents) {
+                if (percents.length() > 0) percents.append(',');
+                percents.append(p);
+            }
+            out.println("budget\t" + rule.id + "\t" + (rule.category < 0 ? "*" : rule.categoryName()) + "\t"
+                        + rule.period + "\t" + Money.format(rule.limit) + "\t" + percents + "\t" + status.period
+                        + "\t" + Money.format(status.spent) + "\t" + status.percent);
+        }
+        out.println("ok\tbudgets\t" + statuses.size());
+    }
+
+    // Times in microseconds, sizes in bytes
+    private void metrics(String[] words) {
+        if (words.length == 2 && words[1].equalsIgnoreCase("reset")) {
+            Metrics.reset();
+            out.println("ok\tmetrics-reset");
+            return;
+        }
+        if (words.length != 1) throw new IllegalArgumentException("usage: metrics [reset]");
+        int n = 0;
+        for (Metrics.Op op : Metrics.Op.values()) {
+            Metrics.Stats s = Metrics.stats(op);
+            if (s.getCount() == 0) continue;
+            out.println(String.format(Locale.ROOT, "metric\t%s\t%d\t%.1f\t%.1f\t%.1f\t%.1f\t%.1f\t%d\t%d\t%d\t%d\t%d",
+                                      op, s.getCount(), s.getMeanMicros(), s.getP50Micros(), s.getP99Micros(),
+                                      s.getP999Micros(), s.getMaxMicros(), s.getRowsScanned(), s.getRowsReturned(),
+                                      s.getBytesRead(), s.getBytesWritten(), s.getAllocatedBytes()));
+            n++;
+        }
+        out.println("ok\tmetrics\t" + n);
+    }
+
+    private void addBudget(String line) throws IOException {
+        String[] words = line.split("\\s+");
+        String usage = "usage: budget-add <category|*> <monthly|weekly|custom> <limit> [<percent,...>] [<from> <to>]";
+        if (words.length < 4) throw new IllegalArgumentException(usage);
+        int category = words[1].equals("*") ? -1 : parseCategory(words[1]);
+        Budgets.Period period;
+        try {
+            period = Budgets.Period.valueOf(words[2].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(usage);
+        }
+        long limit = parseAmount(words[3]);
+        int next = 4;
+        int[] percents = Budgets.DEFAULT_PERCENTS;
+        if (next < words.length && !words[next].contains("/")) {
+            String[] parts = words[next++].split(",");
+            percents = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) percents[i] = parseInt(parts[i], "percentage");
+        }
+        int start = ExpenseDates.INVALID, end = ExpenseDates.INVALID;
+        if (next + 2 == words.length) {
+            start = parseDate(words[next]);
+            end = parseDate(words[next + 1]);
+        } else if (next != words.length) {
+            throw new IllegalArgumentException(usage);
+        }
+        Budgets.Rule rule = ledger.addBudget(category, period, limit, percents, start, end);
+        out.println("ok\tbudget-added\t" + rule.id);
+    }
+
+    private void recurring(String[] words) {
+        if (words.length != 1) throw new IllegalArgumentException("usage: recurring");
+        List<Recurring.Rule> rules = ledger.recurring();
+        for (Recurring.Rule rule : rules) {
+            out.println("recurring\t" + rule.id + "\t" + rule.categoryName() + "\t" + rule.every + "\t"
+                        + rule.amountText() + "\t" + ExpenseDates.format(rule.startDay) + "\t"
+                        + (rule.endDay == ExpenseDates.INVALID ? "" : ExpenseDates.format(rule.endDay)) + "\t"
+                        + (rule.through() < rule.startDay ? "" : ExpenseDates.format(rule.through())) + "\t"
+                        + escape(rule.description));
+        }
+        out.println("ok\trecurring\t" + rules.size());
+    }
+
+    private void addRecurring(String line) throws IOException {
+        String usage = "usage: recurring-add <category> <daily|weekly|monthly|yearly>"
+                       + " <amount>[<currency>][,<amount>@<date>...] <from> [to:<date>] <description...>";
+        String[] words = line.split("\\s+", 6);
+        if (words.length < 6) throw new IllegalArgumentException(usage);
+        int category = parseCategory(words[1]);
+        Recurring.Every every;
+        try {
+            every = Recurring.Every.valueOf(words[2].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(usage);
+        }
+        String[] parts = words[3].split(",");
+        int currency = Currencies.ofAmount(parts[0]);
+        parts[0] = Currencies.withoutCode(parts[0]);
+        int[] changeDays = new int[parts.length];
+        long[] amounts = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String[] amountAndDay = parts[i].split("@");
+            if (amountAndDay.length != (i == 0 ? 1 : 2)) throw new IllegalArgumentException(usage);
+            amounts[i] = parseAmount(amountAndDay[0]);
+            changeDays[i] = i == 0 ? ExpenseDates.INVALID : parseDate(amountAndDay[1]);
+        }
+        int start = parseDate(words[4]);
+        int end = ExpenseDates.INVALID;
+        String description = words[5];
+        if (description.regionMatches(true, 0, "to:", 0, 3)) {
+            String[] rest = description.split("\\s+", 2);
+            if (rest.length < 2) throw new IllegalArgumentException(usage);
+            end = parseDate(rest[0].substring(3));
+            description = rest[1];
+        }
+        Recurring.Rule rule = ledger.addRecurring(category, currency, every, description, start, end, changeDays,
+                                                  amounts);
+        // Its past occurrences are added at once, persisted like an import
+        if (ledger.inTransaction()) ledger.commit();
+        Recurring.Result result = ledger.materializeRecurring(ExpenseDates.today());
+        out.println("ok\trecurring-added\t" + rule.id + "\t" + result.added);
+    }
+
+    private void changeRecurring(String[] words) throws IOException {
+        if (words.length != 4) throw new IllegalArgumentException("usage: recurring-change <id> <amount> <from>");
+        int id = parseInt(words[1], "recurring id");
+        Recurring.Rule rule = ledger.changeRecurring(id, parseAmount(words[2]), parseDate(words[3]));
+        if (rule == null) throw new IllegalArgumentException("no recurring expense " + id);
+        out.println("ok\trecurring-changed\t" + id + "\t" + rule.amountText());
+    }
+
+    // recurring-run [<date>]: adds what is due up to the date (default
+    // today); persisted on its own like an import
+    private void runRecurring(String[] words) throws IOException {
+        if (words.length > 2) throw new IllegalArgumentException("usage: recurring-run [<date>]");
+        int day = words.length == 2 ? parseDate(words[1]) : ExpenseDates.today();
+        if (ledger.inTransaction()) ledger.commit();
+        Recurring.Result result = ledger.materializeRecurring(day);
+        out.printf(Locale.ROOT, "ok\trecurring-run\t%d\t%d\t%d\t%d\t%.1f%n", result.added, result.existing,
+                   result.rules, result.firstId, result.elapsedNanos / 1e6);
+    }
+
+    // currencies: the rates, then the home and report currencies
+    private void currencies(String[] words) {
+        if (words.length != 1) throw new IllegalArgumentException("usage: currencies");
+        List<Rates.Rate> rates = ledger.rates();
+        for (Rates.Rate rate : rates) {
+            out.println("rate\t" + rate.currency + "\t" + ExpenseDates.format(rate.fromDay) + "\t"
+                        + rate.value.toPlainString());
+        }
+        out.println("ok\tcurrencies\t" + Currencies.code(Currencies.home()) + "\t"
+                    + Currencies.code(ledger.reportCurrency()) + "\t" + rates.size());
+    }
+
+    private void addRate(String[] words) throws IOException {
+        if (words.length != 4) throw new IllegalArgumentException("usage: rate-add <currency> <from> <rate>");
+        int currency = Currencies.parse(words[1]);
+        int from = parseDate(words[2]);
+        BigDecimal rate;
+        try {
+            rate = new BigDecimal(words[3]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid rate: " + words[3]);
+        }
+        ledger.addRate(currency, from, rate);
+        out.println("ok\trate-added\t" + Currencies.code(currency) + "\t" + ExpenseDates.format(from) + "\t"
+                    + rate.stripTrailingZeros().toPlainString());
+    }
+
+    private void help() {
+        out.println("# add <amount>[<currency>] <category> <DD/MM/YYYY> <description...>   (12.50 or 12.50EUR)");
+        out.println("# delete <id> [<id>...]");
+        out.println("# delete-range <from> <to>");
+        out.println("# query <from> <to> [category]");
+        out.println("# search <words...> [category:<name>] [from:<date>] [to:<date>]   (OR, prefix*)");
+        out.println("# totals [MM/YYYY | YYYY]");
+        out.println("# trend <day|week|month|year> [<periods>] [category] [to:<date>] [avg:<n>]");
+        out.println("# stats [<words...>] [by:<category|month|year>] [category:<name>[,<name>...]] [from:<date>]"
+                    + " [to:<date>] [min:<amount>] [max:<amount>] [show:min,max,p90,...]");
+        out.println("# export <file> [<from> <to>] [category]");
+        out.println("# import <file> [<rejects file>]");
+        out.println("# budgets [history]");
+        out.println("# budget-add <category|*> <monthly|weekly|custom> <limit> [<percent,...>] [<from> <to>]");
+        out.println("# budget-remove <id>");
+        out.println("# categories");
+        out.println("# category-add <name>");
+        out.println("# recurring");
+        out.println("# recurring-add <category> <daily|weekly|monthly|yearly> <amount>[<currency>][,<amount>@<date>...]"
+                    + " <from> [to:<date>] <description...>");
+        out.println("# recurring-change <id> <amount> <from>");
+        out.println("# recurring-remove <id>");
+        out.println("# recurring-run [<date>]   (added, already there, rules, first id, ms)");
+        out.println("# currencies   (rates, then home and report currency)");
+        out.println("# rate-add <currency> <from> <rate>   (one unit in the home currency from that date on)");
+        out.println("# rate-remove <currency> <from>");
+        out.println("# currency <code>   (the currency totals, budgets and queries are in)");
+        out.println("# metrics [reset]   (count, mean/p50/p99/p99.9/max us, rows scanned/returned, bytes read/written/allocated)");
+        out.println("# begin / commit");
+        out.println("# categories: " + String.join(", ", Categories.names()));
+    }
+
+    // Every change goes into a journal batch; an explicit "commit" or the end
+    // of input closes it.
+    private void openTransaction() throws IOException {
+        if (!shared && !ledger.inTransaction()) ledger.begin();
+    }
+
+    // Parsing
+
+    // Negative amounts (refunds) are fine, as in the menu; zero is a typo.
+    // Money.parse takes exponents for old snapshots, but a script has no
+    // reason to write "1e3"
+    private static long parseAmount(String text) {
+        try {
+            if (text.indexOf('e') >= 0 || text.indexOf('E') >= 0) throw new NumberFormatException();
+            long cents = Money.parse(text);
+            if (cents == 0) throw new NumberFormatException();
+            return cents;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid amount: " + text);
+        }
+    }
+
+    private static int parseCategory(String text) {
+        int category = Categories.find(text);
+        if (category < 0) throw new IllegalArgumentException("unknown category: " + text);
+        return category;
+    }
+
+    private static int parseDate(String text) {
+        int date = ExpenseDates.parse(text);
+        if (date == ExpenseDates.INVALID) throw new IllegalArgumentException("invalid date: " + text);
+        return date;
+    }
+
+    private static int parseInt(String text, String what) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid " + what + ": " + text);
+        }
+    }
+
+    // Keeps one result per line whatever the description contains
+    private static String escape(String text) {
+        if (text.indexOf('\t') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0
+                && text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\\': sb.append("\\\\"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,533 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Spending limits per category and period, saved in budgets.txt, and the
+ * evaluator that checks them as expenses are added.
+ *
+ * One rule per line, pipe-delimited like the old data file:
+ *
+ *   id|category|period|limit|thresholds[|from|to]
+ *   1|Food|monthly|200.00|80,100
+ *   2|*|weekly|150.00|50,100              (* is every category together)
+ *   3|Shopping|custom|500.00|80,100|01/12/2024|31/12/2024
+ *
+ * Spend is tracked per (category, month) and (category, week) bucket rather
+ * than per rule, so an add updates a few counters whatever the number of
+ * rules. Each bucket kind has, per category, the thresholds of all its
+ * rules as amounts in one sorted array; the thresholds an add crosses are
+ * the ones between the bucket's old and new spend, found by binary search.
+ * Custom-range rules are listed under every month they overlap and keep
+ * their own spend. Deletes lower spend but never fire; a threshold crossed
+ * again later fires again.
+ *
+ * Not thread-safe: the Ledger calls it under its lock.
+ */
+public class Budgets {
+
+    public enum Period {
+        MONTHLY, WEEKLY, CUSTOM;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /** One budget: a limit for a category (or all, -1) over each period. */
+    public static final class Rule {
+        public final int id;
+        public final int category;
+        public final Period period;
+        public final long limit;       // cents
+        public final int[] percents;   // ascending
+        public final int startDay, endDay;   // CUSTOM only
+
+        Rule(int id, int category, Period period, long limit, int[] percents, int startDay, int endDay) {
+            this.id = id;
+            this.category = category;
+            this.period = period;
+            this.limit = limit;
+            this.percents = percents;
+            this.startDay = startDay;
+            this.endDay = endDay;
+        }
+
+        public String categoryName() {
+            return category < 0 ? "All" : Categories.name(category);
+        }
+
+        // Smallest spend that reaches percent% of the limit, without overflow
+        long mark(int percent) {
+            return limit / 100 * percent + ((limit % 100) * percent + 99) / 100;
+        }
+    }
+
+    /** A rule's spend in one period, and the highest threshold it has reached (0 if none). */
+    public static final class Status {
+        public final Rule rule;
+        public final int periodStart;
+        public final String period;
+        public final long spent;
+        public final int percent;
+
+        Status(Rule rule, int periodStart, String period, long spent, int percent) {
+            this.rule = rule;
+            this.periodStart = periodStart;
+            this.period = period;
+            this.spent = spent;
+            this.percent = percent;
+        }
+
+        public boolean over() {
+            return spent > rule.limit;
+        }
+    }
+
+    public static final int[] DEFAULT_PERCENTS = { 80, 100 };
+    public static final int MAX_PERCENT = 500;
+
+    private static final int MONTH = 0, WEEK = 1;
+
+    // Thresholds of one bucket kind and category, ascending by amount
+    private static final class Marks {
+        long[] amounts = new long[0];
+        Rule[] rules = new Rule[0];
+        int[] percents = new int[0];
+        int size;
+
+        void add(long amount, Rule rule, int percent) {
+            if (size == amounts.length) {
+                int capacity = Math.max(8, size * 2);
+                amounts = Arrays.copyOf(amounts, capacity);
+                rules = Arrays.copyOf(rules, capacity);
+                percents = Arrays.copyOf(percents, capacity);
+            }
+            amounts[size] = amount;
+            rules[size] = rule;
+            percents[size++] = percent;
+        }
+
+        void sort() {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> amounts[a] != amounts[b] ? Long.compare(amounts[a], amounts[b])
+                                                                  : Integer.compare(rules[a].id, rules[b].id));
+            long[] sortedAmounts = new long[size];
+            Rule[] sortedRules = new Rule[size];
+            int[] sortedPercents = new int[size];
+            for (int i = 0; i < size; i++) {
+                sortedAmounts[i] = amounts[order[i]];
+                sortedRules[i] = rules[order[i]];
+                sortedPercents[i] = percents[order[i]];
+            }
+            amounts = sortedAmounts;
+            rules = sortedRules;
+            percents = sortedPercents;
+        }
+
+        // Number of thresholds at or below spent
+        int reached(long spent) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (amounts[mid] <= spent) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    private int categories = Categories.count();
+    private final List<Rule> rules = new ArrayList<>();
+    private int nextId = 1;
+
+    // [MONTH or WEEK][category, or categories for all]
+    private Marks[][] marks = new Marks[2][categories + 1];
+    // Bucket key -> spend per category, plus the all-categories total last
+    private final Map<Integer, long[]> byMonth = new HashMap<>();
+    private final Map<Integer, long[]> byWeek = new HashMap<>();
+
+    private final List<Rule> custom = new ArrayList<>();
+    private final Map<Rule, Integer> customAt = new IdentityHashMap<>();
+    private long[] customSpent = new long[0];
+    private final Map<Integer, IntList> customByMonth = new HashMap<>();
+
+    public Budgets() {
+        index();
+    }
+
+    /** The budgets the app shipped with, used until budgets.txt exists. */
+    public static Budgets defaults() {
+        Budgets budgets = new Budgets();
+        long[] limits = { 20000, 10000, 15000, 25000, 30000, 10000, 5000 };
+        for (int c = 0; c < limits.length; c++) {
+            budgets.rules.add(new Rule(budgets.nextId++, c, Period.MONTHLY, limits[c], DEFAULT_PERCENTS,
+                                       ExpenseDates.INVALID, ExpenseDates.INVALID));
+        }
+        budgets.index();
+        return budgets;
+    }
+
+    // Keys
+
+    private static int monthStart(int monthKey) {
+        return ExpenseDates.of(Math.floorDiv(monthKey, 12), Math.floorMod(monthKey, 12) + 1, 1);
+    }
+
+    private static String periodName(Period period, int key, Rule rule) {
+        switch (period) {
+            case MONTHLY:
+                return String.format("%02d/%d", Math.floorMod(key, 12) + 1, Math.floorDiv(key, 12));
+            case WEEKLY:
+                return "week of " + ExpenseDates.format(ExpenseDates.weekStart(key));
+            default:
+                return ExpenseDates.format(rule.startDay) + " - " + ExpenseDates.format(rule.endDay);
+        }
+    }
+
+    // Rules
+
+    public List<Rule> rules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Adds a rule and returns it. A custom rule's spend so far is read from
+     * {@code rollups}.
+     */
+    public Rule add(int category, Period period, long limit, int[] percents, int startDay, int endDay,
+                    Rollups rollups) {
+        Rule rule = rule(nextId, category, period, limit, percents, startDay, endDay);
+        nextId++;
+        rules.add(rule);
+        index();
+        if (period == Period.CUSTOM) {
+            customSpent[customAt.get(rule)] = rollups.between(startDay, endDay, category)[0];
+        }
+        return rule;
+    }
+
+    /** Removes the rule with {@code id}; false if there is none. */
+    public boolean remove(int id) {
+        for (int i = 0; i < rules.size(); i++) {
+            if (rules.get(i).id == id) {
+                rules.remove(i);
+                index();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Rule rule(int id, int category, Period period, long limit, int[] percents, int startDay,
+                             int endDay) {
+        if (limit <= 0) throw new IllegalArgumentException("the limit must be positive");
+        Money.check(limit);
+        if (percents.length == 0) throw new IllegalArgumentException("give at least one threshold");
+        int[] sorted = percents.clone();
+        Arrays.sort(sorted);
+        if (sorted[0] < 1 || sorted[sorted.length - 1] > MAX_PERCENT) {
+            throw new IllegalArgumentException("thresholds must be between 1 and " + MAX_PERCENT + "%");
+        }
+        if (period == Period.CUSTOM) {
+            if (startDay == ExpenseDates.INVALID || endDay == ExpenseDates.INVALID || endDay < startDay) {
+                throw new IllegalArgumentException("a custom budget needs a start date on or before its end");
+            }
+        } else {
+            startDay = endDay = ExpenseDates.INVALID;
+        }
+        return new Rule(id, category, period, limit, sorted, startDay, endDay);
+    }
+
+    // Rebuilds the threshold tables and the custom rule lists from rules.
+    // Custom rules kept from before keep their spend; new ones start at zero.
+    private void index() {
+        Map<Rule, Integer> before = new IdentityHashMap<>(customAt);
+        long[] spentBefore = customSpent;
+        for (Marks[] kind : marks) {
+            for (int slot = 0; slot < kind.length; slot++) kind[slot] = new Marks();
+        }
+        custom.clear();
+        customAt.clear();
+        customByMonth.clear();
+        for (Rule rule : rules) {
+            int slot = rule.category < 0 ? categories : rule.category;
+            if (rule.period == Period.CUSTOM) {
+                int at = custom.size();
+                custom.add(rule);
+                customAt.put(rule, at);
+                int last = ExpenseAggregates.monthKey(rule.endDay);
+                for (int month = ExpenseAggregates.monthKey(rule.startDay); month <= last; month++) {
+                    customByMonth.computeIfAbsent(month, k -> new IntList()).add(at);
+                }
+                continue;
+            }
+            Marks table = marks[rule.period == Period.MONTHLY ? MONTH : WEEK][slot];
+            for (int percent : rule.percents) {
+                table.add(rule.mark(percent), rule, percent);
+            }
+        }
+        for (Marks[] kind : marks) {
+            for (Marks table : kind) table.sort();
+        }
+        customSpent = new long[custom.size()];
+        for (int at = 0; at < custom.size(); at++) {
+            Integer old = before.get(custom.get(at));
+            if (old != null) customSpent[at] = spentBefore[old];
+        }
+    }
+
+    // Spend
+
+    /**
+     * Recomputes all spend from {@code rollups}' month and week buckets, so
+     * no rows need to be in memory; fires nothing. Custom rules read their
+     * range from the rollups too, a few dozen buckets each. Takes on the
+     * rollups' number of categories.
+     */
+    public void rebuild(Rollups rollups) {
+        if (rollups.categories() != categories) {
+            categories = rollups.categories();
+            marks = new Marks[2][categories + 1];
+            index();
+        }
+        byMonth.clear();
+        byWeek.clear();
+        // The rollups lay out a bucket as the buckets here do: per category, then all
+        rollups.forEach(Rollups.Level.MONTH, (key, totals, counts) -> byMonth.put(key, totals.clone()));
+        rollups.forEach(Rollups.Level.WEEK, (key, totals, counts) -> byWeek.put(key, totals.clone()));
+        for (int at = 0; at < custom.size(); at++) {
+            Rule rule = custom.get(at);
+            customSpent[at] = rollups.between(rule.startDay, rule.endDay, rule.category)[0];
+        }
+    }
+
+    /** Counts an added expense; thresholds it crosses go to {@code alerts} if not null. */
+    public void onAdd(long cents, int category, int day, List<Status> alerts) {
+        int monthKey = ExpenseAggregates.monthKey(day);
+        int weekKey = ExpenseDates.weekKey(day);
+        long[] month = byMonth.computeIfAbsent(monthKey, k -> new long[categories + 1]);
+        long[] week = byWeek.computeIfAbsent(weekKey, k -> new long[categories + 1]);
+        add(month, MONTH, monthKey, category, cents, alerts);
+        add(month, MONTH, monthKey, categories, cents, alerts);
+        add(week, WEEK, weekKey, category, cents, alerts);
+        add(week, WEEK, weekKey, categories, cents, alerts);
+        IntList overlapping = customByMonth.get(monthKey);
+        if (overlapping != null) addCustom(overlapping, cents, category, day, alerts);
+    }
+
+    /** Counts a deleted expense. */
+    public void onRemove(long cents, int category, int day) {
+        int monthKey = ExpenseAggregates.monthKey(day);
+        long[] month = byMonth.get(monthKey);
+        long[] week = byWeek.get(ExpenseDates.weekKey(day));
+        if (month != null) {
+            month[category] -= cents;
+            month[categories] -= cents;
+        }
+        if (week != null) {
+            week[category] -= cents;
+            week[categories] -= cents;
+        }
+        IntList overlapping = customByMonth.get(monthKey);
+        if (overlapping != null) addCustom(overlapping, -cents, category, day, null);
+    }
+
+    private void add(long[] bucket, int kind, int key, int slot, long cents, List<Status> alerts) {
+        long before = bucket[slot];
+        long after = before + cents;
+        bucket[slot] = after;
+        if (alerts == null || after <= before) return;
+        Marks table = marks[kind][slot];
+        int to = table.reached(after);
+        for (int i = table.reached(before); i < to; i++) {
+            Rule rule = table.rules[i];
+            int start = kind == MONTH ? monthStart(key) : ExpenseDates.weekStart(key);
+            alerts.add(new Status(rule, start, periodName(rule.period, key, rule), after, table.percents[i]));
+        }
+    }
+
+    private void addCustom(IntList overlapping, long cents, int category, int day, List<Status> alerts) {
+        for (int i = 0; i < overlapping.size(); i++) {
+            int at = overlapping.get(i);
+            Rule rule = custom.get(at);
+            if (day < rule.startDay || day > rule.endDay || (rule.category >= 0 && rule.category != category)) {
+                continue;
+            }
+            long before = customSpent[at];
+            long after = before + cents;
+            customSpent[at] = after;
+            if (alerts == null || after <= before) continue;
+            for (int percent : rule.percents) {
+                long mark = rule.mark(percent);
+                if (before < mark && mark <= after) {
+                    alerts.add(new Status(rule, rule.startDay, periodName(Period.CUSTOM, 0, rule), after, percent));
+                }
+            }
+        }
+    }
+
+    // Reports
+
+    /** Every rule's spend in the period containing {@code today} (a custom rule's own range). */
+    public List<Status> status(int today) {
+        List<Status> result = new ArrayList<>(rules.size());
+        int monthKey = ExpenseAggregates.monthKey(today);
+        int weekKey = ExpenseDates.weekKey(today);
+        for (Rule rule : rules) {
+            int slot = rule.category < 0 ? categories : rule.category;
+            long spent;
+            int start, key;
+            switch (rule.period) {
+                case MONTHLY:
+                    spent = spend(byMonth, monthKey, slot);
+                    start = monthStart(monthKey);
+                    key = monthKey;
+                    break;
+                case WEEKLY:
+                    spent = spend(byWeek, weekKey, slot);
+                    start = ExpenseDates.weekStart(weekKey);
+                    key = weekKey;
+                    break;
+                default:
+                    spent = customSpent[customAt.get(rule)];
+                    start = rule.startDay;
+                    key = 0;
+            }
+            result.add(new Status(rule, start, periodName(rule.period, key, rule), spent, highest(rule, spent)));
+        }
+        return result;
+    }
+
+    /**
+     * Every (rule, period) that reached at least one of its thresholds, oldest
+     * period first. Reads only the buckets: each one's reached thresholds are
+     * a prefix of its sorted table, so rules that stayed under cost nothing.
+     */
+    public List<Status> history() {
+        List<Status> result = new ArrayList<>();
+        history(byMonth, MONTH, Period.MONTHLY, result);
+        history(byWeek, WEEK, Period.WEEKLY, result);
+        for (int at = 0; at < custom.size(); at++) {
+            Rule rule = custom.get(at);
+            int percent = highest(rule, customSpent[at]);
+            if (percent > 0) {
+                result.add(new Status(rule, rule.startDay, periodName(Period.CUSTOM, 0, rule), customSpent[at],
+                                      percent));
+            }
+        }
+        result.sort((a, b) -> a.periodStart != b.periodStart ? Integer.compare(a.periodStart, b.periodStart)
+                                                             : Integer.compare(a.rule.id, b.rule.id));
+        return result;
+    }
+
+    private void history(Map<Integer, long[]> buckets, int kind, Period period, List<Status> result) {
+        for (Map.Entry<Integer, long[]> e : buckets.entrySet()) {
+            int key = e.getKey();
+            long[] bucket = e.getValue();
+            int start = kind == MONTH ? monthStart(key) : ExpenseDates.weekStart(key);
+            for (int slot = 0; slot <= categories; slot++) {
+                Marks table = marks[kind][slot];
+                int reached = table.reached(bucket[slot]);
+                if (reached == 0) continue;
+                // Marks are ascending, so a rule's last reached entry is its highest
+                Map<Rule, Integer> highest = new LinkedHashMap<>();
+                for (int i = 0; i < reached; i++) highest.put(table.rules[i], table.percents[i]);
+                for (Map.Entry<Rule, Integer> h : highest.entrySet()) {
+                    result.add(new Status(h.getKey(), start, periodName(period, key, h.getKey()), bucket[slot],
+                                          h.getValue()));
+                }
+            }
+        }
+    }
+
+    private static long spend(Map<Integer, long[]> buckets, int key, int slot) {
+        long[] bucket = buckets.get(key);
+        return bucket == null ? 0 : bucket[slot];
+    }
+
+    private static int highest(Rule rule, long spent) {
+        int reached = 0;
+        for (int percent : rule.percents) {
+            if (spent >= rule.mark(percent)) reached = percent;
+        }
+        return reached;
+    }
+
+    // Persistence
+
+    /** Reads {@code file}, or returns {@link #defaults()} if it does not exist. */
+    public static Budgets load(Path file) throws IOException {
+        if (Files.notExists(file)) return defaults();
+        Budgets budgets = new Budgets();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            try {
+                Rule rule = parse(line);
+                budgets.rules.add(rule);
+                budgets.nextId = Math.max(budgets.nextId, rule.id + 1);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + " line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        budgets.index();
+        return budgets;
+    }
+
+    private static Rule parse(String line) {
+        String[] parts = line.split("\\|");
+        if (parts.length != 5 && parts.length != 7) throw new IllegalArgumentException("expected 5 or 7 fields");
+        int id = Integer.parseInt(parts[0].trim());
+        String name = parts[1].trim();
+        int category = -1;
+        if (!name.equals("*")) {
+            category = Categories.indexOf(name);
+            if (category < 0) throw new IllegalArgumentException("unknown category " + name);
+        }
+        Period period = Period.valueOf(parts[2].trim().toUpperCase(Locale.ROOT));
+        long limit = Money.parse(parts[3].trim());
+        String[] thresholdParts = parts[4].split(",");
+        int[] percents = new int[thresholdParts.length];
+        for (int i = 0; i < percents.length; i++) percents[i] = Integer.parseInt(thresholdParts[i].trim());
+        int start = ExpenseDates.INVALID, end = ExpenseDates.INVALID;
+        if (parts.length == 7) {
+            start = ExpenseDates.parse(parts[5].trim());
+            end = ExpenseDates.parse(parts[6].trim());
+        }
+        if ((period == Period.CUSTOM) != (parts.length == 7)) {
+            throw new IllegalArgumentException("only custom budgets have dates");
+        }
+        return rule(id, category, period, limit, percents, start, end);
+    }
+
+    /** Writes the rules to a temp file, fsyncs it and renames it over {@code file}. */
+    public void save(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp.toFile());
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
+            out.write("# id|category|period|limit|thresholds[|from|to]\n");
+            for (Rule rule : rules) {
+                StringBuilder line = new StringBuilder();
+                line.append(rule.id).append('|').append(rule.category < 0 ? "*" : rule.categoryName())
+                    .append('|').append(rule.period).append('|').append(Money.format(rule.limit)).append('|');
+                for (int i = 0; i < rule.percents.length; i++) {
+                    if (i > 0) line.append(',');
+                    line.append(rule.percents[i]);
+                }
+                if (rule.period == Period.CUSTOM) {
+                    line.append('|').append(ExpenseDates.format(rule.startDay))
+                        .append('|').append(ExpenseDates.format(rule.endDay));
+                }
+                out.write(line.append('\n').toString());
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        SnapshotFile.replace(temp, file);
+    }
+}
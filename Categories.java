@@ -0,0 +1,136 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * The category registry: the seven categories the app ships with, then any
+ * the user has added, in the order they were added. Rows keep a category as
+ * its number here (one byte) and compare numbers; files keep names, so the
+ * numbers of user categories only hold within one run.
+ *
+ * User categories are saved to categories.txt, one name per line, replaced
+ * by fsync + atomic rename whenever one is added. A name read from the data
+ * but missing from the file (the file was lost, say) is registered as it is
+ * read rather than folded into "Other". At most MAX categories, so a set of
+ * them fits the long bit masks the queries and segments use.
+ */
+public final class Categories {
+
+    public static final int MAX = 64;
+
+    private static final String[] BUILT_IN = {
+        "Food", "Transport", "Entertainment", "Utilities", "Shopping", "Healthcare", "Other"
+    };
+
+    /** Where unknown names end up once the registry is full. */
+    public static final int OTHER = 6;
+
+    // One word, so batch commands can name it; no '|' for budgets.txt
+    private static final Pattern NAME = Pattern.compile("[\\p{L}\\p{N}&_-]{1,24}");
+
+    private static volatile String[] names = BUILT_IN.clone();
+    private static Path file;   // null until load(): nothing is saved
+
+    private Categories() {}
+
+    public static int count() {
+        return names.length;
+    }
+
+    public static String name(int category) {
+        return names[category];
+    }
+
+    /** All names, by number; the caller's own copy. */
+    public static String[] names() {
+        return names.clone();
+    }
+
+    /** The category called exactly {@code name}, or -1. */
+    public static int indexOf(String name) {
+        String[] current = names;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /** The same ignoring case, for names the user typed. */
+    public static int find(String name) {
+        String[] current = names;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * The category a stored name (snapshot, segment manifest, journal) refers
+     * to, registering it if it is new; "Other" once the registry is full.
+     */
+    static synchronized int resolve(String name) {
+        int category = indexOf(name);
+        if (category >= 0) return category;
+        if (names.length >= MAX || name.isEmpty()) return OTHER;
+        append(name);
+        return names.length - 1;
+    }
+
+    /** Reads the user's categories from {@code file}, if it exists, and saves them there from now on. */
+    public static synchronized void load(Path file) throws IOException {
+        Categories.file = file;
+        if (Files.notExists(file)) return;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            if (indexOf(line) < 0 && names.length < MAX) append(line);
+        }
+    }
+
+    /** Adds a category, saves the list and returns the new category's number. */
+    public static synchronized int add(String name) throws IOException {
+        name = name.trim();
+        if (!NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("a category name is one word of up to 24 letters, digits, "
+                                               + "'&', '_' or '-'");
+        }
+        if (name.equalsIgnoreCase("all")) throw new IllegalArgumentException("\"All\" is reserved");
+        if (find(name) >= 0) throw new IllegalArgumentException("category " + name + " already exists");
+        if (names.length >= MAX) throw new IllegalArgumentException("at most " + MAX + " categories");
+        String[] before = names;
+        append(name);
+        try {
+            save();
+        } catch (IOException e) {
+            names = before;
+            throw e;
+        }
+        return names.length - 1;
+    }
+
+    private static void append(String name) {
+        String[] grown = Arrays.copyOf(names, names.length + 1);
+        grown[names.length] = name;
+        names = grown;
+    }
+
+    // Writes the user categories to a temp file, fsyncs it and renames it over the file
+    private static void save() throws IOException {
+        if (file == null) return;
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp.toFile());
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
+            out.write("# categories added to the built-in ones, in order\n");
+            String[] current = names;
+            for (int i = BUILT_IN.length; i < current.length; i++) {
+                out.write(current[i]);
+                out.write('\n');
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        SnapshotFile.replace(temp, file);
+    }
+}
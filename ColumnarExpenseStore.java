@@ -0,0 +1,708 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Column-per-field ExpenseStore. Each row costs roughly 26 bytes of
+ * primitives plus its UTF-8 description, instead of an Expense object and
+ * three Strings. Descriptions live back to back in one pooled byte heap,
+ * and a description that keeps coming back is stored there once: an
+ * InternTable remembers where the common ones are, and rows with the same
+ * description point at the same bytes. Removing a row leaves its bytes
+ * behind as garbage until the heap is compacted.
+ *
+ * Removal only tombstones the row; the columns are compacted in one pass the
+ * next time rows are addressed, so deleting k rows costs O(n) rather than
+ * k array shifts. That first read writes, so a store with removals pending
+ * is only read by one thread; parallel readers get a {@link #view()}, which
+ * is compacted when taken, or call {@link #settle()} first. Lookups by ID binary search while IDs are ascending (the
+ * normal case) and otherwise use a primitive hash index built on demand.
+ *
+ * {@link #view()} hands out read-only views that share the column arrays.
+ * Appends only write past a view's last row, so they carry on in place;
+ * anything that would move existing rows copies the columns first while a
+ * view is still open.
+ */
+public class ColumnarExpenseStore implements ExpenseStore {
+
+    private int size;
+    private int[] ids;
+    private long[] amounts;
+    private byte[] currencies;
+    private byte[] categories;
+    private int[] dates;
+    private int[] descStart;
+    private int[] descLength;
+
+    private byte[] descHeap;
+    private int heapUsed;
+    private int heapGarbage;   // an upper bound, since removed rows may share their bytes
+    private InternTable interned;   // null until the first append
+
+    // Removed rows waiting for the next compaction
+    private final BitSet tombstones = new BitSet();
+    private int tombstoneCount;
+
+    // IDs are handed out in increasing order, so lookups can binary search;
+    // otherwise idIndex maps ID -> row (null until needed; a reader may build
+    // it, so it is only published complete)
+    private boolean idsAscending = true;
+    private volatile IntIntMap idIndex;
+
+    // Open views sharing the current column arrays; a view holds its
+    // generation's counter in released, and is read-only
+    private AtomicInteger openViews = new AtomicInteger();
+    private AtomicInteger released;
+    private final boolean readOnly;
+
+    public ColumnarExpenseStore() {
+        this(1024);
+    }
+
+    public ColumnarExpenseStore(int capacity) {
+        this(capacity, Math.max(capacity, 16) * 16);
+    }
+
+    private ColumnarExpenseStore(int capacity, int heapCapacity) {
+        capacity = Math.max(capacity, 16);
+        ids = new int[capacity];
+        amounts = new long[capacity];
+        currencies = new byte[capacity];
+        categories = new byte[capacity];
+        dates = new int[capacity];
+        descStart = new int[capacity];
+        descLength = new int[capacity];
+        descHeap = new byte[Math.max(heapCapacity, 16)];
+        readOnly = false;
+    }
+
+    // A read-only view of source's current rows
+    private ColumnarExpenseStore(ColumnarExpenseStore source) {
+        size = source.size;
+        ids = source.ids;
+        amounts = source.amounts;
+        currencies = source.currencies;
+        categories = source.categories;
+        dates = source.dates;
+        descStart = source.descStart;
+        descLength = source.descLength;
+        descHeap = source.descHeap;
+        heapUsed = source.heapUsed;
+        heapGarbage = source.heapGarbage;
+        idsAscending = source.idsAscending;
+        released = source.openViews;
+        readOnly = true;
+    }
+
+    /**
+     * A read-only view of the rows as they are now, which later changes to
+     * this store don't affect. O(1); call {@link #release()} on it when done
+     * so deletes can go back to compacting in place. A view may be read by
+     * one thread at a time.
+     */
+    public ColumnarExpenseStore view() {
+        settle();
+        openViews.incrementAndGet();
+        return new ColumnarExpenseStore(this);
+    }
+
+    /** Ends a view; no-op on the store itself or a view already released. */
+    public void release() {
+        if (released != null) {
+            released.decrementAndGet();
+            released = null;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size - tombstoneCount;
+    }
+
+    @Override
+    public int idAt(int row) {
+        return ids[check(row)];
+    }
+
+    @Override
+    public long amountAt(int row) {
+        return amounts[check(row)];
+    }
+
+    @Override
+    public int currencyAt(int row) {
+        return currencies[check(row)];
+    }
+
+    @Override
+    public int categoryAt(int row) {
+        return categories[check(row)];
+    }
+
+    @Override
+    public int dateAt(int row) {
+        return dates[check(row)];
+    }
+
+    @Override
+    public String descriptionAt(int row) {
+        check(row);
+        return new String(descHeap, descStart[row], descLength[row], StandardCharsets.UTF_8);
+    }
+
+    // Exporter fast path: a row's description is the UTF-8 bytes at
+    // descriptionHeap()[descriptionStart(row) .. + descriptionLength(row)).
+    // The heap array is replaced as the store grows, so re-fetch it after adds.
+    byte[] descriptionHeap() {
+        return descHeap;
+    }
+
+    int descriptionStart(int row) {
+        return descStart[check(row)];
+    }
+
+    int descriptionLength(int row) {
+        return descLength[check(row)];
+    }
+
+    @Override
+    public Expense get(int row) {
+        check(row);
+        return new Expense(ids[row], amounts[row], Currencies.code(currencies[row]),
+                           Categories.name(categories[row]), dates[row], descriptionAt(row));
+    }
+
+    /** Sum of every amount, added straight off the column. */
+    public long sumAmounts() {
+        if (tombstoneCount > 0) settle();
+        return Money.sum(amounts, 0, size);
+    }
+
+    private int check(int row) {
+        if (tombstoneCount > 0) settle();
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+        return row;
+    }
+
+    @Override
+    public int add(int id, long amountCents, int currency, int category, int epochDay, String description) {
+        byte[] bytes = description.getBytes(StandardCharsets.UTF_8);
+        int row = appendRow(id, amountCents, currency, category, epochDay, bytes.length);
+        System.arraycopy(bytes, 0, descHeap, heapUsed, bytes.length);
+        keepDescription(row);
+        return row;
+    }
+
+    /** Loader fast path: copies the description straight out of a mapped buffer. */
+    int add(int id, long amountCents, int currency, int category, int epochDay, ByteBuffer buf, int from, int to) {
+        int row = appendRow(id, amountCents, currency, category, epochDay, to - from);
+        int start = heapUsed;
+        for (int i = from; i < to; i++) {
+            descHeap[start++] = buf.get(i);
+        }
+        keepDescription(row);
+        return row;
+    }
+
+    // Appends a row whose description the caller then writes at heapUsed and
+    // passes to keepDescription
+    private int appendRow(int id, long amountCents, int currency, int category, int epochDay, int descBytes) {
+        checkWritable();
+        if (tombstoneCount > 0) settle();
+        ensureCapacity(size + 1);
+        ensureHeap(descBytes);
+        if (size > 0 && id <= ids[size - 1]) {
+            idsAscending = false;
+        }
+        int row = size++;
+        ids[row] = id;
+        amounts[row] = amountCents;
+        currencies[row] = (byte) currency;
+        categories[row] = (byte) category;
+        dates[row] = epochDay;
+        descStart[row] = heapUsed;
+        descLength[row] = descBytes;
+        if (idIndex != null) idIndex.putIfAbsent(id, row);
+        return row;
+    }
+
+    // The row's description has just been written at the end of the heap:
+    // points the row at an earlier copy if the intern table has one, and
+    // otherwise keeps the new bytes and offers them to the table
+    private void keepDescription(int row) {
+        int length = descLength[row];
+        if (interned == null) interned = new InternTable();
+        int hash = InternTable.hash(descHeap, heapUsed, length);
+        int copy = interned.find(descHeap, descHeap, heapUsed, length, hash);
+        if (copy >= 0) {
+            descStart[row] = copy;
+            return;
+        }
+        interned.offer(heapUsed, length, hash);
+        heapUsed += length;
+    }
+
+    /** Bytes of description text held, after sharing; what a snapshot would cost in memory. */
+    int descriptionBytes() {
+        return heapUsed - heapGarbage;
+    }
+
+    // Binary snapshot fast path: the store is sized for the whole file up
+    // front, plus a sixteenth so the first adds after loading a big ledger
+    // don't copy every column, then each block's columns are copied into
+    // their own slice of the arrays (from several threads; the slices don't
+    // overlap), and finishLoad() runs once they are all done. Version 2 blocks
+    // carry each row's offset into the block's descriptions, which already
+    // share repeats; version 1 blocks have every row's bytes in row order,
+    // and shareDescriptions() squeezes those repeats out afterwards. Blocks
+    // from before version 3 have no currencies: their rows are in the home
+    // currency.
+
+    static ColumnarExpenseStore forLoad(int rows, int heapBytes) {
+        ColumnarExpenseStore store = new ColumnarExpenseStore(withHeadroom(rows), withHeadroom(heapBytes));
+        store.size = rows;
+        store.heapUsed = heapBytes;
+        return store;
+    }
+
+    private static int withHeadroom(int n) {
+        return (int) Math.min(Integer.MAX_VALUE - 8, n + (long) (n >> 4));
+    }
+
+    /**
+     * Copies one block of {@code n} rows from {@code block} (little-endian,
+     * positioned at the block body) to rows [firstRow, firstRow + n), with
+     * descriptions from heapStart on. {@code categoryMap} translates the
+     * file's category numbers to this build's and {@code currencyMap} its
+     * currency numbers, or is null for a block without a currencies column;
+     * {@code withStarts} says the block has a descStarts column.
+     */
+    void loadBlock(ByteBuffer block, int firstRow, int n, int heapStart, byte[] categoryMap, byte[] currencyMap,
+                   boolean withStarts) throws IOException {
+        int at = block.position();
+        column(block, at).asLongBuffer().get(amounts, firstRow, n);
+        at += n * 8;
+        column(block, at).asIntBuffer().get(ids, firstRow, n);
+        at += n * 4;
+        column(block, at).asIntBuffer().get(dates, firstRow, n);
+        at += n * 4;
+        column(block, at).asIntBuffer().get(descLength, firstRow, n);
+        at += n * 4;
+        if (withStarts) {
+            column(block, at).asIntBuffer().get(descStart, firstRow, n);
+            at += n * 4;
+        }
+        block.position(at);
+        block.get(categories, firstRow, n);
+        at += n;
+        if (currencyMap != null) {
+            block.get(currencies, firstRow, n);
+            at += n;
+            for (int row = firstRow; row < firstRow + n; row++) {
+                int currency = currencies[row];
+                if (currency < 0 || currency >= currencyMap.length) throw new IOException("bad currency in row " + row);
+                currencies[row] = currencyMap[currency];
+            }
+        } else {
+            Arrays.fill(currencies, firstRow, firstRow + n, (byte) Currencies.home());
+        }
+        int heapEnd = heapStart + (block.limit() - at);
+        block.get(descHeap, heapStart, heapEnd - heapStart);
+
+        if (withStarts) {
+            int heapLength = heapEnd - heapStart;
+            for (int row = firstRow; row < firstRow + n; row++) {
+                int category = categories[row];
+                if (category < 0 || category >= categoryMap.length) throw new IOException("bad category in row " + row);
+                categories[row] = categoryMap[category];
+                int start = descStart[row], length = descLength[row];
+                if (length < 0 || start < 0 || start > heapLength - length) {
+                    throw new IOException("bad description in row " + row);
+                }
+                descStart[row] = heapStart + start;
+            }
+            return;
+        }
+        int start = heapStart;
+        for (int row = firstRow; row < firstRow + n; row++) {
+            int category = categories[row];
+            if (category < 0 || category >= categoryMap.length) throw new IOException("bad category in row " + row);
+            categories[row] = categoryMap[category];
+            descStart[row] = start;
+            start += descLength[row];
+            if (descLength[row] < 0 || start > heapEnd) throw new IOException("bad description length in row " + row);
+        }
+        if (start != heapEnd) throw new IOException("description lengths don't match the block");
+    }
+
+    private static ByteBuffer column(ByteBuffer block, int at) {
+        ByteBuffer slice = block.duplicate();
+        slice.position(at);
+        return slice.slice().order(block.order());
+    }
+
+    void finishLoad() {
+        idsAscending = true;
+        for (int row = 1; row < size && idsAscending; row++) {
+            idsAscending = ids[row] > ids[row - 1];
+        }
+    }
+
+    /**
+     * After loading version 1 blocks, keeps one copy of each repeated
+     * description and trims the heap.
+     */
+    void shareDescriptions() {
+        // The blocks left every row's description right after the previous
+        // one's, so repeats can be squeezed out in place in one pass: a row
+        // only ever moves down, over bytes already dealt with
+        interned = new InternTable();
+        int used = 0;
+        for (int row = 0; row < size; row++) {
+            int start = descStart[row], length = descLength[row];
+            int hash = InternTable.hash(descHeap, start, length);
+            int copy = interned.find(descHeap, descHeap, start, length, hash);
+            if (copy >= 0) {
+                descStart[row] = copy;
+                continue;
+            }
+            if (start != used) System.arraycopy(descHeap, start, descHeap, used, length);
+            descStart[row] = used;
+            interned.offer(used, length, hash);
+            used += length;
+        }
+        heapUsed = used;
+        if (heapUsed < descHeap.length / 2) descHeap = Arrays.copyOf(descHeap, withHeadroom(heapUsed));
+    }
+
+    /** Appends one row of {@code other} without decoding its description. */
+    public int addFrom(ColumnarExpenseStore other, int row) {
+        other.check(row);
+        int len = other.descLength[row];
+        int copy = appendRow(other.ids[row], other.amounts[row], other.currencies[row], other.categories[row],
+                             other.dates[row], len);
+        System.arraycopy(other.descHeap, other.descStart[row], descHeap, heapUsed, len);
+        keepDescription(copy);
+        return copy;
+    }
+
+    /**
+     * Appends every row of {@code other}, copying its description heap in
+     * one go; its rows keep sharing bytes among themselves, but not with the
+     * rows here.
+     */
+    public void addAll(ColumnarExpenseStore other) {
+        checkWritable();
+        settle();
+        other.settle();
+        idIndex = null;
+        ensureCapacity(size + other.size);
+        ensureHeap(other.heapUsed);
+        if (other.size > 0 && size > 0 && other.ids[0] <= ids[size - 1]) {
+            idsAscending = false;
+        }
+        idsAscending &= other.idsAscending;
+
+        System.arraycopy(other.ids, 0, ids, size, other.size);
+        System.arraycopy(other.amounts, 0, amounts, size, other.size);
+        System.arraycopy(other.currencies, 0, currencies, size, other.size);
+        System.arraycopy(other.categories, 0, categories, size, other.size);
+        System.arraycopy(other.dates, 0, dates, size, other.size);
+        System.arraycopy(other.descLength, 0, descLength, size, other.size);
+        for (int i = 0; i < other.size; i++) {
+            descStart[size + i] = other.descStart[i] + heapUsed;
+        }
+        System.arraycopy(other.descHeap, 0, descHeap, heapUsed, other.heapUsed);
+        heapUsed += other.heapUsed;
+        heapGarbage += other.heapGarbage;
+        size += other.size;
+    }
+
+    @Override
+    public void remove(int row) {
+        checkWritable();
+        check(row);
+        tombstone(row);
+    }
+
+    @Override
+    public void removeAll(IntList rows) {
+        checkWritable();
+        settle();
+        for (int i = 0; i < rows.size(); i++) {
+            int row = rows.get(i);
+            if (row < 0 || row >= size) throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            int row = rows.get(i);
+            if (!tombstones.get(row)) tombstone(row);
+        }
+    }
+
+    private void tombstone(int row) {
+        tombstones.set(row);
+        tombstoneCount++;
+        heapGarbage += descLength[row];
+    }
+
+    /**
+     * Squeezes out tombstoned rows in one pass, moving each run of live rows
+     * between two tombstones with arraycopy. Reads do this on their own;
+     * call it before handing the store to several reading threads.
+     */
+    void settle() {
+        if (tombstoneCount == 0) return;
+        unshare();
+        int to = tombstones.nextSetBit(0);
+        int from = to;
+        while (from < size) {
+            int runStart = tombstones.nextClearBit(from);
+            if (runStart >= size) break;
+            int runEnd = tombstones.nextSetBit(runStart);
+            if (runEnd < 0 || runEnd > size) runEnd = size;
+            int run = runEnd - runStart;
+            System.arraycopy(ids, runStart, ids, to, run);
+            System.arraycopy(amounts, runStart, amounts, to, run);
+            System.arraycopy(currencies, runStart, currencies, to, run);
+            System.arraycopy(categories, runStart, categories, to, run);
+            System.arraycopy(dates, runStart, dates, to, run);
+            System.arraycopy(descStart, runStart, descStart, to, run);
+            System.arraycopy(descLength, runStart, descLength, to, run);
+            to += run;
+            from = runEnd;
+        }
+        size = to;
+        tombstones.clear();
+        tombstoneCount = 0;
+        idIndex = null;
+        if (heapGarbage > 4096 && heapGarbage > heapUsed / 2) {
+            compactHeap();
+        }
+    }
+
+    @Override
+    public int indexOf(int id) {
+        settle();
+        if (idsAscending) {
+            int row = Arrays.binarySearch(ids, 0, size, id);
+            return row >= 0 ? row : -1;
+        }
+        IntIntMap index = idIndex;
+        if (index == null) {
+            // putIfAbsent keeps the first row for a duplicated ID, as a scan would
+            index = new IntIntMap(size);
+            for (int row = 0; row < size; row++) {
+                index.putIfAbsent(ids[row], row);
+            }
+            idIndex = index;
+        }
+        return index.get(id);
+    }
+
+    /** Gives the rows consecutive IDs starting at {@code firstId}, in row order. */
+    void renumber(int firstId) {
+        checkWritable();
+        settle();
+        unshare();
+        idIndex = null;
+        for (int row = 0; row < size; row++) {
+            ids[row] = firstId + row;
+        }
+        idsAscending = true;
+    }
+
+    /**
+     * Drops every row from {@code newSize} on. Used to undo an addAll, whose
+     * rows sit at the end of both the columns and the description heap.
+     */
+    void truncate(int newSize) {
+        checkWritable();
+        settle();
+        unshare();
+        idIndex = null;
+        if (newSize >= size) return;
+        // Shared descriptions may point anywhere below, so find the end of the kept ones
+        int end = 0;
+        for (int row = 0; row < newSize; row++) {
+            end = Math.max(end, descStart[row] + descLength[row]);
+        }
+        heapUsed = end;
+        heapGarbage = Math.min(heapGarbage, end);
+        if (interned != null) interned.clear();
+        size = newSize;
+        idsAscending = true;
+        for (int row = 1; row < size && idsAscending; row++) {
+            idsAscending = ids[row] > ids[row - 1];
+        }
+    }
+
+    /**
+     * Appends to {@code out} the rows of {@code sortedIds} (ascending) in
+     * one forward pass; IDs that are not present are skipped. Only valid
+     * while {@link #isSortedById()}.
+     */
+    void rowsOfSortedIds(int[] sortedIds, IntList out) {
+        settle();
+        if (size > 0 && (long) ids[size - 1] - ids[0] == size - 1) {
+            // No gaps in the IDs: the row is the offset from the first one
+            int first = ids[0];
+            for (int id : sortedIds) {
+                long row = (long) id - first;
+                if (row >= 0 && row < size) out.add((int) row);
+            }
+            return;
+        }
+        int row = 0;
+        for (int id : sortedIds) {
+            if (row >= size) break;
+            long gap = (long) id - ids[row];
+            if (gap < 0) continue;
+            // IDs rise by at least one per row, so the ID can't be further
+            // than gap rows on; with no deleted IDs in between it is exactly there
+            int hi = (int) Math.min(size - 1, row + gap);
+            int found = ids[hi] == id ? hi : Arrays.binarySearch(ids, row, hi + 1, id);
+            if (found >= 0) {
+                out.add(found);
+                row = found + 1;
+            } else {
+                row = -found - 1;
+            }
+        }
+    }
+
+    public boolean isSortedById() {
+        return idsAscending;
+    }
+
+    /** Reorders rows by ID. Only needed for snapshots that were edited by hand. */
+    public void sortById() {
+        checkWritable();
+        settle();
+        if (idsAscending) return;
+        idIndex = null;
+        long[] keys = new long[size];
+        for (int row = 0; row < size; row++) {
+            keys[row] = ((long) ids[row] << 32) | row;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = (int) keys[i];
+        }
+        ids = permute(ids, order);
+        amounts = permute(amounts, order);
+        dates = permute(dates, order);
+        descStart = permute(descStart, order);
+        descLength = permute(descLength, order);
+        currencies = permute(currencies, order);
+        categories = permute(categories, order);
+        idsAscending = true;
+    }
+
+    private static int[] permute(int[] column, int[] order) {
+        int[] out = new int[column.length];
+        for (int i = 0; i < order.length; i++) out[i] = column[order[i]];
+        return out;
+    }
+
+    private static byte[] permute(byte[] column, int[] order) {
+        byte[] out = new byte[column.length];
+        for (int i = 0; i < order.length; i++) out[i] = column[order[i]];
+        return out;
+    }
+
+    private static long[] permute(long[] column, int[] order) {
+        long[] out = new long[column.length];
+        for (int i = 0; i < order.length; i++) out[i] = column[order[i]];
+        return out;
+    }
+
+    @Override
+    public ColumnarExpenseStore copy() {
+        ColumnarExpenseStore copy = new ColumnarExpenseStore(size);
+        copy.addAll(this);
+        return copy;
+    }
+
+    private void checkWritable() {
+        if (readOnly) throw new UnsupportedOperationException("read-only view");
+    }
+
+    // Gives this store its own copy of the columns if an open view shares
+    // them. The description heap is never rewritten in place, so it stays shared.
+    private void unshare() {
+        if (openViews.get() == 0) return;
+        ids = ids.clone();
+        amounts = amounts.clone();
+        currencies = currencies.clone();
+        categories = categories.clone();
+        dates = dates.clone();
+        descStart = descStart.clone();
+        descLength = descLength.clone();
+        openViews = new AtomicInteger();
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= ids.length) return;
+        int capacity = Math.max(needed, ids.length + (ids.length >> 1));
+        ids = Arrays.copyOf(ids, capacity);
+        amounts = Arrays.copyOf(amounts, capacity);
+        currencies = Arrays.copyOf(currencies, capacity);
+        categories = Arrays.copyOf(categories, capacity);
+        dates = Arrays.copyOf(dates, capacity);
+        descStart = Arrays.copyOf(descStart, capacity);
+        descLength = Arrays.copyOf(descLength, capacity);
+        openViews = new AtomicInteger();   // views keep the old arrays
+    }
+
+    private void ensureHeap(int extra) {
+        long needed = (long) heapUsed + extra;
+        if (needed <= descHeap.length) return;
+        if (heapGarbage > 0 && needed - heapGarbage <= descHeap.length) {
+            // The garbage count may be high when removed rows shared bytes
+            compactHeap();
+            needed = (long) heapUsed + extra;
+            if (needed <= descHeap.length) return;
+        }
+        long capacity = Math.max(needed, descHeap.length + (long) (descHeap.length >> 1));
+        if (capacity > Integer.MAX_VALUE - 8) {
+            if (needed > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("description heap is full");
+            }
+            capacity = Integer.MAX_VALUE - 8;
+        }
+        descHeap = Arrays.copyOf(descHeap, (int) capacity);
+    }
+
+    // Copies the live descriptions into a new heap, sharing repeats afresh
+    private void compactHeap() {
+        unshare();
+        byte[] heap = new byte[descHeap.length];
+        InternTable table = new InternTable();
+        int used = 0;
+        for (int row = 0; row < size; row++) {
+            int start = descStart[row], length = descLength[row];
+            int hash = InternTable.hash(descHeap, start, length);
+            int copy = table.find(heap, descHeap, start, length, hash);
+            if (copy >= 0) {
+                descStart[row] = copy;
+                continue;
+            }
+            // The table may share less than before and need more room
+            if (used + length > heap.length) {
+                heap = Arrays.copyOf(heap, Math.max(used + length, heap.length + (heap.length >> 1)));
+            }
+            System.arraycopy(descHeap, start, heap, used, length);
+            descStart[row] = used;
+            table.offer(used, length, hash);
+            used += length;
+        }
+        descHeap = heap;
+        heapUsed = used;
+        heapGarbage = 0;
+        interned = table;
+    }
+}
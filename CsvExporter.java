@@ -0,0 +1,264 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams expenses to RFC 4180 CSV. Rows are formatted straight into large
+ * byte buffers (no String.format, no per-row Strings for columnar stores),
+ * fields containing commas, quotes or line breaks are quoted rather than
+ * rewritten, and records end in CRLF.
+ *
+ * Date-range filters are answered from the DateIndex so only matching rows
+ * are visited. Large exports are formatted in fixed-size chunks on the
+ * common fork-join pool while this thread writes finished chunks in order;
+ * output can optionally be gzip-compressed.
+ */
+public final class CsvExporter {
+
+    private static final int CHUNK_ROWS = 16 * 1024;
+    private static final byte[] HEADER = "ID,Amount,Currency,Category,Date,Description\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /** Which rows to export; the default exports everything. */
+    public static final class Filter {
+        int startDay = Integer.MIN_VALUE;
+        int endDay = Integer.MAX_VALUE;
+        int category = -1;
+
+        public Filter dates(int startDay, int endDay) {
+            this.startDay = startDay;
+            this.endDay = endDay;
+            return this;
+        }
+
+        public Filter category(int category) {
+            this.category = category;
+            return this;
+        }
+
+        boolean hasDates() {
+            return startDay != Integer.MIN_VALUE || endDay != Integer.MAX_VALUE;
+        }
+    }
+
+    public static final class Result {
+        public final int rows;
+        public final long bytes;          // uncompressed CSV bytes
+        public final long elapsedNanos;
+
+        Result(int rows, long bytes, long elapsedNanos) {
+            this.rows = rows;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double megabytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes / (elapsedNanos / 1e9) / (1 << 20);
+        }
+    }
+
+    private CsvExporter() {}
+
+    /**
+     * @param index  used to answer date filters; may be null, in which case
+     *               every row is checked
+     * @param gzip   compress the output (the caller picks the file name)
+     */
+    public static Result export(ExpenseStore store, DateIndex index, Filter filter, Path target, boolean gzip)
+            throws IOException {
+        try (Metrics.Span span = Metrics.start(Metrics.Op.EXPORT)) {
+            Result result = write(store, index, filter, target, gzip);
+            span.rows(result.rows, result.rows).written(Files.size(target));
+            return result;
+        }
+    }
+
+    private static Result write(ExpenseStore store, DateIndex index, Filter filter, Path target, boolean gzip)
+            throws IOException {
+        long start = System.nanoTime();
+        IntList selected = select(store, index, filter);
+        String[] names = Categories.names();
+        byte[][] categories = new byte[names.length][];
+        for (int c = 0; c < categories.length; c++) {
+            categories[c] = names[c].getBytes(StandardCharsets.UTF_8);
+        }
+        String[] codes = Currencies.codes();
+        byte[][] currencies = new byte[codes.length][];
+        for (int c = 0; c < currencies.length; c++) {
+            currencies[c] = codes[c].getBytes(StandardCharsets.US_ASCII);
+        }
+        int total = selected == null ? store.size() : selected.size();
+
+        long bytes = HEADER.length;
+        try (OutputStream file = new FileOutputStream(target.toFile());
+             OutputStream out = gzip ? new GZIPOutputStream(file, 1 << 16) : file) {
+            out.write(HEADER);
+            boolean parallel = total > CHUNK_ROWS && ForkJoinPool.getCommonPoolParallelism() > 1;
+            if (parallel) {
+                bytes += writeParallel(store, selected, categories, currencies, total, out);
+            } else {
+                Chunk chunk = new Chunk(1 << 16);
+                for (int from = 0; from < total; from += CHUNK_ROWS) {
+                    chunk.format(store, selected, categories, currencies, from, Math.min(from + CHUNK_ROWS, total));
+                    out.write(chunk.bytes, 0, chunk.length);
+                    bytes += chunk.length;
+                }
+            }
+        }
+        return new Result(total, bytes, System.nanoTime() - start);
+    }
+
+    public static Result export(ExpenseStore store, Path target) throws IOException {
+        return export(store, null, new Filter(), target, false);
+    }
+
+    // Matching rows, or null when every row matches (saves materialising them)
+    private static IntList select(ExpenseStore store, DateIndex index, Filter filter) {
+        if (!filter.hasDates() && filter.category < 0) return null;
+        IntList candidates = filter.hasDates() && index != null
+                ? index.rowsBetween(filter.startDay, filter.endDay) : null;
+        int n = candidates == null ? store.size() : candidates.size();
+        IntList rows = new IntList(candidates == null ? 1024 : n);
+        for (int i = 0; i < n; i++) {
+            int row = candidates == null ? i : candidates.get(i);
+            if (filter.category >= 0 && store.categoryAt(row) != filter.category) continue;
+            if (candidates == null && filter.hasDates()) {
+                int day = store.dateAt(row);
+                if (day < filter.startDay || day > filter.endDay) continue;
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    // Keeps a bounded window of chunks in flight so memory stays flat however
+    // large the export; finished buffers are recycled.
+    private static long writeParallel(ExpenseStore store, IntList selected, byte[][] categories,
+                                      byte[][] currencies, int total, OutputStream out) throws IOException {
+        // Pending removals are compacted by the first read, so not by the pool
+        if (store instanceof ColumnarExpenseStore) ((ColumnarExpenseStore) store).settle();
+        int window = ForkJoinPool.getCommonPoolParallelism() * 2;
+        ConcurrentLinkedQueue<Chunk> free = new ConcurrentLinkedQueue<>();
+        ArrayDeque<ForkJoinTask<Chunk>> inFlight = new ArrayDeque<>();
+        long bytes = 0;
+        int next = 0;
+        while (next < total || !inFlight.isEmpty()) {
+            while (next < total && inFlight.size() < window) {
+                int from = next, to = Math.min(next + CHUNK_ROWS, total);
+                inFlight.add(ForkJoinPool.commonPool().submit(() -> {
+                    Chunk chunk = free.poll();
+                    if (chunk == null) chunk = new Chunk(1 << 16);
+                    chunk.format(store, selected, categories, currencies, from, to);
+                    return chunk;
+                }));
+                next = to;
+            }
+            Chunk chunk;
+            try {
+                chunk = inFlight.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("export interrupted");
+            } catch (ExecutionException e) {
+                throw new IOException("Error formatting CSV", e.getCause());
+            }
+            out.write(chunk.bytes, 0, chunk.length);
+            bytes += chunk.length;
+            free.add(chunk);
+        }
+        return bytes;
+    }
+
+    /** A reusable output buffer holding the formatted rows of one chunk. */
+    private static final class Chunk {
+        byte[] bytes;
+        int length;
+
+        Chunk(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void format(ExpenseStore store, IntList selected, byte[][] categories, byte[][] currencies, int from,
+                    int to) {
+            length = 0;
+            ColumnarExpenseStore columnar = store instanceof ColumnarExpenseStore
+                    ? (ColumnarExpenseStore) store : null;
+            for (int i = from; i < to; i++) {
+                int row = selected == null ? i : selected.get(i);
+                ensure(64);
+                length = writeLong(store.idAt(row), bytes, length);
+                bytes[length++] = ',';
+                length = Money.format(store.amountAt(row), bytes, length);
+                bytes[length++] = ',';
+                byte[] currency = currencies[store.currencyAt(row)];
+                System.arraycopy(currency, 0, bytes, length, currency.length);
+                length += currency.length;
+                bytes[length++] = ',';
+                byte[] category = categories[store.categoryAt(row)];
+                field(category, 0, category.length);
+                ensure(16);
+                bytes[length++] = ',';
+                length = ExpenseDates.format(store.dateAt(row), bytes, length);
+                bytes[length++] = ',';
+                if (columnar != null) {
+                    field(columnar.descriptionHeap(), columnar.descriptionStart(row), columnar.descriptionLength(row));
+                } else {
+                    byte[] description = store.descriptionAt(row).getBytes(StandardCharsets.UTF_8);
+                    field(description, 0, description.length);
+                }
+                ensure(2);
+                bytes[length++] = '\r';
+                bytes[length++] = '\n';
+            }
+        }
+
+        // RFC 4180: quote the field if it contains a comma, quote or line
+        // break, doubling any embedded quotes
+        private void field(byte[] src, int from, int len) {
+            boolean quote = false;
+            int quotes = 0;
+            for (int i = from; i < from + len; i++) {
+                byte b = src[i];
+                if (b == '"') quotes++;
+                if (b == ',' || b == '"' || b == '\n' || b == '\r') quote = true;
+            }
+            ensure(len + quotes + 2);
+            if (!quote) {
+                System.arraycopy(src, from, bytes, length, len);
+                length += len;
+                return;
+            }
+            bytes[length++] = '"';
+            for (int i = from; i < from + len; i++) {
+                if (src[i] == '"') bytes[length++] = '"';
+                bytes[length++] = src[i];
+            }
+            bytes[length++] = '"';
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+    }
+
+    // The caller guarantees room for the longest value
+
+    private static int writeLong(long value, byte[] out, int at) {
+        if (value < 0) {
+            out[at++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) digits++;
+        for (int i = at + digits - 1; i >= at; i--) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return at + digits;
+    }
+}
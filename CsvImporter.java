@@ -0,0 +1,567 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Bulk import of CSV files: the app's own export format as well as bank
+ * statements with a Date / Description / Amount style header.
+ *
+ * A Currency column, as the export has, gives each row's currency; rows
+ * without one are in the home currency. A row in a currency with no
+ * exchange rate is rejected, as an add would be.
+ *
+ * Only spending is imported. Amounts are taken as positive spending, as the
+ * app's own export and a Debit column show it, unless
+ * -Dexpenses.importDebits=negative says a statement shows debits as
+ * negative amounts. Amounts with the other sign are credits (salary,
+ * refunds) and are skipped and counted, not rejected.
+ *
+ * The file is streamed through a staged pipeline with bounded queues, so a
+ * slow stage holds back the ones before it instead of buffering the file:
+ *
+ *   reader thread      splits RFC 4180 records (quoted fields may span lines)
+ *   parse workers      split fields, validate, pick a category
+ *   calling thread     collects rows in file order, writes the reject file
+ *
+ * Accepted rows are staged and handed to {@link Ledger#importRows} in one
+ * go, which assigns IDs from the ledger's sequence and persists the whole
+ * import atomically. Rejected rows go to the reject file with their line
+ * number and the reason.
+ */
+public final class CsvImporter {
+
+    private static final int BATCH_RECORDS = 4096;
+    private static final int QUEUE_BATCHES = 8;
+
+    public static final class Result {
+        public int records;
+        public int imported;
+        public int rejected;
+        public int credits;   // skipped: money in, not spending
+        public int firstId;
+        public long bytes;
+        public long elapsedNanos;
+
+        public double megabytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes / (elapsedNanos / 1e9) / (1 << 20);
+        }
+    }
+
+    // Raw records from the reader; an empty batch marks the end of input
+    private static final class Batch {
+        final long seq;
+        final String[] records;
+        final int[] lines;
+        int count;
+
+        Batch(long seq, int capacity) {
+            this.seq = seq;
+            this.records = new String[capacity];
+            this.lines = new int[capacity];
+        }
+    }
+
+    // What a parse worker made of one Batch
+    private static final class Parsed {
+        final long seq;
+        final ColumnarExpenseStore rows;
+        final StringBuilder rejects = new StringBuilder();
+        int rejected;
+        int credits;
+
+        Parsed(long seq, int capacity) {
+            this.seq = seq;
+            this.rows = new ColumnarExpenseStore(capacity);
+        }
+    }
+
+    private static final Batch END = new Batch(-1, 0);
+
+    // Field positions in a record; -1 when the file has no such column
+    private static final class Columns {
+        int amount = -1, currency = -1, category = -1, date = -1, description = -1;
+        int needed;
+        int debitSign = 1;   // -1: spending is negative, positive amounts are credits
+        long convertible;   // a bit per currency with a rate, home included
+
+        void finish() {
+            needed = Math.max(Math.max(Math.max(amount, category), Math.max(date, description)), currency) + 1;
+        }
+    }
+
+    private static final String[] AMOUNT_NAMES = { "amount", "debit", "value", "amount spent" };
+    private static final String[] DEBIT_NAMES = { "debit", "amount spent" };
+
+    // How statements other than the app's own show spending
+    private static final int STATEMENT_DEBIT_SIGN =
+            "negative".equals(System.getProperty("expenses.importDebits")) ? -1 : 1;
+
+    // Rejection reason for rows that are money in; counted, not written out
+    private static final String CREDIT = "credit";
+    private static final String[] DATE_NAMES = { "date", "transaction date", "posted date", "posting date",
+                                                 "booking date" };
+    private static final String[] DESCRIPTION_NAMES = { "description", "memo", "details", "payee",
+                                                        "narrative", "name" };
+
+    // Rough keyword rules for statements without a category column, checked
+    // in order against the lower-cased description
+    private static final String[][] KEYWORDS = {
+        { "Food", "restaurant", "cafe", "coffee", "grocer", "supermarket", "bakery", "pizza", "food" },
+        { "Transport", "uber", "lyft", "taxi", "fuel", "petrol", "parking", "train", "bus ", "metro" },
+        { "Entertainment", "netflix", "spotify", "cinema", "concert", "steam", "theatre" },
+        { "Utilities", "electric", "water", "internet", "broadband", "phone", "gas bill", "energy" },
+        { "Shopping", "amazon", "store", "shop", "market" },
+        { "Healthcare", "pharmacy", "doctor", "dental", "dentist", "clinic", "hospital" },
+    };
+
+    private CsvImporter() {}
+
+    /**
+     * @param rejects where to write rows that failed validation; the file is
+     *                only created if something is rejected
+     */
+    public static Result importFile(Ledger ledger, Path source, Path rejects) throws IOException {
+        try (Metrics.Span span = Metrics.start(Metrics.Op.IMPORT)) {
+            Result result = importInto(ledger, source, rejects);
+            span.rows(result.records, result.imported).read(result.bytes);
+            return result;
+        }
+    }
+
+    private static Result importInto(Ledger ledger, Path source, Path rejects) throws IOException {
+        long start = System.nanoTime();
+        Result result = new Result();
+        result.bytes = Files.size(source);
+
+        boolean gzip = source.getFileName().toString().endsWith(".gz");
+        try (InputStream file = new FileInputStream(source.toFile());
+             InputStream in = gzip ? new GZIPInputStream(file, 1 << 16) : file;
+             RecordReader reader = new RecordReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String first = reader.next();
+            if (first == null) {
+                result.elapsedNanos = System.nanoTime() - start;
+                return result;
+            }
+            Columns columns = header(first);
+            boolean headerRow = columns != null;
+            if (!headerRow) {
+                columns = exportLayout(first);
+            }
+            for (int c = 0; c < Currencies.count(); c++) {
+                if (ledger.hasRate(c)) columns.convertible |= 1L << c;
+            }
+            ColumnarExpenseStore staged = run(reader, headerRow ? null : first, columns, rejects, result);
+            result.imported = staged.size();
+            if (staged.size() > 0) {
+                result.firstId = ledger.importRows(staged);
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static ColumnarExpenseStore run(RecordReader reader, String firstRecord, Columns columns,
+                                            Path rejectPath, Result result) throws IOException {
+        int workers = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+        BlockingQueue<Batch> raw = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        BlockingQueue<Parsed> parsed = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+
+        threads.add(daemon("csv-import-read", () -> {
+            try {
+                long seq = 0;
+                int recordLine = reader.line();
+                Batch batch = new Batch(seq++, BATCH_RECORDS);
+                if (firstRecord != null) {
+                    batch.records[0] = firstRecord;
+                    batch.lines[0] = 1;
+                    batch.count = 1;
+                }
+                String record;
+                while ((record = reader.next()) != null) {
+                    batch.records[batch.count] = record;
+                    batch.lines[batch.count++] = recordLine;
+                    recordLine = reader.line();
+                    if (batch.count == BATCH_RECORDS) {
+                        raw.put(batch);
+                        batch = new Batch(seq++, BATCH_RECORDS);
+                    }
+                }
+                if (batch.count > 0) raw.put(batch);
+            } catch (IOException | RuntimeException e) {
+                failures.add(e);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                for (int i = 0; i < workers; i++) raw.put(END);
+            } catch (InterruptedException e) {
+                // shutting down
+            }
+        }));
+        for (int w = 0; w < workers; w++) {
+            threads.add(daemon("csv-import-parse-" + w, () -> {
+                try {
+                    String[] fields = new String[Math.max(columns.needed, 8)];
+                    Batch batch;
+                    try {
+                        while ((batch = raw.take()) != END) {
+                            parsed.put(parse(batch, columns, fields));
+                        }
+                    } catch (RuntimeException e) {
+                        failures.add(e);
+                    }
+                    parsed.put(new Parsed(-1, 0));
+                } catch (InterruptedException e) {
+                    // shutting down
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+
+        // Collect in file order; workers finish batches out of order, so hold
+        // early ones back until their turn comes
+        ColumnarExpenseStore staged = new ColumnarExpenseStore();
+        Map<Long, Parsed> early = new HashMap<>();
+        long expected = 0;
+        int finished = 0;
+        Writer rejectWriter = null;
+        try {
+            while (finished < workers) {
+                Parsed p = parsed.take();
+                if (p.seq < 0) {
+                    finished++;
+                    continue;
+                }
+                early.put(p.seq, p);
+                while ((p = early.remove(expected)) != null) {
+                    expected++;
+                    staged.addAll(p.rows);
+                    result.records += p.rows.size() + p.rejected + p.credits;
+                    result.rejected += p.rejected;
+                    result.credits += p.credits;
+                    if (p.rejected > 0) {
+                        if (rejectWriter == null) {
+                            rejectWriter = new BufferedWriter(new OutputStreamWriter(
+                                    new FileOutputStream(rejectPath.toFile()), StandardCharsets.UTF_8), 1 << 16);
+                            rejectWriter.write("Line,Reason,Record\r\n");
+                        }
+                        rejectWriter.append(p.rejects);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("import interrupted");
+        } finally {
+            threads.forEach(Thread::interrupt);
+            if (rejectWriter != null) rejectWriter.close();
+        }
+        if (!failures.isEmpty()) {
+            Throwable failure = failures.get(0);
+            if (failure instanceof IOException) throw (IOException) failure;
+            throw new IOException("Error importing CSV", failure);
+        }
+        return staged;
+    }
+
+    private static Thread daemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    // Header handling
+
+    private static Columns header(String record) {
+        String[] fields = new String[Math.max(8, record.length() / 2 + 1)];
+        int n = split(record, fields);
+        Columns columns = new Columns();
+        boolean ownExport = false;
+        for (int i = 0; i < n; i++) {
+            String name = fields[i].trim().toLowerCase(Locale.ROOT);
+            if (name.equals("id")) ownExport = true;
+            else if (columns.amount < 0 && matches(name, AMOUNT_NAMES)) columns.amount = i;
+            else if (columns.date < 0 && matches(name, DATE_NAMES)) columns.date = i;
+            else if (columns.description < 0 && matches(name, DESCRIPTION_NAMES)) columns.description = i;
+            else if (columns.category < 0 && name.equals("category")) columns.category = i;
+            else if (columns.currency < 0 && name.equals("currency")) columns.currency = i;
+        }
+        if (columns.amount < 0 || columns.date < 0) return null;
+        String amountName = fields[columns.amount].trim().toLowerCase(Locale.ROOT);
+        if (!ownExport && !matches(amountName, DEBIT_NAMES)) columns.debitSign = STATEMENT_DEBIT_SIGN;
+        columns.finish();
+        return columns;
+    }
+
+    // No recognisable header: assume the app's own ID,Amount,Currency,Category,Date,Description,
+    // or the same without Currency as exported before currencies
+    private static Columns exportLayout(String firstRecord) throws IOException {
+        int fields = split(firstRecord, new String[8]);
+        if (fields != 5 && fields != 6) {
+            throw new IOException("unrecognised CSV header: " + firstRecord);
+        }
+        int at = fields - 5;
+        Columns columns = new Columns();
+        columns.amount = 1;
+        if (at > 0) columns.currency = 2;
+        columns.category = 2 + at;
+        columns.date = 3 + at;
+        columns.description = 4 + at;
+        columns.finish();
+        return columns;
+    }
+
+    private static boolean matches(String name, String[] names) {
+        for (String n : names) {
+            if (n.equals(name)) return true;
+        }
+        return false;
+    }
+
+    // Parse and validate
+
+    private static Parsed parse(Batch batch, Columns columns, String[] fields) {
+        Parsed out = new Parsed(batch.seq, batch.count);
+        for (int i = 0; i < batch.count; i++) {
+            String record = batch.records[i];
+            if (record.trim().isEmpty()) continue;
+            String reason = parseRecord(record, columns, fields, out.rows);
+            if (reason == CREDIT) {
+                out.credits++;
+            } else if (reason != null) {
+                out.rejected++;
+                out.rejects.append(batch.lines[i]).append(',').append(reason).append(',');
+                quote(out.rejects, record);
+                out.rejects.append("\r\n");
+            }
+        }
+        return out;
+    }
+
+    // Adds the row and returns null, or returns why it was rejected
+    private static String parseRecord(String record, Columns columns, String[] fields,
+                                      ColumnarExpenseStore rows) {
+        int n = split(record, fields);
+        if (n < columns.needed) return "expected " + columns.needed + " fields, found " + n;
+
+        long cents = parseAmount(fields[columns.amount]) * columns.debitSign;
+        if (cents == 0) return "invalid amount";
+        if (cents < 0) return CREDIT;
+        int date = ExpenseDates.parseAny(fields[columns.date]);
+        if (date == ExpenseDates.INVALID) return "invalid date";
+        String description = columns.description >= 0 ? clean(fields[columns.description]) : "";
+        int currency = Currencies.home();
+        String code = columns.currency >= 0 ? fields[columns.currency].trim() : "";
+        if (!code.isEmpty()) {
+            try {
+                currency = Currencies.parse(code);
+            } catch (IllegalArgumentException e) {
+                return "invalid currency";
+            }
+            if ((columns.convertible & 1L << currency) == 0) return "no exchange rate for " + Currencies.code(currency);
+        }
+        int category = columns.category >= 0 ? Categories.find(fields[columns.category].trim()) : -1;
+        if (category < 0) category = categorize(description);
+
+        // Placeholder IDs; the ledger renumbers the whole import from nextId
+        rows.add(rows.size() + 1, cents, currency, category, date, description);
+        return null;
+    }
+
+    // Signed cents, or 0 for anything unusable. A sign and a currency symbol
+    // may stand before or after the number, thousands separators must be
+    // commas between groups of three and there are at most two decimals;
+    // anything else ("1-2", "1.234,56") is malformed rather than guessed at.
+    private static long parseAmount(String text) {
+        int from = 0, to = text.length();
+        boolean negative = false, signed = false, symbol = false;
+        for (boolean front : new boolean[] { true, false }) {
+            while (from < to) {
+                char c = text.charAt(front ? from : to - 1);
+                if ((c == '-' || c == '+') && !signed) {
+                    signed = true;
+                    negative = c == '-';
+                } else if ((c == '$' || c == '€' || c == '£') && !symbol) {
+                    symbol = true;
+                } else if (!Character.isWhitespace(c)) {
+                    break;
+                }
+                if (front) from++;
+                else to--;
+            }
+        }
+        StringBuilder digits = new StringBuilder(to - from);
+        int group = 0, dot = -1;
+        boolean grouped = false;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+                group++;
+            } else if (c == ',' && dot < 0 && group > 0 && (grouped ? group == 3 : group <= 3)) {
+                grouped = true;
+                group = 0;
+            } else if (c == '.' && dot < 0 && (!grouped || group == 3)) {
+                dot = i;
+                digits.append(c);
+                group = 0;
+            } else {
+                return 0;
+            }
+        }
+        if (grouped && dot < 0 && group != 3) return 0;
+        if (dot >= 0 && group > 2) return 0;
+        if (digits.length() == 0 || digits.length() == 1 && dot >= 0) return 0;
+        byte[] bytes = digits.toString().getBytes(StandardCharsets.US_ASCII);
+        try {
+            long cents = Money.parse(ByteBuffer.wrap(bytes), 0, bytes.length);
+            return negative ? -cents : cents;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int categorize(String description) {
+        String text = description.toLowerCase(Locale.ROOT) + " ";
+        for (String[] rule : KEYWORDS) {
+            for (int k = 1; k < rule.length; k++) {
+                if (text.contains(rule[k])) return Categories.find(rule[0]);
+            }
+        }
+        return Categories.OTHER;
+    }
+
+    // Descriptions are shown one line each, so line breaks inside a quoted
+    // field are flattened to spaces
+    private static String clean(String description) {
+        description = description.trim();
+        if (description.indexOf('\n') < 0 && description.indexOf('\r') < 0) {
+            return description;
+        }
+        return description.replace("\r\n", " ").replace('\n', ' ').replace('\r', ' ');
+    }
+
+    // CSV helpers
+
+    /**
+     * Splits one RFC 4180 record into {@code fields}, unquoting as it goes.
+     * Returns the number of fields, which may exceed fields.length (the extra
+     * ones are counted but not stored).
+     */
+    static int split(String record, String[] fields) {
+        int n = 0;
+        int i = 0, len = record.length();
+        StringBuilder quoted = null;
+        while (true) {
+            String value;
+            if (i < len && record.charAt(i) == '"') {
+                if (quoted == null) quoted = new StringBuilder();
+                quoted.setLength(0);
+                i++;
+                while (i < len) {
+                    char c = record.charAt(i++);
+                    if (c == '"') {
+                        if (i < len && record.charAt(i) == '"') {
+                            quoted.append('"');
+                            i++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+                // Tolerate junk between the closing quote and the comma
+                while (i < len && record.charAt(i) != ',') quoted.append(record.charAt(i++));
+                value = quoted.toString();
+            } else {
+                int comma = record.indexOf(',', i);
+                int end = comma < 0 ? len : comma;
+                value = record.substring(i, end);
+                i = end;
+            }
+            if (n < fields.length) fields[n] = value;
+            n++;
+            if (i >= len) return n;
+            i++;   // skip the comma
+        }
+    }
+
+    private static void quote(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') sb.append('"');
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    /** Splits a character stream into CSV records, keeping quoted line breaks. */
+    private static final class RecordReader implements Closeable {
+        private final Reader in;
+        private final char[] buf = new char[1 << 16];
+        private int pos, limit;
+        private int line = 1;
+        private final StringBuilder record = new StringBuilder(128);
+
+        RecordReader(Reader in) {
+            this.in = in;
+        }
+
+        /** Line number the next record starts on. */
+        int line() {
+            return line;
+        }
+
+        String next() throws IOException {
+            record.setLength(0);
+            boolean quoted = false;
+            boolean any = false;
+            while (true) {
+                if (pos == limit) {
+                    limit = in.read(buf, 0, buf.length);
+                    pos = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return any ? stripCr() : null;
+                    }
+                }
+                int start = pos;
+                while (pos < limit) {
+                    char c = buf[pos];
+                    if (c == '"') {
+                        quoted = !quoted;
+                    } else if (c == '\n') {
+                        line++;
+                        if (!quoted) {
+                            record.append(buf, start, pos - start);
+                            pos++;
+                            return stripCr();
+                        }
+                    }
+                    pos++;
+                }
+                record.append(buf, start, pos - start);
+                any = true;
+            }
+        }
+
+        private String stripCr() {
+            int len = record.length();
+            if (len > 0 && record.charAt(len - 1) == '\r') record.setLength(len - 1);
+            return record.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * The currency registry: three-letter codes (USD, EUR, JPY...), numbered in
+ * the order they are first seen, whether in the rates file, the data or
+ * typed in. Rows keep a currency as its number here (one byte), files keep
+ * codes, so the numbers only hold within one run, as with Categories.
+ *
+ * The home currency is the one an amount without a code is in: everything
+ * saved before expenses had currencies, and whatever is typed without one.
+ * It is USD unless the rates file names another (see Rates). At most MAX
+ * currencies, so a set of them fits a long bit mask like categories do.
+ */
+public final class Currencies {
+
+    public static final int MAX = 64;
+    static final String DEFAULT_HOME = "USD";
+
+    private static final Pattern CODE = Pattern.compile("[A-Z]{3}");
+
+    private static volatile String[] codes = { DEFAULT_HOME };
+    private static volatile int home;
+
+    private Currencies() {}
+
+    public static int count() {
+        return codes.length;
+    }
+
+    public static String code(int currency) {
+        return codes[currency];
+    }
+
+    /** All codes, by number; the caller's own copy. */
+    public static String[] codes() {
+        return codes.clone();
+    }
+
+    /** The currency amounts without a code are in. */
+    public static int home() {
+        return home;
+    }
+
+    /** The currency with exactly this code, or -1. */
+    public static int indexOf(String code) {
+        String[] current = codes;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].equals(code)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * The currency a stored code (snapshot, manifest, journal, rates file)
+     * refers to, registering it if it is new; the home currency once the
+     * registry is full.
+     */
+    static synchronized int resolve(String code) {
+        int currency = indexOf(code);
+        if (currency >= 0) return currency;
+        if (codes.length >= MAX || !CODE.matcher(code).matches()) return home;
+        String[] grown = Arrays.copyOf(codes, codes.length + 1);
+        grown[codes.length] = code;
+        codes = grown;
+        return codes.length - 1;
+    }
+
+    /** The currency of a code the user typed, in any case, registered if new. */
+    public static int parse(String code) {
+        String upper = code.trim().toUpperCase(Locale.ROOT);
+        if (!CODE.matcher(upper).matches()) throw new IllegalArgumentException("a currency is a three-letter code");
+        if (indexOf(upper) < 0 && codes.length >= MAX) {
+            throw new IllegalArgumentException("at most " + MAX + " currencies");
+        }
+        return resolve(upper);
+    }
+
+    static synchronized void setHome(String code) {
+        home = resolve(code);
+    }
+
+    // Amounts with a code: "12.50EUR", as batch commands and recurring.txt take them
+
+    /** The currency of an amount written with a trailing code ("12.50eur"), or the home currency without one. */
+    public static int ofAmount(String amount) {
+        int at = codeStart(amount);
+        return at < 0 ? home : parse(amount.substring(at));
+    }
+
+    /** The amount without its trailing code. */
+    public static String withoutCode(String amount) {
+        int at = codeStart(amount);
+        return at < 0 ? amount : amount.substring(0, at);
+    }
+
+    private static int codeStart(String amount) {
+        int at = amount.length() - 3;
+        if (at < 1) return -1;
+        for (int i = at; i < amount.length(); i++) {
+            if (!Character.isLetter(amount.charAt(i))) return -1;
+        }
+        return at;
+    }
+
+    /** "12.50", or "12.50EUR" when {@code currency} isn't {@code shown}, the one a listing's amounts are in. */
+    public static String amount(long cents, int currency, int shown) {
+        String text = Money.format(cents);
+        return currency == shown ? text : text + codes[currency];
+    }
+
+    /** What goes before an amount on screen: "$" for US dollars, the code and a space otherwise. */
+    public static String prefix(int currency) {
+        return prefix(codes[currency]);
+    }
+
+    public static String prefix(String code) {
+        return code.equals("USD") ? "$" : code + " ";
+    }
+}
@@ -0,0 +1,196 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Spend and count per currency, day and category, in the expenses' own
+ * currencies: what the totals in the report currency are converted from.
+ * The Ledger fills it from the segment summaries and keeps it up to date
+ * from the add and delete paths next to the Rollups, so a change of rate or
+ * report currency rebuilds the rollups, aggregates and budgets from a few
+ * thousand cells per currency without reading a row.
+ *
+ * Each currency keeps its days in pages of PAGE, a long[] of totals and
+ * then counts per category, like a Rollups level. {@link #convert} goes a
+ * currency and a page at a time: it reads the page's PAGE factors from the
+ * Table in one go and converts each day's categories in a plain loop over
+ * the primitive arrays, so the cost is in cells, not rows, and rows in the
+ * report currency cost nothing to convert.
+ *
+ * Not thread-safe: the Ledger calls it under its lock.
+ */
+public final class CurrencyTotals {
+
+    private static final int PAGE = 256;   // days per page
+    private static final int CHUNK_ROWS = 1 << 20;
+
+    private final int categories;
+    // Per currency: page number -> totals then counts, PAGE * categories each
+    private final List<Map<Integer, long[]>> pages = new ArrayList<>();
+
+    public CurrencyTotals(int categories) {
+        this.categories = categories;
+    }
+
+    public int categories() {
+        return categories;
+    }
+
+    /** A copy with room for {@code categories} categories, e.g. after the user added one. */
+    public CurrencyTotals withCategories(int categories) {
+        CurrencyTotals copy = new CurrencyTotals(categories);
+        int width = Math.min(this.categories, categories);
+        for (int currency = 0; currency < pages.size(); currency++) {
+            for (Map.Entry<Integer, long[]> e : pages.get(currency).entrySet()) {
+                long[] from = e.getValue();
+                long[] to = new long[2 * PAGE * categories];
+                for (int bucket = 0; bucket < 2 * PAGE; bucket++) {
+                    System.arraycopy(from, bucket * this.categories, to, bucket * categories, width);
+                }
+                copy.currency(currency).put(e.getKey(), to);
+            }
+        }
+        return copy;
+    }
+
+    /** A bit per currency that has expenses. */
+    public long currencies() {
+        long present = 0;
+        for (int currency = 0; currency < pages.size(); currency++) {
+            for (long[] page : pages.get(currency).values()) {
+                if (any(page, PAGE * categories, 2 * PAGE * categories)) {
+                    present |= 1L << currency;
+                    break;
+                }
+            }
+        }
+        return present;
+    }
+
+    private static boolean any(long[] values, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (values[i] != 0) return true;
+        }
+        return false;
+    }
+
+    // Updates
+
+    /** Counts {@code count} expenses of one day totalling {@code cents}, e.g. from a segment summary. */
+    public void add(int currency, int category, int epochDay, long cents, long count) {
+        long[] page = page(currency, epochDay);
+        int at = Math.floorMod(epochDay, PAGE) * categories + category;
+        page[at] = Money.add(page[at], cents);
+        page[PAGE * categories + at] += count;
+    }
+
+    /**
+     * The same for an expense added (count 1) or deleted (-1, negative
+     * cents), returning how much it changes the total in {@code table}'s
+     * currency: the converted cell after the change less the one before.
+     */
+    public long add(int currency, int category, int epochDay, long cents, long count, Rates.Table table) {
+        long[] page = page(currency, epochDay);
+        int at = Math.floorMod(epochDay, PAGE) * categories + category;
+        long before = page[at];
+        page[at] = Money.add(before, cents);
+        page[PAGE * categories + at] += count;
+        if (currency == table.currency()) return cents;
+        return table.convert(page[at], currency, epochDay) - table.convert(before, currency, epochDay);
+    }
+
+    private Map<Integer, long[]> currency(int currency) {
+        while (pages.size() <= currency) pages.add(new HashMap<>());
+        return pages.get(currency);
+    }
+
+    private long[] page(int currency, int epochDay) {
+        return currency(currency).computeIfAbsent(Math.floorDiv(epochDay, PAGE), p -> new long[2 * PAGE * categories]);
+    }
+
+    /**
+     * Totals every row of {@code store}: chunks of rows in parallel, each
+     * into its own CurrencyTotals, then merged page by page.
+     */
+    public static CurrencyTotals build(ExpenseStore store, int categories) {
+        int n = store.size();
+        List<ForkJoinTask<CurrencyTotals>> tasks = new ArrayList<>();
+        for (int from = 0; from < n; from += CHUNK_ROWS) {
+            int start = from, end = Math.min(n, from + CHUNK_ROWS);
+            tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                CurrencyTotals part = new CurrencyTotals(categories);
+                part.addRows(store, start, end);
+                return part;
+            }));
+        }
+        CurrencyTotals result = new CurrencyTotals(categories);
+        for (ForkJoinTask<CurrencyTotals> task : tasks) {
+            result.merge(task.join());
+        }
+        return result;
+    }
+
+    // Rows mostly come in date order, so each currency's page is looked up
+    // again only when its rows move on to another page
+    private void addRows(ExpenseStore store, int from, int to) {
+        long[][] rowPages = new long[Currencies.count()][];
+        int[] pageKeys = new int[rowPages.length];
+        int counts = PAGE * categories;
+        for (int row = from; row < to; row++) {
+            int day = store.dateAt(row), currency = store.currencyAt(row);
+            int key = Math.floorDiv(day, PAGE);
+            long[] page = rowPages[currency];
+            if (page == null || pageKeys[currency] != key) {
+                page = rowPages[currency] = page(currency, day);
+                pageKeys[currency] = key;
+            }
+            int at = Math.floorMod(day, PAGE) * categories + store.categoryAt(row);
+            page[at] += store.amountAt(row);
+            page[counts + at]++;
+        }
+    }
+
+    private void merge(CurrencyTotals other) {
+        for (int currency = 0; currency < other.pages.size(); currency++) {
+            Map<Integer, long[]> mine = currency(currency);
+            for (Map.Entry<Integer, long[]> e : other.pages.get(currency).entrySet()) {
+                long[] page = mine.get(e.getKey());
+                if (page == null) {
+                    mine.put(e.getKey(), e.getValue());
+                } else {
+                    long[] theirs = e.getValue();
+                    for (int i = 0; i < page.length; i++) page[i] += theirs[i];
+                }
+            }
+        }
+    }
+
+    // Conversion
+
+    /** Rollups of every expense in {@code table}'s currency. */
+    public Rollups convert(Rates.Table table) {
+        Rollups rollups = new Rollups(categories);
+        double[] factors = new double[PAGE];
+        long[] converted = new long[categories];
+        int counts = PAGE * categories;
+        for (int currency = 0; currency < pages.size(); currency++) {
+            boolean same = currency == table.currency();
+            for (Map.Entry<Integer, long[]> e : pages.get(currency).entrySet()) {
+                long[] page = e.getValue();
+                int firstDay = e.getKey() * PAGE;
+                if (!same) table.factors(currency, firstDay, factors);
+                for (int i = 0; i < PAGE; i++) {
+                    int at = i * categories;
+                    if (!any(page, counts + at, counts + at + categories)) continue;
+                    if (same) {
+                        System.arraycopy(page, at, converted, 0, categories);
+                    } else {
+                        double factor = factors[i];
+                        for (int c = 0; c < categories; c++) converted[c] = Math.round(page[at + c] * factor);
+                    }
+                    rollups.addDay(firstDay + i, converted, page, counts + at);
+                }
+            }
+        }
+        return rollups;
+    }
+}
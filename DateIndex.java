@@ -0,0 +1,248 @@
+import java.util.Arrays;
+
+/**
+ * Rows of an ExpenseStore ordered by date: a sorted int[] of epoch days with
+ * the matching row numbers alongside. A date-range query is two binary
+ * searches and a contiguous slice.
+ *
+ * Appends in date order (the usual case: today's expenses) extend the index
+ * in place. Out-of-order appends go to a small sorted side list that is
+ * merged in once it reaches LATE_LIMIT entries; until then positions count
+ * both lists, so one back-dated expense costs a short array shift instead of
+ * a re-sort. Anything else marks the index stale and it is rebuilt on the
+ * next query. {@link #view} shares the arrays with a read-only copy the same
+ * way ColumnarExpenseStore does.
+ */
+public class DateIndex {
+
+    private static final int LATE_LIMIT = 4096;
+
+    private final ExpenseStore store;
+    private int[] days = new int[0];
+    private int[] rows = new int[0];
+    private int size;
+    private boolean stale = true;
+    private boolean shared;   // a view holds the current arrays
+
+    // The side list, sorted by (day, row). latePos[j] is the position of entry
+    // j among all entries; equal days list the main entries first.
+    private int[] lateDays = new int[0];
+    private int[] lateRows = new int[0];
+    private int lateSize;
+    private int[] latePos;    // null until needed after a change
+    private boolean lateShared;
+
+    public DateIndex(ExpenseStore store) {
+        this.store = store;
+    }
+
+    /**
+     * A read-only copy of the index as it is now, over {@code rows}, a view
+     * of the store taken at the same time. O(1) unless the index is stale.
+     */
+    public DateIndex view(ExpenseStore rows) {
+        ensureFresh();
+        DateIndex view = new DateIndex(rows);
+        view.days = days;
+        view.rows = this.rows;
+        view.size = size;
+        view.stale = false;
+        view.lateDays = lateDays;
+        view.lateRows = lateRows;
+        view.lateSize = lateSize;
+        view.latePos = latePos;
+        shared = true;
+        lateShared = true;
+        return view;
+    }
+
+    /** Call after a row has been appended to the store. */
+    public void onAdd(int row) {
+        if (stale) return;
+        int day = store.dateAt(row);
+        if (lateSize > 0 || (size > 0 && day < days[size - 1])) {
+            addLate(day, row);
+            return;
+        }
+        if (size == days.length) {
+            int capacity = Math.max(16, size + (size >> 1));
+            days = Arrays.copyOf(days, capacity);
+            rows = Arrays.copyOf(rows, capacity);
+        }
+        days[size] = day;
+        rows[size++] = row;
+    }
+
+    // The row is newer than every indexed one, so it goes after equal days
+    private void addLate(int day, int row) {
+        if (lateShared || lateSize == lateDays.length) {
+            int capacity = Math.max(16, lateSize + (lateSize >> 1) + 1);
+            lateDays = Arrays.copyOf(lateDays, capacity);
+            lateRows = Arrays.copyOf(lateRows, capacity);
+            lateShared = false;
+        }
+        int at = upperBound(lateDays, lateSize, day);
+        System.arraycopy(lateDays, at, lateDays, at + 1, lateSize - at);
+        System.arraycopy(lateRows, at, lateRows, at + 1, lateSize - at);
+        lateDays[at] = day;
+        lateRows[at] = row;
+        lateSize++;
+        latePos = null;
+        if (lateSize >= LATE_LIMIT) mergeLate();
+    }
+
+    // Folds the side list into new main arrays
+    private void mergeLate() {
+        int n = size + lateSize;
+        int[] mergedDays = new int[n + (n >> 4)];
+        int[] mergedRows = new int[mergedDays.length];
+        int i = 0, j = 0, out = 0;
+        while (i < size || j < lateSize) {
+            if (j == lateSize || (i < size && days[i] <= lateDays[j])) {
+                mergedDays[out] = days[i];
+                mergedRows[out++] = rows[i++];
+            } else {
+                mergedDays[out] = lateDays[j];
+                mergedRows[out++] = lateRows[j++];
+            }
+        }
+        days = mergedDays;
+        rows = mergedRows;
+        size = n;
+        shared = false;
+        clearLate();
+    }
+
+    private void clearLate() {
+        lateDays = new int[0];
+        lateRows = new int[0];
+        lateSize = 0;
+        latePos = null;
+        lateShared = false;
+    }
+
+    /**
+     * Call after rows have been removed from the store, passing their row
+     * numbers from before the removal. Shifts the surviving entries down
+     * instead of re-sorting.
+     */
+    public void onRemove(IntList removed) {
+        if (stale) return;
+        if (lateSize > 0) mergeLate();
+        if (shared) {
+            // Compact into new arrays; a view still reads the old ones
+            days = days.clone();
+            rows = rows.clone();
+            shared = false;
+        }
+        int[] gone = removed.toArray();
+        Arrays.sort(gone);
+        int unique = 0;
+        for (int i = 0; i < gone.length; i++) {
+            if (i == 0 || gone[i] != gone[i - 1]) gone[unique++] = gone[i];
+        }
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int row = rows[i];
+            int pos = Arrays.binarySearch(gone, 0, unique, row);
+            if (pos >= 0) continue;
+            days[kept] = days[i];
+            rows[kept++] = row - (-pos - 1);   // minus the removed rows before it
+        }
+        size = kept;
+    }
+
+    /** Call after anything else that renumbers rows. */
+    public void invalidate() {
+        stale = true;
+    }
+
+    private void ensureFresh() {
+        if (!stale) return;
+        int n = store.size();
+        // Pack (day, row) into one long so a primitive sort orders by day, then row
+        long[] keys = new long[n];
+        for (int row = 0; row < n; row++) {
+            keys[row] = ((long) store.dateAt(row) << 32) | row;
+        }
+        Arrays.sort(keys);
+        days = new int[n + (n >> 4)];   // room for appends, as in mergeLate
+        rows = new int[days.length];
+        shared = false;
+        for (int i = 0; i < n; i++) {
+            days[i] = (int) (keys[i] >> 32);
+            rows[i] = (int) keys[i];
+        }
+        size = n;
+        clearLate();
+        stale = false;
+    }
+
+    private int[] latePositions() {
+        if (latePos == null) {
+            int[] pos = new int[lateSize];
+            for (int j = 0; j < lateSize; j++) {
+                pos[j] = upperBound(days, size, lateDays[j]) + j;
+            }
+            latePos = pos;
+        }
+        return latePos;
+    }
+
+    /** Number of indexed rows; positions run from 0 to size() - 1 in date order. */
+    public int size() {
+        ensureFresh();
+        return size + lateSize;
+    }
+
+    /** Row at {@code position} in date order. */
+    public int rowAt(int position) {
+        ensureFresh();
+        if (lateSize == 0) return rows[position];
+        int[] pos = latePositions();
+        // j = side-list entries before this position
+        int j = Arrays.binarySearch(pos, 0, lateSize, position);
+        if (j >= 0) return lateRows[j];
+        return rows[position - (-j - 1)];
+    }
+
+    /** First position dated on or after {@code day} (size() if none). */
+    public int positionOf(int day) {
+        ensureFresh();
+        return lowerBound(days, size, day) + lowerBound(lateDays, lateSize, day);
+    }
+
+    /** Rows dated within [startDay, endDay], in date order. */
+    public IntList rowsBetween(int startDay, int endDay) {
+        ensureFresh();
+        int from = lowerBound(days, size, startDay);
+        int to = endDay == Integer.MAX_VALUE ? size : lowerBound(days, size, endDay + 1);
+        int lateFrom = lowerBound(lateDays, lateSize, startDay);
+        int lateTo = endDay == Integer.MAX_VALUE ? lateSize : lowerBound(lateDays, lateSize, endDay + 1);
+        IntList result = new IntList(Math.max(to - from, 0) + Math.max(lateTo - lateFrom, 0));
+        int i = from, j = lateFrom;
+        while (i < to || j < lateTo) {
+            if (j >= lateTo || (i < to && days[i] <= lateDays[j])) {
+                result.add(rows[i++]);
+            } else {
+                result.add(lateRows[j++]);
+            }
+        }
+        return result;
+    }
+
+    // First position in sorted[0..n) whose day is >= day
+    private static int lowerBound(int[] sorted, int n, int day) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < day) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    // First position in sorted[0..n) whose day is > day
+    private static int upperBound(int[] sorted, int n, int day) {
+        return day == Integer.MAX_VALUE ? n : lowerBound(sorted, n, day + 1);
+    }
+}
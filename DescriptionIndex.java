@@ -0,0 +1,416 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Inverted index over description words, for searches such as
+ * "uber OR taxi" or "coff* beans" without scanning every row.
+ *
+ * Words are runs of letters and digits, lowercased. Each distinct word has
+ * a posting list of the expense IDs that contain it, stored as ascending
+ * deltas in varint bytes, so a word that appears in most rows costs about
+ * one byte per row. IDs rather than row numbers are indexed because deletes
+ * renumber rows; a deleted ID simply no longer resolves to a row, and the
+ * index is rebuilt once such dead entries outnumber the live ones.
+ *
+ * Query syntax: words are ANDed, OR (or |) separates alternatives, and a
+ * trailing * makes a word a prefix. Like DateIndex the index is built on
+ * first use and then kept up to date by onAdd/onRemove.
+ */
+public class DescriptionIndex {
+
+    private final ExpenseStore store;
+    private final DateIndex dates;   // may be null
+    private boolean stale = true;
+
+    // Word dictionary: open addressing over the lowercased UTF-8 bytes;
+    // slots hold word number + 1, 0 when empty
+    private int[] slots;
+    private byte[][] words;
+    private Postings[] postings;
+    private int wordCount;
+    private final TreeMap<String, Integer> sorted = new TreeMap<>();   // for prefix queries
+
+    private long entries;       // postings written
+    private long deadEntries;   // postings of deleted rows
+
+    // Scratch space for tokenizing one description
+    private byte[] word = new byte[64];
+    private int[] rowWords = new int[16];
+
+    /** @param dates  used to answer narrow date filters; may be null */
+    public DescriptionIndex(ExpenseStore store, DateIndex dates) {
+        this.store = store;
+        this.dates = dates;
+    }
+
+    /** Call after a row has been appended to the store. */
+    public void onAdd(int row) {
+        if (stale) return;
+        if (!index(row)) stale = true;
+    }
+
+    /** Call with the number of rows just removed from the store. */
+    public void onRemove(int rows) {
+        if (stale) return;
+        deadEntries += rows;   // roughly one word per row; only steers the rebuild
+        if (deadEntries > entries - deadEntries) stale = true;
+    }
+
+    /** Call after anything else that changes IDs or descriptions. */
+    public void invalidate() {
+        stale = true;
+    }
+
+    public int wordCount() {
+        ensureFresh();
+        return wordCount;
+    }
+
+    /** Approximate heap used by the posting lists and dictionary. */
+    public long memoryBytes() {
+        ensureFresh();
+        long bytes = slots.length * 4L;
+        for (int w = 0; w < wordCount; w++) {
+            bytes += 48 + words[w].length + postings[w].data.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Rows whose description matches {@code query} and which pass
+     * {@code filter}'s date and category limits, in row order. Throws
+     * IllegalArgumentException for a query with no words.
+     */
+    public IntList search(String query, CsvExporter.Filter filter) {
+        ensureFresh();
+        int[] ids = evaluate(query);
+        ColumnarExpenseStore columnar = store instanceof ColumnarExpenseStore
+                && ((ColumnarExpenseStore) store).isSortedById() ? (ColumnarExpenseStore) store : null;
+        if (filter != null && filter.hasDates() && dates != null && columnar != null) {
+            IntList inRange = dates.rowsBetween(filter.startDay, filter.endDay);
+            if (inRange.size() < ids.length) return matchRange(inRange, ids, filter.category);
+        }
+
+        IntList found = new IntList(Math.min(ids.length, 1024));
+        if (columnar != null) {
+            columnar.rowsOfSortedIds(ids, found);
+        } else {
+            for (int id : ids) {
+                int row = store.indexOf(id);
+                if (row >= 0) found.add(row);   // otherwise deleted
+            }
+        }
+        IntList rows = found;
+        if (filter != null && (filter.hasDates() || filter.category >= 0)) {
+            rows = new IntList(Math.min(found.size(), 1024));
+            for (int i = 0; i < found.size(); i++) {
+                int row = found.get(i);
+                if (filter.category >= 0 && store.categoryAt(row) != filter.category) continue;
+                int day = store.dateAt(row);
+                if (day < filter.startDay || day > filter.endDay) continue;
+                rows.add(row);
+            }
+        }
+        if (columnar == null) {
+            int[] inOrder = rows.toArray();
+            Arrays.sort(inOrder);
+            rows.clear();
+            for (int row : inOrder) rows.add(row);
+        }
+        return rows;
+    }
+
+    // A date range with fewer rows than there are word matches: check each
+    // row in the range against the matches instead (store in ID order, so
+    // rows in row order have ascending IDs)
+    private IntList matchRange(IntList inRange, int[] ids, int category) {
+        int[] candidates = inRange.toArray();
+        Arrays.sort(candidates);
+        IntList rows = new IntList(Math.min(candidates.length, 1024));
+        int j = 0;
+        for (int row : candidates) {
+            if (j >= ids.length) break;
+            int id = store.idAt(row);
+            int step = 1;
+            while (j + step < ids.length && ids[j + step] < id) step <<= 1;
+            int hit = Arrays.binarySearch(ids, j, Math.min(j + step + 1, ids.length), id);
+            j = hit >= 0 ? hit + 1 : -hit - 1;
+            if (hit >= 0 && (category < 0 || store.categoryAt(row) == category)) rows.add(row);
+        }
+        return rows;
+    }
+
+    // Query evaluation
+
+    // OR of AND-groups, as a sorted array of IDs
+    private int[] evaluate(String query) {
+        int[] result = null;
+        boolean any = false;
+        for (String alternative : query.trim().split("\\s+(?:OR|\\|)\\s+|\\s*\\|\\s*")) {
+            int[] group = null;
+            for (String term : alternative.trim().split("\\s+")) {
+                if (term.isEmpty() || term.equals("AND")) continue;
+                boolean prefix = term.endsWith("*");
+                List<String> parts = tokenize(prefix ? term.substring(0, term.length() - 1) : term);
+                for (int i = 0; i < parts.size(); i++) {
+                    // only the last word of "e-mai*" is a prefix
+                    int[] ids = prefix && i == parts.size() - 1 ? prefixIds(parts.get(i)) : wordIds(parts.get(i));
+                    group = group == null ? ids : intersect(group, ids);
+                    any = true;
+                }
+            }
+            if (group != null) result = result == null ? group : union(result, group);
+        }
+        if (!any) throw new IllegalArgumentException("Search needs at least one word");
+        return result == null ? new int[0] : result;
+    }
+
+    private int[] wordIds(String text) {
+        Integer w = sorted.get(text);
+        return w == null ? new int[0] : postings[w].decode();
+    }
+
+    private int[] prefixIds(String prefix) {
+        Collection<Integer> matches = sorted.subMap(prefix, prefix + Character.MAX_VALUE).values();
+        if (matches.size() == 1) return postings[matches.iterator().next()].decode();
+        IntList all = new IntList(1024);
+        for (int w : matches) {
+            for (int id : postings[w].decode()) all.add(id);
+        }
+        int[] ids = all.toArray();
+        Arrays.sort(ids);
+        int unique = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (i == 0 || ids[i] != ids[i - 1]) ids[unique++] = ids[i];
+        }
+        return Arrays.copyOf(ids, unique);
+    }
+
+    // Walks the smaller list, galloping through the larger one
+    private static int[] intersect(int[] a, int[] b) {
+        if (a.length > b.length) {
+            int[] t = a;
+            a = b;
+            b = t;
+        }
+        int[] out = new int[a.length];
+        int n = 0, j = 0;
+        for (int i = 0; i < a.length && j < b.length; i++) {
+            int step = 1;
+            while (j + step < b.length && b[j + step] < a[i]) step <<= 1;
+            int hit = Arrays.binarySearch(b, j, Math.min(j + step + 1, b.length), a[i]);
+            if (hit >= 0) {
+                out[n++] = a[i];
+                j = hit + 1;
+            } else {
+                j = -hit - 1;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        int[] out = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) out[n++] = a[i++];
+            else if (a[i] > b[j]) out[n++] = b[j++];
+            else { out[n++] = a[i++]; j++; }
+        }
+        while (i < a.length) out[n++] = a[i++];
+        while (j < b.length) out[n++] = b[j++];
+        return Arrays.copyOf(out, n);
+    }
+
+    // Building
+
+    private void ensureFresh() {
+        if (!stale) return;
+        slots = new int[64];
+        words = new byte[32][];
+        postings = new Postings[32];
+        wordCount = 0;
+        sorted.clear();
+        entries = 0;
+        deadEntries = 0;
+        int n = store.size();
+        boolean ascending = true;
+        for (int row = 1; row < n && ascending; row++) {
+            ascending = store.idAt(row) > store.idAt(row - 1);
+        }
+        if (ascending) {
+            for (int row = 0; row < n; row++) index(row);
+        } else {
+            // Posting lists must grow in ID order
+            long[] keys = new long[n];
+            for (int row = 0; row < n; row++) keys[row] = ((long) store.idAt(row) << 32) | row;
+            Arrays.sort(keys);
+            for (long key : keys) index((int) key);
+        }
+        stale = false;
+    }
+
+    // Adds the row's words; false if its ID is not above every ID already
+    // in one of those posting lists (the caller then rebuilds)
+    private boolean index(int row) {
+        int id = store.idAt(row);
+        int count;
+        if (store instanceof ColumnarExpenseStore) {
+            ColumnarExpenseStore columnar = (ColumnarExpenseStore) store;
+            count = tokenize(columnar.descriptionHeap(), columnar.descriptionStart(row),
+                             columnar.descriptionLength(row));
+        } else {
+            byte[] bytes = store.descriptionAt(row).getBytes(StandardCharsets.UTF_8);
+            count = tokenize(bytes, 0, bytes.length);
+        }
+        boolean ok = true;
+        for (int i = 0; i < count; i++) {
+            ok &= postings[rowWords[i]].add(id);
+        }
+        entries += count;
+        return ok;
+    }
+
+    // Collects the distinct word numbers of one UTF-8 description into
+    // rowWords. ASCII words are lowercased in place; a word with other
+    // characters goes through String so Unicode case and letters apply.
+    private int tokenize(byte[] src, int from, int len) {
+        int count = 0;
+        int end = from + len;
+        int i = from;
+        while (i < end) {
+            byte b = src[i];
+            if (b >= 0 && !isAsciiWordByte(b)) {
+                i++;
+                continue;
+            }
+            int start = i, length = 0;
+            boolean ascii = true;
+            while (i < end && (src[i] < 0 || isAsciiWordByte(src[i]))) {
+                if (src[i] < 0) ascii = false;
+                i++;
+            }
+            if (ascii) {
+                if (word.length < i - start) word = new byte[i - start];
+                for (int k = start; k < i; k++) {
+                    byte c = src[k];
+                    word[length++] = c >= 'A' && c <= 'Z' ? (byte) (c + 32) : c;
+                }
+                count = addRowWord(wordNumber(word, length), count);
+            } else {
+                for (String w : tokenize(new String(src, start, i - start, StandardCharsets.UTF_8))) {
+                    byte[] bytes = w.getBytes(StandardCharsets.UTF_8);
+                    count = addRowWord(wordNumber(bytes, bytes.length), count);
+                }
+            }
+        }
+        return count;
+    }
+
+    private static boolean isAsciiWordByte(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9');
+    }
+
+    // Splits text into lowercased runs of letters and digits
+    static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>(4);
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) start = i;
+            if (!wordChar && start >= 0) {
+                out.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return out;
+    }
+
+    private int addRowWord(int w, int count) {
+        for (int k = 0; k < count; k++) {
+            if (rowWords[k] == w) return count;
+        }
+        if (count == rowWords.length) rowWords = Arrays.copyOf(rowWords, count * 2);
+        rowWords[count] = w;
+        return count + 1;
+    }
+
+    // Number of the word in bytes[0..length), adding it if new
+    private int wordNumber(byte[] bytes, int length) {
+        int h = 1;
+        for (int i = 0; i < length; i++) h = 31 * h + bytes[i];
+        h *= 0x9E3779B9;
+        int mask = slots.length - 1;
+        for (int s = (h ^ (h >>> 16)) & mask; ; s = (s + 1) & mask) {
+            int w = slots[s] - 1;
+            if (w < 0) {
+                w = wordCount++;
+                if (w == words.length) {
+                    words = Arrays.copyOf(words, w * 2);
+                    postings = Arrays.copyOf(postings, w * 2);
+                }
+                words[w] = Arrays.copyOf(bytes, length);
+                postings[w] = new Postings();
+                sorted.put(new String(words[w], StandardCharsets.UTF_8), w);
+                slots[s] = w + 1;
+                if (wordCount * 2 > slots.length) rehash();
+                return w;
+            }
+            if (words[w].length == length && Arrays.equals(words[w], 0, length, bytes, 0, length)) return w;
+        }
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int w = 0; w < wordCount; w++) {
+            int h = 1;
+            for (byte b : words[w]) h = 31 * h + b;
+            h *= 0x9E3779B9;
+            int s = (h ^ (h >>> 16)) & mask;
+            while (slots[s] != 0) s = (s + 1) & mask;
+            slots[s] = w + 1;
+        }
+    }
+
+    /** Ascending IDs as varint deltas. */
+    private static final class Postings {
+        byte[] data = new byte[4];
+        int length;
+        int count;
+        long last = Integer.MIN_VALUE - 1L;
+
+        boolean add(int id) {
+            long delta = id - last;
+            if (delta <= 0) return false;
+            if (length + 5 > data.length) data = Arrays.copyOf(data, Math.max(8, data.length + (data.length >> 1) + 5));
+            while (delta >= 0x80) {
+                data[length++] = (byte) (delta | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = id;
+            count++;
+            return true;
+        }
+
+        int[] decode() {
+            int[] ids = new int[count];
+            long value = Integer.MIN_VALUE - 1L;
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value += delta;
+                ids[i] = (int) value;
+            }
+            return ids;
+        }
+    }
+}
@@ -1,14 +1,16 @@
 public class Expense {
     private int id;
-    private double amount;
+    private long amountCents;
+    private String currency;    // three-letter code
     private String category;
-    private String date;
+    private int date;           // epoch day
     private String description;
     
     // Constructor
-    public Expense(int id, double amount, String category, String date, String description) {
+    public Expense(int id, long amountCents, String currency, String category, int date, String description) {
         this.id = id;
-        this.amount = amount;
+        this.amountCents = amountCents;
+        this.currency = currency;
         this.category = category;
         this.date = date;
         this.description = description;
@@ -16,14 +18,17 @@ public class Expense {
     
     // Getters
     public int getId() { return id; }
-    public double getAmount() { return amount; }
+    public long getAmountCents() { return amountCents; }
+    public String getCurrency() { return currency; }
     public String getCategory() { return category; }
-    public String getDate() { return date; }
+    public String getDate() { return ExpenseDates.format(date); }
+    public int getEpochDay() { return date; }
     public String getDescription() { return description; }
     
     @Override
     public String toString() {
-        return String.format("ID: %d | Amount: $%.2f | Category: %s | Date: %s | Desc: %s", 
-                           id, amount, category, date, description);
+        return String.format("ID: %d | Amount: %s%s | Category: %s | Date: %s | Desc: %s", 
+                           id, Currencies.prefix(currency), Money.format(amountCents), category, getDate(),
+                           description);
     }
 }
\ No newline at end of file
@@ -0,0 +1,223 @@
+import java.util.*;
+
+/**
+ * Running totals and counts per category, per (category, month) and per
+ * (category, year), all in cents of the report currency. Kept up to date
+ * in O(1) from the add and delete paths and rebuilt once on load, so
+ * summary screens never rescan the ledger.
+ *
+ * Run with -Dexpenses.checkAggregates=true to compare the cache against a
+ * full rescan after every change.
+ */
+public class ExpenseAggregates {
+
+    public static final boolean CHECK = Boolean.getBoolean("expenses.checkAggregates");
+
+    private static final class Bucket {
+        final long[] totals;
+        final long[] counts;
+
+        Bucket(int categories) {
+            totals = new long[categories];
+            counts = new long[categories];
+        }
+    }
+
+    private int categories;
+    private Bucket all;
+    private final Map<Integer, Bucket> byMonth = new HashMap<>();
+    private final Map<Integer, Bucket> byYear = new HashMap<>();
+
+    public ExpenseAggregates(int categories) {
+        this.categories = categories;
+        this.all = new Bucket(categories);
+    }
+
+    /** year * 12 + (month - 1), so consecutive months have consecutive keys. */
+    public static int monthKey(int epochDay) {
+        return ExpenseDates.yearOf(epochDay) * 12 + ExpenseDates.monthOf(epochDay) - 1;
+    }
+
+    /** From every row of {@code store}, taking the amounts as they are, whatever their currencies. */
+    public void rebuild(ExpenseStore store) {
+        clear();
+        // Rows mostly come in date order, so the month and year buckets are
+        // looked up again only when the day changes
+        int lastDay = ExpenseDates.INVALID, lastMonthKey = -1;
+        Bucket month = null, year = null;
+        for (int row = 0; row < store.size(); row++) {
+            int day = store.dateAt(row);
+            if (day != lastDay) {
+                lastDay = day;
+                int monthKey = monthKey(day);
+                if (monthKey != lastMonthKey) {
+                    lastMonthKey = monthKey;
+                    month = byMonth.computeIfAbsent(monthKey, k -> new Bucket(categories));
+                    year = byYear.computeIfAbsent(monthKey / 12, k -> new Bucket(categories));
+                }
+            }
+            long cents = store.amountAt(row);
+            int category = store.categoryAt(row);
+            update(all, category, cents, 1);
+            update(month, category, cents, 1);
+            update(year, category, cents, 1);
+        }
+    }
+
+    /**
+     * The same from {@code rollups}' month buckets, for a ledger whose rows
+     * are not all in memory. Takes on the rollups' number of categories.
+     */
+    public void rebuild(Rollups rollups) {
+        categories = rollups.categories();
+        all = new Bucket(categories);
+        clear();
+        rollups.forEach(Rollups.Level.MONTH, (monthKey, totals, counts) -> {
+            Bucket month = byMonth.computeIfAbsent(monthKey, k -> new Bucket(categories));
+            Bucket year = byYear.computeIfAbsent(monthKey / 12, k -> new Bucket(categories));
+            for (int category = 0; category < categories; category++) {
+                if (counts[category] == 0) continue;
+                update(all, category, totals[category], counts[category]);
+                update(month, category, totals[category], counts[category]);
+                update(year, category, totals[category], counts[category]);
+            }
+        });
+    }
+
+    private void clear() {
+        Arrays.fill(all.totals, 0);
+        Arrays.fill(all.counts, 0);
+        byMonth.clear();
+        byYear.clear();
+    }
+
+    public int categories() {
+        return categories;
+    }
+
+    /** An independent copy, e.g. for a reader on another thread. */
+    public ExpenseAggregates copy() {
+        ExpenseAggregates copy = new ExpenseAggregates(categories);
+        System.arraycopy(all.totals, 0, copy.all.totals, 0, categories);
+        System.arraycopy(all.counts, 0, copy.all.counts, 0, categories);
+        for (Map.Entry<Integer, Bucket> e : byMonth.entrySet()) {
+            copy.byMonth.put(e.getKey(), copy(e.getValue()));
+        }
+        for (Map.Entry<Integer, Bucket> e : byYear.entrySet()) {
+            copy.byYear.put(e.getKey(), copy(e.getValue()));
+        }
+        return copy;
+    }
+
+    private Bucket copy(Bucket bucket) {
+        Bucket copy = new Bucket(categories);
+        System.arraycopy(bucket.totals, 0, copy.totals, 0, categories);
+        System.arraycopy(bucket.counts, 0, copy.counts, 0, categories);
+        return copy;
+    }
+
+    public void add(long cents, int category, int epochDay) {
+        apply(cents, 1, category, epochDay);
+    }
+
+    public void remove(long cents, int category, int epochDay) {
+        apply(-cents, -1, category, epochDay);
+    }
+
+    private void apply(long cents, int count, int category, int epochDay) {
+        int monthKey = monthKey(epochDay);
+        update(all, category, cents, count);
+        update(byMonth.computeIfAbsent(monthKey, k -> new Bucket(categories)), category, cents, count);
+        update(byYear.computeIfAbsent(monthKey / 12, k -> new Bucket(categories)), category, cents, count);
+    }
+
+    private static void update(Bucket bucket, int category, long cents, long count) {
+        bucket.totals[category] = Money.add(bucket.totals[category], cents);
+        bucket.counts[category] += count;
+    }
+
+    // Queries
+
+    public long total() {
+        return Money.sum(all.totals, 0, categories);
+    }
+
+    public long count() {
+        long sum = 0;
+        for (long c : all.counts) sum += c;
+        return sum;
+    }
+
+    public long categoryTotal(int category) {
+        return all.totals[category];
+    }
+
+    public long categoryCount(int category) {
+        return all.counts[category];
+    }
+
+    public long monthTotal(int category, int monthKey) {
+        Bucket bucket = byMonth.get(monthKey);
+        return bucket == null ? 0 : bucket.totals[category];
+    }
+
+    public long monthCount(int category, int monthKey) {
+        Bucket bucket = byMonth.get(monthKey);
+        return bucket == null ? 0 : bucket.counts[category];
+    }
+
+    public long yearTotal(int year) {
+        Bucket bucket = byYear.get(year);
+        if (bucket == null) return 0;
+        return Money.sum(bucket.totals, 0, categories);
+    }
+
+    public long yearCount(int year) {
+        Bucket bucket = byYear.get(year);
+        if (bucket == null) return 0;
+        long sum = 0;
+        for (long c : bucket.counts) sum += c;
+        return sum;
+    }
+
+    public long yearTotal(int category, int year) {
+        Bucket bucket = byYear.get(year);
+        return bucket == null ? 0 : bucket.totals[category];
+    }
+
+    // Consistency check
+
+    /**
+     * Rescans {@code store}, converting with {@code table} as the Ledger
+     * does, and returns a description of every mismatch (empty if consistent).
+     */
+    public List<String> verify(ExpenseStore store, Rates.Table table) {
+        ExpenseAggregates expected = new ExpenseAggregates(categories);
+        expected.rebuild(CurrencyTotals.build(store, categories).convert(table));
+        List<String> problems = new ArrayList<>();
+        compare("overall", all, expected.all, problems);
+        compareMaps("month", byMonth, expected.byMonth, problems);
+        compareMaps("year", byYear, expected.byYear, problems);
+        return problems;
+    }
+
+    private void compareMaps(String kind, Map<Integer, Bucket> actual, Map<Integer, Bucket> expected,
+                             List<String> problems) {
+        Set<Integer> keys = new TreeSet<>(actual.keySet());
+        keys.addAll(expected.keySet());
+        Bucket empty = new Bucket(categories);
+        for (Integer key : keys) {
+            compare(kind + " " + key, actual.getOrDefault(key, empty), expected.getOrDefault(key, empty),
+                    problems);
+        }
+    }
+
+    private void compare(String label, Bucket actual, Bucket expected, List<String> problems) {
+        for (int c = 0; c < categories; c++) {
+            if (actual.totals[c] != expected.totals[c] || actual.counts[c] != expected.counts[c]) {
+                problems.add(String.format("%s category %d: cached %d cents/%d rows, rescan %d cents/%d rows",
+                        label, c, actual.totals[c], actual.counts[c], expected.totals[c], expected.counts[c]));
+            }
+        }
+    }
+}
@@ -0,0 +1,439 @@
+import java.io.*;
+import java.lang.management.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Micro/macro benchmarks for the hot paths: snapshot load and save, date
+ * range queries, category aggregation, query engine scans, expression
+ * evaluation (single and per row) and CSV export. The currency_* ones run
+ * the same work on a ledger with a third of its rows in three foreign
+ * currencies with monthly rates, against rollups_build as the
+ * single-currency baseline.
+ * query_scan runs on the common ForkJoinPool; compare thread counts with
+ * -Djava.util.concurrent.ForkJoinPool.common.parallelism=N.
+ *
+ *   java ExpenseBenchmark [--rows 1k,100k,1m] [--bench load,save,...]
+ *                         [--warmup 3] [--iterations 10] [--out bench_results.json]
+ *
+ * Each benchmark runs warmup iterations, then measured ones, and reports
+ * throughput, latency percentiles, allocation per op (summed over all live
+ * threads via ThreadMXBean) and GC activity. Results are printed as a table
+ * and written as JSON so runs can be compared over time. Large sizes need a
+ * matching heap, e.g. -Xmx8g for 50m rows.
+ */
+public class ExpenseBenchmark {
+
+    private interface Op {
+        long run() throws Exception;   // returns something derived from the work, to defeat DCE
+    }
+
+    private abstract static class Bench {
+        final String name;
+
+        Bench(String name) {
+            this.name = name;
+        }
+
+        /** Invocations per timed sample; cheap operations are batched. */
+        int batch(int rows) {
+            return 1;
+        }
+
+        abstract Op setup(ColumnarExpenseStore store, Path dir) throws Exception;
+    }
+
+    private static final List<Bench> BENCHES = Arrays.asList(
+        new Bench("load") {
+            Op setup(ColumnarExpenseStore store, Path dir) throws Exception {
+                Path file = dir.resolve("load.dat");
+                ExpenseTracker.writeSnapshot(store, file);
+                return () -> SnapshotFile.load(file).store.size();
+            }
+        },
+        new Bench("load_text") {
+            Op setup(ColumnarExpenseStore store, Path dir) throws Exception {
+                Path file = dir.resolve("load.txt");
+                ExpenseLoader.writeText(store, file);
+                return () -> ExpenseLoader.load(file).store.size();
+            }
+        },
+        new Bench("save") {
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                Path file = dir.resolve("save.dat");
+                return () -> {
+                    ExpenseTracker.writeSnapshot(store, file);
+                    return Files.size(file);
+                };
+            }
+        },
+        new Bench("date_range_30d") {
+            int batch(int rows) {
+                return 1000;
+            }
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                DateIndex index = new DateIndex(store);
+                int first = store.dateAt(0), last = store.dateAt(store.size() - 1);
+                Random random = new Random(7);
+                return () -> {
+                    int start = first + random.nextInt(Math.max(1, last - first - 29));
+                    return index.rowsBetween(start, start + 29).size();
+                };
+            }
+        },
+        new Bench("aggregate_rescan") {
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                ExpenseAggregates aggregates = new ExpenseAggregates(Categories.count());
+                return () -> {
+                    aggregates.rebuild(store);
+                    return aggregates.total();
+                };
+            }
+        },
+        new Bench("aggregate_cached") {
+            int batch(int rows) {
+                return 10_000;
+            }
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                ExpenseAggregates aggregates = new ExpenseAggregates(Categories.count());
+                aggregates.rebuild(store);
+                return () -> {
+                    long sum = 0;
+                    for (int c = 0; c < Categories.count(); c++) {
+                        sum += aggregates.categoryTotal(c);
+                    }
+                    return sum + aggregates.total();
+                };
+            }
+        },
+        new Bench("query_scan") {
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                // Amount filter and min/max: nothing but a scan can answer it
+                ExpenseQuery query = new ExpenseQuery().amounts(2000, Long.MAX_VALUE)
+                        .groupBy(ExpenseQuery.Group.MONTH)
+                        .measures(ExpenseQuery.Measure.SUM, ExpenseQuery.Measure.MIN, ExpenseQuery.Measure.MAX);
+                return () -> query.run(store, null, null).count();
+            }
+        },
+        new Bench("sum_double") {
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                // The old representation: amounts as double dollars
+                double[] amounts = new double[store.size()];
+                for (int row = 0; row < amounts.length; row++) amounts[row] = store.amountAt(row) / 100.0;
+                return () -> {
+                    double sum = 0;
+                    for (double a : amounts) sum += a;
+                    return Math.round(sum * 100);
+                };
+            }
+        },
+        new Bench("sum_cents") {
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                return store::sumAmounts;
+            }
+        },
+        new Bench("evaluate_expression") {
+            int batch(int rows) {
+                return 10_000;
+            }
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                String[] expressions = { "25+18+42", "100-15", "50*0.18", "1200/12", "19.99" };
+                int[] next = { 0 };
+                return () -> {
+                    String e = expressions[next[0]++ % expressions.length];
+                    return (long) ExpenseTracker.evaluateExpression(e);
+                };
+            }
+        },
+        new Bench("evaluate_rows") {
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                Expression expression = Expression.compile("amount * 1.2 + amount * 5%");
+                Rates.Table table = sampleRates(store).table(Currencies.home());
+                double[] out = new double[store.size()];
+                return () -> {
+                    expression.evaluateRows(store, null, table, name -> 0, out);
+                    return (long) out[out.length - 1];
+                };
+            }
+        },
+        new Bench("search_scan") {
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                // What finding "uber OR taxi" took without the index
+                return () -> {
+                    long hits = 0;
+                    for (int row = 0; row < store.size(); row++) {
+                        String d = store.descriptionAt(row).toLowerCase(Locale.ROOT);
+                        if (d.contains("uber") || d.contains("taxi")) hits++;
+                    }
+                    return hits;
+                };
+            }
+        },
+        new Bench("search_index") {
+            int batch(int rows) {
+                return 10;
+            }
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                DescriptionIndex index = new DescriptionIndex(store, null);
+                index.wordCount();   // builds it
+                String[] queries = { "uber OR taxi", "dentist", "coff*", "gas bill", "concert tickets OR cinema" };
+                int[] next = { 0 };
+                return () -> index.search(queries[next[0]++ % queries.length], null).size();
+            }
+        },
+        new Bench("page_newest") {
+            int batch(int rows) {
+                return 1000;
+            }
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                DateIndex dates = new DateIndex(store);
+                dates.size();   // builds it
+                return () -> {
+                    ExpenseCursor cursor = ExpenseCursor.all(store, dates);
+                    cursor.order(ExpenseCursor.Order.DATE_DESC);
+                    return cursor.rows().get(0);
+                };
+            }
+        },
+        new Bench("page_category_jump") {
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                Random random = new Random(7);
+                return () -> {
+                    ExpenseCursor cursor = ExpenseCursor.all(store, null).category(random.nextInt(7));
+                    cursor.jump(random.nextInt(cursor.pages()));
+                    return cursor.rows().get(0);
+                };
+            }
+        },
+        new Bench("page_top10") {
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                return () -> {
+                    ExpenseCursor cursor = ExpenseCursor.all(store, null);
+                    cursor.order(ExpenseCursor.Order.AMOUNT_DESC);
+                    return cursor.rows().get(0);
+                };
+            }
+        },
+        new Bench("export_csv") {
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                Path file = dir.resolve("export.csv");
+                return () -> {
+                    ExpenseTracker.writeCsv(store, file.toString());
+                    return Files.size(file);
+                };
+            }
+        },
+        new Bench("rollups_build") {
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                return () -> Rollups.build(store, Categories.count()).span()[1];
+            }
+        },
+        new Bench("currency_rollups") {
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                ColumnarExpenseStore mixed = mixed(store);
+                Rates.Table table = sampleRates(store).table(Currencies.home());
+                return () -> CurrencyTotals.build(mixed, Categories.count()).convert(table).span()[1];
+            }
+        },
+        new Bench("currency_convert") {
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                // What a new rate or report currency costs: the cells, not the rows
+                CurrencyTotals totals = CurrencyTotals.build(mixed(store), Categories.count());
+                Rates.Table table = sampleRates(store).table(Currencies.home());
+                return () -> totals.convert(table).span()[1];
+            }
+        },
+        new Bench("currency_query_scan") {
+            Op setup(ColumnarExpenseStore store, Path dir) {
+                ColumnarExpenseStore mixed = mixed(store);
+                Rates.Table table = sampleRates(store).table(Currencies.home());
+                ExpenseQuery query = new ExpenseQuery().amounts(2000, Long.MAX_VALUE)
+                        .groupBy(ExpenseQuery.Group.MONTH)
+                        .measures(ExpenseQuery.Measure.SUM, ExpenseQuery.Measure.MIN, ExpenseQuery.Measure.MAX);
+                return () -> query.run(mixed, null, null, table).count();
+            }
+        }
+    );
+
+    private static final String[] FOREIGN = { "EUR", "GBP", "JPY" };
+
+    // The benchmark ledger (LedgerGenerator.generate(rows)) again, with some rows in FOREIGN currencies
+    private static ColumnarExpenseStore mixed(ColumnarExpenseStore store) {
+        int[] foreign = new int[FOREIGN.length];
+        for (int i = 0; i < foreign.length; i++) foreign[i] = Currencies.parse(FOREIGN[i]);
+        return LedgerGenerator.generate(store.size(), ExpenseDates.today(), 5, 42L, foreign);
+    }
+
+    // A rate per month for each FOREIGN currency over the store's dates
+    private static Rates sampleRates(ColumnarExpenseStore store) {
+        Rates rates = new Rates();
+        Random random = new Random(11);
+        double[] base = { 1.08, 1.27, 0.0068 };
+        int first = store.dateAt(0), last = store.dateAt(store.size() - 1);
+        for (int i = 0; i < FOREIGN.length; i++) {
+            for (int day = first; day <= last; day += 30) {
+                double rate = base[i] * (0.95 + random.nextDouble() * 0.1);
+                rates.add(FOREIGN[i], day, BigDecimal.valueOf(rate).setScale(6, RoundingMode.HALF_UP));
+            }
+        }
+        return rates;
+    }
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> sizes = new ArrayList<>();
+        Set<String> selected = new LinkedHashSet<>();
+        int warmup = 3, iterations = 10;
+        String out = "bench_results.json";
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--rows":
+                    for (String s : args[++i].split(",")) sizes.add(parseCount(s));
+                    break;
+                case "--bench":
+                    selected.addAll(Arrays.asList(args[++i].split(",")));
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--out":
+                    out = args[++i];
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+        if (sizes.isEmpty()) sizes.addAll(Arrays.asList(1_000, 100_000, 1_000_000));
+
+        Path dir = Files.createTempDirectory("expense-bench");
+        List<String> results = new ArrayList<>();
+        System.out.printf("%-20s %10s %12s %10s %10s %10s %10s %14s%n",
+                "benchmark", "rows", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "alloc B/op");
+        try {
+            for (int rows : sizes) {
+                ColumnarExpenseStore store = LedgerGenerator.generate(rows);
+                for (Bench bench : BENCHES) {
+                    if (!selected.isEmpty() && !selected.contains(bench.name)) continue;
+                    results.add(run(bench, store, dir, warmup, iterations));
+                }
+            }
+        } finally {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path f : files) Files.deleteIfExists(f);
+            }
+            Files.deleteIfExists(dir);
+        }
+
+        try (PrintWriter writer = new PrintWriter(out, "UTF-8")) {
+            writer.println("{");
+            writer.printf("  \"timestamp\": \"%s\",%n", Instant.now());
+            writer.printf("  \"java\": \"%s\",%n", System.getProperty("java.version"));
+            writer.printf("  \"cores\": %d,%n", Runtime.getRuntime().availableProcessors());
+            writer.printf("  \"max_heap_mb\": %d,%n", Runtime.getRuntime().maxMemory() >> 20);
+            writer.println("  \"results\": [");
+            for (int i = 0; i < results.size(); i++) {
+                writer.println("    " + results.get(i) + (i + 1 < results.size() ? "," : ""));
+            }
+            writer.println("  ]");
+            writer.println("}");
+        }
+        System.out.println("Results written to " + out);
+    }
+
+    private static String run(Bench bench, ColumnarExpenseStore store, Path dir,
+                              int warmup, int iterations) throws Exception {
+        Op op = bench.setup(store, dir);
+        int batch = bench.batch(store.size());
+
+        for (int i = 0; i < warmup; i++) {
+            for (int b = 0; b < batch; b++) sink += op.run();
+        }
+
+        long[] sampleNanos = new long[iterations];
+        long gcCountBefore = gcCount(), gcTimeBefore = gcTime();
+        long allocBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            long t0 = System.nanoTime();
+            for (int b = 0; b < batch; b++) sink += op.run();
+            sampleNanos[i] = System.nanoTime() - t0;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocBefore;
+        long gcCount = gcCount() - gcCountBefore, gcTime = gcTime() - gcTimeBefore;
+
+        long ops = (long) iterations * batch;
+        double opsPerSec = ops / (elapsed / 1e9);
+        Arrays.sort(sampleNanos);
+        double p50 = percentile(sampleNanos, 0.50) / batch / 1e6;
+        double p90 = percentile(sampleNanos, 0.90) / batch / 1e6;
+        double p99 = percentile(sampleNanos, 0.99) / batch / 1e6;
+        double max = sampleNanos[sampleNanos.length - 1] / (double) batch / 1e6;
+        long allocPerOp = allocated < 0 ? -1 : allocated / ops;
+        double allocMbPerSec = allocated < 0 ? -1 : allocated / (elapsed / 1e9) / (1 << 20);
+
+        System.out.printf("%-20s %10d %12.1f %10.4f %10.4f %10.4f %10.4f %14d%n",
+                bench.name, store.size(), opsPerSec, p50, p90, p99, max, allocPerOp);
+
+        return String.format(Locale.ROOT,
+                "{\"benchmark\": \"%s\", \"rows\": %d, \"samples\": %d, \"ops_per_sample\": %d, "
+                + "\"ops_per_sec\": %.3f, \"p50_ms\": %.6f, \"p90_ms\": %.6f, \"p99_ms\": %.6f, "
+                + "\"max_ms\": %.6f, \"alloc_bytes_per_op\": %d, \"alloc_mb_per_sec\": %.3f, "
+                + "\"gc_count\": %d, \"gc_ms\": %d}",
+                bench.name, store.size(), iterations, batch, opsPerSec, p50, p90, p99, max,
+                allocPerOp, allocMbPerSec, gcCount, gcTime);
+    }
+
+    // Nearest-rank percentile over sorted samples
+    private static double percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+        if (!sun.isThreadAllocatedMemorySupported()) return -1;
+        long total = 0;
+        for (long bytes : sun.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    // Accepts plain numbers or k/m suffixes: 1000, 100k, 50m
+    private static int parseCount(String text) {
+        text = text.trim().toLowerCase(Locale.ROOT);
+        int multiplier = 1;
+        if (text.endsWith("k")) multiplier = 1_000;
+        if (text.endsWith("m")) multiplier = 1_000_000;
+        if (multiplier > 1) text = text.substring(0, text.length() - 1);
+        return Integer.parseInt(text) * multiplier;
+    }
+}
@@ -0,0 +1,388 @@
+/**
+ * A page-at-a-time view over rows of an ExpenseStore that never builds the
+ * full list of matching rows; only the current page is held.
+ *
+ * In listing order, and in date order when the source is the DateIndex or
+ * already sorted by date, a page is a forward (or backward) scan from where
+ * the previous page ended. Page starts are remembered, so paging back or to a
+ * page seen before scans only that page. Amount order, and date order over
+ * unsorted rows, select page p with a bounded heap of the first
+ * (p + 1) * pageSize rows, or of the rows after it in the reverse order when
+ * that is smaller, so the top N and the last pages are both cheap.
+ *
+ * Pages are numbered from 0. A cursor reads the store as it finds it; make a
+ * new one after rows are added or removed.
+ *
+ * With a {@link #currency} table, the total and the amount order are in its
+ * currency; otherwise amounts are taken as they are.
+ */
+public final class ExpenseCursor {
+
+    public enum Order {
+        LISTED("listing order"),
+        DATE_ASC("date, oldest first"),
+        DATE_DESC("date, newest first"),
+        AMOUNT_DESC("amount, largest first"),
+        AMOUNT_ASC("amount, smallest first");
+
+        private final String label;
+
+        Order(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    public static final int DEFAULT_PAGE_SIZE = 10;
+
+    // Where positions come from
+    private static final int ROWS = 0, DATES = 1, LIST = 2;
+
+    private final ExpenseStore store;
+    private final DateIndex dates;      // may be null for LIST sources
+    private final IntList list;
+    private final int kind, from, to;   // the source, in listing order
+    private final boolean listByDate;
+    private int category = -1;
+    private Rates.Table table;   // null: amounts as they are
+
+    private Order order = Order.LISTED;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int page;
+    private final IntList current = new IntList();
+    private boolean loaded;
+
+    // Scanned orders: the positions to walk, and where each page starts
+    private boolean selecting;
+    private int scanKind, scanFrom, scanTo;
+    private boolean reversed;
+    private final IntList pageStarts = new IntList();
+
+    private int count = -1;
+    private long total;
+    private boolean summed;
+
+    private ExpenseCursor(ExpenseStore store, DateIndex dates, IntList list, int kind, int from, int to,
+                          boolean listByDate) {
+        this.store = store;
+        this.dates = dates;
+        this.list = list;
+        this.kind = kind;
+        this.from = from;
+        this.to = to;
+        this.listByDate = listByDate;
+        order(Order.LISTED);
+    }
+
+    /** Every row in row (ID) order; {@code dates} gives date order without sorting. */
+    public static ExpenseCursor all(ExpenseStore store, DateIndex dates) {
+        return new ExpenseCursor(store, dates, null, ROWS, 0, store.size(), false);
+    }
+
+    /** Rows dated within [startDay, endDay], listed in date order. */
+    public static ExpenseCursor between(ExpenseStore store, DateIndex dates, int startDay, int endDay) {
+        int from = dates.positionOf(startDay);
+        int to = endDay == Integer.MAX_VALUE ? dates.size() : dates.positionOf(endDay + 1);
+        return new ExpenseCursor(store, dates, null, DATES, from, Math.max(from, to), true);
+    }
+
+    /** The given rows in the given order; {@code byDate} if that order is by date. */
+    public static ExpenseCursor of(ExpenseStore store, IntList rows, boolean byDate) {
+        return new ExpenseCursor(store, null, rows, LIST, 0, rows.size(), byDate);
+    }
+
+    /** Only shows rows of {@code category} (-1 for all). */
+    public ExpenseCursor category(int category) {
+        this.category = category;
+        count = -1;
+        summed = false;
+        order(order);
+        return this;
+    }
+
+    /** Totals and sorts amounts converted with {@code table}. */
+    public ExpenseCursor currency(Rates.Table table) {
+        this.table = table;
+        summed = false;
+        order(order);
+        return this;
+    }
+
+    /**
+     * Supplies the count and total of the shown rows when the caller already
+     * has them (from an ExpenseQuery, say), saving the pass that finds them.
+     */
+    public ExpenseCursor summary(int count, long total) {
+        this.count = count;
+        this.total = total;
+        summed = true;
+        return this;
+    }
+
+    // Paging
+
+    public Order order() {
+        return order;
+    }
+
+    /** Re-sorts and goes back to the first page. */
+    public void order(Order order) {
+        this.order = order;
+        selecting = order == Order.AMOUNT_DESC || order == Order.AMOUNT_ASC;
+        reversed = order == Order.DATE_DESC;
+        scanKind = kind;
+        scanFrom = from;
+        scanTo = to;
+        boolean sortedByDate = kind == DATES || (kind == LIST && listByDate);
+        if (!selecting && order != Order.LISTED && !sortedByDate) {
+            if (kind == ROWS && dates != null) {
+                scanKind = DATES;
+                scanFrom = 0;
+                scanTo = dates.size();
+            } else {
+                selecting = true;
+            }
+        }
+        pageStarts.clear();
+        page = 0;
+        loaded = false;
+    }
+
+    public int pageSize() {
+        return pageSize;
+    }
+
+    /** Changes the page size, staying on the page that shows the current first row. */
+    public void pageSize(int size) {
+        if (size < 1) throw new IllegalArgumentException("page size must be at least 1");
+        int first = page * pageSize;
+        pageSize = size;
+        pageStarts.clear();
+        jump(first / size);
+    }
+
+    public int page() {
+        return page;
+    }
+
+    public int pages() {
+        return Math.max(1, (count() + pageSize - 1) / pageSize);
+    }
+
+    public boolean hasNext() {
+        return page + 1 < pages();
+    }
+
+    public void next() {
+        jump(page + 1);
+    }
+
+    public void previous() {
+        jump(page - 1);
+    }
+
+    /** Goes to {@code page}, clamped to the first or last page. */
+    public void jump(int page) {
+        this.page = Math.max(0, Math.min(page, pages() - 1));
+        loaded = false;
+    }
+
+    /** Rows on the current page, in order. Do not modify. */
+    public IntList rows() {
+        if (!loaded) load();
+        return current;
+    }
+
+    /** Position of the current page's first row among all matches. */
+    public int firstIndex() {
+        return page * pageSize;
+    }
+
+    // Totals: one pass over the source the first time they are needed.
+    // Without a category filter the count is just the source's length.
+
+    public int count() {
+        if (count < 0) {
+            if (category < 0) {
+                count = to - from;
+            } else {
+                summarize();
+            }
+        }
+        return count;
+    }
+
+    public long total() {
+        if (!summed) summarize();
+        return total;
+    }
+
+    private void summarize() {
+        int n = 0;
+        long sum = 0;
+        Rates.Sum converted = table == null ? null : new Rates.Sum(table);
+        for (int i = from; i < to; i++) {
+            int row = rowAt(kind, i);
+            if (matches(row)) {
+                if (converted == null) {
+                    sum = Money.add(sum, store.amountAt(row));
+                } else {
+                    converted.add(store.amountAt(row), store.currencyAt(row), store.categoryAt(row),
+                                  store.dateAt(row));
+                }
+                n++;
+            }
+        }
+        count = n;
+        total = converted == null ? sum : converted.total();
+        summed = true;
+    }
+
+    // Loading a page
+
+    private void load() {
+        loaded = true;
+        current.clear();
+        if (count() == 0) return;
+        if (selecting) {
+            selectPage();
+        } else {
+            scanPage();
+        }
+    }
+
+    private void scanPage() {
+        int length = scanTo - scanFrom;
+        int i;
+        if (category < 0) {
+            i = page * pageSize;
+        } else {
+            if (pageStarts.isEmpty()) pageStarts.add(0);
+            while (pageStarts.size() <= page) {
+                pageStarts.add(skip(pageStarts.get(pageStarts.size() - 1), pageSize, length));
+            }
+            i = pageStarts.get(page);
+        }
+        for (; i < length && current.size() < pageSize; i++) {
+            int row = scanRow(i);
+            if (matches(row)) current.add(row);
+        }
+    }
+
+    // Position just after the n-th match at or after i
+    private int skip(int i, int n, int length) {
+        for (; i < length && n > 0; i++) {
+            if (matches(scanRow(i))) n--;
+        }
+        return i;
+    }
+
+    private int scanRow(int i) {
+        return rowAt(scanKind, reversed ? scanTo - 1 - i : scanFrom + i);
+    }
+
+    // Keeps the rows up to the end of the page, or from its start in the
+    // reverse order if fewer, and reads the page off the sorted heap. Equal
+    // keys go by row.
+    private void selectPage() {
+        int n = count();
+        int start = page * pageSize;
+        int end = Math.min(start + pageSize, n);
+        boolean fromEnd = n - start < end;
+        int sign = fromEnd ? -1 : 1;
+        boolean byAmount = order == Order.AMOUNT_DESC || order == Order.AMOUNT_ASC;
+        int direction = order == Order.AMOUNT_DESC || order == Order.DATE_DESC ? -sign : sign;
+        TopK top = new TopK(fromEnd ? n - start : end);
+        for (int i = from; i < to; i++) {
+            int row = rowAt(kind, i);
+            if (!matches(row)) continue;
+            long key = byAmount ? amountAt(row) : store.dateAt(row);
+            top.offer(direction * key, sign * row);
+        }
+        top.sort();
+        for (int pos = start; pos < end; pos++) {
+            current.add(fromEnd ? -top.rows[n - 1 - pos] : top.rows[pos]);
+        }
+    }
+
+    private long amountAt(int row) {
+        long cents = store.amountAt(row);
+        return table == null ? cents : table.convert(cents, store.currencyAt(row), store.dateAt(row));
+    }
+
+    private int rowAt(int kind, int position) {
+        switch (kind) {
+            case ROWS: return position;
+            case DATES: return dates.rowAt(position);
+            default: return list.get(position);
+        }
+    }
+
+    private boolean matches(int row) {
+        return category < 0 || store.categoryAt(row) == category;
+    }
+
+    /** The k smallest (key, row) pairs offered: a max-heap until sorted. */
+    private static final class TopK {
+        final long[] keys;
+        final int[] rows;
+        int size;
+
+        TopK(int k) {
+            keys = new long[k];
+            rows = new int[k];
+        }
+
+        void offer(long key, int row) {
+            if (size == keys.length) {
+                if (size > 0 && less(key, row, keys[0], rows[0])) siftDown(key, row, size);
+            } else {
+                int i = size++;
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (!less(keys[parent], rows[parent], key, row)) break;
+                    keys[i] = keys[parent];
+                    rows[i] = rows[parent];
+                    i = parent;
+                }
+                keys[i] = key;
+                rows[i] = row;
+            }
+        }
+
+        /** Heapsort in place: afterwards the arrays are in ascending order. */
+        void sort() {
+            for (int last = size - 1; last > 0; last--) {
+                long key = keys[last];
+                int row = rows[last];
+                keys[last] = keys[0];
+                rows[last] = rows[0];
+                siftDown(key, row, last);
+            }
+        }
+
+        // Puts (key, row) at the root of heap[0..n) and restores the heap
+        private void siftDown(long key, int row, int n) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= n) break;
+                if (child + 1 < n && less(keys[child], rows[child], keys[child + 1], rows[child + 1])) child++;
+                if (!less(key, row, keys[child], rows[child])) break;
+                keys[i] = keys[child];
+                rows[i] = rows[child];
+                i = child;
+            }
+            keys[i] = key;
+            rows[i] = row;
+        }
+
+        private static boolean less(long k1, int r1, long k2, int r2) {
+            return k1 < k2 || (k1 == k2 && r1 < r2);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+/**
+ * dd/MM/yyyy <-> epoch-day conversion without SimpleDateFormat. Dates are
+ * parsed once when a row is loaded or entered and kept as an int from then
+ * on, so comparisons and range checks are plain integer compares.
+ */
+public final class ExpenseDates {
+
+    /** Returned by the parse methods for anything that isn't a real date. */
+    public static final int INVALID = Integer.MIN_VALUE;
+
+    private ExpenseDates() {}
+
+    public static int today() {
+        return (int) LocalDate.now().toEpochDay();
+    }
+
+    /** Parses d/M/yyyy or dd/MM/yyyy; returns INVALID on failure. */
+    public static int parse(String text) {
+        if (text == null) return INVALID;
+        text = text.trim();
+        int day = 0, month = 0;
+        int part = 0, digits = 0, value = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (++digits > 4) return INVALID;
+            } else if (c == '/' && part < 2 && digits > 0) {
+                if (part++ == 0) day = value; else month = value;
+                value = 0;
+                digits = 0;
+            } else {
+                return INVALID;
+            }
+        }
+        if (part != 2 || digits != 4) return INVALID;
+        return of(value, month, day);
+    }
+
+    /** Parses d/M/yyyy, dd/MM/yyyy or the ISO yyyy-MM-dd; returns INVALID on failure. */
+    public static int parseAny(String text) {
+        int date = parse(text);
+        if (date != INVALID || text == null) return date;
+        text = text.trim();
+        if (text.length() != 10 || text.charAt(4) != '-' || text.charAt(7) != '-') return INVALID;
+        try {
+            return of(Integer.parseInt(text.substring(0, 4)), Integer.parseInt(text.substring(5, 7)),
+                      Integer.parseInt(text.substring(8, 10)));
+        } catch (NumberFormatException e) {
+            return INVALID;
+        }
+    }
+
+    /** Same as {@link #parse(String)} but straight from a byte range. */
+    public static int parse(ByteBuffer buf, int from, int to) {
+        int day = 0, month = 0;
+        int part = 0, digits = 0, value = 0;
+        for (int i = from; i < to; i++) {
+            byte c = buf.get(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (++digits > 4) return INVALID;
+            } else if (c == '/' && part < 2 && digits > 0) {
+                if (part++ == 0) day = value; else month = value;
+                value = 0;
+                digits = 0;
+            } else {
+                return INVALID;
+            }
+        }
+        if (part != 2 || digits != 4) return INVALID;
+        return of(value, month, day);
+    }
+
+    /** Epoch day for a calendar date, or INVALID if it doesn't exist. */
+    public static int of(int year, int month, int day) {
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            return INVALID;
+        }
+        // days_from_civil (H. Hinnant), shifted so March is the first month
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yoe = y - era * 400;
+        int mp = (month + 9) % 12;
+        int doy = (153 * mp + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    public static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2: return isLeap(year) ? 29 : 28;
+            case 4: case 6: case 9: case 11: return 30;
+            default: return 31;
+        }
+    }
+
+    public static boolean isLeap(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    // civil_from_days, packed as year * 10000 + month * 100 + day
+    private static int civil(int epochDay) {
+        int z = epochDay + 719468;
+        int era = Math.floorDiv(z, 146097);
+        int doe = z - era * 146097;
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        return year * 10000 + month * 100 + day;
+    }
+
+    public static int yearOf(int epochDay) {
+        return civil(epochDay) / 10000;
+    }
+
+    public static int monthOf(int epochDay) {
+        return civil(epochDay) / 100 % 100;
+    }
+
+    public static int dayOf(int epochDay) {
+        return civil(epochDay) % 100;
+    }
+
+    /** Consecutive numbers for Monday-to-Sunday weeks; epoch day 0 was a Thursday. */
+    public static int weekKey(int epochDay) {
+        return Math.floorDiv(epochDay + 3, 7);
+    }
+
+    /** The Monday that starts week {@code weekKey}. */
+    public static int weekStart(int weekKey) {
+        return weekKey * 7 - 3;
+    }
+
+    /** dd/MM/yyyy, matching what the app has always stored. */
+    public static String format(int epochDay) {
+        if (epochDay == INVALID) return "??/??/????";
+        byte[] out = new byte[10];
+        format(epochDay, out, 0);
+        return new String(out, StandardCharsets.US_ASCII);
+    }
+
+    /** Writes the 10 bytes of dd/MM/yyyy at {@code at}; returns the position after them. */
+    public static int format(int epochDay, byte[] out, int at) {
+        int ymd = civil(epochDay);
+        int year = ymd / 10000, month = ymd / 100 % 100, day = ymd % 100;
+        out[at] = (byte) ('0' + day / 10);
+        out[at + 1] = (byte) ('0' + day % 10);
+        out[at + 2] = '/';
+        out[at + 3] = (byte) ('0' + month / 10);
+        out[at + 4] = (byte) ('0' + month % 10);
+        out[at + 5] = '/';
+        out[at + 6] = (byte) ('0' + year / 1000 % 10);
+        out[at + 7] = (byte) ('0' + year / 100 % 10);
+        out[at + 8] = (byte) ('0' + year / 10 % 10);
+        out[at + 9] = (byte) ('0' + year % 10);
+        return at + 10;
+    }
+}
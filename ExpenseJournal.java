@@ -0,0 +1,591 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of add/delete records that sits in front of the
+ * snapshot file. Each mutation costs one small append, and a background task
+ * periodically folds the journal back into a fresh snapshot.
+ *
+ * Durability depends on the mode:
+ *   write-behind (the default)  each record is written to the file at once,
+ *       so it survives the process dying, and fsynced by the background
+ *       thread once appends pause for QUIET_MS, or at the latest
+ *       {@link #maxStaleness} after the first unsynced record. A burst of
+ *       changes costs one fsync and nobody waits for it.
+ *   max staleness 0  the caller waits in {@link #awaitDurable} after every
+ *       change ({@link #awaitsDurability}).
+ *   group commit (the server)  appends are only buffered, and writers wait
+ *       in {@link #awaitDurable} for an fsync that covers their record; one
+ *       fsync serves every writer that appended while the previous one ran.
+ * A batch is fsynced as a whole by {@link #commitBatch} in every mode but
+ * group commit.
+ *
+ * Record layout (one per line):  payload '#' crc32-hex '\n'
+ *   A|id|amount|currency|category|date|description
+ *   D|id
+ *   B / C      begin and commit of a batch
+ * A record with a bad checksum or no trailing newline at the end of the file
+ * (a torn write after a crash) is discarded on recovery. A batch without its
+ * commit record is discarded as a whole. A bad record with good ones after
+ * it is damage, not a torn write: the records before it are replayed, the
+ * file is moved aside untouched and recovery fails. Add records from before
+ * currencies have no currency field and are in the home currency.
+ */
+public class ExpenseJournal implements Closeable {
+
+    /** Receives replayed records in journal order. */
+    public interface Replay {
+        void add(int id, long amountCents, int currency, int category, int epochDay, String description);
+        void delete(int id);
+    }
+
+    public static final long DEFAULT_MAX_STALENESS_MS = 1000;
+    private static final long QUIET_MS = 20;
+    private static final long COMPACT_THRESHOLD_BYTES = 4L * 1024 * 1024;
+    private static final long COMPACT_CHECK_SECONDS = 30;
+
+    private final Path path;
+    private final Path rotatedPath;
+    private final ScheduledThreadPoolExecutor background;
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private boolean inBatch;
+    private int unsynced;
+    private long unsyncedBytes;   // written since the last fsync, for Metrics
+
+    // Write-behind: when the first unsynced record and the latest one were
+    // appended (System.nanoTime), and whether a flush is already scheduled
+    private long maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_STALENESS_MS);
+    private long firstUnsyncedAt;
+    private long lastAppendAt;
+    private boolean flushScheduled;
+
+    // Records are numbered from 1 as they are appended; everything up to
+    // durable is fsynced. syncing is set while a group commit's fsync runs.
+    private long appended;
+    private long durable;
+    private boolean groupCommit;
+    private boolean syncing;
+
+    public ExpenseJournal(Path path) throws IOException {
+        this.path = path;
+        this.rotatedPath = path.resolveSibling(path.getFileName() + ".old");
+        this.channel = openChannel(path);
+        this.background = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "expense-journal");
+            t.setDaemon(true);
+            return t;
+        });
+        // close() syncs whatever a pending flush would have covered
+        background.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    private static FileChannel openChannel(Path path) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ch.position(ch.size());
+        return ch;
+    }
+
+    /**
+     * Runs {@code compactor} on the background thread whenever the journal has
+     * grown past the compaction threshold. The compactor is expected to copy
+     * the in-memory rows and call {@link #rotate()} under the same lock that
+     * guards appends, write the snapshot, then call {@link #finishRotation()}.
+     */
+    public void scheduleCompaction(Runnable compactor) {
+        background.scheduleWithFixedDelay(() -> {
+            try {
+                compactor.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error compacting journal: " + e.getMessage());
+            }
+        }, COMPACT_CHECK_SECONDS, COMPACT_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public synchronized boolean needsCompaction() {
+        if (inBatch) return false;
+        try {
+            return channel.size() >= COMPACT_THRESHOLD_BYTES;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Appending
+
+    /** Appends an add record and returns its record number. */
+    public synchronized long appendAdd(int id, long amountCents, String currency, String category, int epochDay,
+                                       String description) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        sb.append("A|").append(id)
+          .append('|').append(Money.format(amountCents))
+          .append('|').append(currency)
+          .append('|');
+        escape(sb, category);
+        sb.append('|').append(ExpenseDates.format(epochDay)).append('|');
+        escape(sb, description);
+        return append(sb);
+    }
+
+    public synchronized long appendDelete(int id) throws IOException {
+        return append(new StringBuilder(16).append("D|").append(id));
+    }
+
+    /** Number of the last record appended. */
+    public synchronized long lastRecord() {
+        return appended;
+    }
+
+    /**
+     * Starts a group of records that recovery applies all-or-nothing. Records
+     * inside a batch are buffered and written in large blocks, and the whole
+     * batch is fsynced once by {@link #commitBatch()}, or by the group commit
+     * that covers its commit record.
+     */
+    public synchronized void beginBatch() throws IOException {
+        if (inBatch) throw new IllegalStateException("batch already open");
+        append(new StringBuilder("B"));
+        inBatch = true;
+    }
+
+    public synchronized void commitBatch() throws IOException {
+        if (!inBatch) throw new IllegalStateException("no batch open");
+        inBatch = false;
+        append(new StringBuilder("C"));
+        if (!groupCommit) sync();
+    }
+
+    public synchronized boolean inBatch() {
+        return inBatch;
+    }
+
+    /** Switches to group commit: appends are buffered until someone calls {@link #awaitDurable}. */
+    public synchronized void groupCommit(boolean on) {
+        groupCommit = on;
+    }
+
+    /**
+     * How long a written record may go without an fsync in write-behind
+     * mode; 0 makes every change wait for its own.
+     */
+    public synchronized void maxStaleness(long millis) {
+        if (millis < 0) throw new IllegalArgumentException("staleness can't be negative");
+        maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /** Whether callers must {@link #awaitDurable} their records themselves. */
+    public synchronized boolean awaitsDurability() {
+        return groupCommit || maxStalenessNanos == 0;
+    }
+
+    /** Records appended but not yet fsynced. */
+    public synchronized int pendingRecords() {
+        return unsynced;
+    }
+
+    private long append(StringBuilder payload) throws IOException {
+        byte[] body = payload.toString().getBytes(StandardCharsets.UTF_8);
+        crc.reset();
+        crc.update(body, 0, body.length);
+        String trailer = "#" + Long.toHexString(crc.getValue()) + "\n";
+
+        int length = body.length + trailer.length();
+        if (pending.remaining() < length) {
+            flushPending();
+            if (pending.capacity() < length) {
+                pending = ByteBuffer.allocate(length);
+            }
+        }
+        pending.put(body).put(trailer.getBytes(StandardCharsets.US_ASCII));
+        lastAppendAt = System.nanoTime();
+        if (unsynced++ == 0) firstUnsyncedAt = lastAppendAt;
+        appended++;
+
+        if (!inBatch && !groupCommit) {
+            flushPending();
+            if (maxStalenessNanos > 0) scheduleWriteBehind(QUIET_MS);
+        }
+        return appended;
+    }
+
+    private void scheduleWriteBehind(long delayMs) {
+        if (flushScheduled || background.isShutdown()) return;
+        flushScheduled = true;
+        background.schedule(this::writeBehind, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Runs on the background thread. Waits while appends keep arriving, up
+     * to the staleness limit, then fsyncs everything written so far outside
+     * the lock (appends carry on meanwhile and schedule the next flush).
+     */
+    private void writeBehind() {
+        long upTo;
+        synchronized (this) {
+            flushScheduled = false;
+            if (unsynced == 0 || inBatch || groupCommit) return;   // commitBatch or the writers sync
+            long now = System.nanoTime();
+            long due = Math.min(lastAppendAt + TimeUnit.MILLISECONDS.toNanos(QUIET_MS),
+                                firstUnsyncedAt + maxStalenessNanos);
+            if (due > now) {
+                scheduleWriteBehind(TimeUnit.NANOSECONDS.toMillis(due - now) + 1);
+                return;
+            }
+            upTo = appended;
+        }
+        try {
+            awaitDurable(upTo);
+        } catch (IOException e) {
+            System.err.println("Error syncing journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns once record number {@code record} is on disk. The first waiter
+     * writes out everything appended so far and fsyncs it outside the lock;
+     * writers that append meanwhile wait for it to finish and the next one
+     * of them fsyncs for the whole group.
+     */
+    public void awaitDurable(long record) throws IOException {
+        FileChannel target;
+        long upTo;
+        Metrics.Span span;
+        synchronized (this) {
+            while (durable < record && syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for the journal");
+                }
+            }
+            if (durable >= record) return;
+            span = Metrics.start(Metrics.Op.JOURNAL);
+            flushPending();
+            syncing = true;
+            upTo = appended;
+            target = channel;
+            span.rows(upTo - durable, upTo - durable).written(unsyncedBytes);
+            unsyncedBytes = 0;
+        }
+        boolean forced = false;
+        try {
+            target.force(false);
+            span.close();
+            forced = true;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (forced) {
+                    durable = Math.max(durable, upTo);
+                    unsynced = (int) (appended - durable);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    // Lets a group commit's fsync finish before the channel is closed
+    private void awaitSyncIdle() throws InterruptedIOException {
+        while (syncing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the journal");
+            }
+        }
+    }
+
+    private void flushPending() throws IOException {
+        pending.flip();
+        unsyncedBytes += pending.remaining();
+        while (pending.hasRemaining()) {
+            channel.write(pending);
+        }
+        pending.clear();
+    }
+
+    public synchronized void sync() throws IOException {
+        if (inBatch) return;   // the batch is made durable as a whole on commit
+        if (unsynced > 0) {
+            Metrics.Span span = Metrics.start(Metrics.Op.JOURNAL);
+            flushPending();
+            channel.force(false);
+            span.rows(unsynced, unsynced).written(unsyncedBytes).close();
+            unsyncedBytes = 0;
+            unsynced = 0;
+        }
+        durable = appended;
+    }
+
+    // Compaction
+
+    /**
+     * Moves the live journal aside so new appends start in an empty file.
+     * If a previous compaction failed and left a rotated journal behind, the
+     * live records are appended to it instead so nothing is lost.
+     */
+    public synchronized void rotate() throws IOException {
+        awaitSyncIdle();
+        sync();
+        channel.close();
+        if (Files.exists(rotatedPath)) {
+            try (FileChannel out = FileChannel.open(rotatedPath, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.APPEND);
+                 FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                long pos = 0, size = in.size();
+                while (pos < size) {
+                    pos += in.transferTo(pos, size - pos, out);
+                }
+                out.force(false);
+            }
+            Files.delete(path);
+        } else {
+            Files.move(path, rotatedPath, StandardCopyOption.ATOMIC_MOVE);
+        }
+        channel = openChannel(path);
+        SnapshotFile.syncDirectory(path.toAbsolutePath().getParent());
+    }
+
+    /** Called once the snapshot covering the rotated journal is safely on disk. */
+    public synchronized void finishRotation() throws IOException {
+        Files.deleteIfExists(rotatedPath);
+    }
+
+    /**
+     * Stops the background thread, letting a running fsync or compaction
+     * finish (interrupting it would close the channel), and fsyncs the rest.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        background.shutdown();
+        awaitSyncIdle();
+        if (channel.isOpen()) {
+            sync();
+            channel.close();
+        }
+    }
+
+    // Recovery
+
+    /**
+     * Replays a rotated journal left by an interrupted compaction (if any) and
+     * then the live journal. Replay must be idempotent on the caller's side:
+     * adding an ID that already exists or deleting a missing one is a no-op,
+     * since a crash between writing the snapshot and deleting the rotated
+     * journal replays records the snapshot already contains.
+     *
+     * @return number of records applied
+     */
+    public static int recover(Path path, Replay replay) throws IOException {
+        Path rotated = path.resolveSibling(path.getFileName() + ".old");
+        int applied = 0;
+        List<String> damaged = new ArrayList<>(2);
+        if (Files.exists(rotated)) {
+            applied += replayFile(rotated, replay, damaged);
+        }
+        if (Files.exists(path)) {
+            applied += replayFile(path, replay, damaged);
+        }
+        if (!damaged.isEmpty()) {
+            throw new IOException(String.join("; ", damaged));
+        }
+        return applied;
+    }
+
+    /*
+     * Two passes: the first finds how much of the file is a consistent prefix
+     * (complete records, no open batch), the second applies records up to
+     * that point. This keeps replay of a huge batch at constant memory.
+     */
+    private static int replayFile(Path file, Replay replay, List<String> damaged) throws IOException {
+        long validLength = scan(file, null, Long.MAX_VALUE);
+        int applied = validLength > 0 ? (int) scan(file, replay, validLength) : 0;
+
+        // Damage in the middle: keep every record for a manual repair and
+        // start a fresh journal rather than cut the good ones off.
+        if (validLength < Files.size(file) && goodRecordAfterBad(file, validLength)) {
+            Path aside = file.resolveSibling(file.getFileName() + ".corrupt-" + System.currentTimeMillis());
+            Files.move(file, aside, StandardCopyOption.ATOMIC_MOVE);
+            SnapshotFile.syncDirectory(file.toAbsolutePath().getParent());
+            damaged.add("damaged record at byte " + validLength + " of " + file.getFileName() + "; replayed "
+                        + applied + " records before it, all of them are kept in " + aside.getFileName());
+            return applied;
+        }
+
+        // Drop the torn tail so later appends don't land behind garbage.
+        if (validLength < Files.size(file)) {
+            System.err.println("Discarded incomplete journal record in " + file.getFileName());
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.truncate(validLength);
+                ch.force(false);
+            }
+        }
+        return applied;
+    }
+
+    /*
+     * With replay == null, returns the length of the consistent prefix.
+     * Otherwise applies the records in the first {@code limit} bytes and
+     * returns how many there were.
+     */
+    private static long scan(Path file, Replay replay, long limit) throws IOException {
+        long validLength = 0, applied = 0;
+        boolean batchOpen = false;
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        CRC32 crc = new CRC32();
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+            long offset = 0;
+            int b;
+            while (offset < limit && (b = in.read()) != -1) {
+                offset++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                String payload = verify(line.toByteArray(), crc);
+                line.reset();
+                if (payload == null) break;
+
+                if (payload.equals("B")) {
+                    if (batchOpen) break;
+                    batchOpen = true;
+                } else if (payload.equals("C")) {
+                    if (!batchOpen) break;
+                    batchOpen = false;
+                } else if (!apply(payload, replay)) {
+                    break;
+                } else {
+                    applied++;
+                }
+                if (!batchOpen) validLength = offset;
+            }
+        }
+        return replay == null ? validLength : applied;
+    }
+
+    // Whether, after the consistent prefix, a record that doesn't check out
+    // is followed by one that does. A torn tail is at most an unfinished
+    // batch and then one bad or unterminated record.
+    private static boolean goodRecordAfterBad(Path file, long validLength) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        CRC32 crc = new CRC32();
+        boolean bad = false;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+             InputStream in = new BufferedInputStream(Channels.newInputStream(ch.position(validLength)), 1 << 16)) {
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                String payload = verify(line.toByteArray(), crc);
+                line.reset();
+                boolean good = payload != null
+                        && (payload.equals("B") || payload.equals("C") || apply(payload, null));
+                if (good && bad) return true;
+                bad |= !good;
+            }
+        }
+        return false;
+    }
+
+    // Returns the payload if the record's CRC checks out, otherwise null
+    private static String verify(byte[] record, CRC32 crc) {
+        int hash = -1;
+        for (int i = record.length - 1; i >= 0; i--) {
+            if (record[i] == '#') { hash = i; break; }
+        }
+        if (hash <= 0) return null;
+
+        long expected;
+        try {
+            expected = Long.parseLong(new String(record, hash + 1, record.length - hash - 1,
+                                                 StandardCharsets.US_ASCII), 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        crc.reset();
+        crc.update(record, 0, hash);
+        if (crc.getValue() != expected) return null;
+        return new String(record, 0, hash, StandardCharsets.UTF_8);
+    }
+
+    // Parses (and, given a Replay, applies) one record. A record that passed
+    // its CRC but doesn't parse is treated as torn.
+    private static boolean apply(String payload, Replay replay) {
+        String[] fields = unescapeFields(payload);
+        try {
+            if (fields[0].equals("A") && (fields.length == 6 || fields.length == 7)) {
+                int id = Integer.parseInt(fields[1]);
+                byte[] amount = fields[2].getBytes(StandardCharsets.US_ASCII);
+                long cents = Money.parse(ByteBuffer.wrap(amount), 0, amount.length);
+                int at = fields.length - 3;   // category, date and description come last
+                if (replay != null) {
+                    int currency = fields.length == 7 ? Currencies.resolve(fields[3]) : Currencies.home();
+                    replay.add(id, cents, currency, Categories.resolve(fields[at]),
+                               ExpenseDates.parse(fields[at + 1]), fields[at + 2]);
+                }
+                return true;
+            }
+            if (fields[0].equals("D") && fields.length == 2) {
+                int id = Integer.parseInt(fields[1]);
+                if (replay != null) replay.delete(id);
+                return true;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return false;
+    }
+
+    // '|', '\' and newlines inside text fields are backslash-escaped.
+
+    private static void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '|':  sb.append("\\p"); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                default:   sb.append(c);
+            }
+        }
+    }
+
+    private static String[] unescapeFields(String payload) {
+        List<String> fields = new ArrayList<>(6);
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i < payload.length(); i++) {
+            char c = payload.charAt(i);
+            if (c == '|') {
+                fields.add(current.toString());
+                current.setLength(0);
+            } else if (c == '\\' && i + 1 < payload.length()) {
+                char next = payload.charAt(++i);
+                switch (next) {
+                    case 'p': current.append('|'); break;
+                    case 'n': current.append('\n'); break;
+                    case 'r': current.append('\r'); break;
+                    default:  current.append(next);
+                }
+            } else {
+                current.append(c);
+            }
+        }
+        fields.add(current.toString());
+        return fields.toArray(new String[0]);
+    }
+}
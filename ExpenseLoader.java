@@ -0,0 +1,324 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loads the legacy pipe-delimited expenses.txt snapshot (see SnapshotFile for
+ * the binary format that replaced it) without reading it into a
+ * List<String> first. The file is memory-mapped in line-aligned chunks that
+ * are parsed in parallel on the common fork-join pool by a hand-written
+ * scanner (no regex, no String[] per row) straight into columnar chunks,
+ * which are then merged back in ID order. The format has no currencies:
+ * every row is in the home currency.
+ *
+ * Rows that can't be read are skipped and counted, and the first few are
+ * kept with their line numbers and why; callers converting the file refuse
+ * to go on while there are any. A category name that isn't registered yet
+ * is registered, as other stored names are, not folded into "Other".
+ */
+public final class ExpenseLoader {
+
+    private static final long CHUNK_BYTES = 8L * 1024 * 1024;
+    private static final int MAX_PROBLEMS = 20;
+
+    public static final class Result {
+        public final ColumnarExpenseStore store;
+        public final int nextId;
+        public final int skipped;
+        public final List<String> problems;   // the first skipped lines: "line N: why: text"
+        public final long bytes;
+        public final long elapsedNanos;
+
+        Result(ColumnarExpenseStore store, int nextId, long bytes, long elapsedNanos) {
+            this(store, nextId, 0, Collections.emptyList(), bytes, elapsedNanos);
+        }
+
+        Result(ColumnarExpenseStore store, int nextId, int skipped, List<String> problems, long bytes,
+               long elapsedNanos) {
+            this.store = store;
+            this.nextId = nextId;
+            this.skipped = skipped;
+            this.problems = problems;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /** The number of skipped rows and the first few of them, one per line. */
+        public String describeSkipped() {
+            StringBuilder sb = new StringBuilder().append(skipped).append(skipped == 1 ? " row" : " rows")
+                                                  .append(" can't be read");
+            for (String problem : problems) sb.append(System.lineSeparator()).append("  ").append(problem);
+            if (skipped > problems.size()) sb.append(System.lineSeparator()).append("  ...");
+            return sb.toString();
+        }
+    }
+
+    private ExpenseLoader() {}
+
+    public static Result load(Path file) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long[] bounds = chunkBounds(channel, size);
+
+            List<ForkJoinTask<Chunk>> tasks = new ArrayList<>(bounds.length - 1);
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                tasks.add(ForkJoinPool.commonPool().submit(
+                        new ChunkParser(channel, bounds[i], bounds[i + 1])));
+            }
+
+            int total = 0, skipped = 0, maxId = 0, lines = 0;
+            List<String> problems = new ArrayList<>();
+            List<Chunk> chunks = new ArrayList<>(tasks.size());
+            for (ForkJoinTask<Chunk> task : tasks) {
+                Chunk chunk;
+                try {
+                    chunk = task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("load interrupted");
+                } catch (ExecutionException e) {
+                    throw new IOException("Error parsing " + file, e.getCause());
+                }
+                chunks.add(chunk);
+                total += chunk.rows.size();
+                skipped += chunk.skipped;
+                maxId = Math.max(maxId, chunk.maxId);
+                // Chunks are cut at line ends, so their line counts add up
+                for (int i = 0; i < chunk.problems.size() && problems.size() < MAX_PROBLEMS; i++) {
+                    problems.add("line " + (lines + chunk.problemLines.get(i) + 1) + ": " + chunk.problems.get(i));
+                }
+                lines += chunk.lines;
+            }
+
+            ColumnarExpenseStore merged = new ColumnarExpenseStore(total);
+            for (Chunk chunk : chunks) {
+                merged.addAll(chunk.rows);
+            }
+            // Snapshots are written in ID order, so this only runs for hand-edited files
+            merged.sortById();
+            return new Result(merged, maxId + 1, skipped, problems, size, System.nanoTime() - start);
+        }
+    }
+
+    /** Writes the legacy text format; the benchmarks use it to compare with the binary one. */
+    static void writeText(ExpenseStore rows, Path target) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(target.toFile()), StandardCharsets.UTF_8), 1 << 16))) {
+            for (int row = 0; row < rows.size(); row++) {
+                writer.println(rows.idAt(row) + "|" + Money.format(rows.amountAt(row)) + "|" +
+                              Categories.name(rows.categoryAt(row)) + "|" +
+                              ExpenseDates.format(rows.dateAt(row)) + "|" + rows.descriptionAt(row));
+            }
+            if (writer.checkError()) {
+                throw new IOException("write to " + target + " failed");
+            }
+        }
+    }
+
+    // Splits the file at roughly CHUNK_BYTES, nudging each cut forward to just past a '\n'.
+    private static long[] chunkBounds(FileChannel channel, long size) throws IOException {
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long pos = CHUNK_BYTES;
+        while (pos < size) {
+            long cut = -1;
+            long scan = pos;
+            while (cut < 0 && scan < size) {
+                probe.clear();
+                int n = channel.read(probe, scan);
+                if (n <= 0) break;
+                for (int i = 0; i < n; i++) {
+                    if (probe.get(i) == '\n') { cut = scan + i + 1; break; }
+                }
+                scan += n;
+            }
+            if (cut < 0 || cut >= size) break;
+            bounds.add(cut);
+            pos = cut + CHUNK_BYTES;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) result[i] = bounds.get(i);
+        return result;
+    }
+
+    private static final class Chunk {
+        final ColumnarExpenseStore rows;
+        int lines;
+        int skipped;
+        int maxId;
+        final IntList problemLines = new IntList();   // numbered from 0 within the chunk
+        final List<String> problems = new ArrayList<>();
+
+        Chunk(int expectedRows) {
+            rows = new ColumnarExpenseStore(expectedRows);
+        }
+
+        void skip(int line, String reason, ByteBuffer buf, int from, int to) {
+            skipped++;
+            if (problems.size() < MAX_PROBLEMS) {
+                problemLines.add(line);
+                problems.add(reason + ": " + text(buf, from, to));
+            }
+        }
+    }
+
+    private static final class ChunkParser implements Callable<Chunk> {
+        private final FileChannel channel;
+        private final long from;
+        private final long to;
+        private final byte[][] categoryBytes;
+
+        ChunkParser(FileChannel channel, long from, long to) {
+            this.channel = channel;
+            this.from = from;
+            this.to = to;
+            String[] categories = Categories.names();
+            this.categoryBytes = new byte[categories.length][];
+            for (int i = 0; i < categories.length; i++) {
+                categoryBytes[i] = categories[i].getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        @Override
+        public Chunk call() throws IOException {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+            int limit = buf.limit();
+            Chunk chunk = new Chunk(limit / 48);
+            int[] fieldStart = new int[5];
+            int[] fieldEnd = new int[5];
+
+            int lineStart = 0;
+            while (lineStart < limit) {
+                int line = chunk.lines++;
+                int lineEnd = lineStart;
+                while (lineEnd < limit && buf.get(lineEnd) != '\n') lineEnd++;
+                int next = lineEnd + 1;
+                if (lineEnd > lineStart && buf.get(lineEnd - 1) == '\r') lineEnd--;
+
+                if (lineEnd > lineStart) {
+                    // Same rule as the old split("\\|"): exactly five fields or the row is dropped
+                    int fields = 0;
+                    int start = lineStart;
+                    for (int i = lineStart; i < lineEnd && fields < 5; i++) {
+                        if (buf.get(i) == '|') {
+                            fieldStart[fields] = start;
+                            fieldEnd[fields++] = i;
+                            start = i + 1;
+                        }
+                    }
+                    boolean extraPipe = false;
+                    for (int i = start; i < lineEnd; i++) {
+                        if (buf.get(i) == '|') { extraPipe = true; break; }
+                    }
+                    if (fields == 4 && !extraPipe) {
+                        fieldStart[4] = start;
+                        fieldEnd[4] = lineEnd;
+                        String reason = parseRow(buf, fieldStart, fieldEnd, chunk);
+                        if (reason != null) chunk.skip(line, reason, buf, lineStart, lineEnd);
+                    } else {
+                        chunk.skip(line, "expected 5 fields", buf, lineStart, lineEnd);
+                    }
+                }
+                lineStart = next;
+            }
+            return chunk;
+        }
+
+        // Adds the row and returns null, or returns why it can't be read. The
+        // old app wrote amounts with Double.toString ("1.0E7"), which
+        // Money.parse takes; dates may be ISO in hand-edited files.
+        private String parseRow(MappedByteBuffer buf, int[] fs, int[] fe, Chunk chunk) {
+            int id;
+            long cents;
+            try {
+                id = parseInt(buf, fs[0], fe[0]);
+            } catch (NumberFormatException e) {
+                return "invalid id";
+            }
+            try {
+                cents = Money.parse(buf, fs[1], fe[1]);
+            } catch (NumberFormatException e) {
+                return "invalid amount";
+            }
+            int category = category(buf, fs[2], fe[2]);
+            if (category < 0) return "category can't be registered";
+            int date = ExpenseDates.parse(buf, fs[3], fe[3]);
+            if (date == ExpenseDates.INVALID) date = ExpenseDates.parseAny(text(buf, fs[3], fe[3]));
+            if (date == ExpenseDates.INVALID) return "invalid date";
+            chunk.rows.add(id, cents, Currencies.home(), category, date, buf, fs[4], fe[4]);
+            chunk.maxId = Math.max(chunk.maxId, id);
+            return null;
+        }
+
+        // Names missing from the registry (hand-edited files, a lost
+        // categories.txt) are registered; -1 if it is full or the name empty
+        private int category(MappedByteBuffer buf, int from, int to) {
+            int len = to - from;
+            outer:
+            for (int c = 0; c < categoryBytes.length; c++) {
+                byte[] name = categoryBytes[c];
+                if (name.length != len) continue;
+                for (int i = 0; i < len; i++) {
+                    if (buf.get(from + i) != name[i]) continue outer;
+                }
+                return c;
+            }
+            String name = text(buf, from, to);
+            int category = Categories.resolve(name);
+            return category == Categories.OTHER && !name.equals(Categories.name(Categories.OTHER)) ? -1 : category;
+        }
+    }
+
+    private static String text(ByteBuffer buf, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = buf.get(from + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static int parseInt(ByteBuffer buf, int from, int to) {
+        if (from >= to) throw new NumberFormatException("empty id");
+        boolean negative = buf.get(from) == '-';
+        int i = negative ? from + 1 : from;
+        if (i >= to || to - i > 10) throw new NumberFormatException("bad id");
+        long value = 0;
+        for (; i < to; i++) {
+            int d = buf.get(i) - '0';
+            if (d < 0 || d > 9) throw new NumberFormatException("bad id");
+            value = value * 10 + d;
+        }
+        value = negative ? -value : value;
+        if (value != (int) value) throw new NumberFormatException("id out of range");
+        return (int) value;
+    }
+
+    // Peak resident set size of this JVM in KB, or -1 off Linux
+    public static long peakRssKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not available on this platform
+        }
+        return -1;
+    }
+
+    // Usage: java ExpenseLoader [file]  -- prints load time and peak RSS
+    public static void main(String[] args) throws IOException {
+        Path file = Paths.get(args.length > 0 ? args[0] : "expenses.txt");
+        Result result = load(file);
+        System.out.printf("rows=%d skipped=%d bytes=%d nextId=%d load_ms=%.1f peak_rss_kb=%d%n",
+                result.store.size(), result.skipped, result.bytes, result.nextId,
+                result.elapsedNanos / 1e6, peakRssKb());
+    }
+}
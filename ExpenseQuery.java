@@ -0,0 +1,567 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Filters, groups and aggregates expenses in one pass, choosing how to find
+ * the rows:
+ *
+ *   ExpenseQuery.Result r = ledger.query(new ExpenseQuery()
+ *           .categories(food, shopping).dates(start, end).amounts(1000, Long.MAX_VALUE)
+ *           .groupBy(ExpenseQuery.Group.MONTH).measures(Measure.SUM, Measure.MAX)
+ *           .percentiles(50, 90));
+ *
+ * The planner answers from the rollups when the query only needs sums and
+ * counts of whole categories over dates; takes the description index's
+ * matches when there are search words; walks the date index when the date
+ * range holds under a quarter of the rows; and otherwise scans every row.
+ * Scans split the rows into chunks on the common ForkJoinPool, each chunk
+ * aggregating into its own partial result, and merge the partials at the
+ * end, so the only shared state is the read-only store.
+ *
+ * Percentiles keep every matching amount until the end (8 bytes a row);
+ * the other measures are constant space per group.
+ *
+ * Amounts, the amount filter and the results are in the report currency.
+ * A scan converts each row in another currency for the filter, minimum,
+ * maximum and percentiles, but adds up its own-currency amount per day,
+ * category and currency and converts those sums at the end, as the rollups
+ * do (see Rates), so a sum comes out the same by either plan.
+ */
+public final class ExpenseQuery {
+
+    public enum Group { NONE, CATEGORY, MONTH, YEAR }
+
+    public enum Measure { SUM, COUNT, AVG, MIN, MAX }
+
+    public enum Plan {
+        ROLLUPS("rollups"),
+        DESCRIPTION_INDEX("description index"),
+        DATE_INDEX("date index"),
+        SCAN("scan");
+
+        private final String label;
+
+        Plan(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /** Aggregates of one group. min and max are only filled when asked for. */
+    public static final class Bucket {
+        public final int key;   // category index, month key, year, or 0 without grouping
+        public final String label;
+        public final long total;
+        public final long count;
+        public final long min;
+        public final long max;
+        private final long[] sorted;   // the amounts, when percentiles were asked for
+
+        Bucket(int key, String label, long total, long count, long min, long max, long[] sorted) {
+            this.key = key;
+            this.label = label;
+            this.total = total;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.sorted = sorted;
+        }
+
+        /** Mean amount, rounded to the cent. */
+        public long average() {
+            return count == 0 ? 0 : Math.round(total / (double) count);
+        }
+
+        /** Nearest-rank percentile {@code p} (0-100] of the amounts. */
+        public long percentile(double p) {
+            if (sorted == null) throw new IllegalStateException("percentiles were not requested");
+            if (sorted.length == 0) return 0;
+            int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+    }
+
+    public static final class Result {
+        public final Plan plan;
+        public final int examined;   // rows read; 0 from the rollups
+        public final List<Bucket> buckets;
+
+        Result(Plan plan, int examined, List<Bucket> buckets) {
+            this.plan = plan;
+            this.examined = examined;
+            this.buckets = buckets;
+        }
+
+        public long total() {
+            long total = 0;
+            for (Bucket b : buckets) total = Money.add(total, b.total);
+            return total;
+        }
+
+        public long count() {
+            long count = 0;
+            for (Bucket b : buckets) count += b.count;
+            return count;
+        }
+
+        /** The bucket for {@code key}, or null when nothing matched there. */
+        public Bucket bucket(int key) {
+            for (Bucket b : buckets) {
+                if (b.key == key) return b;
+            }
+            return null;
+        }
+
+        /** "rollups", "date index, 24113 rows", "scan, 10000000 rows in 153 parallel chunks". */
+        public String describe() {
+            if (plan == Plan.ROLLUPS) return plan.toString();
+            if (examined <= SCAN_CHUNK) return plan + ", " + examined + " rows";
+            return plan + ", " + examined + " rows in " + ((examined + SCAN_CHUNK - 1) / SCAN_CHUNK) + " parallel chunks";
+        }
+    }
+
+    private static final int SCAN_CHUNK = 1 << 16;     // rows per fork-join leaf
+    private static final int DATE_INDEX_SHARE = 4;     // below 1/4 of the rows, walk the date index
+
+    private long categoryMask;   // bit per category; 0 for all
+    private int startDay = Integer.MIN_VALUE;
+    private int endDay = Integer.MAX_VALUE;
+    private long minCents = Long.MIN_VALUE;
+    private long maxCents = Long.MAX_VALUE;
+    private String text;
+    private Group group = Group.NONE;
+    private EnumSet<Measure> measures = EnumSet.of(Measure.SUM, Measure.COUNT, Measure.AVG);
+    private double[] percentiles = new double[0];
+
+    // Filters
+
+    /** Only these categories; every category when none are given. */
+    public ExpenseQuery categories(int... categories) {
+        for (int c : categories) {
+            if (c < 0 || c >= 64) throw new IllegalArgumentException("bad category " + c);
+            categoryMask |= 1L << c;
+        }
+        return this;
+    }
+
+    /** Only expenses dated within [startDay, endDay]. */
+    public ExpenseQuery dates(int startDay, int endDay) {
+        this.startDay = startDay;
+        this.endDay = endDay;
+        return this;
+    }
+
+    /** Only amounts within [minCents, maxCents]. */
+    public ExpenseQuery amounts(long minCents, long maxCents) {
+        this.minCents = minCents;
+        this.maxCents = maxCents;
+        return this;
+    }
+
+    /** Only descriptions matching {@code query}, in DescriptionIndex syntax. */
+    public ExpenseQuery matching(String query) {
+        this.text = query;
+        return this;
+    }
+
+    // Shape of the result
+
+    public ExpenseQuery groupBy(Group group) {
+        this.group = group;
+        return this;
+    }
+
+    /** What the caller will read; MIN and MAX rule out the rollups. */
+    public ExpenseQuery measures(Measure... measures) {
+        this.measures = EnumSet.noneOf(Measure.class);
+        this.measures.addAll(Arrays.asList(measures));
+        return this;
+    }
+
+    /** Percentiles (0-100] the caller will read from each bucket. */
+    public ExpenseQuery percentiles(double... percentiles) {
+        for (double p : percentiles) {
+            if (!(p > 0 && p <= 100)) throw new IllegalArgumentException("percentile out of range: " + p);
+        }
+        this.percentiles = percentiles.clone();
+        return this;
+    }
+
+    // Planning
+
+    /** The description query, or null. */
+    public String text() {
+        return text;
+    }
+
+    /** The limits DescriptionIndex.search can apply itself while matching {@link #text()}. */
+    public CsvExporter.Filter searchFilter() {
+        CsvExporter.Filter filter = new CsvExporter.Filter().dates(startDay, endDay);
+        if (Long.bitCount(categoryMask) == 1) filter.category(Long.numberOfTrailingZeros(categoryMask));
+        return filter;
+    }
+
+    /** Whether the rollups hold everything this query asks for. */
+    public boolean fitsRollups() {
+        return text == null && minCents == Long.MIN_VALUE && maxCents == Long.MAX_VALUE
+                && percentiles.length == 0 && !measures.contains(Measure.MIN) && !measures.contains(Measure.MAX);
+    }
+
+    /**
+     * Whether rows dated within [firstDay, lastDay], in the categories of
+     * {@code categories} (a bit each) and with amounts within [minCents,
+     * maxCents], could match; false lets the ledger skip a whole segment.
+     */
+    public boolean mayMatch(int firstDay, int lastDay, long categories, long minCents, long maxCents) {
+        return firstDay <= endDay && lastDay >= startDay
+                && (categoryMask == 0 || (categoryMask & categories) != 0)
+                && minCents <= this.maxCents && maxCents >= this.minCents;
+    }
+
+    private boolean selected(int category) {
+        return categoryMask == 0 || (categoryMask & (1L << category)) != 0;
+    }
+
+    // Running
+
+    /** Answers a query that {@link #fitsRollups() fits} from {@code rollups}. */
+    public Result run(Rollups rollups) {
+        if (!fitsRollups()) throw new IllegalStateException("query needs the rows");
+        List<Bucket> buckets = new ArrayList<>();
+        int[] span = rollups.span();
+        int start = span == null ? 0 : Math.max(startDay, span[0]);
+        int end = span == null ? -1 : Math.min(endDay, span[1]);
+        if (start <= end) {
+            switch (group) {
+                case NONE:
+                    addBucket(buckets, 0, between(rollups, start, end, -1));
+                    break;
+                case CATEGORY:
+                    for (int c = 0; c < rollups.categories(); c++) {
+                        if (selected(c)) addBucket(buckets, c, rollups.between(start, end, c));
+                    }
+                    break;
+                default:
+                    Rollups.Level level = group == Group.MONTH ? Rollups.Level.MONTH : Rollups.Level.YEAR;
+                    for (int key = level.key(start); key <= level.key(end); key++) {
+                        int from = Math.max(start, level.start(key)), to = Math.min(end, level.end(key));
+                        addBucket(buckets, key, between(rollups, from, to, -1));
+                    }
+            }
+        }
+        return new Result(Plan.ROLLUPS, 0, buckets);
+    }
+
+    // {total, count} of the selected categories, or of {@code category}
+    private long[] between(Rollups rollups, int start, int end, int category) {
+        if (categoryMask == 0) return rollups.between(start, end, category);
+        long[] sum = new long[2];
+        for (int c = 0; c < rollups.categories(); c++) {
+            if (!selected(c)) continue;
+            long[] part = rollups.between(start, end, c);
+            sum[0] = Money.add(sum[0], part[0]);
+            sum[1] += part[1];
+        }
+        return sum;
+    }
+
+    private void addBucket(List<Bucket> buckets, int key, long[] totalAndCount) {
+        if (totalAndCount[1] == 0) return;
+        buckets.add(new Bucket(key, label(key), totalAndCount[0], totalAndCount[1], 0, 0, null));
+    }
+
+    /**
+     * Runs the query over the rows of {@code store}. {@code dates} may be
+     * null; {@code matches} are DescriptionIndex.search's rows for
+     * {@link #text()} with {@link #searchFilter()}, and are required when
+     * there is a description query. Amounts are taken as they are.
+     */
+    public Result run(ExpenseStore store, DateIndex dates, IntList matches) {
+        return run(store, dates, matches, null);
+    }
+
+    /** The same, converting every amount with {@code table}. */
+    public Result run(ExpenseStore store, DateIndex dates, IntList matches, Rates.Table table) {
+        Plan plan = Plan.SCAN;
+        IntList rows = null;
+        if (text != null) {
+            if (matches == null) throw new IllegalArgumentException("a description query needs the index's matches");
+            plan = Plan.DESCRIPTION_INDEX;
+            rows = matches;
+        } else if (dates != null && (startDay != Integer.MIN_VALUE || endDay != Integer.MAX_VALUE)) {
+            int from = dates.positionOf(startDay);
+            int to = endDay == Integer.MAX_VALUE ? dates.size() : dates.positionOf(endDay + 1);
+            if ((long) (to - from) * DATE_INDEX_SHARE < store.size()) {
+                plan = Plan.DATE_INDEX;
+                rows = dates.rowsBetween(startDay, endDay);
+            }
+        }
+        int n = rows == null ? store.size() : rows.size();
+        Scan scan = new Scan(store, rows, 0, n, table);
+        Partial result = n <= SCAN_CHUNK ? scan.compute() : ForkJoinPool.commonPool().invoke(scan);
+        return new Result(plan, n, result.buckets());
+    }
+
+    // Aggregates a range of rows (or of positions in a row list), splitting
+    // it in half until the pieces are one chunk
+    private final class Scan extends RecursiveTask<Partial> {
+        private static final long serialVersionUID = 1L;
+
+        private final ExpenseStore store;
+        private final IntList rows;   // null: row numbers from..to themselves
+        private final int from, to;
+        private final Rates.Table table;   // null: no conversion
+
+        Scan(ExpenseStore store, IntList rows, int from, int to, Rates.Table table) {
+            this.store = store;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.table = table;
+        }
+
+        @Override
+        protected Partial compute() {
+            if (to - from > SCAN_CHUNK) {
+                int mid = (from + to) >>> 1;
+                Scan left = new Scan(store, rows, from, mid, table);
+                left.fork();
+                Partial right = new Scan(store, rows, mid, to, table).compute();
+                return left.join().merge(right);
+            }
+            Partial part = new Partial(percentiles.length > 0, table);
+            scan(store, rows, from, to, categoryMask == 0 ? -1L : categoryMask, startDay, endDay, minCents, maxCents,
+                 group, table, part);
+            return part;
+        }
+    }
+
+    // Group keys within LANES of the first one a chunk sees (every category;
+    // the months or years of a run of mostly date-ordered rows) add up in
+    // fixed local arrays, which keeps the loop as tight as a plain sum. Other
+    // keys go straight to the partial. A row in another currency than the
+    // table's counts in its lane with its converted amount, but its own
+    // amount goes to the partial's cells to be converted at the end, summed
+    // a day at a time in a local array first.
+    private static final int LANES = 64;
+
+    private static void scan(ExpenseStore store, IntList rows, int from, int to, long mask, int first, int last,
+                             long min, long max, Group group, Rates.Table table, Partial part) {
+        boolean byCategory = group == Group.CATEGORY, byDate = group == Group.MONTH || group == Group.YEAR;
+        boolean readDates = byDate || first != Integer.MIN_VALUE || last != Integer.MAX_VALUE;
+        long[] totals = new long[LANES], counts = new long[LANES], mins = new long[LANES], maxs = new long[LANES];
+        Arrays.fill(mins, Long.MAX_VALUE);
+        Arrays.fill(maxs, Long.MIN_VALUE);
+        int base = byDate ? Integer.MIN_VALUE : 0;
+        int lastDay = ExpenseDates.INVALID, dayKey = 0;
+        int target = table == null ? -1 : table.currency();
+        long[] own = target < 0 ? null : new long[Currencies.MAX << 6];
+        int[] touched = target < 0 ? null : new int[Currencies.MAX << 6];
+        boolean[] used = target < 0 ? null : new boolean[Currencies.MAX << 6];
+        int ownDay = ExpenseDates.INVALID, ownCells = 0;
+        for (int i = from; i < to; i++) {
+            int row = rows == null ? i : rows.get(i);
+            int category = store.categoryAt(row);
+            if ((mask & (1L << category)) == 0) continue;
+            int day = readDates ? store.dateAt(row) : 0;
+            if (readDates && (day < first || day > last)) continue;
+            long cents = store.amountAt(row), ownCents = cents;
+            int currency = target < 0 ? target : store.currencyAt(row);
+            if (currency != target) {
+                if (!readDates) day = store.dateAt(row);
+                cents = table.convert(ownCents, currency, day);
+            }
+            if (cents < min || cents > max) continue;
+            int key = byCategory ? category : 0;
+            if (byDate) {
+                // Rows mostly come in date order, so the key rarely changes
+                if (day != lastDay) {
+                    lastDay = day;
+                    dayKey = group == Group.MONTH ? ExpenseAggregates.monthKey(day) : ExpenseDates.yearOf(day);
+                    if (base == Integer.MIN_VALUE) base = dayKey;
+                }
+                key = dayKey;
+            }
+            long summed = cents;
+            if (currency != target) {
+                if (day != ownDay) {
+                    ownCells = flushOwn(own, used, touched, ownCells, ownDay, part);
+                    ownDay = day;
+                }
+                int cell = currency << 6 | category;
+                if (!used[cell]) {
+                    used[cell] = true;
+                    touched[ownCells++] = cell;
+                }
+                own[cell] = Money.add(own[cell], ownCents);
+                summed = 0;
+            }
+            int lane = key - base;
+            if (lane >= 0 && lane < LANES) {
+                totals[lane] = Money.add(totals[lane], summed);
+                counts[lane]++;
+                if (cents < mins[lane]) mins[lane] = cents;
+                if (cents > maxs[lane]) maxs[lane] = cents;
+            } else {
+                part.add(key, summed, 1, cents, cents);
+            }
+            if (part.values != null) part.addValue(key, cents);
+        }
+        if (own != null) flushOwn(own, used, touched, ownCells, ownDay, part);
+        for (int lane = 0; lane < LANES; lane++) {
+            if (counts[lane] > 0) part.add(base + lane, totals[lane], counts[lane], mins[lane], maxs[lane]);
+        }
+    }
+
+    // Hands a day's own-currency sums to the partial and clears them
+    private static int flushOwn(long[] own, boolean[] used, int[] touched, int cells, int day, Partial part) {
+        for (int i = 0; i < cells; i++) {
+            int cell = touched[i];
+            part.addOwn(day, cell >>> 6, cell & 63, own[cell]);
+            own[cell] = 0;
+            used[cell] = false;
+        }
+        return 0;
+    }
+
+    // One chunk's aggregates, in a slot per group key
+    private final class Partial {
+        private final IntIntMap slots = new IntIntMap();
+        private int size;
+        private int[] keys = new int[8];
+        private long[] totals = new long[8];
+        private long[] counts = new long[8];
+        private long[] mins = new long[8];
+        private long[] maxs = new long[8];
+        private long[][] values;   // the amounts per slot, when percentiles are wanted
+        private int[] valueCounts;
+        private int lastKey, lastSlot = -1;
+        // Own-currency sums of the rows in other currencies, per Rates.cell
+        private final Map<Long, long[]> cells = new HashMap<>();
+        private long lastCell = Long.MIN_VALUE;
+        private long[] lastSum;
+        private final Rates.Table table;
+
+        Partial(boolean keepValues, Rates.Table table) {
+            this.table = table;
+            if (keepValues) {
+                values = new long[8][];
+                valueCounts = new int[8];
+            }
+        }
+
+        void addOwn(int day, int currency, int category, long cents) {
+            long cell = Rates.cell(day, currency, category);
+            if (cell != lastCell) {
+                lastCell = cell;
+                lastSum = cells.computeIfAbsent(cell, k -> new long[1]);
+            }
+            lastSum[0] = Money.add(lastSum[0], cents);
+        }
+
+        void add(int key, long total, long count, long min, long max) {
+            int slot = slot(key);
+            totals[slot] = Money.add(totals[slot], total);
+            counts[slot] += count;
+            mins[slot] = Math.min(mins[slot], min);
+            maxs[slot] = Math.max(maxs[slot], max);
+        }
+
+        void addValue(int key, long cents) {
+            int slot = key == lastKey && lastSlot >= 0 ? lastSlot : slot(key);
+            lastKey = key;
+            lastSlot = slot;
+            long[] list = values[slot];
+            int n = valueCounts[slot];
+            if (n == list.length) values[slot] = list = Arrays.copyOf(list, n * 2);
+            list[n] = cents;
+            valueCounts[slot] = n + 1;
+        }
+
+        // The slot for key, added if new
+        private int slot(int key) {
+            int slot = slots.putIfAbsent(key, size);
+            if (slot < size) return slot;
+            if (size == keys.length) {
+                int capacity = size * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                totals = Arrays.copyOf(totals, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                mins = Arrays.copyOf(mins, capacity);
+                maxs = Arrays.copyOf(maxs, capacity);
+                if (values != null) {
+                    values = Arrays.copyOf(values, capacity);
+                    valueCounts = Arrays.copyOf(valueCounts, capacity);
+                }
+            }
+            keys[size] = key;
+            mins[size] = Long.MAX_VALUE;
+            maxs[size] = Long.MIN_VALUE;
+            if (values != null) values[size] = new long[16];
+            return size++;
+        }
+
+        Partial merge(Partial other) {
+            for (Map.Entry<Long, long[]> e : other.cells.entrySet()) {
+                long[] sum = cells.computeIfAbsent(e.getKey(), k -> new long[1]);
+                sum[0] = Money.add(sum[0], e.getValue()[0]);
+            }
+            lastCell = Long.MIN_VALUE;
+            for (int s = 0; s < other.size; s++) {
+                add(other.keys[s], other.totals[s], other.counts[s], other.mins[s], other.maxs[s]);
+                if (values != null) {
+                    int slot = slot(other.keys[s]);
+                    int n = valueCounts[slot], extra = other.valueCounts[s];
+                    if (n + extra > values[slot].length) values[slot] = Arrays.copyOf(values[slot], n + extra);
+                    System.arraycopy(other.values[s], 0, values[slot], n, extra);
+                    valueCounts[slot] = n + extra;
+                }
+            }
+            return this;
+        }
+
+        List<Bucket> buckets() {
+            // Every cell's rows were counted in their group's slot already
+            for (Map.Entry<Long, long[]> e : cells.entrySet()) {
+                long cell = e.getKey();
+                int day = Rates.cellDay(cell);
+                int key;
+                switch (group) {
+                    case CATEGORY: key = Rates.cellCategory(cell); break;
+                    case MONTH: key = ExpenseAggregates.monthKey(day); break;
+                    case YEAR: key = ExpenseDates.yearOf(day); break;
+                    default: key = 0;
+                }
+                int slot = slot(key);
+                totals[slot] = Money.add(totals[slot], table.convert(e.getValue()[0], Rates.cellCurrency(cell), day));
+            }
+            cells.clear();
+            Integer[] order = new Integer[size];
+            for (int s = 0; s < size; s++) order[s] = s;
+            Arrays.sort(order, Comparator.comparingInt(s -> keys[s]));
+            List<Bucket> buckets = new ArrayList<>(size);
+            for (int s : order) {
+                long[] sorted = null;
+                if (values != null) {
+                    sorted = Arrays.copyOf(values[s], valueCounts[s]);
+                    Arrays.parallelSort(sorted);
+                }
+                buckets.add(new Bucket(keys[s], label(keys[s]), totals[s], counts[s], mins[s], maxs[s], sorted));
+            }
+            return buckets;
+        }
+    }
+
+    private String label(int key) {
+        switch (group) {
+            case NONE: return "All";
+            case CATEGORY: return Categories.name(key);
+            case MONTH: return Rollups.Level.MONTH.label(key);
+            default: return Integer.toString(key);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local multi-user mode: several clients share one ledger over TCP.
+ *
+ *   java ExpenseTracker --server [--port 7878] [--max-clients 64]
+ *
+ * The server listens on 127.0.0.1 only and speaks BatchMode's command
+ * language: one command per line, answered with BatchMode's tab-separated
+ * output followed by a line holding a single "." (descriptions are escaped,
+ * so no result line can be just a dot). "quit" closes the connection.
+ *
+ *   $ nc localhost 7878
+ *   add 12.50 food 01/03/2024 lunch
+ *   ok	added	1042
+ *   .
+ *
+ * Each client gets its own thread from a bounded pool. Changes are applied
+ * under the ledger's lock for a microsecond or two and then wait for a
+ * group-committed fsync, so concurrent writers share fsyncs instead of
+ * queueing for them. Queries, searches and exports read an immutable
+ * Ledger.View, so a slow client never holds up writers. LoadGenerator drives
+ * a running server and reports throughput and latency.
+ *
+ * A server runs for days, so besides adding the recurring expenses due at
+ * start it checks for newly due ones every hour
+ * (-Dexpenses.recurringCheckMinutes).
+ */
+public class ExpenseServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 7878;
+    private static final int DEFAULT_MAX_CLIENTS = 64;
+    private static final long DEFAULT_RECURRING_CHECK_MINUTES = 60;
+
+    private final Ledger ledger;
+    private final ServerSocket socket;
+    private final ThreadPoolExecutor clients;
+    private final ScheduledExecutorService recurringCheck;
+
+    public ExpenseServer(Ledger ledger, int port, int maxClients) throws IOException {
+        this.ledger = ledger;
+        this.socket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        AtomicInteger threads = new AtomicInteger();
+        // No queue: a client beyond maxClients is turned away rather than left waiting
+        this.clients = new ThreadPoolExecutor(0, maxClients, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, "expense-client-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.recurringCheck = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "expense-recurring");
+            t.setDaemon(true);
+            return t;
+        });
+        long minutes = Math.max(1, Long.getLong("expenses.recurringCheckMinutes", DEFAULT_RECURRING_CHECK_MINUTES));
+        recurringCheck.scheduleWithFixedDelay(() -> BatchMode.addDueRecurring(ledger), minutes, minutes,
+                                              TimeUnit.MINUTES);
+    }
+
+    /** Runs the server described by {@code args} until it is stopped; returns the exit status. */
+    public static int run(Ledger ledger, String[] args) {
+        int port = DEFAULT_PORT;
+        int maxClients = DEFAULT_MAX_CLIENTS;
+        for (int i = 0; i < args.length; i++) {
+            try {
+                switch (args[i]) {
+                    case "--port": port = Integer.parseInt(args[++i]); break;
+                    case "--max-clients": maxClients = Integer.parseInt(args[++i]); break;
+                    default:
+                        System.err.println("usage: java ExpenseTracker --server [--port N] [--max-clients N]");
+                        return 2;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.err.println("Invalid value for " + args[i - 1]);
+                return 2;
+            }
+        }
+
+        Ledger.LoadReport report = ledger.load();
+        ExpenseTracker.publishMetrics();
+        for (String warning : report.warnings) {
+            System.err.println(warning);
+        }
+        BatchMode.addDueRecurring(ledger);
+        ledger.groupCommit(true);
+        ExpenseServer server;
+        try {
+            server = new ExpenseServer(ledger, port, maxClients);
+        } catch (IOException e) {
+            System.err.println("Cannot listen on port " + port + ": " + e.getMessage());
+            return 1;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                System.err.println("Error saving data: " + e.getMessage());
+            }
+        }));
+        System.err.printf("Serving %d expenses on %s:%d%n", report.rows,
+                          server.socket.getInetAddress().getHostAddress(), server.socket.getLocalPort());
+        server.serve();
+        return 0;
+    }
+
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    /** Accepts clients until the server is closed. */
+    public void serve() {
+        while (!socket.isClosed()) {
+            Socket client;
+            try {
+                client = socket.accept();
+            } catch (IOException e) {
+                if (!socket.isClosed()) System.err.println("Error accepting a client: " + e.getMessage());
+                continue;
+            }
+            try {
+                clients.execute(() -> session(client));
+            } catch (RejectedExecutionException e) {
+                refuse(client);
+            }
+        }
+    }
+
+    // One client's commands, answered in order
+    private void session(Socket client) {
+        try (Socket s = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16), false,
+                                               "UTF-8")) {
+            s.setTcpNoDelay(true);
+            BatchMode commands = new BatchMode(ledger, out, true);
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().equalsIgnoreCase("quit")) break;
+                lineNumber++;
+                try {
+                    commands.execute(line, lineNumber);
+                } catch (IOException e) {
+                    out.println("error\t" + lineNumber + "\t" + e.getMessage());
+                }
+                out.println(".");
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the client went away; nothing to answer
+        }
+    }
+
+    private static void refuse(Socket client) {
+        try (Socket s = client) {
+            OutputStream out = s.getOutputStream();
+            out.write("error\t0\tserver busy\n.\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            // nothing more to tell it
+        }
+    }
+
+    /** Stops accepting, lets running commands finish briefly, then closes the ledger. */
+    @Override
+    public void close() throws IOException {
+        if (socket.isClosed()) return;
+        socket.close();
+        clients.shutdown();
+        // Not interrupted: a pass writing segments would lose its file channels
+        recurringCheck.shutdown();
+        try {
+            clients.awaitTermination(2, TimeUnit.SECONDS);
+            recurringCheck.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ledger.close();
+    }
+}
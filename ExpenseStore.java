@@ -0,0 +1,53 @@
+/**
+ * Row-addressed storage for the ledger. Rows are numbered 0..size()-1 in
+ * insertion (ID) order; amounts are in cents of the row's currency,
+ * currencies and categories are numbers from the Currencies and Categories
+ * registries and dates are epoch days. Expense objects are
+ * only materialized through get() when something needs to be displayed.
+ */
+public interface ExpenseStore {
+
+    int size();
+
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int idAt(int row);
+
+    long amountAt(int row);
+
+    int currencyAt(int row);
+
+    int categoryAt(int row);
+
+    int dateAt(int row);
+
+    String descriptionAt(int row);
+
+    /** Materializes a read-only view of one row. */
+    Expense get(int row);
+
+    /** Appends a row and returns its row number. */
+    int add(int id, long amountCents, int currency, int category, int epochDay, String description);
+
+    /** The same in the home currency. */
+    default int add(int id, long amountCents, int category, int epochDay, String description) {
+        return add(id, amountCents, Currencies.home(), category, epochDay, description);
+    }
+
+    /** Removes one row; the rows after it move down by one. */
+    void remove(int row);
+
+    /**
+     * Removes several rows (numbered as before the call) in one go, which is
+     * much cheaper than removing them one at a time.
+     */
+    void removeAll(IntList rows);
+
+    /** Row holding {@code id}, or -1. */
+    int indexOf(int id);
+
+    /** Independent copy, used to write snapshots off the interactive thread. */
+    ExpenseStore copy();
+}
@@ -1,12 +1,14 @@
 import java.io.*;
+import java.math.BigDecimal;
 import java.nio.file.*;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 public class ExpenseTracker {
-    private List<Expense> expenses;
-    private int nextId;
+    private final Ledger ledger;
+    private ExpenseAggregates aggregates;
     private Scanner scanner;
+    // Listings are rendered here and flushed a page at a time
+    private final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
     
     // Color codes
     public static final String RESET = "\u001B[0m";
@@ -17,49 +19,159 @@ public class ExpenseTracker {
     public static final String PURPLE = "\u001B[35m";
     public static final String CYAN = "\u001B[36m";
     
-    private static final String[] CATEGORIES = {
-        "Food", "Transport", "Entertainment", "Utilities", "Shopping", "Healthcare", "Other"
-    };
+    static final String DATA_FILE = "expenses.dat";
+    static final String LEGACY_DATA_FILE = "expenses.txt";
+    static final String JOURNAL_FILE = "expenses.journal";
+    static final String SEGMENT_DIR = "expenses.segments";
+    static final String BUDGET_FILE = "budgets.txt";
+    static final String CATEGORY_FILE = "categories.txt";
+    static final String RECURRING_FILE = "recurring.txt";
+    static final String RATES_FILE = "rates.txt";
+    static final String METRICS_FILE = "metrics.txt";
     
-    public ExpenseTracker() {
-        expenses = new ArrayList<>();
+    // Expense boxes, colored once per amount tier (see amountTier)
+    private static final String[][] BOXES = { box(GREEN), box(BLUE), box(YELLOW), box(RED) };
+    
+    public ExpenseTracker(Ledger ledger) {
+        this.ledger = ledger;
         scanner = new Scanner(System.in);
-        nextId = 1;
         loadFromFile();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::closeJournal));
+    }
+    
+    static Ledger openLedger() {
+        Path data = Paths.get(DATA_FILE);
+        Path legacy = Paths.get(LEGACY_DATA_FILE);
+        if (Files.notExists(data) && Files.exists(legacy)) {
+            // One-time upgrade from the text snapshot; the old file is kept as .bak.
+            // Starting without rows the file holds would lose them for good once
+            // new data is saved, so unreadable rows stop the start instead.
+            try {
+                ExpenseLoader.Result result = SnapshotFile.convert(legacy, data);
+                if (result.skipped > 0) {
+                    System.err.println("Not converting " + LEGACY_DATA_FILE + ": " + result.describeSkipped());
+                    System.err.println("Fix or remove those lines and start again; the file is left as it is.");
+                    System.exit(1);
+                }
+                Files.move(legacy, Paths.get(LEGACY_DATA_FILE + ".bak"), StandardCopyOption.REPLACE_EXISTING);
+                System.err.println("Converted " + LEGACY_DATA_FILE + " to " + DATA_FILE + " ("
+                                   + result.store.size() + " rows)");
+            } catch (IOException e) {
+                System.err.println("Error converting " + LEGACY_DATA_FILE + ": " + e.getMessage());
+                data = legacy;   // still readable as text
+            }
+        }
+        return new Ledger(data, Paths.get(JOURNAL_FILE));
+    }
+    
+    // After loading, so the JMX start-up doesn't slow the load down
+    static void publishMetrics() {
+        Metrics.publish(Paths.get(METRICS_FILE), Long.getLong("expenses.metricsDump", 0));
     }
     
     // File operations
-    private void saveToFile() {
-        try (PrintWriter writer = new PrintWriter("expenses.txt")) {
-            for (Expense expense : expenses) {
-                writer.println(expense.getId() + "|" + expense.getAmount() + "|" + 
-                              expense.getCategory() + "|" + expense.getDate() + "|" + 
-                              expense.getDescription());
+    
+    // Writes a full snapshot, for the benchmarks. The ledger itself keeps a
+    // snapshot per month (see Segments) and rewrites only the changed ones.
+    static void writeSnapshot(ExpenseStore rows, Path target) throws IOException {
+        try (Metrics.Span span = Metrics.start(Metrics.Op.SNAPSHOT)) {
+            SnapshotFile.write(rows, target);
+            span.rows(rows.size(), rows.size()).written(Files.size(target));
+        }
+    }
+    
+    private void loadFromFile() {
+        Ledger.LoadReport report = ledger.load();
+        publishMetrics();
+        for (String warning : report.warnings) {
+            System.out.println(RED + warning + RESET);
+        }
+        aggregates = ledger.aggregates();
+        if (report.found) {
+            System.out.printf(GREEN + "✓ Previous expenses loaded successfully! (%d, %d of them in memory, in %.0f ms)\n"
+                              + RESET, report.rows, report.loaded, report.elapsedNanos / 1e6);
+        } else {
+            System.out.println(YELLOW + "Starting fresh - no previous data found." + RESET);
+        }
+        addDueRecurring();
+    }
+    
+    // Rent, subscriptions and the like that fell due since the last start
+    private void addDueRecurring() {
+        try {
+            Recurring.Result result = ledger.materializeRecurring(ExpenseDates.today());
+            if (result.added > 0) {
+                System.out.printf(GREEN + "✓ Added %d recurring expense%s from %d rule%s\n" + RESET, result.added,
+                                  result.added == 1 ? "" : "s", result.rules, result.rules == 1 ? "" : "s");
             }
+        } catch (IOException e) {
+            System.out.println(RED + "Error adding recurring expenses: " + e.getMessage() + RESET);
+        }
+    }
+    
+    private void closeJournal() {
+        try {
+            ledger.close();
         } catch (IOException e) {
             System.out.println("Error saving data: " + e.getMessage());
         }
     }
     
-    private void loadFromFile() {
+    // Exit from the menu: waits for the changes still waiting on the
+    // write-behind fsync and says so, then closes the ledger as the hook would
+    private void saveAndClose() {
+        int pending = ledger.pendingChanges();
         try {
-            List<String> lines = Files.readAllLines(Paths.get("expenses.txt"));
-            for (String line : lines) {
-                String[] data = line.split("\\|");
-                if (data.length == 5) {
-                    Expense expense = new Expense(
-                        Integer.parseInt(data[0]), 
-                        Double.parseDouble(data[1]), 
-                        data[2], data[3], data[4]
-                    );
-                    expenses.add(expense);
-                }
+            if (pending > 0) {
+                System.out.printf("Saving %d pending change%s...\n", pending, pending == 1 ? "" : "s");
+                ledger.flush();
             }
-            nextId = expenses.stream().mapToInt(Expense::getId).max().orElse(0) + 1;
-            System.out.println(GREEN + "✓ Previous expenses loaded successfully!" + RESET);
+            ledger.close();
+            System.out.println(GREEN + "✓ All changes saved" + RESET);
         } catch (IOException e) {
-            System.out.println(YELLOW + "Starting fresh - no previous data found." + RESET);
+            System.out.println(RED + "Error saving data: " + e.getMessage() + RESET);
+        }
+    }
+    
+    // Returns the budget thresholds the expense crossed
+    private List<Budgets.Status> recordExpense(long amountCents, int currency, int category, int date,
+                                               String description) {
+        List<Budgets.Status> alerts = new ArrayList<>();
+        try {
+            ledger.add(amountCents, currency, category, date, description, alerts);
+        } catch (IOException e) {
+            System.out.println("Error saving data: " + e.getMessage());
+        }
+        return alerts;
+    }
+    
+    // The category list for a new expense, with one more entry that adds a
+    // category first. -1 after reporting an invalid choice.
+    private int chooseCategoryToAdd(String invalid) {
+        System.out.println("Select category:");
+        int count = Categories.count();
+        for (int i = 0; i < count; i++) {
+            System.out.println((i + 1) + ". " + Categories.name(i));
+        }
+        boolean room = count < Categories.MAX;
+        if (room) System.out.println((count + 1) + ". New category...");
+        int catChoice = getIntInput("Enter category number: ") - 1;
+        if (room && catChoice == count) {
+            System.out.print("Enter the new category's name: ");
+            try {
+                int category = ledger.addCategory(scanner.nextLine());
+                System.out.println(GREEN + "Category " + Categories.name(category) + " added!" + RESET);
+                return category;
+            } catch (IllegalArgumentException | IOException e) {
+                System.out.println(RED + "Could not add the category: " + e.getMessage() + RESET);
+                return -1;
+            }
         }
+        if (catChoice < 0 || catChoice >= count) {
+            System.out.println(RED + invalid + RESET);
+            return -1;
+        }
+        return catChoice;
     }
     
     // Main menu and core functionality
@@ -80,7 +192,13 @@ public class ExpenseTracker {
     case 8: calculatorMode(); break;  // NEW CALCULATOR! 🧮
     case 9: exportToCSV(); break;
     case 10: deleteExpense(); break;
+    case 12: importFromCSV(); break;
+    case 13: searchDescriptions(); break;
+    case 14: diagnostics(); break;
+    case 15: recurringExpenses(); break;
+    case 16: currenciesAndRates(); break;
     case 11: 
+        saveAndClose();
         System.out.println(GREEN + "Thank you for using Expense Tracker!" + RESET);
         return;
     default: System.out.println(RED + "Invalid choice! Please try again." + RESET);
@@ -91,27 +209,40 @@ public class ExpenseTracker {
 private void exportToCSV() {
     System.out.println("\n--- Export Expenses to CSV ---");
     
-    if (expenses.isEmpty()) {
+    if (aggregates.count() == 0) {
         System.out.println(YELLOW + "No expenses to export." + RESET);
         return;
     }
     
-    try (PrintWriter writer = new PrintWriter("expenses_export.csv")) {
-        // Write CSV header
-        writer.println("ID,Amount,Category,Date,Description");
-        
-        // Write all expenses
-        for (Expense expense : expenses) {
-            writer.printf("%d,%.2f,%s,%s,%s\n",
-                expense.getId(), 
-                expense.getAmount(), 
-                expense.getCategory(), 
-                expense.getDate(),
-                expense.getDescription().replace(",", ";") // Avoid CSV issues
-            );
+    CsvExporter.Filter filter = new CsvExporter.Filter();
+    System.out.print("Only export a date range? (y/n): ");
+    if (scanner.nextLine().trim().equalsIgnoreCase("y")) {
+        filter.dates(getDateInput("Enter start date (DD/MM/YYYY): "),
+                     getDateInput("Enter end date (DD/MM/YYYY): "));
+    }
+    System.out.print("Only export one category? (y/n): ");
+    if (scanner.nextLine().trim().equalsIgnoreCase("y")) {
+        for (int i = 0; i < Categories.count(); i++) {
+            System.out.println((i + 1) + ". " + Categories.name(i));
         }
+        int catChoice = getIntInput("Enter category number: ") - 1;
+        if (catChoice < 0 || catChoice >= Categories.count()) {
+            System.out.println(RED + "Invalid category selection!" + RESET);
+            return;
+        }
+        filter.category(catChoice);
+    }
+    System.out.print("Compress with gzip? (y/n): ");
+    boolean gzip = scanner.nextLine().trim().equalsIgnoreCase("y");
+    String file = gzip ? "expenses_export.csv.gz" : "expenses_export.csv";
+    
+    try (Ledger.View view = ledger.view(filter.startDay, filter.endDay,
+                                        filter.category < 0 ? 0 : 1L << filter.category)) {
+        CsvExporter.Result result = CsvExporter.export(view.store, view.dates, filter, Paths.get(file), gzip);
         
-        System.out.println(GREEN + "✅ Data exported to 'expenses_export.csv'" + RESET);
+        System.out.println(GREEN + "✅ " + result.rows + " expenses exported to '" + file + "'" + RESET);
+        System.out.printf(CYAN + "⚡ %.1f MB in %.0f ms (%.1f MB/s)\n" + RESET,
+                          result.bytes / (double) (1 << 20), result.elapsedNanos / 1e6, result.megabytesPerSecond());
         System.out.println(CYAN + "📁 File saved in your project folder!" + RESET);
         System.out.println(CYAN + "💼 You can open this in Excel for analysis!" + RESET);
         
@@ -132,6 +263,11 @@ private void displayMenu() {
     System.out.println("9. Export to CSV");
     System.out.println("10. Delete an Expense");
     System.out.println("11. Exit");
+    System.out.println("12. Import from CSV");
+    System.out.println("13. Search Descriptions");
+    System.out.println("14. Diagnostics");
+    System.out.println("15. Recurring Expenses");
+    System.out.println("16. Currencies & Rates");
     System.out.println(CYAN + "=====================" + RESET);
 }
     
@@ -143,7 +279,8 @@ private void displayMenu() {
         System.out.println("3. Monthly Expenses");
         System.out.println("4. Yearly Expenses");
         System.out.println("5. Custom Date Range");
-        System.out.println("6. Back to Main Menu");
+        System.out.println("6. Spending Trends");
+        System.out.println("7. Back to Main Menu");
         
         int choice = getIntInput("Enter your choice: ");
         
@@ -153,255 +290,323 @@ private void displayMenu() {
             case 3: viewMonthlyExpenses(); break;
             case 4: viewYearlyExpenses(); break;
             case 5: viewCustomDateRange(); break;
-            case 6: return;
+            case 6: viewTrends(); break;
+            case 7: return;
             default: System.out.println(RED + "Invalid choice!" + RESET);
         }
     }
     
     // NEW: Daily Expenses
     private void viewDailyExpenses() {
-        System.out.print("Enter date (DD/MM/YYYY): ");
-        String date = scanner.nextLine();
-        
-        List<Expense> dailyExpenses = new ArrayList<>();
-        double dailyTotal = 0;
+        int date = getDateInput("Enter date (DD/MM/YYYY): ");
         
-        for (Expense expense : expenses) {
-            if (expense.getDate().equals(date)) {
-                dailyExpenses.add(expense);
-                dailyTotal += expense.getAmount();
-            }
-        }
-        
-        displayTimeBasedResults("DAILY", date, dailyExpenses, dailyTotal);
+        displayTimeBasedResults("DAILY", ExpenseDates.format(date), date, date);
     }
     
     // NEW: Weekly Expenses
     private void viewWeeklyExpenses() {
-        System.out.print("Enter start date of week (DD/MM/YYYY): ");
-        String startDate = scanner.nextLine();
+        int startDate = getDateInput("Enter start date of week (DD/MM/YYYY): ");
         
-        // Calculate end date (6 days after start)
-        String endDate = calculateEndDate(startDate, 6);
-        List<Expense> weeklyExpenses = getExpensesByDateRange(startDate, endDate);
-        double weeklyTotal = calculateTotal(weeklyExpenses);
+        // End date is 6 days after start
+        int endDate = startDate + 6;
         
-        displayTimeBasedResults("WEEKLY", startDate + " to " + endDate, weeklyExpenses, weeklyTotal);
+        displayTimeBasedResults("WEEKLY", ExpenseDates.format(startDate) + " to " + ExpenseDates.format(endDate),
+                                startDate, endDate);
     }
     
     // NEW: Monthly Expenses
     private void viewMonthlyExpenses() {
         System.out.print("Enter month and year (MM/YYYY): ");
-        String monthYear = scanner.nextLine();
-        
-        List<Expense> monthlyExpenses = new ArrayList<>();
-        double monthlyTotal = 0;
+        String monthYear = scanner.nextLine().trim();
         
-        for (Expense expense : expenses) {
-            if (expense.getDate().endsWith(monthYear)) {
-                monthlyExpenses.add(expense);
-                monthlyTotal += expense.getAmount();
-            }
+        int first = ExpenseDates.parse("01/" + monthYear);
+        if (first == ExpenseDates.INVALID) {
+            System.out.println(RED + "Invalid month! Use MM/YYYY." + RESET);
+            return;
         }
+        int last = first + ExpenseDates.daysInMonth(ExpenseDates.yearOf(first), ExpenseDates.monthOf(first)) - 1;
         
-        displayTimeBasedResults("MONTHLY", monthYear, monthlyExpenses, monthlyTotal);
+        displayTimeBasedResults("MONTHLY", monthYear, first, last);
     }
     
     // NEW: Yearly Expenses
     private void viewYearlyExpenses() {
         System.out.print("Enter year (YYYY): ");
-        String year = scanner.nextLine();
-        
-        List<Expense> yearlyExpenses = new ArrayList<>();
-        double yearlyTotal = 0;
+        String year = scanner.nextLine().trim();
         
-        for (Expense expense : expenses) {
-            if (expense.getDate().endsWith(year)) {
-                yearlyExpenses.add(expense);
-                yearlyTotal += expense.getAmount();
-            }
+        int first = ExpenseDates.parse("01/01/" + year);
+        if (first == ExpenseDates.INVALID) {
+            System.out.println(RED + "Invalid year! Use YYYY." + RESET);
+            return;
         }
+        int last = ExpenseDates.parse("31/12/" + year);
         
-        displayTimeBasedResults("YEARLY", year, yearlyExpenses, yearlyTotal);
+        displayTimeBasedResults("YEARLY", year, first, last);
     }
     
     // NEW: Custom Date Range
     private void viewCustomDateRange() {
-        System.out.print("Enter start date (DD/MM/YYYY): ");
-        String startDate = scanner.nextLine();
-        System.out.print("Enter end date (DD/MM/YYYY): ");
-        String endDate = scanner.nextLine();
+        int startDate = getDateInput("Enter start date (DD/MM/YYYY): ");
+        int endDate = getDateInput("Enter end date (DD/MM/YYYY): ");
         
-        List<Expense> rangeExpenses = getExpensesByDateRange(startDate, endDate);
-        double rangeTotal = calculateTotal(rangeExpenses);
-        
-        displayTimeBasedResults("CUSTOM RANGE", startDate + " to " + endDate, rangeExpenses, rangeTotal);
+        displayTimeBasedResults("CUSTOM RANGE", ExpenseDates.format(startDate) + " to " + ExpenseDates.format(endDate),
+                                startDate, endDate);
     }
     
     // NEW: Helper methods for time-based analytics
-    private List<Expense> getExpensesByDateRange(String startDate, String endDate) {
-        List<Expense> filteredExpenses = new ArrayList<>();
-        for (Expense expense : expenses) {
-            if (isDateInRange(expense.getDate(), startDate, endDate)) {
-                filteredExpenses.add(expense);
-            }
+    private long calculateTotal(ExpenseStore store, IntList rows) {
+        Rates.Sum total = new Rates.Sum(ledger.conversion());
+        for (int i = 0; i < rows.size(); i++) {
+            int row = rows.get(i);
+            total.add(store.amountAt(row), store.currencyAt(row), store.categoryAt(row), store.dateAt(row));
         }
-        return filteredExpenses;
-    }
-    
-    private boolean isDateInRange(String expenseDate, String startDate, String endDate) {
-        try {
-            SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy");
-            Date expDate = sdf.parse(expenseDate);
-            Date start = sdf.parse(startDate);
-            Date end = sdf.parse(endDate);
-            return !expDate.before(start) && !expDate.after(end);
-        } catch (Exception e) {
-            return false;
-        }
-    }
-    
-    private String calculateEndDate(String startDate, int daysToAdd) {
-        try {
-            SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy");
-            Date date = sdf.parse(startDate);
-            Calendar cal = Calendar.getInstance();
-            cal.setTime(date);
-            cal.add(Calendar.DATE, daysToAdd);
-            return sdf.format(cal.getTime());
-        } catch (Exception e) {
-            return startDate;
-        }
-    }
-    
-    private double calculateTotal(List<Expense> expenseList) {
-        double total = 0;
-        for (Expense expense : expenseList) {
-            total += expense.getAmount();
-        }
-        return total;
+        return total.total();
     }
     
     // NEW: Display time-based results
-    private void displayTimeBasedResults(String periodType, String period, List<Expense> expenseList, double total) {
+    private void displayTimeBasedResults(String periodType, String period, int startDate, int endDate) {
         System.out.println(CYAN + "\n══════════════════════════════════════════════════════" + RESET);
         System.out.println(CYAN + periodType + " EXPENSES: " + period + RESET);
         System.out.println(CYAN + "══════════════════════════════════════════════════════" + RESET);
         
-        if (expenseList.isEmpty()) {
+        // The totals need no rows (the planner answers from the rollups); only
+        // the rows shown are read
+        ExpenseQuery.Result summary = ledger.query(new ExpenseQuery().dates(startDate, endDate));
+        if (summary.count() == 0) {
             System.out.println(YELLOW + "No expenses found for this period." + RESET);
             return;
         }
         
-        for (Expense expense : expenseList) {
-            displayExpense(expense);
+        try (Ledger.View view = ledger.view(startDate, endDate, 0)) {
+            browse(view.store, ExpenseCursor.between(view.store, view.dates, startDate, endDate));
         }
         
         System.out.println(CYAN + "──────────────────────────────────────────────────────" + RESET);
-        System.out.printf(CYAN + "💰 TOTAL FOR " + periodType + ": $%.2f\n" + RESET, total);
-        System.out.printf(CYAN + "📊 NUMBER OF EXPENSES: %d\n" + RESET, expenseList.size());
+        System.out.printf(CYAN + "💰 TOTAL FOR " + periodType + ": %s\n" + RESET, money(summary.total()));
+        System.out.printf(CYAN + "📊 NUMBER OF EXPENSES: %d\n" + RESET, summary.count());
         System.out.println(CYAN + "──────────────────────────────────────────────────────" + RESET);
     }
     
+    // Spend per category for the last N days, weeks, months or years, with a
+    // moving average and the change from the period before
+    private void viewTrends() {
+        System.out.println("1. Daily  2. Weekly  3. Monthly  4. Yearly");
+        int choice = getIntInput("Enter period: ");
+        if (choice < 1 || choice > 4) {
+            System.out.println(RED + "Invalid choice!" + RESET);
+            return;
+        }
+        Rollups.Level level = Rollups.Level.values()[choice - 1];
+        int periods = getOptionalInt("How many periods? (Enter for 12): ", 12);
+        int window = getOptionalInt("Moving average over how many periods? (Enter for 3): ", 3);
+        System.out.print("Up to which date? (DD/MM/YYYY, Enter for today): ");
+        String line = scanner.nextLine().trim();
+        int last = line.isEmpty() ? ExpenseDates.today() : ExpenseDates.parse(line);
+        if (periods < 1 || periods > 10000 || window < 1 || last == ExpenseDates.INVALID) {
+            System.out.println(RED + "Invalid input!" + RESET);
+            return;
+        }
+        
+        Rollups.Trend trend = ledger.trend(level, last, periods);
+        long[] totals = trend.totals(-1);
+        long[] averages = Rollups.movingAverage(totals, window);
+        
+        out.println(CYAN + "\n══════ SPENDING TRENDS: " + level.toString().toUpperCase(Locale.ROOT) + " ══════" + RESET);
+        out.printf(CYAN + "%-16s", "Period");
+        for (String category : Categories.names()) {
+            out.printf(" %10.10s", category);
+        }
+        out.printf(" %12s %12s %8s\n" + RESET, "Total", "Avg(" + window + ")", "Change");
+        int busiest = 0;
+        for (int i = 0; i < trend.periods(); i++) {
+            out.printf("%-16s", trend.label(i));
+            for (int c = 0; c < Categories.count(); c++) {
+                out.printf(" %10s", Money.format(trend.totals(c)[i]));
+            }
+            double change = Rollups.percentChange(totals, i);
+            String color = Double.isNaN(change) || change == 0 ? RESET : change > 0 ? RED : GREEN;
+            out.printf(" %12s %12s " + color + "%8s\n" + RESET, Money.format(totals[i]), Money.format(averages[i]),
+                       Double.isNaN(change) ? "-" : String.format("%+.1f%%", change));
+            if (totals[i] > totals[busiest]) busiest = i;
+        }
+        long sum = 0;
+        for (long t : totals) sum = Money.add(sum, t);
+        out.printf(CYAN + "📈 Highest: %s (%s) | Average per period: %s\n" + RESET, trend.label(busiest),
+                   money(totals[busiest]), money(Math.round(sum / (double) totals.length)));
+        out.flush();
+    }
+    
     // Existing methods (addExpense, viewAllExpenses, etc.)
     private void addExpense() {
         System.out.println("\n--- Add New Expense ---");
         
-        double amount = getDoubleInput("Enter amount: $");
+        long amount = getMoneyInput("Enter amount: ");
+        int currency = getCurrencyInput();
         
-        System.out.println("Select category:");
-        for (int i = 0; i < CATEGORIES.length; i++) {
-            System.out.println((i + 1) + ". " + CATEGORIES[i]);
-        }
-        int catChoice = getIntInput("Enter category number: ") - 1;
+        int catChoice = chooseCategoryToAdd("Invalid category selection!");
+        if (catChoice < 0) return;
         
-        if (catChoice < 0 || catChoice >= CATEGORIES.length) {
-            System.out.println(RED + "Invalid category selection!" + RESET);
-            return;
-        }
-        
-        String category = CATEGORIES[catChoice];
-        System.out.print("Enter date (DD/MM/YYYY): ");
-        String date = scanner.nextLine();
+        int date = getDateInput("Enter date (DD/MM/YYYY): ");
         System.out.print("Enter description: ");
         String description = scanner.nextLine();
         
-        Expense expense = new Expense(nextId++, amount, category, date, description);
-        expenses.add(expense);
-        saveToFile();
+        List<Budgets.Status> alerts = recordExpense(amount, currency, catChoice, date, description);
         System.out.println(GREEN + "Expense added successfully!" + RESET);
+        showBudgetAlerts(alerts);
     }
     
     private void viewAllExpenses() {
         System.out.println("\n--- All Expenses ---");
-        if (expenses.isEmpty()) {
+        if (aggregates.count() == 0) {
             System.out.println(YELLOW + "No expenses recorded yet." + RESET);
             return;
         }
         
-        for (Expense expense : expenses) {
-            displayExpense(expense);
+        try (Ledger.View view = ledger.view(Integer.MIN_VALUE, Integer.MAX_VALUE, 0)) {
+            browse(view.store, ExpenseCursor.all(view.store, view.dates));
         }
     }
     
-    private void displayExpense(Expense expense) {
-        String color;
-        if (expense.getAmount() > 100) {
-            color = RED;
-        } else if (expense.getAmount() > 50) {
-            color = YELLOW;
-        } else if (expense.getAmount() > 20) {
-            color = BLUE;
-        } else {
-            color = GREEN;
+    // Shows a listing of store's rows a page at a time. Listings that fit on
+    // one page are just printed; longer ones wait for a paging command after
+    // each page. The store is a view, so the rows hold still meanwhile.
+    private void browse(ExpenseStore store, ExpenseCursor cursor) {
+        cursor.currency(ledger.conversion());
+        boolean paging = cursor.pages() > 1;
+        boolean render = true;
+        while (true) {
+            if (render) {
+                IntList rows = cursor.rows();
+                for (int i = 0; i < rows.size(); i++) {
+                    displayExpense(store, rows.get(i));
+                }
+            }
+            if (!paging) {
+                out.flush();
+                return;
+            }
+            render = true;
+            out.printf(CYAN + "Page %d of %d · expenses %d-%d of %d · %s\n" + RESET,
+                       cursor.page() + 1, cursor.pages(), cursor.firstIndex() + 1,
+                       cursor.firstIndex() + cursor.rows().size(), cursor.count(), cursor.order());
+            out.println("[Enter] next  p previous  j <page> jump  s <size> page size  o sort  t <n> top n  q back");
+            out.print("> ");
+            out.flush();
+            String[] command = scanner.nextLine().trim().split("\\s+");
+            try {
+                switch (command[0].toLowerCase()) {
+                    case "":
+                    case "n":
+                        if (!cursor.hasNext()) return;
+                        cursor.next();
+                        break;
+                    case "p":
+                        cursor.previous();
+                        break;
+                    case "j":
+                        cursor.jump(Integer.parseInt(command[1]) - 1);
+                        break;
+                    case "s":
+                        cursor.pageSize(Integer.parseInt(command[1]));
+                        break;
+                    case "o":
+                        ExpenseCursor.Order[] orders = ExpenseCursor.Order.values();
+                        for (int i = 0; i < orders.length; i++) {
+                            out.println((i + 1) + ". Sort by " + orders[i]);
+                        }
+                        out.flush();
+                        int choice = getIntInput("Enter sort number: ") - 1;
+                        if (choice < 0 || choice >= orders.length) {
+                            System.out.println(RED + "Invalid sort selection!" + RESET);
+                            render = false;
+                        } else {
+                            cursor.order(orders[choice]);
+                        }
+                        break;
+                    case "t":
+                        cursor.order(ExpenseCursor.Order.AMOUNT_DESC);
+                        cursor.pageSize(Integer.parseInt(command[1]));
+                        break;
+                    case "q":
+                        return;
+                    default:
+                        System.out.println(RED + "Unknown command: " + command[0] + RESET);
+                        render = false;
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                System.out.println(RED + "'" + command[0] + "' needs a number, e.g. " + command[0] + " 5" + RESET);
+                render = false;
+            } catch (IllegalArgumentException e) {
+                System.out.println(RED + "Please enter a valid number!" + RESET);
+                render = false;
+            }
         }
-        
-        System.out.println(color + "┌─────────────────────────────────────────────────────┐" + RESET);
-        System.out.printf(color + "│ ID: %-4d │ Date: %-10s │ Amount: $%-8.2f │\n" + RESET, 
-                         expense.getId(), expense.getDate(), expense.getAmount());
-        System.out.printf(color + "│ Category: %-42s │\n" + RESET, expense.getCategory());
-        
-        String description = expense.getDescription();
+    }
+    
+    private void displayExpense(ExpenseStore store, int row) {
+        long cents = store.amountAt(row);
+        int currency = store.currencyAt(row), report = ledger.reportCurrency();
+        // A row in another currency shows its own amount, coloured by what it is worth
+        String amount = currency == report ? money(cents) : Currencies.amount(cents, currency, report);
+        String[] box = BOXES[amountTier(ledger.conversion().convert(cents, currency, store.dateAt(row)))];
+        String description = store.descriptionAt(row);
         if (description.length() > 35) {
             description = description.substring(0, 32) + "...";
         }
-        System.out.printf(color + "│ Description: %-35s │\n" + RESET, description);
-        System.out.println(color + "└─────────────────────────────────────────────────────┘" + RESET);
+        out.print(box[0]);
+        out.printf(box[1], store.idAt(row), ExpenseDates.format(store.dateAt(row)), amount);
+        out.printf(box[2], Categories.name(store.categoryAt(row)));
+        out.printf(box[3], description);
+        out.print(box[4]);
+    }
+    
+    private static int amountTier(long cents) {
+        return cents > 10000 ? 3 : cents > 5000 ? 2 : cents > 2000 ? 1 : 0;
+    }
+    
+    private static String[] box(String color) {
+        return new String[] {
+            color + "┌─────────────────────────────────────────────────────┐" + RESET + "\n",
+            color + "│ ID: %-4d │ Date: %-10s │ Amount: %-9s │" + RESET + "\n",
+            color + "│ Category: %-42s │" + RESET + "\n",
+            color + "│ Description: %-35s │" + RESET + "\n",
+            color + "└─────────────────────────────────────────────────────┘" + RESET + "\n"
+        };
     }
     
     private void viewExpensesByCategory() {
         System.out.println("\n--- Expenses by Category ---");
         System.out.println("Select category:");
-        for (int i = 0; i < CATEGORIES.length; i++) {
-            System.out.println((i + 1) + ". " + CATEGORIES[i]);
+        for (int i = 0; i < Categories.count(); i++) {
+            System.out.println((i + 1) + ". " + Categories.name(i));
         }
         
         int catChoice = getIntInput("Enter category number: ") - 1;
-        if (catChoice < 0 || catChoice >= CATEGORIES.length) {
+        if (catChoice < 0 || catChoice >= Categories.count()) {
             System.out.println(RED + "Invalid category selection!" + RESET);
             return;
         }
         
-        String selectedCategory = CATEGORIES[catChoice];
-        boolean found = false;
-        double categoryTotal = 0;
+        String selectedCategory = Categories.name(catChoice);
+        ExpenseQuery.Result summary = ledger.query(new ExpenseQuery().categories(catChoice).measures(
+                ExpenseQuery.Measure.SUM, ExpenseQuery.Measure.COUNT, ExpenseQuery.Measure.AVG,
+                ExpenseQuery.Measure.MAX));
         
         System.out.println(CYAN + "\n══════════════════════════════════════════════════════" + RESET);
         System.out.println(CYAN + "CATEGORY: " + selectedCategory.toUpperCase() + RESET);
         System.out.println(CYAN + "══════════════════════════════════════════════════════" + RESET);
         
-        for (Expense expense : expenses) {
-            if (expense.getCategory().equals(selectedCategory)) {
-                displayExpense(expense);
-                categoryTotal += expense.getAmount();
-                found = true;
+        ExpenseQuery.Bucket bucket = summary.bucket(0);
+        if (bucket != null) {
+            try (Ledger.View view = ledger.view(Integer.MIN_VALUE, Integer.MAX_VALUE, 1L << catChoice)) {
+                browse(view.store, ExpenseCursor.all(view.store, view.dates).category(catChoice)
+                       .summary((int) bucket.count, bucket.total));
             }
-        }
-        
-        if (found) {
             System.out.println(CYAN + "──────────────────────────────────────────────────────" + RESET);
-            System.out.printf(CYAN + "💰 TOTAL SPENT IN %s: $%.2f\n" + RESET, 
-                             selectedCategory.toUpperCase(), categoryTotal);
+            System.out.printf(CYAN + "💰 TOTAL SPENT IN %s: %s\n" + RESET, 
+                             selectedCategory.toUpperCase(), money(bucket.total));
+            System.out.printf(CYAN + "📊 %d expenses · average %s · largest %s\n" + RESET,
+                              bucket.count, money(bucket.average()), money(bucket.max));
             System.out.println(CYAN + "──────────────────────────────────────────────────────" + RESET);
         } else {
             System.out.println(YELLOW + "No expenses found in category: " + selectedCategory + RESET);
@@ -411,74 +616,53 @@ private void displayMenu() {
     private void viewAllCategoryTotals() {
         System.out.println("\n--- Spending Summary by Category ---");
         
-        if (expenses.isEmpty()) {
+        ExpenseQuery.Result totals = ledger.query(new ExpenseQuery().groupBy(ExpenseQuery.Group.CATEGORY));
+        if (totals.count() == 0) {
             System.out.println(YELLOW + "No expenses recorded yet." + RESET);
             return;
         }
         
-        Map<String, Double> categoryTotals = new HashMap<>();
-        double overallTotal = 0;
-        
-        for (Expense expense : expenses) {
-            String category = expense.getCategory();
-            categoryTotals.put(category, categoryTotals.getOrDefault(category, 0.0) + expense.getAmount());
-            overallTotal += expense.getAmount();
-        }
+        long overallTotal = totals.total();
         
         System.out.println(CYAN + "┌────────────────────────────────────────────┐" + RESET);
         System.out.println(CYAN + "│           CATEGORY SPENDING SUMMARY        │" + RESET);
         System.out.println(CYAN + "├────────────────────────────────────────────┤" + RESET);
         
-        for (String category : CATEGORIES) {
-            double total = categoryTotals.getOrDefault(category, 0.0);
-            if (total > 0) {
-                double percentage = (total / overallTotal) * 100;
-                System.out.printf(CYAN + "│ %-15s: $%-8.2f (%5.1f%%)     │\n" + RESET, 
-                                 category, total, percentage);
+        for (ExpenseQuery.Bucket bucket : totals.buckets) {
+            if (bucket.total > 0) {
+                double percentage = ((double) bucket.total / overallTotal) * 100;
+                System.out.printf(CYAN + "│ %-15s: %-9s (%5.1f%%)     │\n" + RESET, 
+                                 bucket.label, money(bucket.total), percentage);
             }
         }
         
         System.out.println(CYAN + "├────────────────────────────────────────────┤" + RESET);
-        System.out.printf(CYAN + "│ %-15s: $%-8.2f (100.0%%)   │\n" + RESET, 
-                         "OVERALL TOTAL", overallTotal);
+        System.out.printf(CYAN + "│ %-15s: %-9s (100.0%%)   │\n" + RESET, 
+                         "OVERALL TOTAL", money(overallTotal));
         System.out.println(CYAN + "└────────────────────────────────────────────┘" + RESET);
     }
     
     private void viewTotalSpending() {
-        double total = 0;
-        for (Expense expense : expenses) {
-            total += expense.getAmount();
-        }
-        System.out.printf(CYAN + "\n💰 Total Spending: $%.2f\n" + RESET, total);
+        long total = aggregates.total();
+        System.out.printf(CYAN + "\n💰 Total Spending: %s\n" + RESET, money(total));
     }
     
     private void budgetAlerts() {
         System.out.println("\n--- Budget Alerts ---");
         
-        Map<String, Double> budgets = Map.of(
-            "Food", 200.0, "Transport", 100.0, "Entertainment", 150.0,
-            "Shopping", 300.0, "Utilities", 250.0, "Healthcare", 100.0, "Other", 50.0
-        );
-        
-        String currentMonth = new SimpleDateFormat("MM/yyyy").format(new Date());
         boolean anyAlerts = false;
-        
-        for (String category : CATEGORIES) {
-            double spent = 0;
-            for (Expense expense : expenses) {
-                if (expense.getCategory().equals(category) && expense.getDate().endsWith(currentMonth)) {
-                    spent += expense.getAmount();
-                }
-            }
-            
-            double budget = budgets.getOrDefault(category, 0.0);
-            if (budget > 0 && spent > budget) {
-                System.out.println(RED + "⚠️  ALERT: You exceeded " + category + " budget!" + RESET);
-                System.out.printf("   Spent: $%.2f | Budget: $%.2f | Over by: $%.2f\n\n", spent, budget, spent - budget);
+        for (Budgets.Status status : ledger.budgetStatus(ExpenseDates.today())) {
+            String name = budgetName(status.rule);
+            long budget = status.rule.limit;
+            if (status.over()) {
+                System.out.println(RED + "⚠️  ALERT: You exceeded " + name + " budget!" + RESET);
+                System.out.printf("   Spent: %s | Budget: %s | Over by: %s\n\n",
+                                  money(status.spent), money(budget), money(status.spent - budget));
                 anyAlerts = true;
-            } else if (budget > 0 && spent > budget * 0.8) {
-                System.out.println(YELLOW + "⚠️  WARNING: " + category + " budget almost reached!" + RESET);
-                System.out.printf("   Spent: $%.2f | Budget: $%.2f | Left: $%.2f\n\n", spent, budget, budget - spent);
+            } else if (status.percent > 0) {
+                System.out.println(YELLOW + "⚠️  WARNING: " + name + " budget " + status.percent + "% reached!" + RESET);
+                System.out.printf("   Spent: %s | Budget: %s | Left: %s\n\n",
+                                  money(status.spent), money(budget), money(budget - status.spent));
                 anyAlerts = true;
             }
         }
@@ -486,29 +670,494 @@ private void displayMenu() {
         if (!anyAlerts) {
             System.out.println(GREEN + "✅ All budgets are under control! Good job!" + RESET);
         }
+        
+        System.out.println(CYAN + "\n1. List Budgets" + RESET);
+        System.out.println(CYAN + "2. Add a Budget" + RESET);
+        System.out.println(CYAN + "3. Remove a Budget" + RESET);
+        System.out.println(CYAN + "4. Review Past Periods" + RESET);
+        System.out.println(CYAN + "5. Back to Main Menu" + RESET);
+        
+        switch (getIntInput("Enter your choice: ")) {
+            case 1: listBudgets(); break;
+            case 2: addBudget(); break;
+            case 3: removeBudget(); break;
+            case 4: budgetHistory(); break;
+            case 5: return;
+            default: System.out.println(RED + "Invalid choice!" + RESET);
+        }
     }
     
-    private void deleteExpense() {
-        viewAllExpenses();
-        if (expenses.isEmpty()) return;
-        
-        int idToDelete = getIntInput("Enter expense ID to delete: ");
-        for (int i = 0; i < expenses.size(); i++) {
-            if (expenses.get(i).getId() == idToDelete) {
-                expenses.remove(i);
-                saveToFile();
-                System.out.println(GREEN + "Expense deleted successfully!" + RESET);
+    // "Food monthly", "All weekly", "Shopping 01/12/2024 - 31/12/2024"
+    private static String budgetName(Budgets.Rule rule) {
+        if (rule.period == Budgets.Period.CUSTOM) {
+            return rule.categoryName() + " " + ExpenseDates.format(rule.startDay) + " - "
+                   + ExpenseDates.format(rule.endDay);
+        }
+        return rule.categoryName() + " " + rule.period;
+    }
+    
+    // Thresholds crossed by the expense just added
+    private void showBudgetAlerts(List<Budgets.Status> alerts) {
+        for (Budgets.Status alert : alerts) {
+            System.out.printf((alert.percent >= 100 ? RED : YELLOW) + "⚠️  %s budget reached %d%% for %s"
+                              + " (spent %s of %s)\n" + RESET, budgetName(alert.rule), alert.percent,
+                              alert.period, money(alert.spent), money(alert.rule.limit));
+        }
+    }
+    
+    private void listBudgets() {
+        List<Budgets.Status> statuses = ledger.budgetStatus(ExpenseDates.today());
+        if (statuses.isEmpty()) {
+            System.out.println(YELLOW + "No budgets set." + RESET);
+            return;
+        }
+        for (Budgets.Status status : statuses) {
+            Budgets.Rule rule = status.rule;
+            String color = status.over() ? RED : status.percent > 0 ? YELLOW : GREEN;
+            out.printf(color + "#%-4d %-45s %13s  alerts at %-12s  now %s (%s)\n" + RESET, rule.id,
+                       budgetName(rule), money(rule.limit), percents(rule.percents),
+                       money(status.spent), status.period);
+        }
+        out.flush();
+    }
+    
+    private static String percents(int[] percents) {
+        StringBuilder text = new StringBuilder();
+        for (int p : percents) {
+            if (text.length() > 0) text.append(',');
+            text.append(p).append('%');
+        }
+        return text.toString();
+    }
+    
+    private void addBudget() {
+        for (int i = 0; i < Categories.count(); i++) {
+            System.out.println((i + 1) + ". " + Categories.name(i));
+        }
+        System.out.println((Categories.count() + 1) + ". All categories together");
+        int category = getIntInput("Enter category number: ") - 1;
+        if (category < 0 || category > Categories.count()) {
+            System.out.println(RED + "Invalid category selection!" + RESET);
+            return;
+        }
+        if (category == Categories.count()) category = -1;
+        
+        System.out.println("1. Monthly  2. Weekly  3. Custom Date Range");
+        int choice = getIntInput("Enter period: ");
+        if (choice < 1 || choice > 3) {
+            System.out.println(RED + "Invalid choice!" + RESET);
+            return;
+        }
+        Budgets.Period period = Budgets.Period.values()[choice - 1];
+        int start = ExpenseDates.INVALID, end = ExpenseDates.INVALID;
+        if (period == Budgets.Period.CUSTOM) {
+            start = getDateInput("Enter start date (DD/MM/YYYY): ");
+            end = getDateInput("Enter end date (DD/MM/YYYY): ");
+        }
+        long limit = getMoneyInput("Enter budget: " + Currencies.prefix(ledger.reportCurrency()));
+        System.out.print("Alert at these percentages (Enter for 80,100): ");
+        String line = scanner.nextLine().trim();
+        
+        try {
+            int[] percents = Budgets.DEFAULT_PERCENTS;
+            if (!line.isEmpty()) {
+                String[] parts = line.replace("%", "").split("[,\\s]+");
+                percents = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) percents[i] = Integer.parseInt(parts[i]);
+            }
+            Budgets.Rule rule = ledger.addBudget(category, period, limit, percents, start, end);
+            System.out.println(GREEN + "✅ Budget #" + rule.id + " added: " + budgetName(rule) + RESET);
+        } catch (IllegalArgumentException e) {
+            System.out.println(RED + "❌ " + e.getMessage() + RESET);
+        } catch (IOException e) {
+            System.out.println(RED + "❌ Error saving budgets: " + e.getMessage() + RESET);
+        }
+    }
+    
+    private void removeBudget() {
+        int id = getIntInput("Enter budget number to remove: ");
+        try {
+            if (ledger.removeBudget(id)) {
+                System.out.println(GREEN + "Budget #" + id + " removed." + RESET);
+            } else {
+                System.out.println(RED + "No budget #" + id + "." + RESET);
+            }
+        } catch (IOException e) {
+            System.out.println(RED + "❌ Error saving budgets: " + e.getMessage() + RESET);
+        }
+    }
+    
+    // Every period, oldest first, in which a budget reached a threshold
+    private void budgetHistory() {
+        List<Budgets.Status> history = ledger.budgetHistory();
+        if (history.isEmpty()) {
+            System.out.println(GREEN + "✅ No budget has reached an alert threshold yet." + RESET);
+            return;
+        }
+        int over = 0;
+        for (Budgets.Status status : history) {
+            if (status.over()) over++;
+            out.printf((status.over() ? RED : YELLOW) + "%-24s #%-4d %-45s %3d%%  spent %s of %s\n" + RESET,
+                       status.period, status.rule.id, budgetName(status.rule), status.percent,
+                       money(status.spent), money(status.rule.limit));
+        }
+        out.printf(CYAN + "%d alerts in past periods, %d of them over budget.\n" + RESET, history.size(), over);
+        out.flush();
+    }
+    
+    private void recurringExpenses() {
+        System.out.println("\n--- Recurring Expenses ---");
+        listRecurring();
+        
+        System.out.println(CYAN + "\n1. Add a Recurring Expense" + RESET);
+        System.out.println(CYAN + "2. Change an Amount" + RESET);
+        System.out.println(CYAN + "3. Remove a Recurring Expense" + RESET);
+        System.out.println(CYAN + "4. Back to Main Menu" + RESET);
+        
+        switch (getIntInput("Enter your choice: ")) {
+            case 1: addRecurring(); break;
+            case 2: changeRecurring(); break;
+            case 3: removeRecurring(); break;
+            case 4: return;
+            default: System.out.println(RED + "Invalid choice!" + RESET);
+        }
+    }
+    
+    private void listRecurring() {
+        List<Recurring.Rule> rules = ledger.recurring();
+        if (rules.isEmpty()) {
+            System.out.println(YELLOW + "No recurring expenses set." + RESET);
+            return;
+        }
+        for (Recurring.Rule rule : rules) {
+            boolean ended = rule.endDay != ExpenseDates.INVALID && rule.through() >= rule.endDay;
+            out.printf((ended ? YELLOW : GREEN) + "#%-4d %-30s %-14s %-8s %s\n" + RESET, rule.id,
+                       rule.description, rule.categoryName(), rule.every, recurringAmount(rule));
+            out.printf("      from %s%s%s\n", ExpenseDates.format(rule.startDay),
+                       rule.endDay == ExpenseDates.INVALID ? "" : " to " + ExpenseDates.format(rule.endDay),
+                       rule.through() < rule.startDay ? "" : ", added through " + ExpenseDates.format(rule.through()));
+        }
+        out.flush();
+    }
+    
+    private void addRecurring() {
+        System.out.print("Enter description: ");
+        String description = scanner.nextLine();
+        long amount = getMoneyInput("Enter amount: ");
+        int currency = getCurrencyInput();
+        int category = chooseCategoryToAdd("Invalid category selection!");
+        if (category < 0) return;
+        System.out.println("1. Daily  2. Weekly  3. Monthly  4. Yearly");
+        int choice = getIntInput("Repeat: ");
+        if (choice < 1 || choice > 4) {
+            System.out.println(RED + "Invalid choice!" + RESET);
+            return;
+        }
+        Recurring.Every every = Recurring.Every.values()[choice - 1];
+        int start = getDateInput("Enter first date (DD/MM/YYYY): ");
+        int end = ExpenseDates.INVALID;
+        System.out.print("Does it end? (y/n): ");
+        if (scanner.nextLine().trim().equalsIgnoreCase("y")) {
+            end = getDateInput("Enter last date (DD/MM/YYYY): ");
+        }
+        try {
+            Recurring.Rule rule = ledger.addRecurring(category, currency, every, description, start, end,
+                                                      new int[] { start }, new long[] { amount });
+            System.out.println(GREEN + "✅ Recurring expense #" + rule.id + " added." + RESET);
+        } catch (IllegalArgumentException e) {
+            System.out.println(RED + "❌ " + e.getMessage() + RESET);
+            return;
+        } catch (IOException e) {
+            System.out.println(RED + "❌ Error saving recurring expenses: " + e.getMessage() + RESET);
+            return;
+        }
+        addDueRecurring();
+    }
+    
+    private void changeRecurring() {
+        int id = getIntInput("Enter recurring expense number: ");
+        long amount = getMoneyInput("Enter new amount (in the expense's currency): ");
+        int from = getDateInput("From date (DD/MM/YYYY): ");
+        try {
+            Recurring.Rule rule = ledger.changeRecurring(id, amount, from);
+            if (rule == null) {
+                System.out.println(RED + "No recurring expense #" + id + "." + RESET);
+            } else {
+                System.out.println(GREEN + "Recurring expense #" + id + " is now " + recurringAmount(rule) + RESET);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(RED + "❌ " + e.getMessage() + RESET);
+        } catch (IOException e) {
+            System.out.println(RED + "❌ Error saving recurring expenses: " + e.getMessage() + RESET);
+        }
+    }
+    
+    private void removeRecurring() {
+        int id = getIntInput("Enter recurring expense number to remove: ");
+        try {
+            if (ledger.removeRecurring(id)) {
+                System.out.println(GREEN + "Recurring expense #" + id + " removed; the expenses it added stay." + RESET);
+            } else {
+                System.out.println(RED + "No recurring expense #" + id + "." + RESET);
+            }
+        } catch (IOException e) {
+            System.out.println(RED + "❌ Error saving recurring expenses: " + e.getMessage() + RESET);
+        }
+    }
+    
+    private String recurringAmount(Recurring.Rule rule) {
+        // amountText puts the code after each amount when it isn't the home currency
+        return (rule.currency == Currencies.home() ? Currencies.prefix(rule.currency) : "") + rule.amountText();
+    }
+    
+    private void currenciesAndRates() {
+        System.out.println("\n--- Currencies & Rates ---");
+        String home = Currencies.code(Currencies.home());
+        System.out.println("Home currency: " + home + " · totals in "
+                           + Currencies.code(ledger.reportCurrency()));
+        List<Rates.Rate> rates = ledger.rates();
+        if (rates.isEmpty()) {
+            System.out.println(YELLOW + "No exchange rates yet: every expense is in " + home + "." + RESET);
+        }
+        for (Rates.Rate rate : rates) {
+            out.printf(GREEN + "1 %s = %s %s from %s\n" + RESET, rate.currency, rate.value.toPlainString(), home,
+                       ExpenseDates.format(rate.fromDay));
+        }
+        out.flush();
+        
+        System.out.println(CYAN + "\n1. Add a Rate" + RESET);
+        System.out.println(CYAN + "2. Remove a Rate" + RESET);
+        System.out.println(CYAN + "3. Change the Report Currency" + RESET);
+        System.out.println(CYAN + "4. Back to Main Menu" + RESET);
+        
+        try {
+            switch (getIntInput("Enter your choice: ")) {
+                case 1: {
+                    System.out.print("Currency code: ");
+                    int currency = Currencies.parse(scanner.nextLine());
+                    System.out.print("1 " + Currencies.code(currency) + " in " + home + ": ");
+                    BigDecimal value = new BigDecimal(scanner.nextLine().trim());
+                    int from = getDateInput("From date (DD/MM/YYYY): ");
+                    ledger.addRate(currency, from, value);
+                    System.out.println(GREEN + "✅ Rate saved; totals are reconverted." + RESET);
+                    break;
+                }
+                case 2: {
+                    System.out.print("Currency code: ");
+                    int currency = Currencies.parse(scanner.nextLine());
+                    int from = getDateInput("From date (DD/MM/YYYY): ");
+                    if (ledger.removeRate(currency, from)) {
+                        System.out.println(GREEN + "✅ Rate removed; totals are reconverted." + RESET);
+                    } else {
+                        System.out.println(RED + "No such rate." + RESET);
+                    }
+                    break;
+                }
+                case 3: {
+                    System.out.print("Report totals in (currency code): ");
+                    ledger.reportIn(Currencies.parse(scanner.nextLine()));
+                    System.out.println(GREEN + "✅ Totals are now in " + Currencies.code(ledger.reportCurrency())
+                                       + ". Budget limits are taken as they are." + RESET);
+                    break;
+                }
+                case 4: return;
+                default: System.out.println(RED + "Invalid choice!" + RESET);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println(RED + "❌ Please enter a valid rate!" + RESET);
+        } catch (IllegalArgumentException e) {
+            System.out.println(RED + "❌ " + e.getMessage() + RESET);
+        } catch (IOException e) {
+            System.out.println(RED + "❌ Error saving exchange rates: " + e.getMessage() + RESET);
+        }
+    }
+    
+    // An amount in the report currency: "$12.50", "EUR 12.50"
+    private String money(long cents) {
+        return Currencies.prefix(ledger.reportCurrency()) + Money.format(cents);
+    }
+    
+    private void importFromCSV() {
+        System.out.println("\n--- Import Expenses from CSV ---");
+        System.out.println("Accepts this app's CSV export or a bank statement with Date, Description and Amount columns.");
+        System.out.print("Enter file name: ");
+        String file = scanner.nextLine().trim();
+        if (file.isEmpty()) return;
+        
+        Path source = Paths.get(file);
+        Path rejects = source.resolveSibling(source.getFileName() + ".rejects.csv");
+        try {
+            CsvImporter.Result result = CsvImporter.importFile(ledger, source, rejects);
+            System.out.println(GREEN + "✅ Imported " + result.imported + " of " + result.records + " rows" +
+                               (result.imported > 0 ? " (IDs from " + result.firstId + ")" : "") + RESET);
+            System.out.printf(CYAN + "⚡ %.1f MB in %.0f ms (%.1f MB/s)\n" + RESET,
+                              result.bytes / (double) (1 << 20), result.elapsedNanos / 1e6, result.megabytesPerSecond());
+            if (result.rejected > 0) {
+                System.out.println(YELLOW + "⚠️  " + result.rejected + " rows rejected - see '" + rejects + "'" + RESET);
+            }
+            if (result.credits > 0) {
+                System.out.println(CYAN + "ℹ️  " + result.credits + " credits (money in) skipped" + RESET);
+                if (System.getProperty("expenses.importDebits") == null) {
+                    System.out.println(CYAN + "   If this statement shows spending as negative amounts, run with"
+                                       + " -Dexpenses.importDebits=negative" + RESET);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(RED + "❌ Error importing data: " + e.getMessage() + RESET);
+        }
+    }
+    
+    private void searchDescriptions() {
+        System.out.println("\n--- Search Descriptions ---");
+        System.out.println("Words must all match; use OR for alternatives and * for prefixes, e.g. uber OR taxi, coff*");
+        System.out.print("Search for: ");
+        String query = scanner.nextLine().trim();
+        if (query.isEmpty()) return;
+        
+        CsvExporter.Filter filter = new CsvExporter.Filter();
+        System.out.print("Only search a date range? (y/n): ");
+        if (scanner.nextLine().trim().equalsIgnoreCase("y")) {
+            filter.dates(getDateInput("Enter start date (DD/MM/YYYY): "),
+                         getDateInput("Enter end date (DD/MM/YYYY): "));
+        }
+        System.out.print("Only search one category? (y/n): ");
+        if (scanner.nextLine().trim().equalsIgnoreCase("y")) {
+            for (int i = 0; i < Categories.count(); i++) {
+                System.out.println((i + 1) + ". " + Categories.name(i));
+            }
+            int catChoice = getIntInput("Enter category number: ") - 1;
+            if (catChoice < 0 || catChoice >= Categories.count()) {
+                System.out.println(RED + "Invalid category selection!" + RESET);
+                return;
+            }
+            filter.category(catChoice);
+        }
+        
+        long start = System.nanoTime();
+        Ledger.View view;
+        try {
+            view = ledger.searchView(query, filter);
+        } catch (IllegalArgumentException e) {
+            System.out.println(RED + "❌ " + e.getMessage() + RESET);
+            return;
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+        try (Ledger.View v = view) {
+            IntList rows = v.rows;
+            if (rows.isEmpty()) {
+                System.out.println(YELLOW + "No expenses match '" + query + "'." + RESET);
+                return;
+            }
+            browse(v.store, ExpenseCursor.of(v.store, rows, false));
+            System.out.println(CYAN + "──────────────────────────────────────────────────────" + RESET);
+            System.out.printf(CYAN + "🔍 %d matches totalling %s (%.1f ms)\n" + RESET,
+                              rows.size(), money(calculateTotal(v.store, rows)), millis);
+        }
+    }
+    
+    // Latency and volume of every ledger operation so far (see Metrics)
+    private void diagnostics() {
+        while (true) {
+            System.out.println(CYAN + "\n--- Diagnostics ---" + RESET);
+            if (!Metrics.ENABLED) {
+                System.out.println(YELLOW + "Metrics are off (-Dexpenses.metrics=false)." + RESET);
+                return;
+            }
+            Runtime runtime = Runtime.getRuntime();
+            System.out.printf("Up %d s · %d expenses · %d changes waiting for fsync · heap %s of %s\n",
+                              Metrics.uptimeMillis() / 1000, aggregates.count(), ledger.pendingChanges(),
+                              Metrics.bytes(runtime.totalMemory() - runtime.freeMemory()),
+                              Metrics.bytes(runtime.maxMemory()));
+            try (Ledger.View view = ledger.view()) {
+                System.out.println(view.store.size() + " expenses in memory · " + ledger.describeSegments());
+            }
+            List<String> report = Metrics.report();
+            System.out.println(CYAN + report.get(0) + RESET);
+            for (int i = 1; i < report.size(); i++) System.out.println(report.get(i));
+            if (report.size() == 1) System.out.println(YELLOW + "Nothing measured yet." + RESET);
+            
+            System.out.println("\n1. Refresh  2. Reset counters  3. Save to " + METRICS_FILE + "  4. Back");
+            int choice = getIntInput("Choose option: ");
+            if (choice == 2) {
+                Metrics.reset();
+                System.out.println(GREEN + "✓ Counters reset" + RESET);
+            } else if (choice == 3) {
+                try {
+                    Metrics.write(Paths.get(METRICS_FILE));
+                    System.out.println(GREEN + "✓ Saved to " + METRICS_FILE + RESET);
+                } catch (IOException e) {
+                    System.out.println(RED + "❌ Error writing metrics: " + e.getMessage() + RESET);
+                }
+            } else if (choice != 1) {
                 return;
             }
         }
-        System.out.println(RED + "Expense with ID " + idToDelete + " not found!" + RESET);
+    }
+    
+    private void deleteExpense() {
+        if (aggregates.count() == 0) {
+            System.out.println(YELLOW + "No expenses recorded yet." + RESET);
+            return;
+        }
+        
+        System.out.println(CYAN + "\n--- Delete Expenses ---" + RESET);
+        System.out.println("1. Delete by ID(s)");
+        System.out.println("2. Delete a date range");
+        System.out.println("3. Back to main menu");
+        int choice = getIntInput("Choose option: ");
+        
+        try {
+            if (choice == 1) {
+                System.out.print("Enter expense ID(s), separated by spaces or commas: ");
+                String[] parts = scanner.nextLine().trim().split("[\\s,]+");
+                int[] ids = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    try {
+                        ids[i] = Integer.parseInt(parts[i]);
+                    } catch (NumberFormatException e) {
+                        System.out.println(RED + "Please enter valid IDs!" + RESET);
+                        return;
+                    }
+                }
+                if (ids.length == 1) {
+                    if (ledger.delete(ids[0])) {
+                        System.out.println(GREEN + "Expense deleted successfully!" + RESET);
+                    } else {
+                        System.out.println(RED + "Expense with ID " + ids[0] + " not found!" + RESET);
+                    }
+                    return;
+                }
+                int deleted = ledger.deleteAll(ids);
+                System.out.println(GREEN + deleted + " expenses deleted successfully!" + RESET);
+                if (deleted < ids.length) {
+                    System.out.println(YELLOW + (ids.length - deleted) + " IDs were not found." + RESET);
+                }
+            } else if (choice == 2) {
+                int startDate = getDateInput("Enter start date (DD/MM/YYYY): ");
+                int endDate = getDateInput("Enter end date (DD/MM/YYYY): ");
+                ExpenseQuery.Result summary = ledger.query(new ExpenseQuery().dates(startDate, endDate));
+                if (summary.count() == 0) {
+                    System.out.println(YELLOW + "No expenses found for this period." + RESET);
+                    return;
+                }
+                System.out.printf(YELLOW + "This will delete %d expenses totalling %s. Continue? (y/n): " + RESET,
+                                  summary.count(), money(summary.total()));
+                if (!scanner.nextLine().trim().equalsIgnoreCase("y")) return;
+                int deleted = ledger.deleteBetween(startDate, endDate);
+                System.out.println(GREEN + deleted + " expenses deleted successfully!" + RESET);
+            }
+        } catch (IOException e) {
+            System.out.println("Error saving data: " + e.getMessage());
+        }
     }
     // ADD THIS CALCULATOR METHOD
 private void calculatorMode() {
     System.out.println(CYAN + "\n🧮 CALCULATOR MODE" + RESET);
     System.out.println("Quickly calculate expenses before adding them!");
-    System.out.println("Enter amounts separated by +, -, *, /");
-    System.out.println("Example: 25+18+42 or 100-15 or 50*0.18" + RESET);
+    System.out.println("Use +, -, *, /, parentheses and percentages");
+    System.out.println("Example: 25+18+42 or (100-15)*2 or 80+15%");
+    System.out.println("Variables: total, thismonth, lastmonth, thisyear, count and category names like food");
+    System.out.println("Using 'amount' evaluates once per expense and adds up the results, e.g. amount*20%" + RESET);
     
     while (true) {
         System.out.print("\nEnter calculation (or 'back' to return): ");
@@ -523,8 +1172,29 @@ private void calculatorMode() {
         }
         
         try {
-            double result = evaluateExpression(input);
-            System.out.printf(GREEN + "✅ Result: $%.2f\n" + RESET, result);
+            Expression expression = Expression.cached(input);
+            // The calculator works in double; results become cents here, and
+            // per-expense results are rounded before they are added up. Each
+            // amount is converted to the report currency first, as totals are
+            long result;
+            int rows = 0;
+            try (Metrics.Span span = Metrics.start(Metrics.Op.CALCULATE)) {
+                if (expression.variableIndex("amount") >= 0) {
+                    double[] perRow;
+                    try (Ledger.View view = ledger.view(Integer.MIN_VALUE, Integer.MAX_VALUE, 0)) {
+                        perRow = new double[view.store.size()];
+                        expression.evaluateRows(view.store, null, ledger.conversion(), this::variable, perRow);
+                    }
+                    result = 0;
+                    for (double v : perRow) result = Money.add(result, resultToCents(v));
+                    rows = perRow.length;
+                } else {
+                    result = resultToCents(expression.evaluate(this::variable));
+                }
+                span.rows(rows, 1);
+            }
+            if (rows > 0) System.out.printf(CYAN + "Evaluated over %d expenses\n" + RESET, rows);
+            System.out.printf(GREEN + "✅ Result: %s\n" + RESET, money(result));
             
             // Ask if user wants to add as expense
             System.out.print("Add this amount as expense? (y/n): ");
@@ -534,80 +1204,75 @@ private void calculatorMode() {
                 quickAddExpense(result);
             }
             
-        } catch (Exception e) {
-            System.out.println(RED + "❌ Invalid calculation. Use format: 25+18+42" + RESET);
+        } catch (ArithmeticException e) {
+            System.out.println(RED + "❌ " + e.getMessage() + RESET);
+        } catch (IllegalArgumentException e) {
+            System.out.println(RED + "❌ Invalid calculation: " + e.getMessage() + RESET);
         }
     }
 }
 
-// Helper method to evaluate math expressions
-private double evaluateExpression(String expression) {
-    // Remove spaces and $ signs for easier parsing
-    expression = expression.replaceAll("\\s+", "").replace("$", "");
-    
-    // Simple expression evaluation (supports +, -, *, /)
-    if (expression.contains("+")) {
-        String[] parts = expression.split("\\+");
-        double sum = 0;
-        for (String part : parts) {
-            sum += Double.parseDouble(part);
-        }
-        return sum;
-    } else if (expression.contains("-")) {
-        String[] parts = expression.split("\\-");
-        double result = Double.parseDouble(parts[0]);
-        for (int i = 1; i < parts.length; i++) {
-            result -= Double.parseDouble(parts[i]);
-        }
-        return result;
-    } else if (expression.contains("*")) {
-        String[] parts = expression.split("\\*");
-        double result = 1;
-        for (String part : parts) {
-            result *= Double.parseDouble(part);
-        }
-        return result;
-    } else if (expression.contains("/")) {
-        String[] parts = expression.split("\\/");
-        double result = Double.parseDouble(parts[0]);
-        for (int i = 1; i < parts.length; i++) {
-            result /= Double.parseDouble(parts[i]);
-        }
-        return result;
-    } else {
-        // Single number
-        return Double.parseDouble(expression);
+private static long resultToCents(double result) {
+    if (Double.isNaN(result) || Double.isInfinite(result)) {
+        throw new ArithmeticException("Result is not a number (division by zero?)");
     }
+    return Money.fromDouble(result);
 }
 
-// Quick add expense from calculator result
-private void quickAddExpense(double amount) {
-    System.out.println("\n--- Quick Add Expense ---");
-    
-    System.out.println("Select category:");
-    for (int i = 0; i < CATEGORIES.length; i++) {
-        System.out.println((i + 1) + ". " + CATEGORIES[i]);
+static void writeCsv(ExpenseStore rows, String file) throws IOException {
+    CsvExporter.export(rows, Paths.get(file));
+}
+
+// Helper method to evaluate math expressions (no variables)
+static double evaluateExpression(String expression) {
+    return Expression.cached(expression).evaluate(name -> {
+        throw new IllegalArgumentException("Unknown variable '" + name + "'");
+    });
+}
+
+// Calculator variables, bound to the live aggregates (in dollars)
+private double variable(String name) {
+    int today = ExpenseDates.today();
+    int thisMonth = ExpenseAggregates.monthKey(today);
+    switch (name) {
+        case "total": return Money.toDouble(aggregates.total());
+        case "count": return aggregates.count();
+        case "thismonth": return Money.toDouble(monthTotal(thisMonth));
+        case "lastmonth": return Money.toDouble(monthTotal(thisMonth - 1));
+        case "thisyear": return Money.toDouble(aggregates.yearTotal(ExpenseDates.yearOf(today)));
+        default:
+            int category = Categories.find(name);
+            if (category >= 0) return Money.toDouble(aggregates.categoryTotal(category));
+            throw new IllegalArgumentException("Unknown variable '" + name + "'");
     }
-    int catChoice = getIntInput("Enter category number: ") - 1;
-    
-    if (catChoice < 0 || catChoice >= CATEGORIES.length) {
-        System.out.println(RED + "Invalid category!" + RESET);
-        return;
+}
+
+private long monthTotal(int monthKey) {
+    long total = 0;
+    for (int c = 0; c < Categories.count(); c++) {
+        total = Money.add(total, aggregates.monthTotal(c, monthKey));
     }
+    return total;
+}
+
+// Quick add expense from calculator result
+private void quickAddExpense(long amount) {
+    System.out.println("\n--- Quick Add Expense ---");
     
-    String category = CATEGORIES[catChoice];
+    int catChoice = chooseCategoryToAdd("Invalid category!");
+    if (catChoice < 0) return;
     
     // Use current date
-    String currentDate = new SimpleDateFormat("dd/MM/yyyy").format(new Date());
+    int currentDate = ExpenseDates.today();
     
     System.out.print("Enter description: ");
     String description = scanner.nextLine();
     
-    Expense expense = new Expense(nextId++, amount, category, currentDate, description);
-    expenses.add(expense);
-    saveToFile();
+    // The result is in the report currency, like the totals it was worked out from
+    List<Budgets.Status> alerts = recordExpense(amount, ledger.reportCurrency(), catChoice, currentDate, description);
     
     System.out.println(GREEN + "✅ Expense added successfully from calculator!" + RESET);
+    showBudgetAlerts(alerts);
 }
     private int getIntInput(String prompt) {
         while (true) {
@@ -620,11 +1285,54 @@ private void quickAddExpense(double amount) {
         }
     }
     
-    private double getDoubleInput(String prompt) {
+    private int getOptionalInt(String prompt, int defaultValue) {
+        while (true) {
+            System.out.print(prompt);
+            String line = scanner.nextLine().trim();
+            if (line.isEmpty()) return defaultValue;
+            try {
+                return Integer.parseInt(line);
+            } catch (NumberFormatException e) {
+                System.out.println(RED + "Please enter a valid number!" + RESET);
+            }
+        }
+    }
+    
+    private int getDateInput(String prompt) {
+        while (true) {
+            System.out.print(prompt);
+            int date = ExpenseDates.parse(scanner.nextLine());
+            if (date != ExpenseDates.INVALID) {
+                return date;
+            }
+            System.out.println(RED + "Please enter a valid date (DD/MM/YYYY)!" + RESET);
+        }
+    }
+    
+    // The currency of an amount just typed: the home one unless the user names another with a rate
+    private int getCurrencyInput() {
+        String home = Currencies.code(Currencies.home());
+        if (ledger.rates().isEmpty()) return Currencies.home();
+        while (true) {
+            System.out.print("Currency (Enter for " + home + "): ");
+            String line = scanner.nextLine().trim();
+            if (line.isEmpty()) return Currencies.home();
+            try {
+                int currency = Currencies.parse(line);
+                if (ledger.hasRate(currency)) return currency;
+                System.out.println(RED + "No exchange rate for " + Currencies.code(currency)
+                                   + "; add one under Currencies & Rates." + RESET);
+            } catch (IllegalArgumentException e) {
+                System.out.println(RED + "Please enter a three-letter currency code!" + RESET);
+            }
+        }
+    }
+    
+    private long getMoneyInput(String prompt) {
         while (true) {
             try {
                 System.out.print(prompt);
-                return Double.parseDouble(scanner.nextLine());
+                return Money.parse(scanner.nextLine());
             } catch (NumberFormatException e) {
                 System.out.println(RED + "Please enter a valid amount!" + RESET);
             }
@@ -632,7 +1340,13 @@ private void quickAddExpense(double amount) {
     }
     
     public static void main(String[] args) {
-        ExpenseTracker tracker = new ExpenseTracker();
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.exit(BatchMode.run(openLedger(), Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && args[0].equals("--server")) {
+            System.exit(ExpenseServer.run(openLedger(), Arrays.copyOfRange(args, 1, args.length)));
+        }
+        ExpenseTracker tracker = new ExpenseTracker(openLedger());
         tracker.start();
     }
 }
\ No newline at end of file
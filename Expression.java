@@ -0,0 +1,329 @@
+import java.util.*;
+
+/**
+ * Calculator expressions compiled once to a compact postfix program and then
+ * evaluated without allocating, so the same expression can be run over every
+ * row of a large ledger.
+ *
+ *   numbers      12, 3.50, $20 (a leading $ is ignored)
+ *   operators    + - * / with the usual precedence, parentheses, unary minus
+ *   percentages  15% is 0.15; a + b% and a - b% add or take off b percent of a
+ *   variables    names such as total or food, bound by the caller
+ *
+ * Parsing is a small Pratt parser. Sub-expressions without variables are
+ * folded to constants at compile time.
+ */
+public final class Expression {
+
+    /** Supplies variable values; throw IllegalArgumentException for unknown names. */
+    public interface Binder {
+        double valueOf(String name);
+    }
+
+    // Opcodes
+    private static final byte CONST = 0, VAR = 1, ADD = 2, SUB = 3, MUL = 4, DIV = 5, NEG = 6,
+                              PERCENT = 7, ADD_PERCENT = 8, SUB_PERCENT = 9;
+
+    private static final int CACHE_SIZE = 256;
+    private static final Map<String, Expression> CACHE = new LinkedHashMap<String, Expression>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static final double[] NO_VALUES = new double[0];
+
+    private final String text;
+    private final byte[] code;
+    private final double[] operands;   // constant value or variable slot, per instruction
+    private final String[] variables;
+    private final int stackSize;
+
+    private Expression(String text, byte[] code, double[] operands, String[] variables, int stackSize) {
+        this.text = text;
+        this.code = code;
+        this.operands = operands;
+        this.variables = variables;
+        this.stackSize = stackSize;
+    }
+
+    /** Compiles {@code text}; throws IllegalArgumentException describing the first syntax error. */
+    public static Expression compile(String text) {
+        return new Parser(text).parseAll();
+    }
+
+    /** Like {@link #compile} but reuses recently compiled expressions. */
+    public static Expression cached(String text) {
+        synchronized (CACHE) {
+            Expression e = CACHE.get(text);
+            if (e == null) {
+                e = compile(text);
+                CACHE.put(text, e);
+            }
+            return e;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    public int variableCount() {
+        return variables.length;
+    }
+
+    public String variable(int slot) {
+        return variables[slot];
+    }
+
+    /** Slot of {@code name} in the values array, or -1 if the expression doesn't use it. */
+    public int variableIndex(String name) {
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /** A scratch stack for {@link #evaluate(double[], double[])}; reuse it across calls. */
+    public double[] newStack() {
+        return new double[stackSize];
+    }
+
+    public boolean isConstant() {
+        return variables.length == 0 && code.length == 1;
+    }
+
+    /**
+     * Runs the program. {@code values} holds one value per variable slot and
+     * {@code stack} comes from {@link #newStack()}; nothing is allocated, so
+     * this is the form to use in loops. Not thread-safe for a shared stack.
+     */
+    public double evaluate(double[] values, double[] stack) {
+        int sp = 0;
+        for (int pc = 0; pc < code.length; pc++) {
+            switch (code[pc]) {
+                case CONST: stack[sp++] = operands[pc]; break;
+                case VAR: stack[sp++] = values[(int) operands[pc]]; break;
+                case ADD: sp--; stack[sp - 1] += stack[sp]; break;
+                case SUB: sp--; stack[sp - 1] -= stack[sp]; break;
+                case MUL: sp--; stack[sp - 1] *= stack[sp]; break;
+                case DIV: sp--; stack[sp - 1] /= stack[sp]; break;
+                case NEG: stack[sp - 1] = -stack[sp - 1]; break;
+                case PERCENT: stack[sp - 1] /= 100; break;
+                case ADD_PERCENT: sp--; stack[sp - 1] += stack[sp - 1] * stack[sp] / 100; break;
+                case SUB_PERCENT: sp--; stack[sp - 1] -= stack[sp - 1] * stack[sp] / 100; break;
+                default: throw new IllegalStateException("bad opcode " + code[pc]);
+            }
+        }
+        return stack[0];
+    }
+
+    /** Binds every variable through {@code binder} and evaluates once. */
+    public double evaluate(Binder binder) {
+        if (isConstant()) return operands[0];
+        double[] values = variables.length == 0 ? NO_VALUES : new double[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            values[i] = binder.valueOf(variables[i]);
+        }
+        return evaluate(values, newStack());
+    }
+
+    /**
+     * Evaluates once per row with {@code amount} bound to that row's amount
+     * converted through {@code table} (in units of its currency, not cents)
+     * and every other variable taken from {@code binder} up front. Results go
+     * to {@code out[i]} for rows.get(i), or for row i when {@code rows} is null.
+     */
+    public void evaluateRows(ExpenseStore store, IntList rows, Rates.Table table, Binder binder, double[] out) {
+        int amountSlot = variableIndex("amount");
+        double[] values = new double[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            if (i != amountSlot) values[i] = binder.valueOf(variables[i]);
+        }
+        double[] stack = newStack();
+        int n = rows == null ? store.size() : rows.size();
+        for (int i = 0; i < n; i++) {
+            int row = rows == null ? i : rows.get(i);
+            if (amountSlot >= 0) {
+                values[amountSlot] = Money.toDouble(table.convert(store.amountAt(row), store.currencyAt(row),
+                                                                  store.dateAt(row)));
+            }
+            out[i] = evaluate(values, stack);
+        }
+    }
+
+    // Compiler
+
+    /** Pratt parser that emits postfix code as it goes. */
+    private static final class Parser {
+        private static final int SUM = 10, PRODUCT = 20, PREFIX = 30;
+
+        private final String text;
+        private int pos;
+
+        private byte[] code = new byte[16];
+        private double[] operands = new double[16];
+        private int length;
+        private final List<String> variables = new ArrayList<>();
+        private int depth, maxDepth;
+        // Where a folded "b%" constant sits, and the b it came from
+        private int foldedPercentAt = -1;
+        private double foldedPercentOf;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Expression parseAll() {
+            skipSpace();
+            if (pos == text.length()) throw error("Empty expression");
+            parse(0);
+            skipSpace();
+            if (pos < text.length()) throw error("Unexpected '" + text.charAt(pos) + "'");
+            return new Expression(text, Arrays.copyOf(code, length), Arrays.copyOf(operands, length),
+                                  variables.toArray(new String[0]), Math.max(maxDepth, 1));
+        }
+
+        // Parses an expression whose operators bind tighter than minPower.
+        // Returns true if it ended in a top-level '%', so a caller can tell
+        // "a + 10%" from "a + 0.1".
+        private boolean parse(int minPower) {
+            boolean percent = prefix();
+            while (true) {
+                skipSpace();
+                if (pos == text.length()) return percent;
+                char op = text.charAt(pos);
+                int power = op == '+' || op == '-' ? SUM : op == '*' || op == '/' ? PRODUCT : -1;
+                if (power < 0 || power <= minPower) return percent;
+                pos++;
+                boolean rightPercent = parse(power);
+                switch (op) {
+                    case '+': emit(rightPercent ? replacePercent(ADD_PERCENT) : ADD, 0); break;
+                    case '-': emit(rightPercent ? replacePercent(SUB_PERCENT) : SUB, 0); break;
+                    case '*': emit(MUL, 0); break;
+                    default: emit(DIV, 0); break;
+                }
+                percent = false;
+            }
+        }
+
+        // Drops the PERCENT just emitted for the right operand; the combined
+        // opcode applies it relative to the left operand instead
+        private byte replacePercent(byte combined) {
+            if (code[length - 1] == PERCENT) {
+                length--;
+            } else if (length - 1 == foldedPercentAt) {
+                operands[length - 1] = foldedPercentOf;
+            }
+            return combined;
+        }
+
+        private boolean prefix() {
+            skipSpace();
+            if (pos == text.length()) throw error("Expression ends too early");
+            char c = text.charAt(pos);
+            if (c == '-' || c == '+') {
+                pos++;
+                parse(PREFIX);
+                if (c == '-') emit(NEG, 0);
+            } else if (c == '(') {
+                pos++;
+                parse(0);
+                skipSpace();
+                if (pos == text.length() || text.charAt(pos) != ')') throw error("Missing ')'");
+                pos++;
+            } else if (c == '$' || c == '.' || (c >= '0' && c <= '9')) {
+                number();
+            } else if (Character.isLetter(c)) {
+                int start = pos;
+                while (pos < text.length() && (Character.isLetterOrDigit(text.charAt(pos)) || text.charAt(pos) == '_')) {
+                    pos++;
+                }
+                String name = text.substring(start, pos).toLowerCase(Locale.ROOT);
+                int slot = variables.indexOf(name);
+                if (slot < 0) {
+                    slot = variables.size();
+                    variables.add(name);
+                }
+                emit(VAR, slot);
+            } else {
+                throw error("Unexpected '" + c + "'");
+            }
+            skipSpace();
+            if (pos < text.length() && text.charAt(pos) == '%') {
+                pos++;
+                emit(PERCENT, 0);
+                return true;
+            }
+            return false;
+        }
+
+        private void number() {
+            if (text.charAt(pos) == '$') {
+                pos++;
+                skipSpace();
+            }
+            int start = pos;
+            while (pos < text.length() && (Character.isDigit(text.charAt(pos)) || text.charAt(pos) == '.')) pos++;
+            if (start == pos) throw error("Expected a number");
+            try {
+                emit(CONST, Double.parseDouble(text.substring(start, pos)));
+            } catch (NumberFormatException e) {
+                pos = start;
+                throw error("Bad number");
+            }
+        }
+
+        private void emit(byte op, double operand) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+                operands = Arrays.copyOf(operands, length * 2);
+            }
+            code[length] = op;
+            operands[length++] = operand;
+            depth += op <= VAR ? 1 : op == NEG || op == PERCENT ? 0 : -1;
+            maxDepth = Math.max(maxDepth, depth);
+            fold();
+        }
+
+        // Constant folding: an operator whose inputs are all constants is
+        // replaced by its result
+        private void fold() {
+            byte op = code[length - 1];
+            boolean unary = op == NEG || op == PERCENT;
+            boolean binary = op >= ADD && op <= DIV || op == ADD_PERCENT || op == SUB_PERCENT;
+            if (unary && length >= 2 && code[length - 2] == CONST) {
+                double v = operands[length - 2];
+                length -= 1;
+                operands[length - 1] = op == NEG ? -v : v / 100;
+                if (op == PERCENT) {
+                    foldedPercentAt = length - 1;
+                    foldedPercentOf = v;
+                }
+            } else if (binary && length >= 3 && code[length - 2] == CONST && code[length - 3] == CONST) {
+                double a = operands[length - 3], b = operands[length - 2];
+                double r;
+                switch (op) {
+                    case ADD: r = a + b; break;
+                    case SUB: r = a - b; break;
+                    case MUL: r = a * b; break;
+                    case DIV: r = a / b; break;
+                    case ADD_PERCENT: r = a + a * b / 100; break;
+                    default: r = a - a * b / 100; break;
+                }
+                length -= 2;
+                operands[length - 1] = r;
+            }
+        }
+
+        private void skipSpace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + (pos + 1));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing int -> int hash map (linear probing) for non-negative
+ * values, so ID lookups don't box every key into an Integer. get() returns
+ * -1 for a missing key.
+ */
+public final class IntIntMap {
+    private int[] keys;
+    private int[] values;   // -1 marks an empty slot
+    private int size;
+    private int mask;
+
+    public IntIntMap() {
+        this(16);
+    }
+
+    public IntIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, -1);
+        mask = capacity - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int key) {
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            if (values[i] < 0) return -1;
+            if (keys[i] == key) return values[i];
+        }
+    }
+
+    /** Maps {@code key} to {@code value} unless the key is already present; returns the current value. */
+    public int putIfAbsent(int key, int value) {
+        if (value < 0) throw new IllegalArgumentException("negative value " + value);
+        int i = slot(key);
+        for (; values[i] >= 0; i = (i + 1) & mask) {
+            if (keys[i] == key) return values[i];
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > (mask + 1) * 3 / 4) grow();
+        return value;
+    }
+
+    /** Maps {@code key} to {@code value}, replacing any current value. */
+    public void put(int key, int value) {
+        if (value < 0) throw new IllegalArgumentException("negative value " + value);
+        int i = slot(key);
+        for (; values[i] >= 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > (mask + 1) * 3 / 4) grow();
+    }
+
+    public void clear() {
+        Arrays.fill(values, -1);
+        size = 0;
+    }
+
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;   // Fibonacci hashing spreads sequential IDs
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys, oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(values, -1);
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] >= 0) putIfAbsent(oldKeys[i], oldValues[i]);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.Arrays;
+
+/**
+ * Bounded table of byte strings that repeat, such as the "Coffee" or "Uber
+ * ride" of a million rows, so a store can keep one copy of each in its
+ * description heap and point every row at it. The table only records where
+ * that copy is (offset, length and hash); the bytes stay in the caller's
+ * heap array.
+ *
+ * Admission goes by frequency, as in TinyLFU: a string gets a slot only once
+ * a small counting sketch has seen it twice, so one-off descriptions
+ * ("Invoice 4711") never push out common ones, and a full bucket of WAYS
+ * slots gives up its least used entry only to a string seen more often.
+ * The table starts small and doubles whenever a bucket overflows; only at
+ * MAX_SLOTS do entries compete for slots. Every count is halved after AGING
+ * lookups per slot so the table follows a change of habits.
+ */
+public final class InternTable {
+
+    static final int MAX_SLOTS = 1 << 14;
+    private static final int MIN_SLOTS = 64;
+    private static final int WAYS = 4;
+    private static final int AGING = 8;
+    private static final int SKETCH_MAX = 15;
+
+    private int[] hashes;
+    private int[] offsets;
+    private int[] lengths;   // 0 marks a free slot; empty strings are never interned
+    private byte[] counts;
+    private byte[] sketch;   // saturating counters, two per string, eight per slot
+    private int lookups;
+
+    public InternTable() {
+        allocate(MIN_SLOTS);
+    }
+
+    private void allocate(int slots) {
+        hashes = new int[slots];
+        offsets = new int[slots];
+        lengths = new int[slots];
+        counts = new byte[slots];
+        sketch = new byte[slots * 8];
+        lookups = 0;
+    }
+
+    public static int hash(byte[] bytes, int from, int length) {
+        int h = length;
+        for (int i = from; i < from + length; i++) {
+            h = 31 * h + bytes[i];
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 15);
+    }
+
+    /**
+     * Offset in {@code heap} of an entry equal to key[from, from + length),
+     * or -1. {@code key} may be {@code heap} itself.
+     */
+    public int find(byte[] heap, byte[] key, int from, int length, int hash) {
+        if (length == 0) return -1;
+        tick();
+        int bucket = bucket(hash);
+        for (int slot = bucket; slot < bucket + WAYS; slot++) {
+            if (hashes[slot] == hash && lengths[slot] == length && same(heap, offsets[slot], key, from, length)) {
+                if (counts[slot] < Byte.MAX_VALUE) counts[slot]++;
+                return offsets[slot];
+            }
+        }
+        return -1;
+    }
+
+    // Descriptions are short, so a plain loop beats Arrays.equals' range checks
+    private static boolean same(byte[] a, int aFrom, byte[] b, int bFrom, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aFrom + i] != b[bFrom + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Offers the copy at {@code offset} of a string {@link #find} missed. It
+     * takes a slot if the string has been seen before and its bucket has a
+     * free slot or one used less often.
+     */
+    public void offer(int offset, int length, int hash) {
+        if (length == 0) return;
+        int seen = see(hash);
+        if (seen < 2) return;
+        int victim = victim(hash);
+        while (lengths[victim] != 0 && hashes.length < MAX_SLOTS) {
+            grow();
+            victim = victim(hash);
+        }
+        if (lengths[victim] != 0 && counts[victim] >= seen) return;
+        hashes[victim] = hash;
+        offsets[victim] = offset;
+        lengths[victim] = length;
+        counts[victim] = (byte) seen;
+    }
+
+    // A free slot in hash's bucket, or else its least used one
+    private int victim(int hash) {
+        int bucket = bucket(hash), victim = bucket;
+        for (int slot = bucket; slot < bucket + WAYS; slot++) {
+            if (lengths[slot] == 0) return slot;
+            if (counts[slot] < counts[victim]) victim = slot;
+        }
+        return victim;
+    }
+
+    /** Forgets every entry, e.g. once the offsets no longer hold. */
+    public void clear() {
+        allocate(MIN_SLOTS);
+    }
+
+    private int bucket(int hash) {
+        return hash & (hashes.length - 1) & -WAYS;
+    }
+
+    // Counts one more sighting of hash in the sketch, raising only the lower
+    // of its two counters when they differ, and returns the new estimate
+    private int see(int hash) {
+        int mask = sketch.length - 1;
+        int a = (hash >>> 7) & mask, b = (hash * 0x85EBCA6B >>> 11) & mask;
+        int estimate = Math.min(sketch[a], sketch[b]);
+        if (estimate < SKETCH_MAX) {
+            if (sketch[a] == estimate) sketch[a]++;
+            if (sketch[b] == estimate) sketch[b]++;
+            estimate++;
+        }
+        return estimate;
+    }
+
+    private void tick() {
+        if (++lookups < hashes.length * AGING) return;
+        lookups = 0;
+        for (int i = 0; i < counts.length; i++) counts[i] >>= 1;
+        for (int i = 0; i < sketch.length; i++) sketch[i] >>= 1;
+    }
+
+    // Twice the slots; entries keep their counts, the sketch starts over
+    private void grow() {
+        int[] oldHashes = hashes, oldOffsets = offsets, oldLengths = lengths;
+        byte[] oldCounts = counts;
+        allocate(hashes.length * 2);
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldLengths[i] == 0) continue;
+            int bucket = bucket(oldHashes[i]);
+            for (int slot = bucket; slot < bucket + WAYS; slot++) {
+                if (lengths[slot] != 0) continue;
+                hashes[slot] = oldHashes[i];
+                offsets[slot] = oldOffsets[i];
+                lengths[slot] = oldLengths[i];
+                counts[slot] = oldCounts[i];
+                break;
+            }
+        }
+    }
+}
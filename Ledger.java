@@ -0,0 +1,1007 @@
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ledger without any UI: the row store, its date index, aggregate cache
+ * and time rollups, the budgets, the recurring expenses, the exchange rates,
+ * the ID sequence and the journal that persists changes.
+ * Both the interactive menu and the headless batch mode work through this
+ * class.
+ *
+ * On disk the rows are split into a segment per month (see Segments). Load
+ * builds the totals from the segment manifest and reads only the active
+ * window, the last few months (-Dexpenses.activeMonths, default 3) and any
+ * later ones; older months are paged in when a listing, search, export or
+ * query needs their rows, and evicted least recently used first once they
+ * take more than the cache cap (-Dexpenses.cacheMB, default 256). A month
+ * is only changed once it is in memory, and stays there until compaction
+ * has written its segment again.
+ *
+ * Expenses keep the currency they were entered in. The totals behind the
+ * rollups, aggregates and budgets are kept per currency too (see
+ * CurrencyTotals) and converted to the report currency with the rates in
+ * rates.txt (see Rates), so a new rate or report currency reconverts a few
+ * cells per day rather than every row.
+ *
+ * Every change is journaled. Between {@link #begin()} and {@link #commit()}
+ * changes are grouped into one journal batch that is fsynced once and
+ * recovered all-or-nothing. Outside a batch the journal fsyncs behind the
+ * caller's back, at most {@link #maxStaleness} after a change, unless group
+ * commit is on or the staleness is 0; {@link #flush()} forces it.
+ *
+ * The ledger is safe to share between threads. Changes are applied under the
+ * ledger's lock, which is held only for the in-memory update and the journal
+ * append; with {@link #groupCommit} on, writers then wait for the fsync
+ * outside it. Readers that take a while work on a {@link View} rather than
+ * the live store.
+ */
+public class Ledger implements Closeable {
+
+    /** What {@link #load()} found, for the caller to report however it likes. */
+    public static final class LoadReport {
+        public boolean found;
+        public int rows;
+        public int loaded;   // of them read into memory
+        public long elapsedNanos;
+        public final List<String> warnings = new ArrayList<>();
+    }
+
+    /**
+     * The rows and date index as they were when the view was taken, unaffected
+     * by later changes, plus the matching rows for a search. Close it when done.
+     */
+    public static final class View implements Closeable {
+        public final ColumnarExpenseStore store;
+        public final DateIndex dates;
+        public final IntList rows;   // search results, or null
+
+        View(ColumnarExpenseStore store, DateIndex dates, IntList rows) {
+            this.store = store;
+            this.dates = dates;
+            this.rows = rows;
+        }
+
+        @Override
+        public void close() {
+            store.release();
+        }
+    }
+
+    static final int DEFAULT_ACTIVE_MONTHS = 3;
+    static final long DEFAULT_CACHE_MB = 256;
+
+    private final Path dataFile;   // the single snapshot from before segments, split on first load
+    private final Path journalFile;
+    private final Path budgetFile;
+    private final Path categoryFile;
+    private final Path recurringFile;
+    private final Path ratesFile;
+    private final Segments segments;
+    // One segment write at a time; taken before the ledger's own lock
+    private final Object writeLock = new Object();
+    // One recurring pass at a time; taken before writeLock
+    private final Object recurringLock = new Object();
+    private ColumnarExpenseStore expenses = new ColumnarExpenseStore();
+    private DateIndex dateIndex = new DateIndex(expenses);
+    private DescriptionIndex descriptionIndex = new DescriptionIndex(expenses, dateIndex);
+    private final ExpenseAggregates aggregates = new ExpenseAggregates(Categories.count());
+    private Rollups rollups = new Rollups(Categories.count());
+    private CurrencyTotals totals = new CurrencyTotals(Categories.count());
+    private Rates rates = new Rates();
+    private Rates.Table table = rates.table(Currencies.home());   // to the report currency
+    private Budgets budgets = new Budgets();
+    private Recurring recurring = new Recurring();
+    private ExpenseJournal journal;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private volatile boolean groupCommit;
+    private long maxStalenessMs = Long.getLong("expenses.maxStaleness", ExpenseJournal.DEFAULT_MAX_STALENESS_MS);
+
+    public Ledger(Path dataFile, Path journalFile) {
+        this.dataFile = dataFile;
+        this.journalFile = journalFile;
+        this.budgetFile = dataFile.resolveSibling(ExpenseTracker.BUDGET_FILE);
+        this.categoryFile = dataFile.resolveSibling(ExpenseTracker.CATEGORY_FILE);
+        this.recurringFile = dataFile.resolveSibling(ExpenseTracker.RECURRING_FILE);
+        this.ratesFile = dataFile.resolveSibling(ExpenseTracker.RATES_FILE);
+        this.segments = new Segments(dataFile.resolveSibling(ExpenseTracker.SEGMENT_DIR),
+                                     Integer.getInteger("expenses.activeMonths", DEFAULT_ACTIVE_MONTHS),
+                                     Long.getLong("expenses.cacheMB", DEFAULT_CACHE_MB) << 20);
+    }
+
+    public ExpenseAggregates aggregates() {
+        return aggregates;
+    }
+
+    public int nextId() {
+        return nextId.get();
+    }
+
+    /**
+     * With group commit on, add and delete return only once their journal
+     * records are fsynced, and writers that arrive during an fsync share the
+     * next one. Off (the default) changes return as soon as they are written
+     * and the journal fsyncs them in the background, which suits a single
+     * interactive user.
+     */
+    public synchronized void groupCommit(boolean on) {
+        groupCommit = on;
+        if (journal != null) journal.groupCommit(on);
+    }
+
+    /**
+     * Longest a change may wait for its fsync with group commit off (default
+     * 1000 ms, or -Dexpenses.maxStaleness). 0 makes every change wait for it.
+     */
+    public synchronized void maxStaleness(long millis) {
+        if (journal != null) journal.maxStaleness(millis);
+        maxStalenessMs = millis;
+    }
+
+    /** Fsyncs every change made so far; returns once they are on disk. */
+    public void flush() throws IOException {
+        ExpenseJournal journal;
+        synchronized (this) {
+            journal = journal();
+        }
+        journal.awaitDurable(journal.lastRecord());
+    }
+
+    /** Changes not yet fsynced. */
+    public synchronized int pendingChanges() {
+        return journal == null ? 0 : journal.pendingRecords();
+    }
+
+    // Loading
+
+    public synchronized LoadReport load() {
+        LoadReport report = new LoadReport();
+        long start = System.nanoTime();
+        Metrics.Span span = Metrics.start(Metrics.Op.LOAD).read(sizeOf(journalFile));
+        try {
+            Categories.load(categoryFile);
+        } catch (IOException e) {
+            report.warnings.add("Error loading categories: " + e.getMessage());
+        }
+        try {
+            rates = Rates.load(ratesFile);
+        } catch (IOException e) {
+            report.warnings.add("Error loading exchange rates, amounts will not be converted: " + e.getMessage());
+            rates = new Rates();
+        }
+        try {
+            report.found = segments.open() || migrate();
+        } catch (IOException e) {
+            report.warnings.add("Error loading data: " + e.getMessage());
+        }
+
+        // The journal is replayed in order against the segments: adds up to
+        // their last ID are in them already, a delete of an ID added earlier
+        // in the journal cancels that add, and other deletes page in the
+        // months whose ID ranges could hold them. Old journals may add an ID
+        // again after deleting it, so only the live add of an ID counts.
+        int lastId = segments.lastId();
+        ColumnarExpenseStore added = new ColumnarExpenseStore();
+        IntIntMap addedRows = new IntIntMap();
+        BitSet cancelled = new BitSet();
+        Set<Integer> deleted = new LinkedHashSet<>();
+        int[] journalMaxId = { 0 };
+        try {
+            int replayed = ExpenseJournal.recover(journalFile, new ExpenseJournal.Replay() {
+                public void add(int id, long cents, int currency, int category, int day, String description) {
+                    journalMaxId[0] = Math.max(journalMaxId[0], id);
+                    if (id <= lastId || day == ExpenseDates.INVALID) return;
+                    int row = addedRows.get(id);
+                    if (row >= 0 && !cancelled.get(row)) return;   // replayed twice
+                    addedRows.put(id, added.add(id, cents, currency, category, day, description));
+                }
+                public void delete(int id) {
+                    journalMaxId[0] = Math.max(journalMaxId[0], id);
+                    int row = addedRows.get(id);
+                    if (row >= 0 && !cancelled.get(row)) cancelled.set(row);
+                    else deleted.add(id);
+                }
+            });
+            report.found |= replayed > 0;
+        } catch (IOException e) {
+            report.warnings.add("Error reading journal: " + e.getMessage());
+        }
+        IntList cancelledRows = new IntList(cancelled.cardinality());
+        cancelled.stream().forEach(cancelledRows::add);
+        added.removeAll(cancelledRows);
+
+        // The totals come from the manifest; only the active window's rows are
+        // read. Both the manifest and the journal have registered the
+        // categories they name by now, so the totals are sized for all of them.
+        totals = new CurrencyTotals(Categories.count());
+        expenses = new ColumnarExpenseStore();
+        for (Segments.Segment segment : segments.all()) {
+            segment.addTo(totals);
+            if (!segments.isActive(segment.month)) continue;
+            try {
+                expenses.addAll(segments.read(segment));
+                segments.loaded(segment);
+            } catch (IOException e) {
+                report.warnings.add("Error loading data: " + e.getMessage());
+            }
+        }
+        expenses.sortById();
+        dateIndex = new DateIndex(expenses);
+        descriptionIndex = new DescriptionIndex(expenses, dateIndex);
+
+        try {
+            Set<Integer> months = new HashSet<>();
+            for (int row = 0; row < added.size(); row++) {
+                months.add(ExpenseAggregates.monthKey(added.dateAt(row)));
+            }
+            pageIn(segments.select(s -> months.contains(s.month)));
+            pageInIds(deleted.stream().mapToInt(Integer::intValue).toArray());
+        } catch (IOException e) {
+            report.warnings.add("Error loading data: " + e.getMessage());
+        }
+
+        IntList gone = new IntList(deleted.size());
+        for (int id : deleted) {
+            int row = expenses.indexOf(id);
+            if (row >= 0) {
+                gone.add(row);
+                totals.add(expenses.currencyAt(row), expenses.categoryAt(row), expenses.dateAt(row),
+                           -expenses.amountAt(row), -1);
+                segments.changed(ExpenseAggregates.monthKey(expenses.dateAt(row)));
+            }
+        }
+        expenses.removeAll(gone);
+        for (int row = 0; row < added.size(); row++) {
+            int id = added.idAt(row), day = added.dateAt(row);
+            int month = ExpenseAggregates.monthKey(day);
+            // A month that couldn't be read stays as it is on disk (reported above)
+            if (expenses.indexOf(id) >= 0 || !segments.isLoaded(month)) continue;
+            expenses.addFrom(added, row);
+            totals.add(added.currencyAt(row), added.categoryAt(row), day, added.amountAt(row), 1);
+            segments.changed(month);
+        }
+        expenses.sortById();   // a no-op unless an old journal added an ID again
+        dateIndex.invalidate();
+        descriptionIndex.invalidate();
+
+        // Only now is every currency in the data registered
+        String currency = System.getProperty("expenses.currency", rates.report());
+        int target;
+        try {
+            target = Currencies.parse(currency);
+            if (!rates.has(Currencies.code(target))) throw new IllegalArgumentException("no exchange rate for it");
+        } catch (IllegalArgumentException e) {
+            report.warnings.add("Cannot report in " + currency + " (" + e.getMessage() + "), using "
+                                + rates.home());
+            target = Currencies.home();
+        }
+        List<String> missing = rates.missing(totals.currencies());
+        if (!missing.isEmpty()) {
+            report.warnings.add("No exchange rate for " + String.join(", ", missing)
+                                + "; those amounts are counted as " + rates.home());
+        }
+        table = rates.table(target);
+        rollups = totals.convert(table);
+        aggregates.rebuild(rollups);
+        checkAggregates();
+        try {
+            budgets = Budgets.load(budgetFile);
+        } catch (IOException e) {
+            report.warnings.add("Error loading budgets, using the defaults: " + e.getMessage());
+            budgets = Budgets.defaults();
+        }
+        budgets.rebuild(rollups);
+        try {
+            recurring = Recurring.load(recurringFile);
+        } catch (IOException e) {
+            report.warnings.add("Error loading recurring expenses, none will be added: " + e.getMessage());
+            recurring = new Recurring();
+        }
+
+        // A deleted ID must not come back, even one that only the journal saw
+        int next = Math.max(1, Math.max(lastId, journalMaxId[0]) + 1);
+        for (int row = 0; row < expenses.size(); row++) {
+            next = Math.max(next, expenses.idAt(row) + 1);
+        }
+        for (Segments.Segment segment : segments.all()) {
+            next = Math.max(next, segment.maxId + 1);
+        }
+        nextId.set(next);
+
+        try {
+            journal = new ExpenseJournal(journalFile);
+            journal.groupCommit(groupCommit);
+            journal.maxStaleness(maxStalenessMs);
+            journal.scheduleCompaction(this::compact);
+        } catch (IOException e) {
+            report.warnings.add("Error opening journal: " + e.getMessage());
+        }
+
+        report.rows = (int) aggregates.count();
+        report.loaded = expenses.size();
+        report.elapsedNanos = System.nanoTime() - start;
+        span.rows(report.loaded, report.rows).close();
+        return report;
+    }
+
+    // The first load with segments splits the old single snapshot into them
+    // and keeps it as .bak. False if there is none either.
+    private boolean migrate() throws IOException {
+        if (Files.notExists(dataFile)) return false;
+        ExpenseLoader.Result loaded = SnapshotFile.load(dataFile);
+        if (loaded.skipped > 0) {
+            throw new IOException(dataFile + " left as it is: " + loaded.describeSkipped());
+        }
+        ColumnarExpenseStore all = loaded.store;
+        int lastId = 0;
+        Set<Integer> months = new TreeSet<>();
+        for (int row = 0; row < all.size(); row++) {
+            lastId = Math.max(lastId, all.idAt(row));
+            months.add(ExpenseAggregates.monthKey(all.dateAt(row)));
+        }
+        segments.write(all, new DateIndex(all), months, lastId);
+        Files.move(dataFile, dataFile.resolveSibling(dataFile.getFileName() + ".bak"),
+                   StandardCopyOption.REPLACE_EXISTING);
+        System.err.println("Split " + dataFile + " into " + months.size() + " monthly segments (" + all.size()
+                           + " rows)");
+        return segments.open();
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // Changes
+
+    /** Adds an expense in the home currency and returns its new ID. The row is kept even if journaling fails. */
+    public int add(long amountCents, int category, int epochDay, String description) throws IOException {
+        return add(amountCents, Currencies.home(), category, epochDay, description, null);
+    }
+
+    /**
+     * {@link #add} in {@code currency}, which needs an exchange rate unless
+     * it is the home currency, also collecting the budget thresholds the
+     * expense crosses into {@code alerts}.
+     */
+    public int add(long amountCents, int currency, int category, int epochDay, String description,
+                   List<Budgets.Status> alerts) throws IOException {
+        int id;
+        long record;
+        ExpenseJournal journal;
+        Metrics.Span span = Metrics.start(Metrics.Op.ADD);
+        synchronized (this) {
+            String code = Currencies.code(currency);
+            if (!rates.has(code)) throw new IllegalArgumentException("no exchange rate for " + code + "; add one first");
+            int month = ExpenseAggregates.monthKey(epochDay);
+            if (!segments.isLoaded(month)) pageIn(Collections.singletonList(segments.segment(month)));
+            // Drawn under the lock so rows stay in ID order for binary search
+            id = nextId.getAndIncrement();
+            int row = expenses.add(id, amountCents, currency, category, epochDay, description);
+            segments.changed(month);
+            dateIndex.onAdd(row);
+            descriptionIndex.onAdd(row);
+            long converted = totals.add(currency, category, epochDay, amountCents, 1, table);
+            aggregates.add(converted, category, epochDay);
+            rollups.add(converted, category, epochDay);
+            budgets.onAdd(converted, category, epochDay, alerts);
+            checkAggregates();
+            journal = journal();
+            record = journal.appendAdd(id, amountCents, code, Categories.name(category), epochDay, description);
+        }
+        if (journal.awaitsDurability()) journal.awaitDurable(record);
+        span.rows(0, 1).close();
+        return id;
+    }
+
+    /** Deletes by ID; returns false if there is no such expense. */
+    public boolean delete(int id) throws IOException {
+        return deleteAll(new int[] { id }) == 1;
+    }
+
+    /** Deletes every listed ID that exists and returns how many were deleted. */
+    public int deleteAll(int[] ids) throws IOException {
+        int deleted;
+        long record;
+        ExpenseJournal journal;
+        Metrics.Span span = Metrics.start(Metrics.Op.DELETE);
+        synchronized (this) {
+            pageInIds(ids);
+            IntList rows = new IntList(ids.length);
+            for (int id : ids) {
+                int row = expenses.indexOf(id);
+                if (row >= 0) rows.add(row);
+            }
+            journal = journal();
+            deleted = removeRows(rows);
+            record = deleted > 0 ? journal.lastRecord() : 0;
+        }
+        if (journal.awaitsDurability()) journal.awaitDurable(record);
+        span.rows(ids.length, deleted).close();
+        return deleted;
+    }
+
+    /** Deletes every expense dated within [startDay, endDay]; returns how many. */
+    public int deleteBetween(int startDay, int endDay) throws IOException {
+        int deleted;
+        long record;
+        ExpenseJournal journal;
+        Metrics.Span span = Metrics.start(Metrics.Op.DELETE);
+        synchronized (this) {
+            journal = journal();
+            pageIn(segments.select(s -> s.overlaps(startDay, endDay)));
+            deleted = removeRows(dateIndex.rowsBetween(startDay, endDay));
+            record = deleted > 0 ? journal.lastRecord() : 0;
+        }
+        if (journal.awaitsDurability()) journal.awaitDurable(record);
+        span.rows(deleted, deleted).close();
+        return deleted;
+    }
+
+    // Several deletes are journaled as one batch unless the caller already
+    // has one open, so a bulk delete is recovered all-or-nothing
+    private int removeRows(IntList candidates) throws IOException {
+        if (candidates.isEmpty()) return 0;
+        ExpenseJournal journal = journal();
+        // The same row may be listed twice (a repeated ID); count it once
+        int[] sorted = candidates.toArray();
+        Arrays.sort(sorted);
+        IntList rows = new IntList(sorted.length);
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) rows.add(sorted[i]);
+        }
+        int[] ids = new int[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            int row = rows.get(i);
+            ids[i] = expenses.idAt(row);
+            int category = expenses.categoryAt(row), day = expenses.dateAt(row);
+            segments.changed(ExpenseAggregates.monthKey(day));
+            long converted = -totals.add(expenses.currencyAt(row), category, day, -expenses.amountAt(row), -1, table);
+            aggregates.remove(converted, category, day);
+            rollups.remove(converted, category, day);
+            budgets.onRemove(converted, category, day);
+        }
+        expenses.removeAll(rows);
+        dateIndex.onRemove(rows);
+        descriptionIndex.onRemove(rows.size());
+        checkAggregates();
+
+        boolean ownBatch = ids.length > 1 && !journal.inBatch();
+        if (ownBatch) journal.beginBatch();
+        for (int id : ids) {
+            journal.appendDelete(id);
+        }
+        if (ownBatch) journal.commitBatch();
+        return ids.length;
+    }
+
+    /**
+     * Appends every row of {@code staged}, numbered from the ledger's ID
+     * sequence, and persists them as one unit: the journal is rotated and the
+     * segments of the months they fall in (and of any other changed month)
+     * written, so after a crash either the whole import is there or none of
+     * it. Returns the first ID assigned.
+     */
+    public int importRows(ColumnarExpenseStore staged) throws IOException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (inTransaction()) throw new IllegalStateException("commit the open transaction first");
+                ExpenseJournal journal = journal();
+                Set<Integer> months = new TreeSet<>();
+                for (int row = 0; row < staged.size(); row++) {
+                    months.add(ExpenseAggregates.monthKey(staged.dateAt(row)));
+                }
+                pageIn(segments.select(s -> months.contains(s.month)));
+                int before = expenses.size();
+                int firstId = nextId.get();
+                staged.renumber(firstId);
+                int lastId = firstId + staged.size() - 1;
+
+                journal.rotate();
+                expenses.addAll(staged);
+                for (int row = before; row < expenses.size(); row++) {
+                    dateIndex.onAdd(row);
+                    descriptionIndex.onAdd(row);
+                }
+                Set<Integer> changed = segments.startWrite();
+                months.addAll(changed);
+                try {
+                    segments.write(expenses, dateIndex, months, lastId);
+                } catch (IOException | RuntimeException e) {
+                    // Nothing on disk changed: the rotated journal is still replayed on start
+                    expenses.truncate(before);
+                    dateIndex.invalidate();
+                    descriptionIndex.invalidate();
+                    segments.finishWrite(changed, false);
+                    throw e;
+                }
+                segments.finishWrite(months, true);
+                journal.finishRotation();
+
+                nextId.set(lastId + 1);
+                for (int row = before; row < expenses.size(); row++) {
+                    int category = expenses.categoryAt(row), day = expenses.dateAt(row);
+                    long converted = totals.add(expenses.currencyAt(row), category, day, expenses.amountAt(row), 1,
+                                                table);
+                    aggregates.add(converted, category, day);
+                    rollups.add(converted, category, day);
+                    budgets.onAdd(converted, category, day, null);
+                }
+                checkAggregates();
+                return firstId;
+            }
+        }
+    }
+
+    public synchronized void begin() throws IOException {
+        journal().beginBatch();
+    }
+
+    public synchronized void commit() throws IOException {
+        journal().commitBatch();
+    }
+
+    public synchronized boolean inTransaction() {
+        return journal != null && journal.inBatch();
+    }
+
+    private ExpenseJournal journal() throws IOException {
+        if (journal == null) throw new IOException("journal is not open");
+        return journal;
+    }
+
+    // Segments in memory
+
+    /**
+     * Makes sure every expense dated within [startDay, endDay] in one of
+     * {@code categoryMask}'s categories (a bit each, 0 for all) is in
+     * memory, paging in the older months that may hold some. Compaction may
+     * evict months again on its own thread, so rows are only read through a
+     * {@link View}; totals never need either.
+     */
+    public synchronized void ensureLoaded(int startDay, int endDay, long categoryMask) {
+        pageInQuietly(segments.select(s -> s.overlaps(startDay, endDay) && s.hasAny(categoryMask)));
+    }
+
+    /** Which months are in memory and how full the cache is. */
+    public synchronized String describeSegments() {
+        return segments.describe();
+    }
+
+    // Reads segments into the live store; the rows of a month are all in
+    // memory or none of them. Other older months are then evicted if the
+    // cache is over its cap, but the ones asked for stay even if they alone
+    // are over it.
+    private void pageIn(List<Segments.Segment> wanted) throws IOException {
+        Set<Integer> keep = new HashSet<>();
+        IOException failed = null;
+        int before = expenses.size();
+        for (Segments.Segment segment : wanted) {
+            keep.add(segment.month);
+            if (segments.isLoaded(segment.month)) {
+                segments.touch(segment.month);
+                continue;
+            }
+            try {
+                expenses.addAll(segments.read(segment));
+                segments.loaded(segment);
+            } catch (IOException e) {
+                if (failed == null) failed = e;
+            }
+        }
+        if (expenses.size() > before) {
+            // Listings, search and indexOf count on row order being ID order
+            expenses.sortById();
+            dateIndex.invalidate();
+            descriptionIndex.invalidate();
+        }
+        evict(keep);
+        if (failed != null) throw failed;
+    }
+
+    // For readers: a segment that can't be read is reported and left out
+    private void pageInQuietly(List<Segments.Segment> wanted) {
+        try {
+            pageIn(wanted);
+        } catch (IOException e) {
+            System.err.println("Error loading data: " + e.getMessage());
+        }
+    }
+
+    // IDs not in memory may be in older months whose ID ranges hold them
+    private void pageInIds(int[] ids) throws IOException {
+        Set<Segments.Segment> wanted = new LinkedHashSet<>();
+        for (int id : ids) {
+            if (expenses.indexOf(id) >= 0) continue;
+            wanted.addAll(segments.select(s -> s.minId <= id && id <= s.maxId && !segments.isLoaded(s.month)));
+        }
+        if (!wanted.isEmpty()) pageIn(new ArrayList<>(wanted));
+    }
+
+    private void evict(Set<Integer> keep) {
+        List<Integer> months = segments.evict(keep);
+        if (months.isEmpty()) return;
+        IntList rows = new IntList();
+        for (int month : months) {
+            IntList monthRows = dateIndex.rowsBetween(Rollups.Level.MONTH.start(month), Rollups.Level.MONTH.end(month));
+            for (int i = 0; i < monthRows.size(); i++) rows.add(monthRows.get(i));
+        }
+        expenses.removeAll(rows);
+        dateIndex.onRemove(rows);
+        descriptionIndex.onRemove(rows.size());
+    }
+
+    // Queries
+
+    public synchronized IntList rowsBetween(int startDay, int endDay) {
+        ensureLoaded(startDay, endDay, 0);
+        return dateIndex.rowsBetween(startDay, endDay);
+    }
+
+    /**
+     * Rows whose descriptions match {@code query} (see DescriptionIndex for
+     * the syntax), limited by {@code filter}'s dates and category if given.
+     */
+    public synchronized IntList search(String query, CsvExporter.Filter filter) {
+        try (Metrics.Span span = Metrics.start(Metrics.Op.SEARCH)) {
+            if (filter == null) {
+                ensureLoaded(Integer.MIN_VALUE, Integer.MAX_VALUE, 0);
+            } else {
+                ensureLoaded(filter.startDay, filter.endDay, filter.category < 0 ? 0 : 1L << filter.category);
+            }
+            IntList rows = descriptionIndex.search(query, filter);
+            span.rows(rows.size(), rows.size());
+            return rows;
+        }
+    }
+
+    /**
+     * A consistent, unchanging view of the rows in memory. Every reader
+     * outside the ledger, the menu included, reads rows through one, since
+     * compaction evicts months from the live store on its own thread.
+     */
+    public synchronized View view() {
+        ColumnarExpenseStore rows = expenses.view();
+        return new View(rows, dateIndex.view(rows), null);
+    }
+
+    /** {@link #view()} once the rows {@link #ensureLoaded} would page in are in memory. */
+    public synchronized View view(int startDay, int endDay, long categoryMask) {
+        ensureLoaded(startDay, endDay, categoryMask);
+        return view();
+    }
+
+    /** {@link #search} plus a view whose row numbers the results refer to. */
+    public synchronized View searchView(String query, CsvExporter.Filter filter) {
+        IntList matches = search(query, filter);   // first: it may page rows in
+        ColumnarExpenseStore rows = expenses.view();
+        return new View(rows, dateIndex.view(rows), matches);
+    }
+
+    /** A copy of the running totals, for readers on other threads. */
+    public synchronized ExpenseAggregates aggregatesCopy() {
+        return aggregates.copy();
+    }
+
+    /**
+     * Runs {@code query}: under the lock from the rollups when they can
+     * answer it, otherwise over a view, so a long scan holds nobody up.
+     */
+    public ExpenseQuery.Result query(ExpenseQuery query) {
+        try (Metrics.Span span = Metrics.start(Metrics.Op.QUERY)) {
+            ExpenseQuery.Result result = run(query);
+            span.rows(result.examined, result.count());
+            return result;
+        }
+    }
+
+    private ExpenseQuery.Result run(ExpenseQuery query) {
+        View view;
+        Rates.Table conversion;
+        synchronized (this) {
+            if (query.fitsRollups()) return query.run(rollups);
+            // Segments whose summaries rule them out stay on disk. Their amount
+            // ranges are in the rows' own currencies, so only count when
+            // those are all the report currency.
+            long reportOnly = 1L << table.currency();
+            pageInQuietly(segments.select(s -> s.currencies == reportOnly
+                    ? query.mayMatch(s.firstDay, s.lastDay, s.categories, s.minCents, s.maxCents)
+                    : query.mayMatch(s.firstDay, s.lastDay, s.categories, Long.MIN_VALUE, Long.MAX_VALUE)));
+            view = query.text() == null ? view() : searchView(query.text(), query.searchFilter());
+            conversion = table;
+        }
+        try (View v = view) {
+            return query.run(v.store, v.dates, v.rows, conversion);
+        }
+    }
+
+    /** The last {@code periods} buckets of {@code level} up to the one containing {@code lastDay}. */
+    public synchronized Rollups.Trend trend(Rollups.Level level, int lastDay, int periods) {
+        try (Metrics.Span span = Metrics.start(Metrics.Op.TREND)) {
+            Rollups.Trend trend = rollups.trend(level, lastDay, periods);
+            span.rows(0, periods);
+            return trend;
+        }
+    }
+
+    // Categories
+
+    /**
+     * Adds a category (see Categories for what names are allowed), saves the
+     * category file and widens the totals to match; returns its number.
+     */
+    public synchronized int addCategory(String name) throws IOException {
+        int category = Categories.add(name);
+        totals = totals.withCategories(Categories.count());
+        rollups = rollups.withCategories(Categories.count());
+        aggregates.rebuild(rollups);
+        budgets.rebuild(rollups);
+        return category;
+    }
+
+    // Currencies
+
+    /** The conversion to the report currency, for showing amounts; immutable. */
+    public synchronized Rates.Table conversion() {
+        return table;
+    }
+
+    /** The currency totals, budgets and queries are in. */
+    public synchronized int reportCurrency() {
+        return table.currency();
+    }
+
+    public synchronized List<Rates.Rate> rates() {
+        return rates.rates();
+    }
+
+    /** Whether expenses can be entered in {@code currency}: it has a rate or is the home currency. */
+    public synchronized boolean hasRate(int currency) {
+        return rates.has(Currencies.code(currency));
+    }
+
+    /**
+     * Sets {@code currency}'s rate from {@code fromDay} on (see Rates), saves
+     * the rates file and reconverts the totals.
+     */
+    public synchronized void addRate(int currency, int fromDay, BigDecimal value) throws IOException {
+        rates.add(Currencies.code(currency), fromDay, value);
+        rates.save(ratesFile);
+        reconvert(table.currency());
+    }
+
+    /** Removes {@code currency}'s rate from {@code fromDay}; false if there is none. */
+    public synchronized boolean removeRate(int currency, int fromDay) throws IOException {
+        String code = Currencies.code(currency);
+        if (currency == table.currency() && rates.rates().stream().filter(r -> r.currency.equals(code)).count() == 1) {
+            throw new IllegalArgumentException(code + " is the report currency and needs a rate");
+        }
+        if (!rates.remove(code, fromDay)) return false;
+        rates.save(ratesFile);
+        reconvert(table.currency());
+        return true;
+    }
+
+    /** Reports in {@code currency} from now on, saving it in the rates file. */
+    public synchronized void reportIn(int currency) throws IOException {
+        rates.report(Currencies.code(currency));
+        rates.save(ratesFile);
+        reconvert(currency);
+    }
+
+    // The rollups, aggregates and budgets again from the native totals
+    private void reconvert(int currency) {
+        try (Metrics.Span span = Metrics.start(Metrics.Op.CONVERT)) {
+            table = rates.table(currency);
+            rollups = totals.convert(table);
+            aggregates.rebuild(rollups);
+            budgets.rebuild(rollups);
+            checkAggregates();
+            span.rows(0, aggregates.count());
+        }
+    }
+
+    // Budgets
+
+    public synchronized List<Budgets.Rule> budgets() {
+        return new ArrayList<>(budgets.rules());
+    }
+
+    /** Adds a budget rule and saves the budget file (see Budgets for the arguments). */
+    public synchronized Budgets.Rule addBudget(int category, Budgets.Period period, long limitCents, int[] percents,
+                                               int startDay, int endDay) throws IOException {
+        Budgets.Rule rule = budgets.add(category, period, limitCents, percents, startDay, endDay, rollups);
+        budgets.save(budgetFile);
+        return rule;
+    }
+
+    public synchronized boolean removeBudget(int id) throws IOException {
+        if (!budgets.remove(id)) return false;
+        budgets.save(budgetFile);
+        return true;
+    }
+
+    /** Each budget's spend in its period containing {@code today}. */
+    public synchronized List<Budgets.Status> budgetStatus(int today) {
+        return budgets.status(today);
+    }
+
+    /** Every past period in which a budget reached one of its thresholds. */
+    public synchronized List<Budgets.Status> budgetHistory() {
+        return budgets.history();
+    }
+
+    // Recurring expenses
+
+    public synchronized List<Recurring.Rule> recurring() {
+        return new ArrayList<>(recurring.rules());
+    }
+
+    /**
+     * Adds a recurring expense and saves the recurring file (see Recurring
+     * for the arguments). Its occurrences are added by the next
+     * {@link #materializeRecurring}.
+     */
+    public synchronized Recurring.Rule addRecurring(int category, int currency, Recurring.Every every,
+                                                    String description, int startDay, int endDay, int[] changeDays,
+                                                    long[] amounts) throws IOException {
+        String code = Currencies.code(currency);
+        if (!rates.has(code)) throw new IllegalArgumentException("no exchange rate for " + code + "; add one first");
+        Recurring.Rule rule = recurring.add(category, currency, every, description, startDay, endDay, changeDays,
+                                            amounts);
+        recurring.save(recurringFile);
+        return rule;
+    }
+
+    /** Sets a recurring expense's amount from {@code fromDay} on; null if there is no such rule. */
+    public synchronized Recurring.Rule changeRecurring(int id, long cents, int fromDay) throws IOException {
+        Recurring.Rule rule = recurring.changeAmount(id, cents, fromDay);
+        if (rule != null) recurring.save(recurringFile);
+        return rule;
+    }
+
+    /** Removes a recurring expense; the expenses it added stay. */
+    public synchronized boolean removeRecurring(int id) throws IOException {
+        if (!recurring.remove(id)) return false;
+        recurring.save(recurringFile);
+        return true;
+    }
+
+    /**
+     * Adds every recurring expense due up to {@code today} that isn't in the
+     * ledger yet. The occurrences of all due rules, years of them for a rule
+     * that starts in the past, are generated in parallel and added as one
+     * {@link #importRows import}, in date order, with no per-row journal
+     * records or fsyncs. The rows of the rules' pending period already in
+     * the ledger are matched first, so a pass that is repeated, or was cut
+     * short before the recurring file was saved, adds nothing twice.
+     */
+    public Recurring.Result materializeRecurring(int today) throws IOException {
+        synchronized (recurringLock) {
+            Recurring.Result result = new Recurring.Result();
+            long start = System.nanoTime();
+            List<Recurring.Rule> due;
+            synchronized (this) {
+                due = recurring.due(today);
+            }
+            if (due.isEmpty()) return result;
+            try (Metrics.Span span = Metrics.start(Metrics.Op.RECURRING)) {
+                int from = today;
+                long categoryMask = 0;
+                Map<String, Recurring.Existing> existing = new HashMap<>();
+                for (Recurring.Rule rule : due) {
+                    from = Math.min(from, rule.through() + 1);
+                    categoryMask |= 1L << rule.category;
+                    existing.put(rule.description, new Recurring.Existing());
+                }
+                int examined;
+                try (View view = view(from, today, categoryMask)) {
+                    IntList rows = view.dates.rowsBetween(from, today);
+                    examined = rows.size();
+                    for (int i = 0; i < rows.size(); i++) {
+                        int row = rows.get(i);
+                        int category = view.store.categoryAt(row);
+                        if ((categoryMask & 1L << category) == 0) continue;
+                        Recurring.Existing same = existing.get(view.store.descriptionAt(row));
+                        if (same != null) {
+                            same.add(view.store.dateAt(row), category, view.store.currencyAt(row),
+                                     view.store.amountAt(row));
+                        }
+                    }
+                }
+
+                List<Recurring.Occurrences> made = Recurring.occurrences(due, today, existing);
+                for (Recurring.Occurrences o : made) {
+                    result.added += o.size;
+                    result.existing += o.existing;
+                }
+                // Date order, so IDs run with the dates as they do for expenses added by hand
+                if (result.added > 0) result.firstId = importRows(Recurring.stage(made, from, today));
+                result.rules = due.size();
+                synchronized (this) {
+                    recurring.advance(due, today);
+                    recurring.save(recurringFile);
+                }
+                span.rows(examined, result.added);
+            }
+            result.elapsedNanos = System.nanoTime() - start;
+            return result;
+        }
+    }
+
+    // Persistence
+
+    // Runs on the journal's background thread: writes the changed months'
+    // segments from a view, so changes carry on meanwhile. Besides a big
+    // journal, changed older months are a reason to run, since they can't
+    // be evicted until written.
+    private void compact() {
+        synchronized (writeLock) {
+            ColumnarExpenseStore rows;
+            DateIndex dates;
+            ExpenseJournal journal;
+            Set<Integer> months;
+            int lastId;
+            synchronized (this) {
+                journal = this.journal;
+                try {
+                    if (journal == null || journal.inBatch()) return;
+                    if (!journal.needsCompaction() && !segments.holdsChanges()) return;
+                    journal.rotate();
+                } catch (IOException e) {
+                    System.err.println("Error saving data: " + e.getMessage());
+                    return;
+                }
+                months = segments.startWrite();
+                rows = expenses.view();   // O(1), so appends don't wait for a copy
+                dates = dateIndex.view(rows);
+                lastId = nextId.get() - 1;
+            }
+            boolean written = false;
+            try {
+                segments.write(rows, dates, months, lastId);
+                journal.finishRotation();
+                written = true;
+            } catch (IOException e) {
+                System.err.println("Error saving data: " + e.getMessage());
+            } finally {
+                rows.release();
+                synchronized (this) {
+                    segments.finishWrite(months, written);
+                    // Under the lock, and every reader is on a view
+                    evict(Collections.emptySet());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (journal == null) return;
+                if (journal.inBatch()) {
+                    journal.commitBatch();
+                }
+                // A big journal would be replayed record by record on the next start;
+                // fold it into the segments now instead (bulk batch imports end here).
+                compact();
+                journal.close();
+                journal = null;
+            }
+        }
+    }
+
+    // Only does anything with -Dexpenses.checkAggregates=true
+    private void checkAggregates() {
+        if (!ExpenseAggregates.CHECK || !segments.allLoaded()) return;
+        for (String problem : aggregates.verify(expenses, table)) {
+            System.err.println("Aggregate mismatch: " + problem);
+        }
+    }
+}
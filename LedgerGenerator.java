@@ -0,0 +1,85 @@
+import java.util.Random;
+
+/**
+ * Deterministic synthetic ledgers for benchmarks. The shape is meant to look
+ * like a real household ledger rather than uniform noise: Food and Transport
+ * dominate, amounts are roughly log-normal per category, recent months are
+ * busier than old ones, and a handful of descriptions account for most rows.
+ */
+public final class LedgerGenerator {
+
+    // Relative frequency of each built-in category (see Categories)
+    private static final int[] CATEGORY_WEIGHTS = { 35, 20, 10, 8, 15, 5, 7 };
+
+    // Share of the rows in a foreign currency, when some are given
+    private static final double FOREIGN_SHARE = 0.3;
+
+    // Typical amount in cents per category (median of the log-normal)
+    private static final long[] MEDIAN_CENTS = { 1500, 1200, 3000, 9000, 4500, 6000, 2000 };
+
+    private static final String[][] DESCRIPTIONS = {
+        { "Coffee", "Groceries", "Lunch", "Dinner out", "Bakery", "Takeaway pizza", "Supermarket" },
+        { "Uber ride", "Bus ticket", "Train pass", "Fuel", "Parking", "Taxi" },
+        { "Netflix", "Cinema", "Concert tickets", "Spotify", "Board games" },
+        { "Electricity bill", "Water bill", "Internet", "Phone plan", "Gas bill" },
+        { "Clothes", "Shoes", "Amazon order", "Home supplies", "Electronics" },
+        { "Pharmacy", "Doctor visit", "Dentist", "Gym membership" },
+        { "Gift", "Donation", "Haircut", "Misc" },
+    };
+
+    private LedgerGenerator() {}
+
+    /**
+     * @param rows     number of expenses
+     * @param endDay   epoch day of the newest expense
+     * @param years    how far back the history goes
+     */
+    public static ColumnarExpenseStore generate(int rows, int endDay, int years, long seed) {
+        return generate(rows, endDay, years, seed, new int[0]);
+    }
+
+    /**
+     * The same with FOREIGN_SHARE of the rows spread evenly over the
+     * {@code foreign} currencies and the rest in the home currency. The
+     * amounts are drawn as for the home currency whatever the rate.
+     */
+    public static ColumnarExpenseStore generate(int rows, int endDay, int years, long seed, int[] foreign) {
+        Random random = new Random(seed);
+        int totalWeight = 0;
+        for (int w : CATEGORY_WEIGHTS) totalWeight += w;
+        int span = Math.max(1, years * 365);
+
+        // Dates are generated in increasing order, the way a ledger grows,
+        // with density rising towards the present.
+        ColumnarExpenseStore store = new ColumnarExpenseStore(rows);
+        for (int i = 0; i < rows; i++) {
+            double position = Math.sqrt((i + random.nextDouble()) / rows);
+            int day = endDay - span + (int) (position * span);
+
+            int pick = random.nextInt(totalWeight);
+            int category = 0;
+            while (pick >= CATEGORY_WEIGHTS[category]) {
+                pick -= CATEGORY_WEIGHTS[category++];
+            }
+
+            long cents = Math.max(1, Math.round(MEDIAN_CENTS[category] * Math.exp(random.nextGaussian() * 0.7)));
+
+            String[] choices = DESCRIPTIONS[category];
+            // Squaring skews towards the first few descriptions (a cheap Zipf stand-in)
+            double r = random.nextDouble();
+            String description = choices[(int) (r * r * choices.length)];
+
+            int currency = Currencies.home();
+            if (foreign.length > 0 && random.nextDouble() < FOREIGN_SHARE) {
+                currency = foreign[random.nextInt(foreign.length)];
+            }
+
+            store.add(i + 1, cents, currency, category, day, description);
+        }
+        return store;
+    }
+
+    public static ColumnarExpenseStore generate(int rows) {
+        return generate(rows, ExpenseDates.today(), 5, 42L);
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Load generator for ExpenseServer. Each client holds one connection and
+ * sends commands back to back, picked at random from a weighted mix, then
+ * the run reports throughput and latency percentiles per command.
+ *
+ *   java LoadGenerator [--port 7878] [--clients 16] [--seconds 10]
+ *                      [--mix add=50,query=20,search=20,totals=10]
+ *
+ * Adds are real and stay in the ledger, so point it at a scratch copy.
+ */
+public class LoadGenerator {
+
+    private static final String[] KINDS = { "add", "query", "search", "totals" };
+    private static final String[] WORDS = { "coffee", "lunch", "taxi", "groceries", "cinema", "rent", "fuel" };
+
+    // Latencies of one client for one kind of command, in nanoseconds
+    private static final class Samples {
+        long[] nanos = new long[1024];
+        int count;
+        int errors;
+
+        void add(long value) {
+            if (count == nanos.length) nanos = Arrays.copyOf(nanos, count * 2);
+            nanos[count++] = value;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = ExpenseServer.DEFAULT_PORT;
+        int clients = 16;
+        int seconds = 10;
+        int[] weights = { 50, 20, 20, 10 };
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--clients": clients = Integer.parseInt(args[++i]); break;
+                case "--seconds": seconds = Integer.parseInt(args[++i]); break;
+                case "--mix": weights = parseMix(args[++i]); break;
+                default:
+                    System.err.println("usage: java LoadGenerator [--port N] [--clients N] [--seconds N] "
+                                       + "[--mix add=50,query=20,search=20,totals=10]");
+                    System.exit(2);
+            }
+        }
+
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<Samples[]>> results = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            int serverPort = port;
+            int[] mix = weights;
+            results.add(pool.submit(() -> runClient(serverPort, client, mix, deadline)));
+        }
+        Samples[] merged = new Samples[KINDS.length];
+        for (int k = 0; k < KINDS.length; k++) merged[k] = new Samples();
+        for (Future<Samples[]> result : results) {
+            Samples[] samples = result.get();
+            for (int k = 0; k < KINDS.length; k++) {
+                for (int i = 0; i < samples[k].count; i++) merged[k].add(samples[k].nanos[i]);
+                merged[k].errors += samples[k].errors;
+            }
+        }
+        pool.shutdown();
+        report(merged, clients, seconds);
+    }
+
+    private static int[] parseMix(String text) {
+        int[] weights = new int[KINDS.length];
+        for (String part : text.split(",")) {
+            String[] kv = part.split("=");
+            int k = Arrays.asList(KINDS).indexOf(kv[0].trim());
+            if (k < 0 || kv.length != 2) throw new IllegalArgumentException("bad mix entry: " + part);
+            weights[k] = Integer.parseInt(kv[1].trim());
+        }
+        return weights;
+    }
+
+    private static Samples[] runClient(int port, int client, int[] weights, long deadline) throws IOException {
+        Samples[] samples = new Samples[KINDS.length];
+        for (int k = 0; k < KINDS.length; k++) samples[k] = new Samples();
+        int totalWeight = 0;
+        for (int w : weights) totalWeight += w;
+        Random random = new Random(client);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            socket.setTcpNoDelay(true);
+            while (System.nanoTime() < deadline) {
+                int pick = random.nextInt(totalWeight), kind = 0;
+                while (pick >= weights[kind]) pick -= weights[kind++];
+                String command = command(kind, random);
+                long start = System.nanoTime();
+                out.write(command);
+                out.write('\n');
+                out.flush();
+                boolean ok = false;
+                String line;
+                while ((line = in.readLine()) != null && !line.equals(".")) {
+                    if (line.startsWith("ok") || line.startsWith("total")) ok = true;
+                    if (line.startsWith("error")) ok = false;
+                }
+                if (line == null) throw new EOFException("server closed the connection");
+                samples[kind].add(System.nanoTime() - start);
+                if (!ok) samples[kind].errors++;
+            }
+        }
+        return samples;
+    }
+
+    private static String command(int kind, Random random) {
+        int year = 2020 + random.nextInt(5);
+        int month = 1 + random.nextInt(12);
+        String word = WORDS[random.nextInt(WORDS.length)];
+        switch (kind) {
+            case 0:
+                return String.format(Locale.ROOT, "add %d.%02d %s %02d/%02d/%d %s %d",
+                                     1 + random.nextInt(200), random.nextInt(100),
+                                     Categories.name(random.nextInt(Categories.count())),
+                                     1 + random.nextInt(28), month, year, word, random.nextInt(1000));
+            case 1:
+                int day = 1 + random.nextInt(22);
+                return String.format(Locale.ROOT, "query %02d/%02d/%d %02d/%02d/%d", day, month, year,
+                                     day + 6, month, year);
+            case 2:
+                return String.format(Locale.ROOT, "search %s from:01/%02d/%d to:28/%02d/%d", word, month, year,
+                                     month, year);
+            default:
+                return String.format(Locale.ROOT, "totals %02d/%d", month, year);
+        }
+    }
+
+    private static void report(Samples[] samples, int clients, int seconds) {
+        System.out.printf("%d clients, %d s%n", clients, seconds);
+        System.out.printf("%-8s %10s %10s %10s %10s %10s %8s%n", "command", "ops", "ops/s", "p50 ms", "p99 ms",
+                          "max ms", "errors");
+        long allOps = 0;
+        int allErrors = 0;
+        Samples all = new Samples();
+        for (int k = 0; k < KINDS.length; k++) {
+            Samples s = samples[k];
+            if (s.count == 0) continue;
+            printRow(KINDS[k], s, seconds);
+            for (int i = 0; i < s.count; i++) all.add(s.nanos[i]);
+            allOps += s.count;
+            allErrors += s.errors;
+        }
+        all.errors = allErrors;
+        if (allOps > 0) printRow("all", all, seconds);
+    }
+
+    private static void printRow(String name, Samples s, int seconds) {
+        long[] sorted = Arrays.copyOf(s.nanos, s.count);
+        Arrays.sort(sorted);
+        System.out.printf(Locale.ROOT, "%-8s %10d %10.1f %10.3f %10.3f %10.3f %8d%n", name, s.count,
+                          s.count / (double) seconds, percentile(sorted, 0.50), percentile(sorted, 0.99),
+                          sorted[sorted.length - 1] / 1e6, s.errors);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
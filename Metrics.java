@@ -0,0 +1,404 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+import jdk.jfr.*;
+
+/**
+ * Latency histograms and counters for every ledger operation: how long
+ * loads, segment page-ins, snapshots, journal fsyncs, adds, queries, exports and the rest
+ * take, how many rows they scanned and returned, bytes read and written,
+ * and roughly how much they allocated.
+ *
+ *   try (Metrics.Span span = Metrics.start(Metrics.Op.QUERY)) {
+ *       ...
+ *       span.rows(scanned, returned);
+ *   }
+ *
+ * The numbers are shown by the Diagnostics screen and the batch "metrics"
+ * command, published as JMX MBeans (ExpenseTracker:type=Operation,name=...),
+ * written to a file every -Dexpenses.metricsDump=<seconds>, and each span is
+ * also a JFR event (expenses.Operation) once flight recording has been
+ * started; before that no event objects are made, since the first one
+ * costs JFR's whole start-up.
+ *
+ * Histograms are log-linear like HdrHistogram: 16 buckets per power of two
+ * of nanoseconds, so any percentile is within about 6%, in a fixed 8 KB per
+ * operation. Recording is a few atomic increments. Allocation is counted
+ * from {@link #publish} on, for the calling thread only, so work handed to
+ * the fork-join pool is missed; it is an estimate.
+ *
+ * -Dexpenses.metrics=false turns everything off: start() then returns a
+ * shared no-op span and the rest is a constant-false branch the JIT removes.
+ */
+public final class Metrics {
+
+    public static final boolean ENABLED = !"false".equals(System.getProperty("expenses.metrics"));
+
+    public enum Op {
+        LOAD(true), PAGE_IN(true), SNAPSHOT(true), JOURNAL(false), ADD(false), DELETE(false), QUERY(true),
+        SEARCH(true), TREND(false), EXPORT(true), IMPORT(true), CALCULATE(true), RECURRING(true),
+        CONVERT(true);
+
+        final boolean allocation;   // worth asking the JVM what the thread allocated
+
+        Op(boolean allocation) {
+            this.allocation = allocation;
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /** What JMX shows per operation; times in microseconds. */
+    public interface OperationMBean {
+        long getCount();
+        double getMeanMicros();
+        double getP50Micros();
+        double getP90Micros();
+        double getP99Micros();
+        double getP999Micros();
+        double getMaxMicros();
+        long getRowsScanned();
+        long getRowsReturned();
+        long getBytesRead();
+        long getBytesWritten();
+        long getAllocatedBytes();
+        void reset();
+    }
+
+    private static final Stats[] STATS = new Stats[Op.values().length];
+    private static final Span NOOP = new Span(null);
+    private static volatile com.sun.management.ThreadMXBean threads;   // set by publish()
+    private static final long STARTED = System.nanoTime();
+    private static ScheduledExecutorService background;
+
+    static {
+        for (Op op : Op.values()) STATS[op.ordinal()] = new Stats();
+    }
+
+    private Metrics() {}
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        try {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+                if (counter.isThreadAllocatedMemorySupported() && counter.isThreadAllocatedMemoryEnabled()) {
+                    return counter;
+                }
+            }
+        } catch (RuntimeException | LinkageError e) {
+            // not HotSpot; allocation just isn't counted
+        }
+        return null;
+    }
+
+    // Recording
+
+    /** Starts timing one {@code op}; close the span when it is done. */
+    public static Span start(Op op) {
+        return ENABLED ? new Span(op) : NOOP;
+    }
+
+    /** One timed operation. Not thread-safe; one thread starts and closes it. */
+    public static final class Span implements AutoCloseable {
+        private final Op op;
+        private final long start;
+        private final long allocatedAtStart;
+        private final OperationEvent event;
+        private long scanned, returned, read, written;
+
+        private Span(Op op) {
+            this.op = op;
+            if (op == null) {
+                start = allocatedAtStart = 0;
+                event = null;
+                return;
+            }
+            allocatedAtStart = op.allocation && threads != null ? allocatedBytes() : -1;
+            event = FlightRecorder.isInitialized() ? new OperationEvent() : null;
+            if (event != null) event.begin();
+            start = System.nanoTime();
+        }
+
+        public Span rows(long scanned, long returned) {
+            this.scanned += scanned;
+            this.returned += returned;
+            return this;
+        }
+
+        public Span read(long bytes) {
+            read += bytes;
+            return this;
+        }
+
+        public Span written(long bytes) {
+            written += bytes;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (op == null) return;
+            long nanos = System.nanoTime() - start;
+            long allocated = allocatedAtStart >= 0 ? Math.max(0, allocatedBytes() - allocatedAtStart) : 0;
+            STATS[op.ordinal()].record(nanos, scanned, returned, read, written, allocated);
+            if (event == null) return;
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = op.toString();
+                event.rowsScanned = scanned;
+                event.rowsReturned = returned;
+                event.bytesRead = read;
+                event.bytesWritten = written;
+                event.allocated = allocated;
+                event.commit();
+            }
+        }
+
+        private static long allocatedBytes() {
+            return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+    }
+
+    @Name("expenses.Operation")
+    @Label("Expense Operation")
+    @Category("Expense Tracker")
+    @Description("One ledger operation timed by Metrics")
+    @StackTrace(false)
+    static final class OperationEvent extends jdk.jfr.Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Rows Scanned")
+        long rowsScanned;
+
+        @Label("Rows Returned")
+        long rowsReturned;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    // Reading
+
+    public static Stats stats(Op op) {
+        return STATS[op.ordinal()];
+    }
+
+    public static void reset() {
+        for (Stats stats : STATS) stats.reset();
+    }
+
+    /** Latency histogram and counters of one operation. */
+    public static final class Stats implements OperationMBean {
+        private final Histogram latency = new Histogram();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder scanned = new LongAdder();
+        private final LongAdder returned = new LongAdder();
+        private final LongAdder read = new LongAdder();
+        private final LongAdder written = new LongAdder();
+        private final LongAdder allocated = new LongAdder();
+
+        void record(long nanos, long scanned, long returned, long read, long written, long allocated) {
+            latency.record(nanos);
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            if (scanned != 0) this.scanned.add(scanned);
+            if (returned != 0) this.returned.add(returned);
+            if (read != 0) this.read.add(read);
+            if (written != 0) this.written.add(written);
+            if (allocated != 0) this.allocated.add(allocated);
+        }
+
+        /** Latency at quantile {@code q} (0.5, 0.99...) in nanoseconds, at most the maximum seen. */
+        public long percentileNanos(double q) {
+            return Math.min(latency.valueAt(q), maxNanos.get());
+        }
+
+        @Override public long getCount() { return latency.count(); }
+        @Override public double getMeanMicros() {
+            long count = getCount();
+            return count == 0 ? 0 : totalNanos.sum() / 1e3 / count;
+        }
+        @Override public double getP50Micros() { return percentileNanos(0.50) / 1e3; }
+        @Override public double getP90Micros() { return percentileNanos(0.90) / 1e3; }
+        @Override public double getP99Micros() { return percentileNanos(0.99) / 1e3; }
+        @Override public double getP999Micros() { return percentileNanos(0.999) / 1e3; }
+        @Override public double getMaxMicros() { return maxNanos.get() / 1e3; }
+        @Override public long getRowsScanned() { return scanned.sum(); }
+        @Override public long getRowsReturned() { return returned.sum(); }
+        @Override public long getBytesRead() { return read.sum(); }
+        @Override public long getBytesWritten() { return written.sum(); }
+        @Override public long getAllocatedBytes() { return allocated.sum(); }
+
+        @Override
+        public void reset() {
+            latency.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+            scanned.reset();
+            returned.reset();
+            read.reset();
+            written.reset();
+            allocated.reset();
+        }
+    }
+
+    /*
+     * Counts per bucket: values below 16 have a bucket each, and every power
+     * of two above that is split into 16 equal buckets. Bucket i covers
+     * [lowest(i), lowest(i + 1)).
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+
+        static int bucket(long value) {
+            if (value < SUB) return (int) Math.max(value, 0);
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB - 1);
+            return (exponent - SUB_BITS + 1) * SUB + sub;
+        }
+
+        static long lowest(int bucket) {
+            if (bucket < SUB) return bucket;
+            int exponent = bucket / SUB + SUB_BITS - 1;
+            return (long) (SUB + bucket % SUB) << (exponent - SUB_BITS);
+        }
+
+        void record(long value) {
+            counts.incrementAndGet(bucket(value));
+            total.increment();
+        }
+
+        long count() {
+            return total.sum();
+        }
+
+        /** Highest value in the bucket holding quantile {@code q}, 0 when empty. */
+        long valueAt(double q) {
+            long n = count();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE;
+            }
+            return Long.MAX_VALUE;   // records landed while we were counting
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+            total.reset();
+        }
+    }
+
+    // Publishing
+
+    /**
+     * Starts counting allocation, registers the MBeans and, if
+     * {@code dumpSeconds} is positive, rewrites {@code dumpFile} that often
+     * and once more at exit. The management classes take a few hundred
+     * milliseconds to start, so this runs on a daemon thread and is best
+     * called once the ledger has loaded.
+     */
+    public static synchronized void publish(Path dumpFile, long dumpSeconds) {
+        if (!ENABLED || background != null) return;
+        background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "expense-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        background.execute(() -> {
+            threads = allocationCounter();
+            registerMBeans();
+        });
+        if (dumpSeconds <= 0) return;
+        Runnable dump = () -> {
+            try {
+                write(dumpFile);
+            } catch (IOException e) {
+                System.err.println("Error writing metrics: " + e.getMessage());
+            }
+        };
+        background.scheduleWithFixedDelay(dump, dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(dump));
+    }
+
+    private static void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Op op : Op.values()) {
+                ObjectName name = new ObjectName("ExpenseTracker:type=Operation,name=" + op);
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(new StandardMBean(stats(op), OperationMBean.class), name);
+                }
+            }
+        } catch (JMException e) {
+            System.err.println("Error registering metrics MBeans: " + e.getMessage());
+        }
+    }
+
+    /** The operations run so far as a plain-text table, one line each. */
+    public static List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "%-10s %8s %10s %10s %10s %10s %10s %12s %12s %10s %10s %10s",
+                                "operation", "count", "mean ms", "p50 ms", "p99 ms", "p99.9 ms", "max ms",
+                                "rows read", "rows out", "read", "written", "allocated"));
+        for (Op op : Op.values()) {
+            Stats s = stats(op);
+            if (s.getCount() == 0) continue;
+            lines.add(String.format(Locale.ROOT, "%-10s %8d %10.3f %10.3f %10.3f %10.3f %10.3f %12d %12d %10s %10s %10s",
+                                    op, s.getCount(), s.getMeanMicros() / 1e3, s.getP50Micros() / 1e3,
+                                    s.getP99Micros() / 1e3, s.getP999Micros() / 1e3, s.getMaxMicros() / 1e3,
+                                    s.getRowsScanned(), s.getRowsReturned(), bytes(s.getBytesRead()),
+                                    bytes(s.getBytesWritten()), bytes(s.getAllocatedBytes())));
+        }
+        return lines;
+    }
+
+    /** "812 B", "4.2 KB", "1.3 GB". */
+    public static String bytes(long n) {
+        if (n < 1024) return n + " B";
+        String units = "KMGTPE";
+        int unit = (63 - Long.numberOfLeadingZeros(n)) / 10;
+        return String.format(Locale.ROOT, "%.1f %sB", n / (double) (1L << (10 * unit)), units.charAt(unit - 1));
+    }
+
+    public static long uptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - STARTED);
+    }
+
+    /** Writes {@link #report()} to {@code file} via a temp file and a rename. */
+    public static void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        StringBuilder text = new StringBuilder();
+        text.append("# expense tracker metrics, up ").append(uptimeMillis() / 1000).append(" s\n");
+        for (String line : report()) text.append(line).append('\n');
+        Files.write(temp, text.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,161 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Amounts are long cents everywhere: parsed exactly from text, stored and
+ * summed as longs, and only turned into text at the edges. There are no
+ * Money objects; these are the static helpers for that representation.
+ *
+ * Amounts are bounded by {@link #MAX_CENTS}, which lets {@link #sum} add
+ * fixed-size blocks with a plain (vectorisable) loop and only check for
+ * overflow between blocks.
+ */
+public final class Money {
+
+    /** Largest amount accepted: ten trillion dollars. */
+    public static final long MAX_CENTS = 1_000_000_000_000_000L;
+
+    // MAX_CENTS * SUM_BLOCK stays well inside a long
+    private static final int SUM_BLOCK = 1024;
+
+    private Money() {}
+
+    // Parsing
+
+    /**
+     * Parses "12", "12.5", "-0.75" and the like exactly. More than two
+     * decimals or exponent notation go through BigDecimal and are rounded
+     * half-up to the cent.
+     */
+    public static long parse(String text) {
+        byte[] bytes = text.trim().getBytes(StandardCharsets.US_ASCII);
+        return parse(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    /** Same as {@link #parse(String)} for the bytes at [from, to) of a buffer. */
+    public static long parse(ByteBuffer buf, int from, int to) {
+        int i = from;
+        boolean negative = i < to && buf.get(i) == '-';
+        if (negative) i++;
+        long cents = 0;
+        int digits = 0, fraction = -1;
+        for (; i < to; i++) {
+            byte b = buf.get(i);
+            if (b == '.' && fraction < 0) {
+                fraction = 0;
+            } else if (b >= '0' && b <= '9' && fraction < 2) {
+                cents = cents * 10 + (b - '0');
+                digits++;
+                if (fraction >= 0) fraction++;
+            } else {
+                break;
+            }
+        }
+        if (i == to && digits > 0 && digits <= 17) {
+            for (int f = Math.max(fraction, 0); f < 2; f++) cents *= 10;
+            return check(negative ? -cents : cents);
+        }
+        byte[] bytes = new byte[to - from];
+        for (int k = 0; k < bytes.length; k++) bytes[k] = buf.get(from + k);
+        String text = new String(bytes, StandardCharsets.US_ASCII);
+        BigDecimal exact;
+        try {
+            exact = new BigDecimal(text);
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException("invalid amount: " + text);
+        }
+        try {
+            return check(exact.movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact());
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("amount out of range");
+        }
+    }
+
+    /** Nearest cent to a computed value, e.g. a calculator result. */
+    public static long fromDouble(double amount) {
+        if (Double.isNaN(amount) || Math.abs(amount) * 100 > MAX_CENTS) {
+            throw new NumberFormatException("amount out of range");
+        }
+        return Math.round(amount * 100);
+    }
+
+    public static long check(long cents) {
+        if (cents > MAX_CENTS || cents < -MAX_CENTS) throw new NumberFormatException("amount out of range");
+        return cents;
+    }
+
+    // Formatting
+
+    /** "12.50", "-0.05": the format the snapshot, journal and exports use. */
+    public static String format(long cents) {
+        long abs = Math.abs(cents);
+        long fraction = abs % 100;
+        return (cents < 0 ? "-" : "") + (abs / 100) + (fraction < 10 ? ".0" : ".") + fraction;
+    }
+
+    /** Writes {@link #format(long)}'s text at {@code at}; returns the position after it (at most 22 bytes). */
+    public static int format(long cents, byte[] out, int at) {
+        if (cents < 0) out[at++] = '-';
+        long abs = Math.abs(cents);
+        long units = abs / 100;
+        int digits = 1;
+        for (long v = units; v >= 10; v /= 10) digits++;
+        for (int i = at + digits - 1; i >= at; i--) {
+            out[i] = (byte) ('0' + units % 10);
+            units /= 10;
+        }
+        at += digits;
+        long fraction = abs % 100;
+        out[at++] = '.';
+        out[at++] = (byte) ('0' + fraction / 10);
+        out[at++] = (byte) ('0' + fraction % 10);
+        return at;
+    }
+
+    /** Amount in currency units for the calculator, which works in double. */
+    public static double toDouble(long cents) {
+        return cents / 100.0;
+    }
+
+    // Arithmetic
+
+    /** a + b, throwing ArithmeticException instead of wrapping around. */
+    public static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    /**
+     * Sum of values[from..to). Each block is added with a plain loop the JIT
+     * can vectorise; block sums are combined with overflow checks. Values
+     * must be within MAX_CENTS, as every stored amount is.
+     */
+    public static long sum(long[] values, int from, int to) {
+        long total = 0;
+        for (int start = from; start < to; start += SUM_BLOCK) {
+            int end = Math.min(start + SUM_BLOCK, to);
+            long block = 0;
+            for (int i = start; i < end; i++) {
+                block += values[i];
+            }
+            total = Math.addExact(total, block);
+        }
+        return total;
+    }
+
+    /** Sum of the amounts of the given rows, overflow-checked the same way. */
+    public static long sum(ExpenseStore store, IntList rows) {
+        long total = 0;
+        int n = rows.size();
+        for (int start = 0; start < n; start += SUM_BLOCK) {
+            int end = Math.min(start + SUM_BLOCK, n);
+            long block = 0;
+            for (int i = start; i < end; i++) {
+                block += store.amountAt(rows.get(i));
+            }
+            total = Math.addExact(total, block);
+        }
+        return total;
+    }
+}
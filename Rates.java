@@ -0,0 +1,329 @@
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Exchange rates, saved in rates.txt and kept up to date by hand or with
+ * rate-add; nothing is fetched. A rate is what one unit of a currency is
+ * worth in the home currency from a date on, until that currency's next
+ * rate:
+ *
+ *   home|USD
+ *   report|EUR
+ *   EUR|01/01/2024|1.0850
+ *   EUR|01/02/2024|1.0790
+ *   GBP|01/01/2024|1.2710
+ *
+ * "home" names the currency amounts without a code are in (USD without the
+ * line), "report" the one totals, budgets and queries are given in (the
+ * home one without it; -Dexpenses.currency overrides it for a run). A day
+ * before a currency's first rate takes that first rate.
+ *
+ * {@link #table} works the rates out into a Table of conversion factors to
+ * one currency, a dense array per currency with an entry per day, so a
+ * lookup is an array read. Totals are converted per currency, day and
+ * category: a day's expenses in one category and currency are added up
+ * first and the sum converted and rounded to the cent, so a total doesn't
+ * depend on how many rows make it up or in what order they came (see
+ * CurrencyTotals and {@link Sum}). One expense shown on its own is converted
+ * on its own.
+ *
+ * Not thread-safe: the Ledger calls it under its lock. Tables are immutable.
+ */
+public final class Rates {
+
+    /** One line of the file. */
+    public static final class Rate {
+        public final String currency;
+        public final int fromDay;
+        public final BigDecimal value;   // home units per unit
+
+        Rate(String currency, int fromDay, BigDecimal value) {
+            this.currency = currency;
+            this.fromDay = fromDay;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Factors that convert amounts to one currency, per currency and day.
+     * Immutable, so readers on other threads can keep using one after the
+     * rates change.
+     */
+    public static final class Table {
+        private final int target;
+        private final int[] origins;        // day of each currency's first factor
+        private final double[][] factors;   // [currency][day - origin]; null for a factor of 1
+
+        Table(int target, int[] origins, double[][] factors) {
+            this.target = target;
+            this.origins = origins;
+            this.factors = factors;
+        }
+
+        /** The currency amounts are converted to. */
+        public int currency() {
+            return target;
+        }
+
+        /** What one unit of {@code currency} is worth in this table's currency on {@code day}. */
+        public double factor(int currency, int day) {
+            double[] f = currency < factors.length ? factors[currency] : null;
+            if (f == null) return 1;
+            int i = day - origins[currency];
+            return f[i < 0 ? 0 : i >= f.length ? f.length - 1 : i];
+        }
+
+        /** The factors of {@code currency} for the days from {@code firstDay} on, one per entry of {@code into}. */
+        public void factors(int currency, int firstDay, double[] into) {
+            double[] f = currency < factors.length ? factors[currency] : null;
+            if (f == null) {
+                Arrays.fill(into, 1);
+                return;
+            }
+            int last = f.length - 1;
+            for (int i = 0, at = firstDay - origins[currency]; i < into.length; i++, at++) {
+                into[i] = f[at < 0 ? 0 : at > last ? last : at];
+            }
+        }
+
+        /** {@code cents} of {@code currency} on {@code day} in this table's currency, to the cent. */
+        public long convert(long cents, int currency, int day) {
+            return currency == target ? cents : Math.round(cents * factor(currency, day));
+        }
+    }
+
+    /**
+     * Adds up expenses in any currencies in a table's currency, converting
+     * per currency, day and category like the totals do.
+     */
+    public static final class Sum {
+        private final Table table;
+        private long total;   // the expenses already in the table's currency
+        private final Map<Long, long[]> cells = new HashMap<>();
+
+        public Sum(Table table) {
+            this.table = table;
+        }
+
+        public void add(long cents, int currency, int category, int day) {
+            if (currency == table.target) {
+                total = Money.add(total, cents);
+                return;
+            }
+            long[] cell = cells.computeIfAbsent(cell(day, currency, category), k -> new long[1]);
+            cell[0] = Money.add(cell[0], cents);
+        }
+
+        public long total() {
+            long sum = total;
+            for (Map.Entry<Long, long[]> e : cells.entrySet()) {
+                long key = e.getKey();
+                sum = Money.add(sum, table.convert(e.getValue()[0], cellCurrency(key), cellDay(key)));
+            }
+            return sum;
+        }
+    }
+
+    // A (day, currency, category) cell as one long, for maps of native sums
+    static long cell(int day, int currency, int category) {
+        return (long) day << 12 | currency << 6 | category;
+    }
+
+    static int cellDay(long cell) {
+        return (int) (cell >> 12);
+    }
+
+    static int cellCurrency(long cell) {
+        return (int) (cell >> 6) & 63;
+    }
+
+    static int cellCategory(long cell) {
+        return (int) cell & 63;
+    }
+
+    private final Map<String, TreeMap<Integer, BigDecimal>> rates = new TreeMap<>();
+    private String home = Currencies.DEFAULT_HOME;
+    private String report;   // null: the home currency
+
+    // Rates
+
+    public String home() {
+        return home;
+    }
+
+    /** The currency totals are reported in. */
+    public String report() {
+        return report == null ? home : report;
+    }
+
+    /** Reports in {@code code} from now on; it needs rates unless it is the home currency. */
+    public void report(String code) {
+        if (!has(code)) throw new IllegalArgumentException("no exchange rate for " + code + "; add one first");
+        report = code.equals(home) ? null : code;
+    }
+
+    /** Whether amounts in {@code code} can be converted: it is the home currency or has a rate. */
+    public boolean has(String code) {
+        return code.equals(home) || rates.containsKey(code);
+    }
+
+    /** Every rate, by currency and then date. */
+    public List<Rate> rates() {
+        List<Rate> list = new ArrayList<>();
+        for (Map.Entry<String, TreeMap<Integer, BigDecimal>> e : rates.entrySet()) {
+            for (Map.Entry<Integer, BigDecimal> r : e.getValue().entrySet()) {
+                list.add(new Rate(e.getKey(), r.getKey(), r.getValue()));
+            }
+        }
+        return list;
+    }
+
+    /** Sets {@code code}'s rate from {@code fromDay} on, replacing one from the same day. */
+    public void add(String code, int fromDay, BigDecimal value) {
+        if (code.equals(home)) throw new IllegalArgumentException(code + " is the home currency");
+        if (fromDay == ExpenseDates.INVALID) throw new IllegalArgumentException("a rate needs a date");
+        if (value.signum() <= 0) throw new IllegalArgumentException("a rate must be positive");
+        Currencies.resolve(code);
+        rates.computeIfAbsent(code, k -> new TreeMap<>()).put(fromDay, value.stripTrailingZeros());
+    }
+
+    /** Removes {@code code}'s rate from {@code fromDay}; false if there is none. */
+    public boolean remove(String code, int fromDay) {
+        TreeMap<Integer, BigDecimal> history = rates.get(code);
+        if (history == null || !history.containsKey(fromDay)) return false;
+        if (history.size() == 1 && code.equals(report)) {
+            throw new IllegalArgumentException(code + " is the report currency and needs a rate");
+        }
+        history.remove(fromDay);
+        if (history.isEmpty()) rates.remove(code);
+        return true;
+    }
+
+    /**
+     * The factors to {@code target} for every currency registered now. A
+     * currency's array covers the days from its first rate change (or the
+     * target's) to its last; days outside it take the nearest end. A
+     * currency with no rates counts one unit as one home unit.
+     */
+    public Table table(int target) {
+        int n = Currencies.count();
+        int[] origins = new int[n];
+        double[][] factors = new double[n][];
+        TreeMap<Integer, BigDecimal> to = rates.get(Currencies.code(target));
+        for (int currency = 0; currency < n; currency++) {
+            if (currency == target) continue;
+            TreeMap<Integer, BigDecimal> from = rates.get(Currencies.code(currency));
+            if (from == null && to == null) continue;
+            int first = Integer.MAX_VALUE, last = Integer.MIN_VALUE;
+            for (TreeMap<Integer, BigDecimal> history : Arrays.asList(from, to)) {
+                if (history == null) continue;
+                first = Math.min(first, history.firstKey());
+                last = Math.max(last, history.lastKey());
+            }
+            double[] f = new double[last - first + 1];
+            // Both rates only change on their listed days, so step through those
+            double fromRate = rateOn(from, first), toRate = rateOn(to, first);
+            for (int i = 0; i < f.length; i++) {
+                int day = first + i;
+                if (from != null && from.containsKey(day)) fromRate = from.get(day).doubleValue();
+                if (to != null && to.containsKey(day)) toRate = to.get(day).doubleValue();
+                f[i] = fromRate / toRate;
+            }
+            origins[currency] = first;
+            factors[currency] = f;
+        }
+        return new Table(target, origins, factors);
+    }
+
+    private static double rateOn(TreeMap<Integer, BigDecimal> history, int day) {
+        if (history == null) return 1;
+        Map.Entry<Integer, BigDecimal> rate = history.floorEntry(day);
+        return (rate == null ? history.firstEntry() : rate).getValue().doubleValue();
+    }
+
+    /** The codes among {@code currencies} (a bit each) that have no rate and aren't the home currency. */
+    public List<String> missing(long currencies) {
+        List<String> missing = new ArrayList<>();
+        for (int c = 0; c < Currencies.count(); c++) {
+            String code = Currencies.code(c);
+            if ((currencies & 1L << c) != 0 && !has(code)) missing.add(code);
+        }
+        return missing;
+    }
+
+    // Persistence
+
+    /**
+     * Reads {@code file}, if it exists, and makes its home currency the
+     * registry's; the currencies it names are registered in file order.
+     */
+    public static Rates load(Path file) throws IOException {
+        Rates rates = new Rates();
+        if (Files.exists(file)) {
+            int lineNumber = 0;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                try {
+                    rates.parse(line);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file + " line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+            if (rates.report != null && !rates.has(rates.report)) {
+                throw new IOException(file + ": no rates for the report currency " + rates.report);
+            }
+            if (rates.home.equals(rates.report)) rates.report = null;
+        }
+        Currencies.setHome(rates.home);
+        for (String code : rates.rates.keySet()) Currencies.resolve(code);
+        return rates;
+    }
+
+    private void parse(String line) {
+        String[] parts = line.split("\\|");
+        String code = parts[0].trim();
+        if (parts.length == 2 && (code.equals("home") || code.equals("report"))) {
+            String currency = Currencies.code(Currencies.parse(parts[1]));
+            if (code.equals("home")) {
+                if (!rates.isEmpty()) throw new IllegalArgumentException("the home line comes before the rates");
+                home = currency;
+            } else {
+                report = currency;
+            }
+            return;
+        }
+        if (parts.length != 3) throw new IllegalArgumentException("expected currency|from|rate");
+        int day = ExpenseDates.parse(parts[1].trim());
+        if (day == ExpenseDates.INVALID) throw new IllegalArgumentException("invalid date " + parts[1].trim());
+        BigDecimal value;
+        try {
+            value = new BigDecimal(parts[2].trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid rate " + parts[2].trim());
+        }
+        add(Currencies.code(Currencies.parse(code)), day, value);
+    }
+
+    /** Writes the rates to a temp file, fsyncs it and renames it over {@code file}. */
+    public void save(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp.toFile());
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
+            out.write("# currency|from|rate: one unit in the home currency from that date on\n");
+            out.write("home|" + home + "\n");
+            if (report != null) out.write("report|" + report + "\n");
+            for (Rate rate : rates()) {
+                out.write(rate.currency + "|" + ExpenseDates.format(rate.fromDay) + "|" + rate.value.toPlainString()
+                          + "\n");
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        SnapshotFile.replace(temp, file);
+    }
+}
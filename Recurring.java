@@ -0,0 +1,480 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Recurring expenses (rent, subscriptions, utilities), saved in
+ * recurring.txt, and the pass that turns their due occurrences into rows.
+ *
+ * One rule per line, pipe-delimited like budgets.txt; the description comes
+ * last so it may hold anything but a line break:
+ *
+ *   id|category|every|amounts|from|to|through|description
+ *   1|Utilities|monthly|1200.00,1250.00@01/01/2025|01/03/2024||31/10/2026|Rent
+ *   2|Entertainment|monthly|15.99|15/01/2023|14/01/2025|14/12/2024|Streaming
+ *
+ * Amounts are the first amount, then changes as amount@date, each in force
+ * from its date on. A rule in a currency other than the home one has its
+ * code after the first amount (15.99EUR). "to" is empty for a rule without
+ * an end. A monthly rule falls on its start's day of the month, or the
+ * month's last day if that is earlier (31/01, 28/02, 31/03...); a yearly
+ * one likewise on 28/02 for a 29/02 start.
+ *
+ * "through" is the last day the rule has been materialized up to; only
+ * occurrences after it are due. A pass generates every due rule's
+ * occurrences in parallel, one task per rule, and the Ledger adds them all
+ * in one import before moving the rules' through days on. An occurrence
+ * already in the ledger (same day, category, amount, currency and
+ * description) is taken as made: that is what a pass cut short between the
+ * import and saving this file leaves, so running it again never adds a row
+ * twice.
+ *
+ * Not thread-safe: the Ledger calls it under its lock.
+ */
+public class Recurring {
+
+    public enum Every {
+        DAILY, WEEKLY, MONTHLY, YEARLY;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /** One recurring expense. */
+    public static final class Rule {
+        public final int id;
+        public final int category;
+        public final int currency;
+        public final Every every;
+        public final String description;
+        public final int startDay, endDay;   // endDay INVALID for no end
+        final int[] changeDays;               // ascending; the first is startDay
+        final long[] amounts;                 // cents, in force from changeDays[i] on
+        int through;                          // materialized up to and including
+
+        Rule(int id, int category, int currency, Every every, String description, int startDay, int endDay,
+             int[] changeDays, long[] amounts, int through) {
+            this.id = id;
+            this.category = category;
+            this.currency = currency;
+            this.every = every;
+            this.description = description;
+            this.startDay = startDay;
+            this.endDay = endDay;
+            this.changeDays = changeDays;
+            this.amounts = amounts;
+            this.through = through;
+        }
+
+        public String categoryName() {
+            return Categories.name(category);
+        }
+
+        public int through() {
+            return through;
+        }
+
+        /** The amount of an occurrence on {@code day}. */
+        public long amountOn(int day) {
+            int i = changeDays.length - 1;
+            while (i > 0 && changeDays[i] > day) i--;
+            return amounts[i];
+        }
+
+        /** "1200.00, 1250.00 from 01/01/2025", with the currency's code after each amount unless it is the home one */
+        public String amountText() {
+            int home = Currencies.home();
+            StringBuilder text = new StringBuilder(Currencies.amount(amounts[0], currency, home));
+            for (int i = 1; i < amounts.length; i++) {
+                text.append(", ").append(Currencies.amount(amounts[i], currency, home)).append(" from ")
+                    .append(ExpenseDates.format(changeDays[i]));
+            }
+            return text.toString();
+        }
+
+        // The day of occurrence n (0 is the start)
+        int occurrence(long n) {
+            switch (every) {
+                case DAILY: return (int) Math.min(Integer.MAX_VALUE, startDay + n);
+                case WEEKLY: return (int) Math.min(Integer.MAX_VALUE, startDay + 7 * n);
+                case MONTHLY: {
+                    long month = ExpenseAggregates.monthKey(startDay) + n;
+                    return clamped((int) Math.floorDiv(month, 12L), (int) Math.floorMod(month, 12L) + 1);
+                }
+                default:
+                    return clamped((int) (ExpenseDates.yearOf(startDay) + n), ExpenseDates.monthOf(startDay));
+            }
+        }
+
+        private int clamped(int year, int month) {
+            int day = Math.min(ExpenseDates.dayOf(startDay), ExpenseDates.daysInMonth(year, month));
+            return ExpenseDates.of(year, month, day);
+        }
+
+        // Index of the first occurrence after day, near enough that a step or
+        // two forward finds it
+        long firstAfter(int day) {
+            if (day < startDay) return 0;
+            long n;
+            switch (every) {
+                case DAILY: n = (long) day - startDay; break;
+                case WEEKLY: n = ((long) day - startDay) / 7; break;
+                case MONTHLY: n = ExpenseAggregates.monthKey(day) - ExpenseAggregates.monthKey(startDay); break;
+                default: n = ExpenseDates.yearOf(day) - ExpenseDates.yearOf(startDay);
+            }
+            while (occurrence(n) <= day) n++;
+            return n;
+        }
+
+        // Last day occurrences are due up to on today
+        int dueThrough(int today) {
+            return endDay == ExpenseDates.INVALID ? today : Math.min(today, endDay);
+        }
+    }
+
+    /** The rows a pass made, and those it found already there. */
+    public static final class Result {
+        public int rules;
+        public int added;
+        public int existing;
+        public int firstId;
+        public long elapsedNanos;
+    }
+
+    // Due occurrences of one rule, in day order
+    static final class Occurrences {
+        final Rule rule;
+        final int[] days;
+        final long[] amounts;
+        final int size;
+        final int existing;
+
+        Occurrences(Rule rule, int[] days, long[] amounts, int size, int existing) {
+            this.rule = rule;
+            this.days = days;
+            this.amounts = amounts;
+            this.size = size;
+            this.existing = existing;
+        }
+    }
+
+    private final List<Rule> rules = new ArrayList<>();
+    private int nextId = 1;
+
+    // Rules
+
+    public List<Rule> rules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * Adds a rule and returns it. {@code changeDays[0]} is ignored: the first
+     * amount is in force from {@code startDay}. Occurrences from the start
+     * on are due, past ones included.
+     */
+    public Rule add(int category, int currency, Every every, String description, int startDay, int endDay,
+                    int[] changeDays, long[] amounts) {
+        Rule rule = rule(nextId, category, currency, every, description, startDay, endDay, changeDays, amounts,
+                         startDay - 1);
+        nextId++;
+        rules.add(rule);
+        return rule;
+    }
+
+    /**
+     * Replaces rule {@code id} by one whose amount is {@code cents} from
+     * {@code fromDay} on; occurrences already made keep their amounts.
+     * Returns the new rule, or null if there is no such rule.
+     */
+    public Rule changeAmount(int id, long cents, int fromDay) {
+        for (int i = 0; i < rules.size(); i++) {
+            Rule old = rules.get(i);
+            if (old.id != id) continue;
+            int[] days = { old.startDay };
+            long[] amounts = { cents };
+            if (fromDay > old.startDay) {
+                // Changes from fromDay on give way to the new one
+                int keep = 1;
+                while (keep < old.changeDays.length && old.changeDays[keep] < fromDay) keep++;
+                days = Arrays.copyOf(old.changeDays, keep + 1);
+                amounts = Arrays.copyOf(old.amounts, keep + 1);
+                days[keep] = fromDay;
+                amounts[keep] = cents;
+            }
+            Rule rule = rule(old.id, old.category, old.currency, old.every, old.description, old.startDay,
+                             old.endDay, days, amounts, old.through);
+            rules.set(i, rule);
+            return rule;
+        }
+        return null;
+    }
+
+    /** Removes the rule with {@code id}; the rows it made stay. False if there is none. */
+    public boolean remove(int id) {
+        for (int i = 0; i < rules.size(); i++) {
+            if (rules.get(i).id == id) {
+                rules.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Rule rule(int id, int category, int currency, Every every, String description, int startDay,
+                             int endDay, int[] changeDays, long[] amounts, int through) {
+        if (startDay == ExpenseDates.INVALID) throw new IllegalArgumentException("a recurring expense needs a start date");
+        if (endDay != ExpenseDates.INVALID && endDay < startDay) {
+            throw new IllegalArgumentException("the end date is before the start");
+        }
+        if (amounts.length == 0 || amounts.length != changeDays.length) {
+            throw new IllegalArgumentException("give an amount");
+        }
+        for (long cents : amounts) {
+            if (cents <= 0) throw new IllegalArgumentException("amounts must be positive");
+            Money.check(cents);
+        }
+        int[] days = changeDays.clone();
+        days[0] = startDay;
+        for (int i = 1; i < days.length; i++) {
+            if (days[i] <= days[i - 1]) {
+                throw new IllegalArgumentException("amount changes must be in date order, after the start");
+            }
+        }
+        description = description.trim();
+        if (description.isEmpty() || description.indexOf('\n') >= 0 || description.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("a recurring expense needs a one-line description");
+        }
+        return new Rule(id, category, currency, every, description, startDay, endDay, days, amounts.clone(),
+                        through);
+    }
+
+    // Materializing
+
+    /** The rules with occurrences due on {@code today}. */
+    public List<Rule> due(int today) {
+        List<Rule> due = new ArrayList<>();
+        for (Rule rule : rules) {
+            int until = rule.dueThrough(today);
+            if (rule.through < until && rule.occurrence(rule.firstAfter(rule.through)) <= until) due.add(rule);
+        }
+        return due;
+    }
+
+    /**
+     * Rows already in the ledger with one description, in date order, for
+     * matching occurrences against; each row matches one occurrence at most.
+     */
+    static final class Existing {
+        private int[] days = new int[8];
+        private int[] categories = new int[8];
+        private int[] currencies = new int[8];
+        private long[] amounts = new long[8];
+        private boolean[] used;
+        private int size;
+
+        /** Rows must come in date order. */
+        void add(int day, int category, int currency, long cents) {
+            if (size == days.length) {
+                days = Arrays.copyOf(days, size * 2);
+                categories = Arrays.copyOf(categories, size * 2);
+                currencies = Arrays.copyOf(currencies, size * 2);
+                amounts = Arrays.copyOf(amounts, size * 2);
+            }
+            days[size] = day;
+            categories[size] = category;
+            currencies[size] = currency;
+            amounts[size++] = cents;
+        }
+
+        // Uses up an unused row equal to the occurrence; false if there is none
+        boolean take(int day, int category, int currency, long cents) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (days[mid] < day) lo = mid + 1; else hi = mid;
+            }
+            for (int i = lo; i < size && days[i] == day; i++) {
+                if (categories[i] != category || currencies[i] != currency || amounts[i] != cents) continue;
+                if (used == null) used = new boolean[size];
+                if (used[i]) continue;
+                used[i] = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Every due occurrence of {@code due} up to {@code today}, in the order
+     * of {@code due}, less those matched in {@code existing} (by
+     * description). Runs a task per description on the common pool, so the
+     * rules that share one share its Existing on one thread.
+     */
+    static List<Occurrences> occurrences(List<Rule> due, int today, Map<String, Existing> existing) {
+        Map<String, List<Integer>> byDescription = new LinkedHashMap<>();
+        for (int i = 0; i < due.size(); i++) {
+            byDescription.computeIfAbsent(due.get(i).description, k -> new ArrayList<>()).add(i);
+        }
+        Occurrences[] result = new Occurrences[due.size()];
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(byDescription.size());
+        for (Map.Entry<String, List<Integer>> group : byDescription.entrySet()) {
+            Existing rows = existing.get(group.getKey());
+            tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                for (int i : group.getValue()) result[i] = occurrences(due.get(i), today, rows);
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        return Arrays.asList(result);
+    }
+
+    private static Occurrences occurrences(Rule rule, int today, Existing existing) {
+        int until = rule.dueThrough(today);
+        int[] days = new int[16];
+        long[] amounts = new long[16];
+        int size = 0, found = 0;
+        for (long n = rule.firstAfter(rule.through); ; n++) {
+            int day = rule.occurrence(n);
+            if (day > until) break;
+            long cents = rule.amountOn(day);
+            if (existing != null && existing.take(day, rule.category, rule.currency, cents)) {
+                found++;
+                continue;
+            }
+            if (size == days.length) {
+                days = Arrays.copyOf(days, size * 2);
+                amounts = Arrays.copyOf(amounts, size * 2);
+            }
+            days[size] = day;
+            amounts[size++] = cents;
+        }
+        return new Occurrences(rule, days, amounts, size, found);
+    }
+
+    /**
+     * The occurrences as rows ready for an import, in date order and, within
+     * a day, in the order of {@code made}; a counting sort by day, since the
+     * days span [firstDay, lastDay] and no more.
+     */
+    static ColumnarExpenseStore stage(List<Occurrences> made, int firstDay, int lastDay) {
+        int span = lastDay - firstDay + 1;
+        int[] start = new int[span + 1];
+        int total = 0;
+        for (Occurrences o : made) {
+            total += o.size;
+            for (int i = 0; i < o.size; i++) start[o.days[i] - firstDay + 1]++;
+        }
+        for (int d = 0; d < span; d++) start[d + 1] += start[d];
+        int[] owner = new int[total];
+        int[] position = new int[total];
+        for (int r = 0; r < made.size(); r++) {
+            Occurrences o = made.get(r);
+            for (int i = 0; i < o.size; i++) {
+                int at = start[o.days[i] - firstDay]++;
+                owner[at] = r;
+                position[at] = i;
+            }
+        }
+        ColumnarExpenseStore staged = new ColumnarExpenseStore(Math.max(total, 1));
+        for (int at = 0; at < total; at++) {
+            Occurrences o = made.get(owner[at]);
+            int i = position[at];
+            staged.add(at + 1, o.amounts[i], o.rule.currency, o.rule.category, o.days[i], o.rule.description);
+        }
+        return staged;
+    }
+
+    /** Marks {@code made} rules as materialized up to {@code today}. */
+    public void advance(List<Rule> made, int today) {
+        for (Rule rule : made) {
+            rule.through = Math.max(rule.through, rule.dueThrough(today));
+        }
+    }
+
+    // Persistence
+
+    /** Reads {@code file}; no rules if it does not exist. */
+    public static Recurring load(Path file) throws IOException {
+        Recurring recurring = new Recurring();
+        if (Files.notExists(file)) return recurring;
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            if (line.trim().isEmpty() || line.startsWith("#")) continue;
+            try {
+                Rule rule = parse(line);
+                recurring.rules.add(rule);
+                recurring.nextId = Math.max(recurring.nextId, rule.id + 1);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + " line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        return recurring;
+    }
+
+    private static Rule parse(String line) {
+        String[] parts = line.split("\\|", 8);
+        if (parts.length != 8) throw new IllegalArgumentException("expected 8 fields");
+        int id = Integer.parseInt(parts[0].trim());
+        String name = parts[1].trim();
+        int category = Categories.indexOf(name);
+        if (category < 0) throw new IllegalArgumentException("unknown category " + name);
+        Every every = Every.valueOf(parts[2].trim().toUpperCase(Locale.ROOT));
+        String[] amountParts = parts[3].split(",");
+        int currency = Currencies.ofAmount(amountParts[0].trim());
+        amountParts[0] = Currencies.withoutCode(amountParts[0].trim());
+        int[] changeDays = new int[amountParts.length];
+        long[] amounts = new long[amountParts.length];
+        for (int i = 0; i < amountParts.length; i++) {
+            String[] amountAndDay = amountParts[i].trim().split("@");
+            if (amountAndDay.length != (i == 0 ? 1 : 2)) {
+                throw new IllegalArgumentException("expected amount[,amount@date...]");
+            }
+            amounts[i] = Money.parse(amountAndDay[0].trim());
+            changeDays[i] = i == 0 ? ExpenseDates.INVALID : date(amountAndDay[1]);
+        }
+        int start = date(parts[4]);
+        int end = parts[5].trim().isEmpty() ? ExpenseDates.INVALID : date(parts[5]);
+        int through = parts[6].trim().isEmpty() ? start - 1 : date(parts[6]);
+        return rule(id, category, currency, every, parts[7], start, end, changeDays, amounts, through);
+    }
+
+    private static int date(String text) {
+        int day = ExpenseDates.parse(text.trim());
+        if (day == ExpenseDates.INVALID) throw new IllegalArgumentException("invalid date " + text.trim());
+        return day;
+    }
+
+    /** Writes the rules to a temp file, fsyncs it and renames it over {@code file}. */
+    public void save(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp.toFile());
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
+            out.write("# id|category|every|amount[,amount@from...]|from|to|through|description\n");
+            for (Rule rule : rules) {
+                StringBuilder line = new StringBuilder();
+                line.append(rule.id).append('|').append(rule.categoryName()).append('|').append(rule.every)
+                    .append('|').append(Currencies.amount(rule.amounts[0], rule.currency, Currencies.home()));
+                for (int i = 1; i < rule.amounts.length; i++) {
+                    line.append(',').append(Money.format(rule.amounts[i])).append('@')
+                        .append(ExpenseDates.format(rule.changeDays[i]));
+                }
+                line.append('|').append(ExpenseDates.format(rule.startDay)).append('|');
+                if (rule.endDay != ExpenseDates.INVALID) line.append(ExpenseDates.format(rule.endDay));
+                line.append('|');
+                if (rule.through >= rule.startDay) line.append(ExpenseDates.format(rule.through));
+                line.append('|').append(rule.description).append('\n');
+                out.write(line.toString());
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        SnapshotFile.replace(temp, file);
+    }
+}
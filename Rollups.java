@@ -0,0 +1,387 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Spend per category for every day, week, month and year, kept up to date
+ * from the add and delete paths so trend questions ("monthly spend per
+ * category for the last 36 months") cost time in the number of buckets, not
+ * rows.
+ *
+ * Each level keeps its buckets in pages of PAGE consecutive keys, a long[]
+ * of totals and counts per category plus an all-categories slot, so a run
+ * of periods is a contiguous read and a stray date far from the rest costs
+ * one page rather than a huge dense array. {@link #build} splits the rows
+ * into chunks rolled up on the common ForkJoinPool and merges the pages.
+ */
+public class Rollups {
+
+    public enum Level {
+        DAY, WEEK, MONTH, YEAR;
+
+        /** The bucket containing {@code epochDay}. */
+        public int key(int epochDay) {
+            switch (this) {
+                case DAY: return epochDay;
+                case WEEK: return ExpenseDates.weekKey(epochDay);
+                case MONTH: return ExpenseAggregates.monthKey(epochDay);
+                default: return ExpenseDates.yearOf(epochDay);
+            }
+        }
+
+        /** First day of bucket {@code key}. */
+        public int start(int key) {
+            switch (this) {
+                case DAY: return key;
+                case WEEK: return ExpenseDates.weekStart(key);
+                case MONTH: return ExpenseDates.of(Math.floorDiv(key, 12), Math.floorMod(key, 12) + 1, 1);
+                default: return ExpenseDates.of(key, 1, 1);
+            }
+        }
+
+        /** Last day of bucket {@code key}. */
+        public int end(int key) {
+            return start(key + 1) - 1;
+        }
+
+        /** "15/03/2024", "w/c 11/03/2024", "03/2024", "2024". */
+        public String label(int key) {
+            switch (this) {
+                case DAY: return ExpenseDates.format(key);
+                case WEEK: return "w/c " + ExpenseDates.format(ExpenseDates.weekStart(key));
+                case MONTH: return String.format("%02d/%d", Math.floorMod(key, 12) + 1, Math.floorDiv(key, 12));
+                default: return Integer.toString(key);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /** Totals for a run of consecutive buckets, oldest first. */
+    public static final class Trend {
+        public final Level level;
+        public final int firstKey;
+        public final long[][] totals;   // [category, or categories for all][period]
+        public final long[][] counts;   // the same for the number of expenses
+
+        Trend(Level level, int firstKey, long[][] totals, long[][] counts) {
+            this.level = level;
+            this.firstKey = firstKey;
+            this.totals = totals;
+            this.counts = counts;
+        }
+
+        public int periods() {
+            return totals[0].length;
+        }
+
+        public String label(int period) {
+            return level.label(firstKey + period);
+        }
+
+        /** Totals of {@code category} (-1 for all) per period. */
+        public long[] totals(int category) {
+            return totals[category < 0 ? totals.length - 1 : category];
+        }
+
+        public long[] counts(int category) {
+            return counts[category < 0 ? counts.length - 1 : category];
+        }
+    }
+
+    private static final int PAGE = 256;   // keys per page
+    private static final Level[] LEVELS = Level.values();
+    private static final int CHUNK_ROWS = 1 << 20;
+
+    private final int slots;   // categories plus the all-categories slot
+    // Per level: page number -> totals then counts, PAGE * slots each
+    private final List<Map<Integer, long[]>> pages = new ArrayList<>();
+
+    public Rollups(int categories) {
+        this.slots = categories + 1;
+        for (int i = 0; i < LEVELS.length; i++) pages.add(new HashMap<>());
+    }
+
+    public int categories() {
+        return slots - 1;
+    }
+
+    /** A copy with room for {@code categories} categories, e.g. after the user added one. */
+    public Rollups withCategories(int categories) {
+        Rollups copy = new Rollups(categories);
+        int width = Math.min(slots, copy.slots) - 1;
+        for (int level = 0; level < LEVELS.length; level++) {
+            for (Map.Entry<Integer, long[]> e : pages.get(level).entrySet()) {
+                long[] from = e.getValue();
+                long[] to = new long[2 * PAGE * copy.slots];
+                for (int bucket = 0; bucket < 2 * PAGE; bucket++) {
+                    System.arraycopy(from, bucket * slots, to, bucket * copy.slots, width);
+                    to[(bucket + 1) * copy.slots - 1] = from[(bucket + 1) * slots - 1];
+                }
+                copy.pages.get(level).put(e.getKey(), to);
+            }
+        }
+        return copy;
+    }
+
+    // Updates
+
+    public void add(long cents, int category, int epochDay) {
+        update(cents, category, epochDay, 1);
+    }
+
+    public void remove(long cents, int category, int epochDay) {
+        update(-cents, category, epochDay, -1);
+    }
+
+    /** Counts {@code count} expenses of one day totalling {@code cents}, e.g. from a segment summary. */
+    public void add(int epochDay, int category, long cents, long count) {
+        update(cents, category, epochDay, count);
+    }
+
+    private void update(long cents, int category, int epochDay, long count) {
+        for (int level = 0; level < LEVELS.length; level++) {
+            int key = LEVELS[level].key(epochDay);
+            long[] page = page(level, key);
+            int at = Math.floorMod(key, PAGE) * slots;
+            page[at + category] += cents;
+            page[at + slots - 1] += cents;
+            int counts = PAGE * slots;
+            page[counts + at + category] += count;
+            page[counts + at + slots - 1] += count;
+        }
+    }
+
+    /**
+     * Counts one day's expenses of every category at once: {@code cents[c]}
+     * and {@code counts[countsAt + c]} for category c. Used to fill the
+     * rollups from CurrencyTotals, a day at a time.
+     */
+    void addDay(int epochDay, long[] cents, long[] counts, int countsAt) {
+        int categories = slots - 1;
+        long total = 0, count = 0;
+        for (int c = 0; c < categories; c++) {
+            total = Money.add(total, cents[c]);
+            count += counts[countsAt + c];
+        }
+        for (int level = 0; level < LEVELS.length; level++) {
+            int key = LEVELS[level].key(epochDay);
+            long[] page = page(level, key);
+            int at = Math.floorMod(key, PAGE) * slots;
+            int countAt = PAGE * slots + at;
+            for (int c = 0; c < categories; c++) {
+                page[at + c] += cents[c];
+                page[countAt + c] += counts[countsAt + c];
+            }
+            page[at + categories] += total;
+            page[countAt + categories] += count;
+        }
+    }
+
+    private long[] page(int level, int key) {
+        return pages.get(level).computeIfAbsent(Math.floorDiv(key, PAGE), p -> new long[2 * PAGE * slots]);
+    }
+
+    /**
+     * Rolls up every row of {@code store}: chunks of rows in parallel, each
+     * into its own Rollups, then merged page by page.
+     */
+    public static Rollups build(ExpenseStore store, int categories) {
+        int n = store.size();
+        List<ForkJoinTask<Rollups>> tasks = new ArrayList<>();
+        for (int from = 0; from < n; from += CHUNK_ROWS) {
+            int start = from, end = Math.min(n, from + CHUNK_ROWS);
+            tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                Rollups part = new Rollups(categories);
+                part.addRows(store, start, end);
+                return part;
+            }));
+        }
+        Rollups result = new Rollups(categories);
+        for (ForkJoinTask<Rollups> task : tasks) {
+            result.merge(task.join());
+        }
+        return result;
+    }
+
+    // Rows mostly come in date order, so keys and pages are looked up again
+    // only when the day changes
+    private void addRows(ExpenseStore store, int from, int to) {
+        int lastDay = ExpenseDates.INVALID;
+        long[][] rowPages = new long[LEVELS.length][];
+        int[] offsets = new int[LEVELS.length];
+        int counts = PAGE * slots;
+        for (int row = from; row < to; row++) {
+            int day = store.dateAt(row);
+            if (day != lastDay) {
+                lastDay = day;
+                for (int level = 0; level < LEVELS.length; level++) {
+                    int key = LEVELS[level].key(day);
+                    rowPages[level] = page(level, key);
+                    offsets[level] = Math.floorMod(key, PAGE) * slots;
+                }
+            }
+            long cents = store.amountAt(row);
+            int category = store.categoryAt(row);
+            for (int level = 0; level < LEVELS.length; level++) {
+                long[] page = rowPages[level];
+                int at = offsets[level];
+                page[at + category] += cents;
+                page[at + slots - 1] += cents;
+                page[counts + at + category]++;
+                page[counts + at + slots - 1]++;
+            }
+        }
+    }
+
+    private void merge(Rollups other) {
+        for (int level = 0; level < LEVELS.length; level++) {
+            Map<Integer, long[]> mine = pages.get(level);
+            for (Map.Entry<Integer, long[]> e : other.pages.get(level).entrySet()) {
+                long[] page = mine.get(e.getKey());
+                if (page == null) {
+                    mine.put(e.getKey(), e.getValue());
+                } else {
+                    long[] theirs = e.getValue();
+                    for (int i = 0; i < page.length; i++) page[i] += theirs[i];
+                }
+            }
+        }
+    }
+
+    // Queries
+
+    /** Receives the non-empty buckets of a level. */
+    public interface Visitor {
+        /** Per category then all categories, like {@link Trend#totals}; the arrays are reused. */
+        void bucket(int key, long[] totals, long[] counts);
+    }
+
+    /** Calls {@code visitor} for every bucket of {@code level} holding expenses, in no particular order. */
+    public void forEach(Level level, Visitor visitor) {
+        long[] totals = new long[slots];
+        long[] counts = new long[slots];
+        for (Map.Entry<Integer, long[]> e : pages.get(level.ordinal()).entrySet()) {
+            long[] page = e.getValue();
+            for (int i = 0; i < PAGE; i++) {
+                int at = i * slots;
+                if (page[PAGE * slots + at + slots - 1] == 0) continue;
+                System.arraycopy(page, at, totals, 0, slots);
+                System.arraycopy(page, PAGE * slots + at, counts, 0, slots);
+                visitor.bucket(e.getKey() * PAGE + i, totals, counts);
+            }
+        }
+    }
+
+    /** Spend of {@code category} (-1 for all) in bucket {@code key}. */
+    public long total(Level level, int key, int category) {
+        return read(level, key, category, false);
+    }
+
+    /** Number of expenses of {@code category} (-1 for all) in bucket {@code key}. */
+    public long count(Level level, int key, int category) {
+        return read(level, key, category, true);
+    }
+
+    private long read(Level level, int key, int category, boolean count) {
+        long[] page = pages.get(level.ordinal()).get(Math.floorDiv(key, PAGE));
+        if (page == null) return 0;
+        int slot = category < 0 ? slots - 1 : category;
+        return page[(count ? PAGE * slots : 0) + Math.floorMod(key, PAGE) * slots + slot];
+    }
+
+    /**
+     * {first, last} day of the years that hold expenses, or null when there
+     * are none; a range clipped to it loses nothing.
+     */
+    public int[] span() {
+        int first = Integer.MAX_VALUE, last = Integer.MIN_VALUE;
+        for (Map.Entry<Integer, long[]> e : pages.get(Level.YEAR.ordinal()).entrySet()) {
+            long[] page = e.getValue();
+            for (int i = 0; i < PAGE; i++) {
+                if (page[PAGE * slots + i * slots + slots - 1] == 0) continue;
+                int key = e.getKey() * PAGE + i;
+                first = Math.min(first, key);
+                last = Math.max(last, key);
+            }
+        }
+        return first > last ? null : new int[] { Level.YEAR.start(first), Level.YEAR.end(last) };
+    }
+
+    /**
+     * Spend and count of {@code category} (-1 for all) dated within
+     * [startDay, endDay], as {total, count}. Whole years, months and weeks
+     * inside the range are read as one bucket each, so a range costs at most
+     * a few dozen reads however many rows it holds.
+     */
+    public long[] between(int startDay, int endDay, int category) {
+        long total = 0, count = 0;
+        int day = startDay;
+        while (day <= endDay && day >= startDay) {
+            Level level = Level.DAY;
+            for (int l = LEVELS.length - 1; l > 0; l--) {
+                int key = LEVELS[l].key(day);
+                if (LEVELS[l].start(key) == day && LEVELS[l].end(key) <= endDay) {
+                    level = LEVELS[l];
+                    break;
+                }
+            }
+            int key = level.key(day);
+            total = Money.add(total, total(level, key, category));
+            count += count(level, key, category);
+            day = level.end(key) + 1;
+        }
+        return new long[] { total, count };
+    }
+
+    /** The {@code periods} buckets of {@code level} ending with the one containing {@code lastDay}. */
+    public Trend trend(Level level, int lastDay, int periods) {
+        if (periods < 1) throw new IllegalArgumentException("at least one period");
+        int firstKey = level.key(lastDay) - periods + 1;
+        long[][] totals = new long[slots][periods];
+        long[][] counts = new long[slots][periods];
+        Map<Integer, long[]> levelPages = pages.get(level.ordinal());
+        for (int i = 0; i < periods; i++) {
+            int key = firstKey + i;
+            long[] page = levelPages.get(Math.floorDiv(key, PAGE));
+            if (page == null) continue;
+            int at = Math.floorMod(key, PAGE) * slots;
+            for (int slot = 0; slot < slots; slot++) {
+                totals[slot][i] = page[at + slot];
+                counts[slot][i] = page[PAGE * slots + at + slot];
+            }
+        }
+        return new Trend(level, firstKey, totals, counts);
+    }
+
+    // Series helpers
+
+    /** Trailing average over up to {@code window} values ending at each index, to the cent. */
+    public static long[] movingAverage(long[] values, int window) {
+        if (window < 1) throw new IllegalArgumentException("window must be at least 1");
+        long[] result = new long[values.length];
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            sum += values[i];
+            if (i >= window) sum -= values[i - window];
+            int n = Math.min(i + 1, window);
+            result[i] = Math.round(sum / (double) n);
+        }
+        return result;
+    }
+
+    /** Change from the previous period (0 for the first). */
+    public static long[] deltas(long[] values) {
+        long[] result = new long[values.length];
+        for (int i = 1; i < values.length; i++) result[i] = values[i] - values[i - 1];
+        return result;
+    }
+
+    /** Percentage change from the previous period, or NaN when there is nothing to compare with. */
+    public static double percentChange(long[] values, int i) {
+        if (i == 0 || values[i - 1] == 0) return Double.NaN;
+        return (values[i] - values[i - 1]) * 100.0 / values[i - 1];
+    }
+}
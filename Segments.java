@@ -0,0 +1,511 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.CRC32C;
+
+/**
+ * The ledger on disk: one snapshot file per month (see SnapshotFile) in the
+ * expenses.segments directory, and a manifest that lists them.
+ *
+ * For each segment the manifest holds its month, file, row count, ID, date
+ * and amount ranges and the spend and count per day, category and currency,
+ * in that currency (see CurrencyTotals). That is
+ * enough to build the rollups, aggregates and budgets without reading a
+ * row, and to rule a segment out of a query without opening it. Layout,
+ * big-endian as DataOutputStream writes it:
+ *
+ *   "EXPM"  version:int  generation:long  lastId:int
+ *   categoryCount:int  { name:UTF }*  currencyCount:int  { code:UTF }*
+ *   segments:int  { month:int  file:UTF  rows:int  minId:int  maxId:int
+ *                   firstDay:int  lastDay:int  minCents:long  maxCents:long
+ *                   heapBytes:long  cells:int
+ *                   { day:int  category:byte  currency:byte  count:int  cents:long }* }*
+ *   crc32c:int  (of everything before it)
+ *
+ * The amount range is in the rows' own currencies. Version 1 manifests,
+ * from before currencies, have neither the currency list nor the cells'
+ * currency byte: those are all in the home currency.
+ *
+ * A write puts the changed months in new files (YYYY-MM.generation.seg),
+ * then replaces the manifest by an atomic rename, which is the commit
+ * point. Files the new manifest no longer lists are deleted afterwards, or
+ * on the next open if the process died first. lastId is the highest ID the
+ * segments account for, so journaled adds up to it are already in them.
+ *
+ * It also keeps track of which months are in memory (see Ledger): the
+ * active window of recent and future months always, older months in an LRU
+ * whose estimated size is capped, except that months with changes not yet
+ * written are never evicted. Those methods are called under the ledger's
+ * lock; {@link #write} runs outside it and swaps in the new manifest whole.
+ */
+public final class Segments {
+
+    static final String MANIFEST = "manifest";
+    private static final byte[] MAGIC = { 'E', 'X', 'P', 'M' };
+    private static final int VERSION = 2;
+    private static final int ROW_BYTES = 48;   // store columns plus both indexes, per row
+
+    /** One month's file and a summary of its rows. */
+    public static final class Segment {
+        public final int month;   // ExpenseAggregates.monthKey
+        final String file;
+        public final int rows;
+        public final int minId, maxId;
+        public final int firstDay, lastDay;
+        public final long minCents, maxCents;
+        final long heapBytes;
+        public final long categories;   // a bit per category present
+        public final long currencies;   // a bit per currency present
+        // Count and spend per (day, category, currency) that has any
+        final int[] days;
+        final byte[] cats;
+        final byte[] curs;
+        final int[] counts;
+        final long[] totals;
+
+        Segment(int month, String file, int rows, int minId, int maxId, int firstDay, int lastDay,
+                long minCents, long maxCents, long heapBytes, int[] days, byte[] cats, byte[] curs, int[] counts,
+                long[] totals) {
+            this.month = month;
+            this.file = file;
+            this.rows = rows;
+            this.minId = minId;
+            this.maxId = maxId;
+            this.firstDay = firstDay;
+            this.lastDay = lastDay;
+            this.minCents = minCents;
+            this.maxCents = maxCents;
+            this.heapBytes = heapBytes;
+            this.days = days;
+            this.cats = cats;
+            this.curs = curs;
+            this.counts = counts;
+            this.totals = totals;
+            long present = 0;
+            for (byte c : cats) present |= 1L << c;
+            this.categories = present;
+            present = 0;
+            for (byte c : curs) present |= 1L << c;
+            this.currencies = present;
+        }
+
+        public boolean overlaps(int startDay, int endDay) {
+            return firstDay <= endDay && lastDay >= startDay;
+        }
+
+        /** Whether any row is in one of {@code categoryMask}'s categories (0 for all). */
+        public boolean hasAny(long categoryMask) {
+            return categoryMask == 0 || (categories & categoryMask) != 0;
+        }
+
+        /** Estimated heap the rows take once loaded. */
+        long memoryBytes() {
+            return rows * (long) ROW_BYTES + heapBytes;
+        }
+
+        /** Adds the per-day totals to {@code totals}. */
+        void addTo(CurrencyTotals totals) {
+            for (int i = 0; i < days.length; i++) {
+                totals.add(curs[i], cats[i], days[i], this.totals[i], counts[i]);
+            }
+        }
+    }
+
+    private static final class Manifest {
+        final long generation;
+        final int lastId;
+        final TreeMap<Integer, Segment> segments;
+
+        Manifest(long generation, int lastId, TreeMap<Integer, Segment> segments) {
+            this.generation = generation;
+            this.lastId = lastId;
+            this.segments = segments;
+        }
+    }
+
+    private final Path dir;
+    private final int activeFrom;   // first month of the active window
+    private final long capBytes;
+    private volatile Manifest manifest = new Manifest(0, 0, new TreeMap<>());
+
+    // In memory: active months (never evicted) and older ones, least recently used first
+    private final Set<Integer> hot = new HashSet<>();
+    private final LinkedHashMap<Integer, Long> cold = new LinkedHashMap<>(16, 0.75f, true);
+    private long coldBytes;
+    // Changed since their segment was written, and being written now
+    private final Set<Integer> dirty = new HashSet<>();
+    private final Set<Integer> writing = new HashSet<>();
+
+    /**
+     * @param activeMonths  this month and the ones before it to keep loaded
+     * @param capBytes      estimated memory older months may take
+     */
+    public Segments(Path dir, int activeMonths, long capBytes) {
+        this.dir = dir;
+        this.activeFrom = ExpenseAggregates.monthKey(ExpenseDates.today()) - Math.max(activeMonths, 1) + 1;
+        this.capBytes = capBytes;
+    }
+
+    // The manifest
+
+    /** Reads the manifest; false if there is none yet. */
+    public boolean open() throws IOException {
+        Path file = dir.resolve(MANIFEST);
+        if (Files.notExists(file)) return false;
+        manifest = readManifest(file);
+        // Leftovers of writes that never reached the manifest, or whose old files weren't deleted
+        Set<String> listed = new HashSet<>();
+        for (Segment segment : manifest.segments.values()) listed.add(segment.file);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                if ((name.endsWith(".seg") || name.endsWith(".tmp")) && !listed.contains(name)) {
+                    deleteQuietly(path);
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Highest ID the segments account for. */
+    public int lastId() {
+        return manifest.lastId;
+    }
+
+    public Collection<Segment> all() {
+        return manifest.segments.values();
+    }
+
+    /** The segment of {@code month}, or null if it has none. */
+    public Segment segment(int month) {
+        return manifest.segments.get(month);
+    }
+
+    /** The segments {@code test} doesn't rule out, oldest first. */
+    public List<Segment> select(Predicate<Segment> test) {
+        List<Segment> result = new ArrayList<>();
+        for (Segment segment : manifest.segments.values()) {
+            if (test.test(segment)) result.add(segment);
+        }
+        return result;
+    }
+
+    /** Loads a segment's rows, checked against the manifest. */
+    public ColumnarExpenseStore read(Segment segment) throws IOException {
+        Path file = dir.resolve(segment.file);
+        try (Metrics.Span span = Metrics.start(Metrics.Op.PAGE_IN)) {
+            ColumnarExpenseStore rows = SnapshotFile.load(file).store;
+            if (rows.size() != segment.rows) {
+                throw new IOException(file + ": " + rows.size() + " rows where the manifest has " + segment.rows);
+            }
+            span.rows(rows.size(), rows.size()).read(Files.size(file));
+            return rows;
+        }
+    }
+
+    /**
+     * Writes the segments of {@code months} from {@code rows} (a month
+     * without rows loses its segment), then the manifest. The caller makes
+     * sure only one write runs at a time and that every row of those months
+     * is in {@code rows}.
+     */
+    public void write(ColumnarExpenseStore rows, DateIndex dates, Collection<Integer> months, int lastId)
+            throws IOException {
+        Manifest current = manifest;
+        long generation = current.generation + 1;
+        TreeMap<Integer, Segment> segments = new TreeMap<>(current.segments);
+        List<Path> written = new ArrayList<>();
+        List<String> superseded = new ArrayList<>();
+        Files.createDirectories(dir);
+        try (Metrics.Span span = Metrics.start(Metrics.Op.SNAPSHOT)) {
+            long bytes = 0;
+            int total = 0;
+            try {
+                for (int month : months) {
+                    Segment old = segments.remove(month);
+                    if (old != null) superseded.add(old.file);
+                    int[] monthRows = dates.rowsBetween(Rollups.Level.MONTH.start(month),
+                                                        Rollups.Level.MONTH.end(month)).toArray();
+                    if (monthRows.length == 0) continue;
+                    Arrays.sort(monthRows);   // back to row order, which is ID order
+                    ColumnarExpenseStore part = new ColumnarExpenseStore(monthRows.length);
+                    for (int row : monthRows) part.addFrom(rows, row);
+                    Path file = dir.resolve(fileName(month, generation));
+                    SnapshotFile.write(part, file);
+                    written.add(file);
+                    bytes += Files.size(file);
+                    total += part.size();
+                    segments.put(month, summarize(month, file.getFileName().toString(), part));
+                }
+                Manifest next = new Manifest(generation, Math.max(lastId, current.lastId), segments);
+                bytes += writeManifest(next);
+                manifest = next;
+            } catch (IOException | RuntimeException e) {
+                for (Path file : written) deleteQuietly(file);
+                throw e;
+            }
+            span.rows(total, total).written(bytes);
+        }
+        for (String file : superseded) deleteQuietly(dir.resolve(file));
+    }
+
+    private static String fileName(int month, long generation) {
+        return String.format(Locale.ROOT, "%04d-%02d.%d.seg", Math.floorDiv(month, 12), Math.floorMod(month, 12) + 1,
+                             generation);
+    }
+
+    // Every row of rows is in month
+    static Segment summarize(int month, String file, ColumnarExpenseStore rows) {
+        int categories = Categories.count(), width = categories * Currencies.count();
+        int start = Rollups.Level.MONTH.start(month);
+        long[] cellTotals = new long[31 * width];
+        int[] cellCounts = new int[31 * width];
+        int minId = Integer.MAX_VALUE, maxId = Integer.MIN_VALUE;
+        int firstDay = Integer.MAX_VALUE, lastDay = Integer.MIN_VALUE;
+        long minCents = Long.MAX_VALUE, maxCents = Long.MIN_VALUE;
+        int cells = 0;
+        for (int row = 0; row < rows.size(); row++) {
+            int id = rows.idAt(row), day = rows.dateAt(row);
+            long cents = rows.amountAt(row);
+            minId = Math.min(minId, id);
+            maxId = Math.max(maxId, id);
+            firstDay = Math.min(firstDay, day);
+            lastDay = Math.max(lastDay, day);
+            minCents = Math.min(minCents, cents);
+            maxCents = Math.max(maxCents, cents);
+            int cell = (day - start) * width + rows.currencyAt(row) * categories + rows.categoryAt(row);
+            if (cellCounts[cell]++ == 0) cells++;
+            cellTotals[cell] = Money.add(cellTotals[cell], cents);
+        }
+        int[] days = new int[cells];
+        byte[] cats = new byte[cells];
+        byte[] curs = new byte[cells];
+        int[] counts = new int[cells];
+        long[] totals = new long[cells];
+        int i = 0;
+        for (int cell = 0; cell < cellCounts.length; cell++) {
+            if (cellCounts[cell] == 0) continue;
+            days[i] = start + cell / width;
+            cats[i] = (byte) (cell % categories);
+            curs[i] = (byte) (cell % width / categories);
+            counts[i] = cellCounts[cell];
+            totals[i++] = cellTotals[cell];
+        }
+        return new Segment(month, file, rows.size(), minId, maxId, firstDay, lastDay, minCents, maxCents,
+                           rows.descriptionBytes(), days, cats, curs, counts, totals);
+    }
+
+    private long writeManifest(Manifest manifest) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(manifest.generation);
+        out.writeInt(manifest.lastId);
+        String[] categories = Categories.names();
+        out.writeInt(categories.length);
+        for (String name : categories) out.writeUTF(name);
+        String[] currencies = Currencies.codes();
+        out.writeInt(currencies.length);
+        for (String code : currencies) out.writeUTF(code);
+        out.writeInt(manifest.segments.size());
+        for (Segment s : manifest.segments.values()) {
+            out.writeInt(s.month);
+            out.writeUTF(s.file);
+            out.writeInt(s.rows);
+            out.writeInt(s.minId);
+            out.writeInt(s.maxId);
+            out.writeInt(s.firstDay);
+            out.writeInt(s.lastDay);
+            out.writeLong(s.minCents);
+            out.writeLong(s.maxCents);
+            out.writeLong(s.heapBytes);
+            out.writeInt(s.days.length);
+            for (int i = 0; i < s.days.length; i++) {
+                out.writeInt(s.days[i]);
+                out.writeByte(s.cats[i]);
+                out.writeByte(s.curs[i]);
+                out.writeInt(s.counts[i]);
+                out.writeLong(s.totals[i]);
+            }
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.toByteArray());
+        out.writeInt((int) crc.getValue());
+        byte[] bytes = buffer.toByteArray();
+
+        Path target = dir.resolve(MANIFEST);
+        Path temp = target.resolveSibling(MANIFEST + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+            file.write(bytes);
+            file.getFD().sync();
+        }
+        SnapshotFile.replace(temp, target);
+        return bytes.length;
+    }
+
+    private static Manifest readManifest(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        if (bytes.length < MAGIC.length + 4 || !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC)) {
+            throw new IOException(file + ": not a segment manifest");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length - 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        in.skipBytes(bytes.length - 4);
+        if ((int) crc.getValue() != in.readInt()) throw new IOException(file + ": manifest checksum mismatch");
+
+        in = new DataInputStream(new ByteArrayInputStream(bytes, MAGIC.length, bytes.length - MAGIC.length - 4));
+        try {
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) throw new IOException(file + ": unsupported manifest version " + version);
+            long generation = in.readLong();
+            int lastId = in.readInt();
+            // Categories by name, as in SnapshotFile, so the manifest survives a change to the list
+            byte[] categoryMap = new byte[in.readInt()];
+            for (int c = 0; c < categoryMap.length; c++) {
+                categoryMap[c] = (byte) Categories.resolve(in.readUTF());
+            }
+            byte[] currencyMap = new byte[version >= 2 ? in.readInt() : 0];
+            for (int c = 0; c < currencyMap.length; c++) {
+                currencyMap[c] = (byte) Currencies.resolve(in.readUTF());
+            }
+            TreeMap<Integer, Segment> segments = new TreeMap<>();
+            for (int n = in.readInt(); n > 0; n--) {
+                int month = in.readInt();
+                String name = in.readUTF();
+                int rows = in.readInt(), minId = in.readInt(), maxId = in.readInt();
+                int firstDay = in.readInt(), lastDay = in.readInt();
+                long minCents = in.readLong(), maxCents = in.readLong(), heapBytes = in.readLong();
+                int cells = in.readInt();
+                int[] days = new int[cells];
+                byte[] cats = new byte[cells];
+                byte[] curs = new byte[cells];
+                int[] counts = new int[cells];
+                long[] totals = new long[cells];
+                for (int i = 0; i < cells; i++) {
+                    days[i] = in.readInt();
+                    cats[i] = categoryMap[in.readUnsignedByte()];
+                    curs[i] = version >= 2 ? currencyMap[in.readUnsignedByte()] : (byte) Currencies.home();
+                    counts[i] = in.readInt();
+                    totals[i] = in.readLong();
+                }
+                segments.put(month, new Segment(month, name, rows, minId, maxId, firstDay, lastDay, minCents,
+                                                maxCents, heapBytes, days, cats, curs, counts, totals));
+            }
+            return new Manifest(generation, lastId, segments);
+        } catch (EOFException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException(file + ": corrupt manifest");
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // picked up again by the next open
+        }
+    }
+
+    // What is in memory
+
+    /** Whether {@code month}'s rows are all in memory (trivially, if it has no segment). */
+    public boolean isLoaded(int month) {
+        return hot.contains(month) || cold.containsKey(month) || dirty.contains(month) || writing.contains(month)
+                || !manifest.segments.containsKey(month);
+    }
+
+    public boolean allLoaded() {
+        for (int month : manifest.segments.keySet()) {
+            if (!isLoaded(month)) return false;
+        }
+        return true;
+    }
+
+    public boolean isActive(int month) {
+        return month >= activeFrom;
+    }
+
+    /** Records that {@code segment}'s rows were added to the store. */
+    public void loaded(Segment segment) {
+        if (isActive(segment.month)) {
+            hot.add(segment.month);
+        } else {
+            Long before = cold.put(segment.month, segment.memoryBytes());
+            coldBytes += segment.memoryBytes() - (before == null ? 0 : before);
+        }
+    }
+
+    /** Marks {@code month} most recently used. */
+    public void touch(int month) {
+        cold.get(month);
+    }
+
+    /** Records a change to {@code month}, which must be loaded; it stays loaded until written. */
+    public void changed(int month) {
+        dirty.add(month);
+    }
+
+    /** Whether an older month has changes not yet written, which keep it in memory. */
+    public boolean holdsChanges() {
+        for (int month : dirty) {
+            if (!isActive(month)) return true;
+        }
+        return false;
+    }
+
+    /** The changed months, now being written; pass them to {@link #finishWrite} afterwards. */
+    public Set<Integer> startWrite() {
+        Set<Integer> months = new TreeSet<>(dirty);
+        writing.addAll(months);
+        dirty.clear();
+        return months;
+    }
+
+    /** After a write of {@code months}; if it failed they count as changed again. */
+    public void finishWrite(Set<Integer> months, boolean ok) {
+        writing.removeAll(months);
+        if (!ok) {
+            dirty.addAll(months);
+            return;
+        }
+        for (int month : months) {
+            Segment segment = manifest.segments.get(month);
+            if (segment != null) {
+                loaded(segment);   // a new segment, or a new size for the cache
+            } else if (cold.containsKey(month)) {
+                coldBytes -= cold.remove(month);
+            }
+        }
+    }
+
+    /**
+     * Takes the least recently used older months out of the cache until it
+     * fits its cap again and returns them for the caller to drop from the
+     * store. Months in {@code keep} and unwritten ones stay.
+     */
+    public List<Integer> evict(Set<Integer> keep) {
+        List<Integer> victims = new ArrayList<>();
+        Iterator<Map.Entry<Integer, Long>> it = cold.entrySet().iterator();
+        while (coldBytes > capBytes && it.hasNext()) {
+            Map.Entry<Integer, Long> e = it.next();
+            int month = e.getKey();
+            if (keep.contains(month) || dirty.contains(month) || writing.contains(month)) continue;
+            coldBytes -= e.getValue();
+            it.remove();
+            victims.add(month);
+        }
+        return victims;
+    }
+
+    /** "12 of 240 months in memory, 35.2 MB of 128.0 MB cache", for diagnostics. */
+    public String describe() {
+        int loaded = 0;
+        for (int month : manifest.segments.keySet()) {
+            if (isLoaded(month)) loaded++;
+        }
+        return String.format(Locale.ROOT, "%d of %d months in memory, %s of %s cache", loaded,
+                             manifest.segments.size(), Metrics.bytes(coldBytes), Metrics.bytes(capBytes));
+    }
+}
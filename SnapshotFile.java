@@ -0,0 +1,352 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary snapshot of the ledger (expenses.dat). Loading is a straight copy of
+ * memory-mapped column slices into a ColumnarExpenseStore, with no text
+ * parsing, and descriptions may contain any character.
+ *
+ * Layout, all integers little-endian:
+ *
+ *   header   "EXPB"  version:int  headerLength:int  rows:int  heapBytes:int
+ *            blockRows:int  categoryCount:int  { nameLength:byte name:UTF-8 }*
+ *            currencyCount:int  { codeLength:byte code:UTF-8 }*
+ *            crc32c:int  (of everything before it)
+ *   blocks   rows:int  bodyLength:int  crc32c:int  (of the body)
+ *            body: amounts long[rows]  ids int[rows]  dates int[rows]
+ *                  descLengths int[rows]  descStarts int[rows]  categories byte[rows]
+ *                  currencies byte[rows]
+ *                  descriptions: the UTF-8 bytes of each distinct one, back to back
+ *
+ * Descriptions are dictionary-encoded per block: rows that share one in
+ * memory (see ColumnarExpenseStore) share its bytes in the block too, and
+ * descStarts gives each row's offset among the block's descriptions, so
+ * loading keeps the sharing without hashing anything. Version 1 files have
+ * no descStarts and every row's bytes in row order, and neither they nor
+ * version 2 files have currencies (their rows are in the home currency);
+ * both are still read.
+ *
+ * Category and currency bytes index the header's tables, so a snapshot
+ * stays readable if either registry changes. A block that fails its
+ * checksum fails the whole load; the file is only ever replaced by an
+ * atomic rename.
+ *
+ * Files without the magic are read as the legacy pipe-delimited text format,
+ * which {@link #convert} (or "java SnapshotFile in.txt out.dat") rewrites.
+ */
+public final class SnapshotFile {
+
+    static final int VERSION = 3;
+    private static final byte[] MAGIC = { 'E', 'X', 'P', 'B' };
+    private static final int BLOCK_ROWS = 64 * 1024;
+    private static final int ROW_BYTES = 8 + 4 + 4 + 4 + 4 + 1 + 1;
+    private static final int V2_ROW_BYTES = ROW_BYTES - 1;     // no currencies
+    private static final int V1_ROW_BYTES = V2_ROW_BYTES - 4;  // nor descStarts
+    private static final int BLOCK_HEADER = 12;
+
+    private SnapshotFile() {}
+
+    // Writing
+
+    /** Writes {@code rows} to a temp file, fsyncs it and renames it over {@code target}. */
+    public static void write(ExpenseStore rows, Path target) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        ColumnarExpenseStore columnar = rows instanceof ColumnarExpenseStore ? (ColumnarExpenseStore) rows : null;
+        String[] categories = Categories.names();
+        int n = rows.size();
+        byte[][] descriptions = columnar == null ? new byte[n][] : null;
+        // Each row's offset among its block's descriptions; rows of a store
+        // that share bytes get the same one
+        int[] starts = new int[n];
+        int[] blockHeaps = new int[(n + BLOCK_ROWS - 1) / BLOCK_ROWS];
+        IntIntMap written = new IntIntMap();
+        long heapBytes = 0;
+        for (int from = 0; from < n; from += BLOCK_ROWS) {
+            int to = Math.min(from + BLOCK_ROWS, n);
+            int heap = 0;
+            written.clear();
+            for (int row = from; row < to; row++) {
+                int length;
+                if (columnar != null) {
+                    length = columnar.descriptionLength(row);
+                    starts[row] = length == 0 ? heap : written.putIfAbsent(columnar.descriptionStart(row), heap);
+                } else {
+                    descriptions[row] = rows.descriptionAt(row).getBytes(StandardCharsets.UTF_8);
+                    length = descriptions[row].length;
+                    starts[row] = heap;
+                }
+                if (starts[row] == heap) heap += length;
+            }
+            blockHeaps[from / BLOCK_ROWS] = heap;
+            heapBytes += heap;
+        }
+        if (heapBytes > Integer.MAX_VALUE) throw new IOException("descriptions too large for one snapshot");
+
+        CRC32C crc = new CRC32C();
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = header(n, (int) heapBytes, categories, Currencies.codes());
+            crc.update(header.array(), 0, header.position());
+            header.putInt(checksum(crc));
+            header.flip();
+            writeFully(out, header);
+
+            ByteBuffer block = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            for (int from = 0; from < n; from += BLOCK_ROWS) {
+                int to = Math.min(from + BLOCK_ROWS, n);
+                int count = to - from;
+                int body = count * ROW_BYTES + blockHeaps[from / BLOCK_ROWS];
+                if (block.capacity() < BLOCK_HEADER + body) {
+                    block = ByteBuffer.allocate(BLOCK_HEADER + body).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                block.clear();
+                block.position(BLOCK_HEADER);
+                for (int row = from; row < to; row++) block.putLong(rows.amountAt(row));
+                for (int row = from; row < to; row++) block.putInt(rows.idAt(row));
+                for (int row = from; row < to; row++) block.putInt(rows.dateAt(row));
+                for (int row = from; row < to; row++) {
+                    block.putInt(columnar != null ? columnar.descriptionLength(row) : descriptions[row].length);
+                }
+                for (int row = from; row < to; row++) block.putInt(starts[row]);
+                for (int row = from; row < to; row++) block.put((byte) rows.categoryAt(row));
+                for (int row = from; row < to; row++) block.put((byte) rows.currencyAt(row));
+                int heap = 0;
+                for (int row = from; row < to; row++) {
+                    if (starts[row] != heap) continue;   // shares an earlier row's bytes
+                    if (columnar != null) {
+                        int length = columnar.descriptionLength(row);
+                        block.put(columnar.descriptionHeap(), columnar.descriptionStart(row), length);
+                        heap += length;
+                    } else {
+                        block.put(descriptions[row]);
+                        heap += descriptions[row].length;
+                    }
+                }
+                crc.reset();
+                crc.update(block.array(), BLOCK_HEADER, body);
+                block.putInt(0, count);
+                block.putInt(4, body);
+                block.putInt(8, checksum(crc));
+                block.flip();
+                writeFully(out, block);
+            }
+            out.force(true);
+        }
+        replace(temp, target);
+    }
+
+    /**
+     * Renames the fsynced file {@code temp} over {@code target} and fsyncs the
+     * directory, so after a crash the target holds either the old contents or
+     * the new ones and the rename itself is on disk too.
+     */
+    public static void replace(Path temp, Path target) throws IOException {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(target.toAbsolutePath().getParent());
+    }
+
+    /** Fsyncs a directory's entries. Skipped where directories can't be opened (Windows). */
+    public static void syncDirectory(Path dir) throws IOException {
+        if (dir == null) return;
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (IOException | UnsupportedOperationException e) {
+            return;
+        }
+        try (FileChannel open = ch) {
+            open.force(true);
+        }
+    }
+
+    private static ByteBuffer header(int rows, int heapBytes, String[] categories, String[] currencies) {
+        byte[][] names = new byte[categories.length][];
+        byte[][] codes = new byte[currencies.length][];
+        int length = 7 * 4 + 4 + 4;
+        for (int c = 0; c < names.length; c++) {
+            names[c] = categories[c].getBytes(StandardCharsets.UTF_8);
+            length += 1 + names[c].length;
+        }
+        for (int c = 0; c < codes.length; c++) {
+            codes[c] = currencies[c].getBytes(StandardCharsets.UTF_8);
+            length += 1 + codes[c].length;
+        }
+        ByteBuffer header = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).putInt(VERSION).putInt(length).putInt(rows).putInt(heapBytes)
+              .putInt(BLOCK_ROWS).putInt(names.length);
+        for (byte[] name : names) {
+            header.put((byte) name.length).put(name);
+        }
+        header.putInt(codes.length);
+        for (byte[] code : codes) {
+            header.put((byte) code.length).put(code);
+        }
+        return header;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) out.write(buf);
+    }
+
+    private static int checksum(CRC32C crc) {
+        return (int) crc.getValue();
+    }
+
+    // Reading
+
+    /** True if {@code file} starts with the binary snapshot magic. */
+    public static boolean isBinary(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            while (magic.hasRemaining() && channel.read(magic) > 0) {}
+            return Arrays.equals(magic.array(), MAGIC);
+        }
+    }
+
+    /** Loads a binary snapshot, or a legacy text one through {@link ExpenseLoader}. */
+    public static ExpenseLoader.Result load(Path file) throws IOException {
+        if (!isBinary(file)) return ExpenseLoader.load(file);
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer fixed = read(channel, 0, 7 * 4);
+            int version = fixed.getInt(4);
+            if (version < 1 || version > VERSION) {
+                throw new IOException(file + ": unsupported snapshot version " + version);
+            }
+            boolean dictionary = version >= 2;
+            int rowBytes = version >= 3 ? ROW_BYTES : dictionary ? V2_ROW_BYTES : V1_ROW_BYTES;
+            int headerLength = fixed.getInt(8);
+            int rows = fixed.getInt(12);
+            int heapBytes = fixed.getInt(16);
+            int categoryCount = fixed.getInt(24);
+            if (headerLength < 7 * 4 + 4 || rows < 0 || heapBytes < 0 || categoryCount < 0) {
+                throw new IOException(file + ": corrupt snapshot header");
+            }
+            ByteBuffer header = read(channel, 0, headerLength);
+            CRC32C crc = new CRC32C();
+            crc.update(header.array(), 0, headerLength - 4);
+            if (checksum(crc) != header.getInt(headerLength - 4)) {
+                throw new IOException(file + ": snapshot header checksum mismatch");
+            }
+            byte[] categoryMap = new byte[categoryCount];
+            header.position(7 * 4);
+            for (int c = 0; c < categoryCount; c++) {
+                byte[] name = new byte[header.get() & 0xFF];
+                header.get(name);
+                categoryMap[c] = (byte) Categories.resolve(new String(name, StandardCharsets.UTF_8));
+            }
+            byte[] currencyMap = null;
+            if (version >= 3) {
+                int currencyCount = header.getInt();
+                if (currencyCount < 0 || currencyCount > headerLength) {
+                    throw new IOException(file + ": corrupt snapshot header");
+                }
+                currencyMap = new byte[currencyCount];
+                for (int c = 0; c < currencyCount; c++) {
+                    byte[] code = new byte[header.get() & 0xFF];
+                    header.get(code);
+                    currencyMap[c] = (byte) Currencies.resolve(new String(code, StandardCharsets.UTF_8));
+                }
+            }
+            byte[] currencies = currencyMap;
+
+            ColumnarExpenseStore store = ColumnarExpenseStore.forLoad(rows, heapBytes);
+            List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+            long pos = headerLength;
+            int firstRow = 0, heapStart = 0;
+            while (firstRow < rows) {
+                ByteBuffer blockHeader = read(channel, pos, BLOCK_HEADER);
+                int count = blockHeader.getInt(0);
+                int body = blockHeader.getInt(4);
+                int expected = blockHeader.getInt(8);
+                int blockHeap = body - count * rowBytes;
+                if (count <= 0 || count > rows - firstRow || blockHeap < 0 || blockHeap > heapBytes - heapStart) {
+                    throw new IOException(file + ": corrupt block at offset " + pos);
+                }
+                long bodyAt = pos + BLOCK_HEADER;
+                int row = firstRow, heap = heapStart;
+                tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                    try {
+                        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, bodyAt, body);
+                        CRC32C blockCrc = new CRC32C();
+                        blockCrc.update(map.duplicate());
+                        if (checksum(blockCrc) != expected) {
+                            throw new IOException(file + ": checksum mismatch in block at offset "
+                                                  + (bodyAt - BLOCK_HEADER));
+                        }
+                        store.loadBlock(map.order(ByteOrder.LITTLE_ENDIAN), row, count, heap, categoryMap,
+                                        currencies, dictionary);
+                        return null;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+                pos = bodyAt + body;
+                firstRow += count;
+                heapStart += blockHeap;
+            }
+            if (heapStart != heapBytes) throw new IOException(file + ": snapshot is missing descriptions");
+
+            for (ForkJoinTask<Void> task : tasks) {
+                try {
+                    task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("load interrupted");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+                    throw new IOException("Error reading " + file, cause);
+                }
+            }
+            store.finishLoad();
+            if (!dictionary) store.shareDescriptions();
+            store.sortById();
+            int nextId = rows == 0 ? 1 : store.idAt(rows - 1) + 1;
+            return new ExpenseLoader.Result(store, nextId, channel.size(), System.nanoTime() - start);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long at, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, at + buf.position()) < 0) throw new EOFException("snapshot is truncated");
+        }
+        return buf;
+    }
+
+    // Conversion
+
+    /**
+     * Rewrites a legacy text snapshot as a binary one. Nothing is written if
+     * any row can't be read (see {@link ExpenseLoader.Result#skipped}); the
+     * caller reports them.
+     */
+    public static ExpenseLoader.Result convert(Path text, Path binary) throws IOException {
+        ExpenseLoader.Result legacy = ExpenseLoader.load(text);
+        if (legacy.skipped == 0) write(legacy.store, binary);
+        return legacy;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: java SnapshotFile <expenses.txt> <expenses.dat>");
+            System.exit(2);
+        }
+        long start = System.nanoTime();
+        ExpenseLoader.Result result = convert(Paths.get(args[0]), Paths.get(args[1]));
+        if (result.skipped > 0) {
+            System.err.println("Not converted: " + result.describeSkipped());
+            System.exit(1);
+        }
+        System.out.printf("Converted %d rows in %.0f ms%n", result.store.size(), (System.nanoTime() - start) / 1e6);
+    }
+}